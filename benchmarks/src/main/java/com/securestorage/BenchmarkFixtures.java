@@ -0,0 +1,323 @@
+package com.securestorage;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.web.multipart.MultipartFile;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedAsyncClient;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory stand-ins for S3, DynamoDB and the quota table, so the benchmarks run offline and
+ * measure only this code. Everything is wired by hand the way Spring would.
+ */
+final class BenchmarkFixtures {
+
+    // Fixed so every run encrypts under the same key
+    private static final String MASTER_KEY = Base64.getEncoder().encodeToString(new byte[32]);
+
+    private BenchmarkFixtures() {
+    }
+
+    static EncryptionService encryptionService(long keyCacheEntries) {
+        try {
+            EncryptionService service = new EncryptionService();
+            set(service, "masterKeyString", MASTER_KEY);
+            set(service, "masterKeysString", "");
+            set(service, "activeKeyId", EncryptionService.LEGACY_KEY_ID);
+            set(service, "contentIdKeyId", "");
+            set(service, "segmentSize", 65536);
+            set(service, "keyCacheMaxEntries", keyCacheEntries);
+            set(service, "keyCacheTtl", Duration.ofMinutes(10));
+            service.init();
+            return service;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not set up EncryptionService", e);
+        }
+    }
+
+    // The real upload/download code path, with compression, dedup and the local blob cache off
+    static FileService fileService(EncryptionService encryptionService, ObjectStore objectStore,
+                                   FileMetadataRepository metadataRepository) {
+        return new FileService(metadataRepository, encryptionService, new UnlimitedQuota(), objectStore,
+                new EncryptedBlobCache(false, System.getProperty("java.io.tmpdir"), 0, 0),
+                new CompressionService(false, 0), new ContentBlobIndex(null, false),
+                new FileMetrics(new SimpleMeterRegistry()),
+                new FileSearchIndex(metadataRepository, 0, Duration.ofMinutes(1), Duration.ofMinutes(1)),
+                new DefaultListableBeanFactory().getBeanProvider(S3AsyncClient.class), 0, 1);
+    }
+
+    static InMemoryMetadataRepository metadataRepository(boolean discardWrites) {
+        return new InMemoryMetadataRepository(discardWrites);
+    }
+
+    // Deterministic, incompressible-looking content
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void set(Object target, String field, Object value) throws ReflectiveOperationException {
+        Field f = target.getClass().getDeclaredField(field);
+        f.setAccessible(true);
+        f.set(target, value);
+    }
+
+    /**
+     * Object store in a map. With {@code discardWrites} uploads are read to the end and dropped,
+     * so upload benchmarks of large files do not fill the heap.
+     */
+    static final class InMemoryObjectStore implements ObjectStore {
+
+        private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        private final Map<String, Map<String, String>> metadata = new ConcurrentHashMap<>();
+        private final Map<String, Long> modified = new ConcurrentHashMap<>();
+        private final Map<String, Map<Integer, byte[]>> parts = new ConcurrentHashMap<>();
+        private final boolean discardWrites;
+
+        InMemoryObjectStore(boolean discardWrites) {
+            this.discardWrites = discardWrites;
+        }
+
+        @Override
+        public void put(String key, InputStream content, long contentLength, Map<String, String> metadata)
+                throws IOException {
+            if (discardWrites) {
+                content.transferTo(OutputStream.nullOutputStream());
+            } else {
+                objects.put(key, content.readAllBytes());
+                this.metadata.put(key, Map.copyOf(metadata));
+                modified.put(key, System.currentTimeMillis());
+            }
+        }
+
+        @Override
+        public InputStream get(String key) {
+            byte[] object = objects.get(key);
+            if (object == null) throw new ObjectNotFoundException(key);
+            return new ByteArrayInputStream(object);
+        }
+
+        @Override
+        public Map<String, String> metadata(String key) {
+            Map<String, String> stored = metadata.get(key);
+            if (stored == null) throw new ObjectNotFoundException(key);
+            return stored;
+        }
+
+        @Override
+        public long lastModified(String key) {
+            Long stored = modified.get(key);
+            if (stored == null) throw new ObjectNotFoundException(key);
+            return stored;
+        }
+
+        @Override
+        public InputStream get(String key, long start, long end) {
+            byte[] object = objects.get(key);
+            if (object == null) throw new ObjectNotFoundException(key);
+            return new ByteArrayInputStream(object, (int) start, (int) (end - start + 1));
+        }
+
+        @Override
+        public void delete(String key) {
+            objects.remove(key);
+            metadata.remove(key);
+            modified.remove(key);
+        }
+
+        @Override
+        public void deleteAll(Collection<String> keys) {
+            keys.forEach(this::delete);
+        }
+
+        @Override
+        public String startParts(String key) {
+            String uploadId = UUID.randomUUID().toString();
+            parts.put(uploadId, new ConcurrentHashMap<>());
+            return uploadId;
+        }
+
+        @Override
+        public String putPart(String key, String uploadId, int partNumber, InputStream content, long contentLength)
+                throws IOException {
+            parts.get(uploadId).put(partNumber, content.readAllBytes());
+            return Integer.toString(partNumber);
+        }
+
+        @Override
+        public void completeParts(String key, String uploadId, List<String> partTags) throws IOException {
+            Map<Integer, byte[]> received = parts.remove(uploadId);
+            ByteArrayOutputStream object = new ByteArrayOutputStream();
+            for (int i = 1; i <= partTags.size(); i++) {
+                object.write(received.get(i));
+            }
+            put(key, new ByteArrayInputStream(object.toByteArray()), object.size());
+        }
+
+        @Override
+        public void abortParts(String key, String uploadId) {
+            parts.remove(uploadId);
+        }
+    }
+
+    // Metadata rows in a map (or dropped, like the object store); the DynamoDB client is never called
+    static final class InMemoryMetadataRepository extends FileMetadataRepository {
+
+        private final Map<String, FileEntity> rows = new ConcurrentHashMap<>();
+        private final boolean discardWrites;
+
+        InMemoryMetadataRepository(boolean discardWrites) {
+            super(DynamoDbEnhancedClient.builder().dynamoDbClient(new OfflineDynamoDbClient()).build(),
+                    new DefaultListableBeanFactory().getBeanProvider(DynamoDbEnhancedAsyncClient.class),
+                    "files", 0, Duration.ofMinutes(1));
+            this.discardWrites = discardWrites;
+        }
+
+        Collection<FileEntity> rows() {
+            return rows.values();
+        }
+
+        @Override
+        public FileEntity findById(String fileId) {
+            return rows.get(fileId);
+        }
+
+        @Override
+        public void save(FileEntity entity) {
+            if (!discardWrites) rows.put(entity.getFileId(), entity);
+        }
+
+        @Override
+        public FileEntity delete(String fileId) {
+            return rows.remove(fileId);
+        }
+    }
+
+    // Every operation throws UnsupportedOperationException (the interface default)
+    private static final class OfflineDynamoDbClient implements DynamoDbClient {
+
+        @Override
+        public String serviceName() {
+            return "dynamodb";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class UnlimitedQuota extends StorageQuotaService {
+
+        UnlimitedQuota() {
+            super(null, null);
+        }
+
+        @Override
+        public void reserve(String ownerId, long bytes) {
+        }
+
+        @Override
+        public void commit(String ownerId, long bytes) {
+        }
+
+        @Override
+        public void release(String ownerId, long bytes) {
+        }
+
+        @Override
+        public void recordDeletion(String ownerId, long bytes) {
+        }
+    }
+
+    /**
+     * An upload of {@code size} bytes generated on the fly (one random block repeated), so even
+     * 1 GB uploads need no file and almost no heap.
+     */
+    static final class GeneratedMultipartFile implements MultipartFile {
+
+        private static final byte[] BLOCK = randomBytes(1024 * 1024);
+
+        private final long size;
+
+        GeneratedMultipartFile(long size) {
+            this.size = size;
+        }
+
+        @Override
+        public String getName() {
+            return "file";
+        }
+
+        @Override
+        public String getOriginalFilename() {
+            return "benchmark.bin";
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public byte[] getBytes() throws IOException {
+            return getInputStream().readAllBytes();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                private long position;
+
+                @Override
+                public int read() {
+                    if (position >= size) return -1;
+                    return BLOCK[(int) (position++ % BLOCK.length)] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (position >= size) return -1;
+                    int offset = (int) (position % BLOCK.length);
+                    int n = (int) Math.min(Math.min(len, BLOCK.length - offset), size - position);
+                    System.arraycopy(BLOCK, offset, b, off, n);
+                    position += n;
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public void transferTo(File dest) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
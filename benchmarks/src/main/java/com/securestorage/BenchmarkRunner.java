@@ -0,0 +1,86 @@
+package com.securestorage;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks once per thread count with the GC (allocation) profiler on, and writes all
+ * results to one JSON file that can be diffed between releases.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar [--include=regex] [--threads=1,4,16,64] [--sizes=1024,...]
+ *      [--memory-budget=1073741824] [--heap=8g] [--out=jmh-results.json]
+ * </pre>
+ *
+ * Each thread holds its payload in memory, so a size is only run at thread counts where
+ * {@code size * threads} stays within {@code --memory-budget}. The plain JMH command line is
+ * still available as {@code java -cp target/benchmarks.jar org.openjdk.jmh.Main}.
+ */
+public final class BenchmarkRunner {
+
+    private static final String DEFAULT_SIZES = "1024,65536,1048576,16777216,268435456,1073741824";
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        String include = options.getOrDefault("include", "com\\.securestorage\\..*Benchmark");
+        int[] threadCounts = Arrays.stream(options.getOrDefault("threads", "1,4,16,64").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+        long[] sizes = Arrays.stream(options.getOrDefault("sizes", DEFAULT_SIZES).split(","))
+                .mapToLong(Long::parseLong).toArray();
+        long memoryBudget = Long.parseLong(options.getOrDefault("memory-budget", "1073741824"));
+        String heap = options.getOrDefault("heap", "8g");
+        File out = new File(options.getOrDefault("out", "jmh-results.json"));
+
+        List<RunResult> results = new ArrayList<>();
+        for (int threads : threadCounts) {
+            String[] fitting = Arrays.stream(sizes)
+                    .filter(size -> size * threads <= memoryBudget)
+                    .mapToObj(Long::toString)
+                    .toArray(String[]::new);
+            if (fitting.length == 0) continue;
+
+            Options run = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .param("size", fitting)
+                    .addProfiler(GCProfiler.class)
+                    .jvmArgsAppend("-Xmx" + heap)
+                    .build();
+            results.addAll(new Runner(run).run());
+        }
+
+        try (PrintStream json = new PrintStream(out, StandardCharsets.UTF_8)) {
+            ResultFormatFactory.getInstance(ResultFormatType.JSON, json).writeOut(results);
+        }
+        System.out.println("Results written to " + out.getAbsolutePath());
+    }
+
+    static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+}
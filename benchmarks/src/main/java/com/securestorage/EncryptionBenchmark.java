@@ -0,0 +1,79 @@
+package com.securestorage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One-shot AES-GCM ({@code encryptData}/{@code decryptData}) by payload size, and file key
+ * wrap/unwrap with and without the unwrapped-key cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class EncryptionBenchmark {
+
+    @Param({"1024", "65536", "1048576", "16777216", "268435456", "1073741824"})
+    public int size;
+
+    private EncryptionService encryption;
+    private EncryptionService uncachedEncryption;
+    private SecretKey fileKey;
+    private byte[] iv;
+    private byte[] plaintext;
+    private byte[] ciphertext;
+    private String wrappedKey;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        encryption = BenchmarkFixtures.encryptionService(1000);
+        uncachedEncryption = BenchmarkFixtures.encryptionService(0);
+        fileKey = encryption.generateAesKey();
+        iv = encryption.generateIv();
+        plaintext = BenchmarkFixtures.randomBytes(size);
+        ciphertext = encryption.encryptData(plaintext, fileKey, iv);
+        wrappedKey = encryption.encryptKeyLocally(fileKey);
+    }
+
+    @Benchmark
+    public byte[] encryptData() throws Exception {
+        // GCM refuses to encrypt twice with the same key and IV; a fresh IV is what uploads pay too
+        return encryption.encryptData(plaintext, fileKey, encryption.generateIv());
+    }
+
+    @Benchmark
+    public byte[] decryptData() throws Exception {
+        return encryption.decryptData(ciphertext, fileKey, iv);
+    }
+
+    // Key benchmarks do not depend on size; run them with -p size=1024 to avoid repeats
+    @Benchmark
+    public String wrapKey() throws Exception {
+        return encryption.encryptKeyLocally(fileKey);
+    }
+
+    @Benchmark
+    public SecretKey unwrapKeyCached() throws Exception {
+        return encryption.decryptKeyLocally(EncryptionService.LEGACY_KEY_ID, wrappedKey);
+    }
+
+    @Benchmark
+    public SecretKey unwrapKeyUncached() throws Exception {
+        return uncachedEncryption.decryptKeyLocally(EncryptionService.LEGACY_KEY_ID, wrappedKey);
+    }
+}
@@ -0,0 +1,77 @@
+package com.securestorage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end {@code FileService} upload and download (segmented streaming encryption, metadata,
+ * object store) by file size, against the in-memory stand-ins.
+ *
+ * Uploads are generated on the fly and dropped by the store once encrypted, so the heap only
+ * holds the one pre-encrypted object that every download reads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class FilePipelineBenchmark {
+
+    private static final String OWNER = "benchmark-user";
+
+    @Param({"1024", "65536", "1048576", "16777216", "268435456", "1073741824"})
+    public long size;
+
+    private FileService uploads;
+    private FileService downloads;
+    private BenchmarkFixtures.GeneratedMultipartFile upload;
+    private FileEntity stored;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        EncryptionService encryption = BenchmarkFixtures.encryptionService(1000);
+        upload = new BenchmarkFixtures.GeneratedMultipartFile(size);
+        uploads = BenchmarkFixtures.fileService(encryption,
+                new BenchmarkFixtures.InMemoryObjectStore(true), BenchmarkFixtures.metadataRepository(true));
+
+        // One stored file for the download side
+        BenchmarkFixtures.InMemoryMetadataRepository metadata = BenchmarkFixtures.metadataRepository(false);
+        downloads = BenchmarkFixtures.fileService(encryption, new BenchmarkFixtures.InMemoryObjectStore(false), metadata);
+        downloads.uploadFile(upload, OWNER);
+        stored = metadata.rows().iterator().next();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        uploads.shutdown();
+        downloads.shutdown();
+    }
+
+    @Benchmark
+    public void uploadFile() throws Exception {
+        uploads.uploadFile(upload, OWNER);
+    }
+
+    @Benchmark
+    public long downloadFile() throws Exception {
+        try (InputStream plaintext = downloads.openDownload(stored)) {
+            return plaintext.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.securestorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * Compares startup time and first-request latency of the plain JVM, CDS and native builds (see
+ * the {@code cds} and {@code native} profiles in ../pom.xml). Each run starts the application,
+ * waits until its port accepts connections, then times the first and second request to
+ * {@code --path} and reads the resident memory. Run it from the project root after building:
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.securestorage.StartupBenchmark [--builds=jvm,cds,native]
+ *      [--runs=5] [--port=5000] [--path=/livez] [--token=JWT] [--timeout=120]
+ *      [--jvm="java -jar secure-cloud-storage-1.0.0.jar"] [--jvm-dir=target] ...
+ * </pre>
+ *
+ * The application reads its settings from the environment as usual (e.g. AWS_ACCESSKEYID,
+ * AWS_SECRETKEY, APP_MASTERKEY). With {@code --token} the request carries it as a bearer token,
+ * so {@code --path=/api/files} includes fetching the issuer's JWK set. Commands are split on
+ * spaces; {@code --<build>} and {@code --<build>-dir} replace the defaults below.
+ */
+public final class StartupBenchmark {
+
+    private static final Map<String, String> COMMANDS = Map.of(
+            "jvm", "java -jar secure-cloud-storage-1.0.0.jar",
+            // The archive records the class path as the training run saw it, so it runs from target/cds
+            "cds", "java -XX:SharedArchiveFile=application.jsa -jar secure-cloud-storage-1.0.0-cds.jar",
+            "native", "./secure-cloud-storage");
+    private static final Map<String, String> DIRECTORIES = Map.of(
+            "jvm", "target",
+            "cds", "target/cds",
+            "native", "target");
+
+    private record Run(long readyMillis, long firstMillis, long secondMillis, int status, long rssKb) {
+    }
+
+    private StartupBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = BenchmarkRunner.parse(args);
+        List<String> builds = Arrays.asList(options.getOrDefault("builds", "jvm,cds,native").split(","));
+        int runs = Integer.parseInt(options.getOrDefault("runs", "5"));
+        int port = Integer.parseInt(options.getOrDefault("port", "5000"));
+        String path = options.getOrDefault("path", "/livez");
+        String token = options.get("token");
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("timeout", "120")));
+
+        System.out.printf("%-8s %4s %22s %22s %22s %10s%n", "build", "runs",
+                "ready ms (min/med/max)", "1st request ms", "2nd request ms", "RSS MB");
+        for (String build : builds) {
+            String command = options.getOrDefault(build, COMMANDS.get(build));
+            String directory = options.getOrDefault(build + "-dir", DIRECTORIES.getOrDefault(build, "."));
+            if (command == null) {
+                throw new IllegalArgumentException("No command for build " + build + "; pass --" + build + "=...");
+            }
+            List<Run> results = new ArrayList<>();
+            for (int i = 0; i < runs; i++) {
+                results.add(run(command, new File(directory), port, path, token, timeoutMillis));
+            }
+            System.out.printf("%-8s %4d %22s %22s %22s %10s%n", build, runs,
+                    summary(results, Run::readyMillis), summary(results, Run::firstMillis),
+                    summary(results, Run::secondMillis), rss(results));
+            results.stream().mapToInt(Run::status).filter(status -> status >= 400).findFirst()
+                    .ifPresent(status -> System.out.println("  (" + path + " answered HTTP " + status + ")"));
+        }
+    }
+
+    private static Run run(String command, File directory, int port, String path, String token, long timeoutMillis)
+            throws IOException, InterruptedException {
+        if (accepts(port)) {
+            throw new IllegalStateException("Port " + port + " is already in use");
+        }
+        Path log = Files.createTempFile("startup-", ".log");
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command.split(" +"))
+                .directory(directory)
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+        try {
+            // 1. Ready = the port accepts connections, which Tomcat does only once the context is refreshed
+            while (!accepts(port)) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException("Exited with " + process.exitValue() + " before listening, see " + log);
+                }
+                if (elapsedMillis(start) > timeoutMillis) {
+                    throw new IllegalStateException("Not listening after " + timeoutMillis + " ms, see " + log);
+                }
+                Thread.sleep(5);
+            }
+            long ready = elapsedMillis(start);
+
+            // 2. First request pays for lazy initialization (dispatcher servlet, JWK set, ...), the second does not
+            long before = System.nanoTime();
+            int status = get(port, path, token);
+            long first = elapsedMillis(before);
+            before = System.nanoTime();
+            get(port, path, token);
+            long second = elapsedMillis(before);
+
+            return new Run(ready, first, second, status, rssKb(process.pid()));
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+            Files.deleteIfExists(log);
+        }
+    }
+
+    private static boolean accepts(int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("localhost", port), 100);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int get(int port, String path, String token) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        if (token != null) {
+            connection.setRequestProperty("Authorization", "Bearer " + token);
+        }
+        int status = connection.getResponseCode();
+        try (InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (body != null) body.transferTo(OutputStream.nullOutputStream());
+        }
+        return status;
+    }
+
+    // Resident set size from /proc, -1 where that is not available
+    private static long rssKb(long pid) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", Long.toString(pid), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux
+        }
+        return -1;
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private static String summary(List<Run> runs, ToLongFunction<Run> metric) {
+        List<Long> values = new ArrayList<>();
+        runs.forEach(run -> values.add(metric.applyAsLong(run)));
+        Collections.sort(values);
+        return values.get(0) + " / " + values.get(values.size() / 2) + " / " + values.get(values.size() - 1);
+    }
+
+    private static String rss(List<Run> runs) {
+        List<Long> values = new ArrayList<>();
+        runs.forEach(run -> values.add(run.rssKb()));
+        Collections.sort(values);
+        long median = values.get(values.size() / 2);
+        return median < 0 ? "n/a" : Long.toString(median / 1024);
+    }
+}
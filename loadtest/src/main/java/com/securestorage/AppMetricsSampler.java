@@ -0,0 +1,163 @@
+package com.securestorage;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Samples the application's {@code /actuator/prometheus} while the measured phase runs: the heap
+ * high-water marks are the largest used and committed heap seen across samples, and GC time is
+ * the growth of the pause (and, where the collector reports it, concurrent phase) timers between
+ * the first and last sample. Metrics the build does not expose come out as null.
+ */
+final class AppMetricsSampler implements AutoCloseable {
+
+    private static final double MB = 1024 * 1024;
+
+    private record Sample(Double heapUsed, Double heapCommitted, Double pauseSeconds, Double pauses,
+                          Double pauseMax, Double concurrentSeconds) {
+    }
+
+    private final HttpClient http;
+    private final URI endpoint;
+    private final Duration interval;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    private Sample first;
+    private Sample last;
+    private double heapUsedPeak = -1;
+    private double heapCommittedPeak = -1;
+    private double pauseMaxPeak = -1;
+    private int samples;
+
+    AppMetricsSampler(HttpClient http, URI endpoint, Duration interval) {
+        this.http = http;
+        this.endpoint = endpoint;
+        this.interval = interval;
+        this.thread = new Thread(this::run, "app-metrics-sampler");
+        this.thread.setDaemon(true);
+    }
+
+    AppMetricsSampler start() {
+        sample();
+        thread.start();
+        return this;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        thread.interrupt();
+        thread.join();
+        sample();
+    }
+
+    Map<String, Object> summary(double seconds) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("heapUsedPeakMb", heapUsedPeak < 0 ? null : round(heapUsedPeak / MB));
+        summary.put("heapCommittedPeakMb", heapCommittedPeak < 0 ? null : round(heapCommittedPeak / MB));
+        Double pauseSeconds = delta(Sample::pauseSeconds);
+        summary.put("gcPauseMs", pauseSeconds == null ? null : round(pauseSeconds * 1000));
+        Double pauses = delta(Sample::pauses);
+        summary.put("gcPauses", pauses == null ? null : pauses.longValue());
+        summary.put("gcPauseMaxMs", pauseMaxPeak < 0 ? null : round(pauseMaxPeak * 1000));
+        Double concurrent = delta(Sample::concurrentSeconds);
+        summary.put("gcConcurrentMs", concurrent == null ? null : round(concurrent * 1000));
+        summary.put("gcPausePercent", pauseSeconds == null ? null : round(100 * pauseSeconds / seconds));
+        summary.put("samples", samples);
+        return summary;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(interval.toMillis());
+            } catch (InterruptedException e) {
+                return;
+            }
+            sample();
+        }
+    }
+
+    private synchronized void sample() {
+        String text;
+        try {
+            HttpResponse<String> response = http.send(HttpRequest.newBuilder(endpoint).timeout(Duration.ofSeconds(10)).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) return;
+            text = response.body();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            return;
+        }
+        Predicate<String> heap = labels -> labels.contains("area=\"heap\"");
+        Sample sample = new Sample(sum(text, "jvm_memory_used_bytes", heap), sum(text, "jvm_memory_committed_bytes", heap),
+                sum(text, "jvm_gc_pause_seconds_sum", labels -> true), sum(text, "jvm_gc_pause_seconds_count", labels -> true),
+                max(text, "jvm_gc_pause_seconds_max"), sum(text, "jvm_gc_concurrent_phase_time_seconds_sum", labels -> true));
+        if (first == null) first = sample;
+        last = sample;
+        samples++;
+        if (sample.heapUsed() != null) heapUsedPeak = Math.max(heapUsedPeak, sample.heapUsed());
+        if (sample.heapCommitted() != null) heapCommittedPeak = Math.max(heapCommittedPeak, sample.heapCommitted());
+        if (sample.pauseMax() != null) pauseMaxPeak = Math.max(pauseMaxPeak, sample.pauseMax());
+    }
+
+    private synchronized Double delta(Function<Sample, Double> metric) {
+        if (first == null || metric.apply(first) == null || metric.apply(last) == null) return null;
+        return metric.apply(last) - metric.apply(first);
+    }
+
+    // Sum of a metric's series whose labels match; null if it has none
+    private static Double sum(String text, String name, Predicate<String> labels) {
+        Double total = null;
+        for (String line : text.split("\n")) {
+            Double value = value(line, name, labels);
+            if (value != null) total = (total == null ? 0 : total) + value;
+        }
+        return total;
+    }
+
+    private static Double max(String text, String name) {
+        Double max = null;
+        for (String line : text.split("\n")) {
+            Double value = value(line, name, labels -> true);
+            if (value != null) max = max == null ? value : Math.max(max, value);
+        }
+        return max;
+    }
+
+    // "name{labels} value" or "name value"
+    private static Double value(String line, String name, Predicate<String> labels) {
+        if (!line.startsWith(name) || line.length() == name.length()) return null;
+        char next = line.charAt(name.length());
+        String rest;
+        if (next == '{') {
+            int close = line.indexOf('}');
+            if (!labels.test(line.substring(name.length(), close + 1))) return null;
+            rest = line.substring(close + 1).trim();
+        } else if (next == ' ') {
+            if (!labels.test("")) return null;
+            rest = line.substring(name.length()).trim();
+        } else {
+            return null;
+        }
+        try {
+            return Double.parseDouble(rest.split(" ")[0]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+}
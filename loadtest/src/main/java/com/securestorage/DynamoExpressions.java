@@ -0,0 +1,612 @@
+package com.securestorage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Condition, key-condition, filter, update and projection expressions for {@link FakeDynamoDb},
+ * over items in DynamoDB's JSON form ({@code {"attr": {"S": "..."}}}). Covers the grammar the
+ * application and the enhanced client use: comparisons, BETWEEN, IN, AND/OR/NOT,
+ * {@code attribute_exists}, {@code attribute_not_exists}, {@code begins_with}, {@code contains},
+ * {@code size}, nested paths, and SET (with {@code +}, {@code -}, {@code if_not_exists},
+ * {@code list_append}), REMOVE, ADD and DELETE.
+ */
+final class DynamoExpressions {
+
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+    /** Error surfaced to the client as a DynamoDB exception of the given type. */
+    static final class DynamoException extends RuntimeException {
+        final String type;
+
+        DynamoException(String type, String message) {
+            super(message);
+            this.type = type;
+        }
+
+        static DynamoException validation(String message) {
+            return new DynamoException("ValidationException", message);
+        }
+    }
+
+    /** Path element: a map key (String) or a list index (Integer). */
+    record Path(List<Object> elements) {
+        String topLevel() {
+            return (String) elements.get(0);
+        }
+    }
+
+    interface Condition {
+        boolean test(JsonNode item);
+    }
+
+    private interface Operand {
+        JsonNode value(JsonNode item);
+    }
+
+    private record Action(String clause, Path path, Operand value) {
+    }
+
+    /** A parsed UpdateExpression. */
+    static final class Update {
+        private final List<Action> actions;
+
+        private Update(List<Action> actions) {
+            this.actions = actions;
+        }
+
+        // Applies to a copy of item (which must hold the key) and returns it
+        ObjectNode apply(ObjectNode item) {
+            ObjectNode updated = item.deepCopy();
+            for (Action action : actions) {
+                switch (action.clause()) {
+                    case "SET" -> assign(updated, action.path(), action.value().value(item));
+                    case "REMOVE" -> remove(updated, action.path());
+                    case "ADD" -> add(updated, action.path(), action.value().value(item));
+                    case "DELETE" -> deleteFromSet(updated, action.path(), action.value().value(item));
+                    default -> throw new IllegalStateException(action.clause());
+                }
+            }
+            return updated;
+        }
+
+        Set<String> topLevelAttributes() {
+            Set<String> names = new LinkedHashSet<>();
+            actions.forEach(action -> names.add(action.path().topLevel()));
+            return names;
+        }
+    }
+
+    private DynamoExpressions() {
+    }
+
+    static Condition condition(String expression, JsonNode names, JsonNode values) {
+        if (expression == null || expression.isBlank()) return item -> true;
+        Parser parser = new Parser(expression, names, values);
+        Condition condition = parser.orCondition();
+        parser.expectEnd();
+        return condition;
+    }
+
+    static Update update(String expression, JsonNode names, JsonNode values) {
+        Parser parser = new Parser(expression, names, values);
+        List<Action> actions = new ArrayList<>();
+        while (!parser.atEnd()) {
+            String clause = parser.next().toUpperCase(Locale.ROOT);
+            do {
+                Path path = parser.path();
+                switch (clause) {
+                    case "SET" -> {
+                        parser.expect("=");
+                        actions.add(new Action(clause, path, parser.setValue()));
+                    }
+                    case "REMOVE" -> actions.add(new Action(clause, path, null));
+                    case "ADD", "DELETE" -> actions.add(new Action(clause, path, parser.operand()));
+                    default -> throw DynamoException.validation("Invalid UpdateExpression: unknown clause " + clause);
+                }
+            } while (parser.accept(","));
+        }
+        return new Update(actions);
+    }
+
+    static List<Path> projection(String expression, JsonNode names) {
+        if (expression == null || expression.isBlank()) return null;
+        Parser parser = new Parser(expression, names, null);
+        List<Path> paths = new ArrayList<>();
+        do {
+            paths.add(parser.path());
+        } while (parser.accept(","));
+        parser.expectEnd();
+        return paths;
+    }
+
+    // Keeps only the projected attributes; a nested path keeps its whole top-level attribute
+    static ObjectNode project(ObjectNode item, List<Path> paths) {
+        if (paths == null) return item;
+        ObjectNode projected = NODES.objectNode();
+        for (Path path : paths) {
+            JsonNode value = item.get(path.topLevel());
+            if (value != null) projected.set(path.topLevel(), value);
+        }
+        return projected;
+    }
+
+    // Value of the equality on attribute in a key condition ("#pk = :v AND ...")
+    static JsonNode equalityValue(String expression, JsonNode names, JsonNode values, String attribute) {
+        Parser parser = new Parser(expression, names, values);
+        while (!parser.atEnd()) {
+            String token = parser.next();
+            if ("(".equals(token) || ")".equals(token) || "AND".equalsIgnoreCase(token)) continue;
+            String name = parser.name(token);
+            if (attribute.equals(name) && parser.accept("=")) {
+                return parser.operand().value(null);
+            }
+        }
+        throw DynamoException.validation("Query condition missed key schema element: " + attribute);
+    }
+
+    static JsonNode resolve(JsonNode item, Path path) {
+        JsonNode current = item.get(path.topLevel());
+        for (Object element : path.elements().subList(1, path.elements().size())) {
+            if (current == null) return null;
+            if (element instanceof String key) {
+                JsonNode map = current.get("M");
+                current = map == null ? null : map.get(key);
+            } else {
+                JsonNode list = current.get("L");
+                int index = (Integer) element;
+                current = list == null || index >= list.size() ? null : list.get(index);
+            }
+        }
+        return current;
+    }
+
+    // --- Update helpers ---
+
+    private static void assign(ObjectNode item, Path path, JsonNode value) {
+        Container parent = parent(item, path);
+        if (parent.key() != null) {
+            parent.map().set(parent.key(), value);
+        } else {
+            ArrayNode list = parent.list();
+            if (parent.index() < list.size()) list.set(parent.index(), value);
+            else list.add(value);
+        }
+    }
+
+    private static void remove(ObjectNode item, Path path) {
+        try {
+            Container parent = parent(item, path);
+            if (parent.key() != null) parent.map().remove(parent.key());
+            else if (parent.index() < parent.list().size()) parent.list().remove(parent.index());
+        } catch (DynamoException e) {
+            // Removing below a missing map is a no-op
+        }
+    }
+
+    private static void add(ObjectNode item, Path path, JsonNode value) {
+        JsonNode existing = resolve(item, path);
+        if (value.has("N")) {
+            BigDecimal base = existing == null ? BigDecimal.ZERO : number(existing);
+            assign(item, path, number(base.add(number(value))));
+        } else if (setType(value) != null) {
+            String type = setType(value);
+            Set<JsonNode> union = new LinkedHashSet<>();
+            if (existing != null) existing.get(type).forEach(union::add);
+            value.get(type).forEach(union::add);
+            ObjectNode set = NODES.objectNode();
+            union.forEach(set.putArray(type)::add);
+            assign(item, path, set);
+        } else {
+            throw DynamoException.validation("ADD only supports numbers and sets");
+        }
+    }
+
+    private static void deleteFromSet(ObjectNode item, Path path, JsonNode value) {
+        String type = setType(value);
+        JsonNode existing = resolve(item, path);
+        if (type == null) throw DynamoException.validation("DELETE only supports sets");
+        if (existing == null) return;
+        Set<JsonNode> remaining = new LinkedHashSet<>();
+        existing.get(type).forEach(remaining::add);
+        value.get(type).forEach(remaining::remove);
+        if (remaining.isEmpty()) {
+            remove(item, path);
+        } else {
+            ObjectNode set = NODES.objectNode();
+            remaining.forEach(set.putArray(type)::add);
+            assign(item, path, set);
+        }
+    }
+
+    private record Container(ObjectNode map, String key, ArrayNode list, int index) {
+    }
+
+    // Map or list holding the last element of path; like DynamoDB, the enclosing attribute must already exist
+    private static Container parent(ObjectNode item, Path path) {
+        List<Object> elements = path.elements();
+        Object last = elements.get(elements.size() - 1);
+        if (elements.size() == 1) return new Container(item, (String) last, null, 0);
+        JsonNode parent = resolve(item, new Path(elements.subList(0, elements.size() - 1)));
+        if (parent != null && last instanceof String key && parent.has("M")) {
+            return new Container((ObjectNode) parent.get("M"), key, null, 0);
+        }
+        if (parent != null && last instanceof Integer index && parent.has("L")) {
+            return new Container(null, null, (ArrayNode) parent.get("L"), index);
+        }
+        throw DynamoException.validation("The document path provided in the update expression is invalid for update");
+    }
+
+    // --- Values ---
+
+    static BigDecimal number(JsonNode attribute) {
+        JsonNode n = attribute.get("N");
+        if (n == null) throw DynamoException.validation("An operand in the expression has an incorrect data type");
+        return new BigDecimal(n.asText());
+    }
+
+    static ObjectNode number(BigDecimal value) {
+        return NODES.objectNode().put("N", value.stripTrailingZeros().toPlainString());
+    }
+
+    private static String setType(JsonNode value) {
+        for (String type : List.of("SS", "NS", "BS")) {
+            if (value.has(type)) return type;
+        }
+        return null;
+    }
+
+    // Negative, zero or positive; null if the two cannot be ordered
+    private static Integer compare(JsonNode a, JsonNode b) {
+        if (a == null || b == null) return null;
+        if (a.has("N") && b.has("N")) return number(a).compareTo(number(b));
+        if (a.has("S") && b.has("S")) return a.get("S").asText().compareTo(b.get("S").asText());
+        if (a.has("B") && b.has("B")) {
+            return Arrays.compareUnsigned(Base64.getDecoder().decode(a.get("B").asText()),
+                    Base64.getDecoder().decode(b.get("B").asText()));
+        }
+        return null;
+    }
+
+    private static boolean equal(JsonNode a, JsonNode b) {
+        if (a == null || b == null) return false;
+        Integer ordered = compare(a, b);
+        if (ordered != null) return ordered == 0;
+        String type = setType(a);
+        if (type != null && b.has(type)) {
+            Set<JsonNode> left = new HashSet<>();
+            a.get(type).forEach(left::add);
+            Set<JsonNode> right = new HashSet<>();
+            b.get(type).forEach(right::add);
+            return left.equals(right);
+        }
+        return a.equals(b);
+    }
+
+    private static JsonNode size(JsonNode value) {
+        if (value == null) return null;
+        long size;
+        if (value.has("S")) size = value.get("S").asText().length();
+        else if (value.has("B")) size = Base64.getDecoder().decode(value.get("B").asText()).length;
+        else if (value.has("M")) size = value.get("M").size();
+        else if (value.has("L")) size = value.get("L").size();
+        else if (setType(value) != null) size = value.get(setType(value)).size();
+        else return null;
+        return number(BigDecimal.valueOf(size));
+    }
+
+    // --- Parser ---
+
+    private static final class Parser {
+        private final List<String> tokens;
+        private final JsonNode names;
+        private final JsonNode values;
+        private int position;
+
+        Parser(String expression, JsonNode names, JsonNode values) {
+            this.tokens = tokenize(expression);
+            this.names = names;
+            this.values = values;
+        }
+
+        boolean atEnd() {
+            return position >= tokens.size();
+        }
+
+        String peek() {
+            return atEnd() ? null : tokens.get(position);
+        }
+
+        String next() {
+            if (atEnd()) throw DynamoException.validation("Invalid expression: unexpected end");
+            return tokens.get(position++);
+        }
+
+        boolean accept(String token) {
+            if (token.equalsIgnoreCase(peek())) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(String token) {
+            if (!accept(token)) throw DynamoException.validation("Invalid expression: expected " + token + " near " + peek());
+        }
+
+        void expectEnd() {
+            if (!atEnd()) throw DynamoException.validation("Invalid expression: unexpected " + peek());
+        }
+
+        String name(String token) {
+            if (!token.startsWith("#")) return token;
+            JsonNode name = names == null ? null : names.get(token);
+            if (name == null) throw DynamoException.validation("An expression attribute name used in the document path is not defined: " + token);
+            return name.asText();
+        }
+
+        Path path() {
+            List<Object> elements = new ArrayList<>();
+            elements.add(name(next()));
+            while (true) {
+                if (accept(".")) {
+                    elements.add(name(next()));
+                } else if (accept("[")) {
+                    elements.add(Integer.parseInt(next()));
+                    expect("]");
+                } else {
+                    return new Path(elements);
+                }
+            }
+        }
+
+        Operand operand() {
+            String token = peek();
+            if (token != null && token.startsWith(":")) {
+                position++;
+                JsonNode value = values == null ? null : values.get(token);
+                if (value == null) throw DynamoException.validation("An expression attribute value used in expression is not defined: " + token);
+                return item -> value;
+            }
+            if ("size".equalsIgnoreCase(token) && "(".equals(lookahead(1))) {
+                position += 2;
+                Path path = path();
+                expect(")");
+                return item -> size(resolve(item, path));
+            }
+            Path path = path();
+            return item -> resolve(item, path);
+        }
+
+        Operand setValue() {
+            String token = peek();
+            if ("if_not_exists".equalsIgnoreCase(token) && "(".equals(lookahead(1))) {
+                position += 2;
+                Path path = path();
+                expect(",");
+                Operand fallback = operand();
+                expect(")");
+                return item -> {
+                    JsonNode existing = resolve(item, path);
+                    return existing != null ? existing : fallback.value(item);
+                };
+            }
+            if ("list_append".equalsIgnoreCase(token) && "(".equals(lookahead(1))) {
+                position += 2;
+                Operand first = setValue();
+                expect(",");
+                Operand second = setValue();
+                expect(")");
+                return item -> {
+                    ArrayNode list = NODES.arrayNode();
+                    list.addAll((ArrayNode) first.value(item).get("L"));
+                    list.addAll((ArrayNode) second.value(item).get("L"));
+                    ObjectNode result = NODES.objectNode();
+                    result.set("L", list);
+                    return result;
+                };
+            }
+            Operand left = operand();
+            if (accept("+")) {
+                Operand right = operand();
+                return item -> number(number(left.value(item)).add(number(right.value(item))));
+            }
+            if (accept("-")) {
+                Operand right = operand();
+                return item -> number(number(left.value(item)).subtract(number(right.value(item))));
+            }
+            return left;
+        }
+
+        Condition orCondition() {
+            Condition left = andCondition();
+            while (accept("OR")) {
+                Condition a = left;
+                Condition b = andCondition();
+                left = item -> a.test(item) || b.test(item);
+            }
+            return left;
+        }
+
+        Condition andCondition() {
+            Condition left = notCondition();
+            while (accept("AND")) {
+                Condition a = left;
+                Condition b = notCondition();
+                left = item -> a.test(item) && b.test(item);
+            }
+            return left;
+        }
+
+        Condition notCondition() {
+            if (accept("NOT")) {
+                Condition inner = notCondition();
+                return item -> !inner.test(item);
+            }
+            return primary();
+        }
+
+        Condition primary() {
+            if (accept("(")) {
+                Condition inner = orCondition();
+                expect(")");
+                return inner;
+            }
+            String token = peek();
+            if (token != null && "(".equals(lookahead(1)) && !"size".equalsIgnoreCase(token)) {
+                position += 2;
+                Condition function = function(token.toLowerCase(Locale.ROOT));
+                expect(")");
+                return function;
+            }
+            Operand left = operand();
+            String comparator = next().toUpperCase(Locale.ROOT);
+            switch (comparator) {
+                case "BETWEEN" -> {
+                    Operand low = operand();
+                    expect("AND");
+                    Operand high = operand();
+                    return item -> {
+                        JsonNode value = left.value(item);
+                        Integer aboveLow = compare(value, low.value(item));
+                        Integer belowHigh = compare(value, high.value(item));
+                        return aboveLow != null && belowHigh != null && aboveLow >= 0 && belowHigh <= 0;
+                    };
+                }
+                case "IN" -> {
+                    expect("(");
+                    List<Operand> candidates = new ArrayList<>();
+                    do {
+                        candidates.add(operand());
+                    } while (accept(","));
+                    expect(")");
+                    return item -> candidates.stream().anyMatch(c -> equal(left.value(item), c.value(item)));
+                }
+                default -> {
+                    Operand right = operand();
+                    return comparison(comparator, left, right);
+                }
+            }
+        }
+
+        private Condition comparison(String comparator, Operand left, Operand right) {
+            return item -> {
+                JsonNode a = left.value(item);
+                JsonNode b = right.value(item);
+                return switch (comparator) {
+                    case "=" -> equal(a, b);
+                    // A missing attribute is never equal to a value
+                    case "<>" -> !equal(a, b);
+                    default -> {
+                        Integer ordered = compare(a, b);
+                        if (ordered == null) yield false;
+                        yield switch (comparator) {
+                            case "<" -> ordered < 0;
+                            case "<=" -> ordered <= 0;
+                            case ">" -> ordered > 0;
+                            case ">=" -> ordered >= 0;
+                            default -> throw DynamoException.validation("Invalid comparator " + comparator);
+                        };
+                    }
+                };
+            };
+        }
+
+        private Condition function(String function) {
+            Path path = path();
+            switch (function) {
+                case "attribute_exists":
+                    return item -> resolve(item, path) != null;
+                case "attribute_not_exists":
+                    return item -> resolve(item, path) == null;
+                case "begins_with": {
+                    expect(",");
+                    Operand prefix = operand();
+                    return item -> {
+                        JsonNode value = resolve(item, path);
+                        JsonNode start = prefix.value(item);
+                        return value != null && value.has("S") && start.has("S")
+                                && value.get("S").asText().startsWith(start.get("S").asText());
+                    };
+                }
+                case "contains": {
+                    expect(",");
+                    Operand operand = operand();
+                    return item -> {
+                        JsonNode value = resolve(item, path);
+                        JsonNode wanted = operand.value(item);
+                        if (value == null) return false;
+                        if (value.has("S") && wanted.has("S")) return value.get("S").asText().contains(wanted.get("S").asText());
+                        String type = setType(value);
+                        if (type != null) {
+                            // Set members are bare strings; the operand is a scalar attribute value
+                            String member = wanted.elements().next().asText();
+                            for (JsonNode candidate : value.get(type)) {
+                                if (candidate.asText().equals(member)) return true;
+                            }
+                            return false;
+                        }
+                        if (value.has("L")) {
+                            for (JsonNode member : value.get("L")) {
+                                if (equal(member, wanted)) return true;
+                            }
+                        }
+                        return false;
+                    };
+                }
+                case "attribute_type": {
+                    expect(",");
+                    Operand type = operand();
+                    return item -> {
+                        JsonNode value = resolve(item, path);
+                        return value != null && value.has(type.value(item).get("S").asText());
+                    };
+                }
+                default:
+                    throw DynamoException.validation("Invalid function name: " + function);
+            }
+        }
+
+        private String lookahead(int offset) {
+            int index = position + offset;
+            return index < tokens.size() ? tokens.get(index) : null;
+        }
+
+        private static List<String> tokenize(String expression) {
+            List<String> tokens = new ArrayList<>();
+            int i = 0;
+            while (i < expression.length()) {
+                char c = expression.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (Character.isLetterOrDigit(c) || c == '_' || c == '#' || c == ':') {
+                    int start = i++;
+                    while (i < expression.length() && (Character.isLetterOrDigit(expression.charAt(i)) || expression.charAt(i) == '_')) {
+                        i++;
+                    }
+                    tokens.add(expression.substring(start, i));
+                } else if ((c == '<' || c == '>') && i + 1 < expression.length()
+                        && (expression.charAt(i + 1) == '=' || c == '<' && expression.charAt(i + 1) == '>')) {
+                    tokens.add(expression.substring(i, i + 2));
+                    i += 2;
+                } else {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                }
+            }
+            return tokens;
+        }
+    }
+}
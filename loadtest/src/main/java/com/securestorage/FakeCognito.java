@@ -0,0 +1,124 @@
+package com.securestorage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cognito stand-in: an issuer with a locally generated RSA key, serving the OpenID discovery
+ * document and JWKS the resource server fetches ({@code /issuer/...}), and minting RS256 access
+ * tokens for the simulated users. POSTs to {@code /} are the user pool admin calls made on
+ * account deletion (AdminUserGlobalSignOut, AdminDeleteUser), which are only counted.
+ */
+final class FakeCognito implements HttpHandler {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final Base64.Encoder BASE64URL = Base64.getUrlEncoder().withoutPadding();
+    private static final String KEY_ID = "loadtest";
+
+    private final String issuer;
+    private final KeyPair keys;
+    private final AtomicLong adminCalls = new AtomicLong();
+
+    FakeCognito(String baseUrl) {
+        this.issuer = baseUrl + "/issuer";
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            this.keys = generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not generate the signing key", e);
+        }
+    }
+
+    String issuer() {
+        return issuer;
+    }
+
+    long adminCalls() {
+        return adminCalls.get();
+    }
+
+    // Access token for subject, shaped like Cognito's
+    String token(String subject, Duration validity) {
+        Instant now = Instant.now();
+        ObjectNode header = JSON.createObjectNode().put("alg", "RS256").put("kid", KEY_ID).put("typ", "JWT");
+        ObjectNode claims = JSON.createObjectNode()
+                .put("sub", subject)
+                .put("iss", issuer)
+                .put("token_use", "access")
+                .put("client_id", "loadtest")
+                .put("username", subject)
+                .put("iat", now.getEpochSecond())
+                .put("exp", now.plus(validity).getEpochSecond());
+        try {
+            String signingInput = BASE64URL.encodeToString(JSON.writeValueAsBytes(header)) + "."
+                    + BASE64URL.encodeToString(JSON.writeValueAsBytes(claims));
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign(keys.getPrivate());
+            signature.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+            return signingInput + "." + BASE64URL.encodeToString(signature.sign());
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Could not sign a token", e);
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            if (exchange.getRequestMethod().equals("POST")) {
+                exchange.getRequestBody().readAllBytes();
+                adminCalls.incrementAndGet();
+                respond(exchange, 200, "application/x-amz-json-1.1", "{}");
+            } else if (path.equals("/issuer/.well-known/openid-configuration")) {
+                respond(exchange, 200, "application/json", JSON.writeValueAsString(Map.of(
+                        "issuer", issuer,
+                        "jwks_uri", issuer + "/.well-known/jwks.json",
+                        "subject_types_supported", new String[]{"public"},
+                        "id_token_signing_alg_values_supported", new String[]{"RS256"},
+                        "response_types_supported", new String[]{"code", "token"})));
+            } else if (path.equals("/issuer/.well-known/jwks.json")) {
+                RSAPublicKey key = (RSAPublicKey) keys.getPublic();
+                Map<String, String> jwk = Map.of("kty", "RSA", "kid", KEY_ID, "use", "sig", "alg", "RS256",
+                        "n", unsigned(key.getModulus()), "e", unsigned(key.getPublicExponent()));
+                respond(exchange, 200, "application/json", JSON.writeValueAsString(Map.of("keys", new Object[]{jwk})));
+            } else {
+                respond(exchange, 404, "application/json", "{}");
+            }
+        }
+    }
+
+    // Base64url of the big-endian magnitude, without BigInteger's sign byte
+    private static String unsigned(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        return BASE64URL.encodeToString(bytes);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package com.securestorage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.securestorage.DynamoExpressions.Condition;
+import com.securestorage.DynamoExpressions.DynamoException;
+import com.securestorage.DynamoExpressions.Path;
+import com.securestorage.DynamoExpressions.Update;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-memory DynamoDB speaking the JSON wire protocol, so the application's real SDK clients
+ * (sync and async, plain and enhanced) can be pointed at it with {@code aws.dynamodb.endpoint}.
+ * Tables are declared up front with their hash key and global secondary indexes; items are kept
+ * as immutable JSON trees and each table serializes its writes, which makes conditional writes
+ * atomic the way DynamoDB's are. Only what the application calls is implemented: single-item
+ * reads and writes, Query, Scan (with segments), BatchGetItem and BatchWriteItem.
+ */
+final class FakeDynamoDb implements HttpHandler {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final String EXCEPTION_PREFIX = "com.amazonaws.dynamodb.v20120810#";
+
+    private record Index(String partitionKey, String sortKey, Map<String, Set<String>> members) {
+    }
+
+    private static final class Table {
+        final String hashKey;
+        final Map<String, Index> indexes = new ConcurrentHashMap<>();
+        // Ordered by key so Scan pages resume where they stopped
+        final ConcurrentSkipListMap<String, ObjectNode> items = new ConcurrentSkipListMap<>();
+
+        Table(String hashKey) {
+            this.hashKey = hashKey;
+        }
+    }
+
+    private final Map<String, Table> tables = new ConcurrentHashMap<>();
+
+    // Index names are "partitionKey-sortKey-index" (the convention of FileEntity.OWNER_INDEX)
+    FakeDynamoDb table(String name, String hashKey, String... indexNames) {
+        Table table = new Table(hashKey);
+        for (String indexName : indexNames) {
+            String[] parts = indexName.split("-");
+            table.indexes.put(indexName, new Index(parts[0], parts[1], new ConcurrentHashMap<>()));
+        }
+        tables.put(name, table);
+        return this;
+    }
+
+    long itemCount() {
+        return tables.values().stream().mapToLong(table -> table.items.size()).sum();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+        String operation = target == null ? "" : target.substring(target.indexOf('.') + 1);
+        int status = 200;
+        JsonNode response;
+        try (InputStream body = exchange.getRequestBody()) {
+            JsonNode request = JSON.readTree(body);
+            response = switch (operation) {
+                case "GetItem" -> getItem(request);
+                case "PutItem" -> putItem(request);
+                case "DeleteItem" -> deleteItem(request);
+                case "UpdateItem" -> updateItem(request);
+                case "Query" -> query(request);
+                case "Scan" -> scan(request);
+                case "BatchGetItem" -> batchGetItem(request);
+                case "BatchWriteItem" -> batchWriteItem(request);
+                default -> throw new DynamoException("UnknownOperationException", "Unsupported operation " + operation);
+            };
+        } catch (DynamoException e) {
+            status = 400;
+            response = JSON.createObjectNode().put("__type", EXCEPTION_PREFIX + e.type).put("message", e.getMessage());
+        } catch (RuntimeException e) {
+            status = 500;
+            response = JSON.createObjectNode().put("__type", EXCEPTION_PREFIX + "InternalServerError")
+                    .put("message", String.valueOf(e));
+        }
+        byte[] bytes = JSON.writeValueAsBytes(response);
+        exchange.getResponseHeaders().set("Content-Type", "application/x-amz-json-1.0");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // --- Single items ---
+
+    private JsonNode getItem(JsonNode request) {
+        Table table = table(request);
+        ObjectNode item = table.items.get(key(table, request.get("Key")));
+        ObjectNode response = JSON.createObjectNode();
+        if (item != null) {
+            response.set("Item", DynamoExpressions.project(item, projection(request)));
+        }
+        return response;
+    }
+
+    private JsonNode putItem(JsonNode request) {
+        Table table = table(request);
+        ObjectNode item = (ObjectNode) request.get("Item");
+        String key = key(table, item);
+        Condition condition = condition(request, "ConditionExpression");
+        ObjectNode old;
+        synchronized (table) {
+            old = table.items.get(key);
+            check(condition, old);
+            store(table, key, old, item.deepCopy());
+        }
+        return returnValues(request, old, null, null);
+    }
+
+    private JsonNode deleteItem(JsonNode request) {
+        Table table = table(request);
+        String key = key(table, request.get("Key"));
+        Condition condition = condition(request, "ConditionExpression");
+        ObjectNode old;
+        synchronized (table) {
+            old = table.items.get(key);
+            check(condition, old);
+            if (old != null) store(table, key, old, null);
+        }
+        return returnValues(request, old, null, null);
+    }
+
+    private JsonNode updateItem(JsonNode request) {
+        Table table = table(request);
+        JsonNode keyAttributes = request.get("Key");
+        String key = key(table, keyAttributes);
+        Condition condition = condition(request, "ConditionExpression");
+        Update update = DynamoExpressions.update(text(request, "UpdateExpression"),
+                request.get("ExpressionAttributeNames"), request.get("ExpressionAttributeValues"));
+        ObjectNode old;
+        ObjectNode updated;
+        synchronized (table) {
+            old = table.items.get(key);
+            check(condition, old);
+            // UpdateItem creates the item if it does not exist
+            ObjectNode base = old != null ? old : ((ObjectNode) keyAttributes).deepCopy();
+            updated = update.apply(base);
+            store(table, key, old, updated);
+        }
+        return returnValues(request, old, updated, update.topLevelAttributes());
+    }
+
+    private static void check(Condition condition, ObjectNode old) {
+        if (!condition.test(old != null ? old : JSON.createObjectNode())) {
+            throw new DynamoException("ConditionalCheckFailedException", "The conditional request failed");
+        }
+    }
+
+    private static JsonNode returnValues(JsonNode request, ObjectNode old, ObjectNode updated, Set<String> touched) {
+        ObjectNode response = JSON.createObjectNode();
+        String mode = text(request, "ReturnValues");
+        ObjectNode attributes = switch (mode == null ? "NONE" : mode) {
+            case "ALL_OLD" -> old;
+            case "ALL_NEW" -> updated;
+            case "UPDATED_OLD" -> old == null ? null : only(old, touched);
+            case "UPDATED_NEW" -> only(updated, touched);
+            default -> null;
+        };
+        if (attributes != null) response.set("Attributes", attributes);
+        return response;
+    }
+
+    private static ObjectNode only(ObjectNode item, Set<String> names) {
+        ObjectNode result = JSON.createObjectNode();
+        names.forEach(name -> {
+            if (item.has(name)) result.set(name, item.get(name));
+        });
+        return result;
+    }
+
+    // Replaces (or with updated == null removes) an item and keeps the indexes in step; caller holds the table lock
+    private static void store(Table table, String key, ObjectNode old, ObjectNode updated) {
+        if (updated == null) table.items.remove(key);
+        else table.items.put(key, updated);
+        for (Index index : table.indexes.values()) {
+            String before = old == null ? null : indexPartition(index, old);
+            String after = updated == null ? null : indexPartition(index, updated);
+            if (before != null && !before.equals(after)) {
+                Set<String> members = index.members().get(before);
+                if (members != null) members.remove(key);
+            }
+            if (after != null) {
+                index.members().computeIfAbsent(after, p -> ConcurrentHashMap.newKeySet()).add(key);
+            }
+        }
+    }
+
+    // Items without the index's sort key are not in the index (GSIs are sparse)
+    private static String indexPartition(Index index, JsonNode item) {
+        if (!item.has(index.partitionKey()) || !item.has(index.sortKey())) return null;
+        return scalar(item.get(index.partitionKey()));
+    }
+
+    // --- Query and Scan ---
+
+    private JsonNode query(JsonNode request) {
+        Table table = table(request);
+        String indexName = text(request, "IndexName");
+        Index index = indexName == null ? null : table.indexes.get(indexName);
+        if (indexName != null && index == null) {
+            throw DynamoException.validation("The table does not have the specified index: " + indexName);
+        }
+        String keyCondition = text(request, "KeyConditionExpression");
+        JsonNode names = request.get("ExpressionAttributeNames");
+        JsonNode values = request.get("ExpressionAttributeValues");
+        String partitionKey = index == null ? table.hashKey : index.partitionKey();
+        String partition = scalar(DynamoExpressions.equalityValue(keyCondition, names, values, partitionKey));
+        Condition matches = DynamoExpressions.condition(keyCondition, names, values);
+
+        // 1. Candidates of the partition, in sort key order
+        List<ObjectNode> candidates = new ArrayList<>();
+        if (index == null) {
+            ObjectNode item = table.items.get(partition);
+            if (item != null) candidates.add(item);
+        } else {
+            for (String key : index.members().getOrDefault(partition, Set.of())) {
+                ObjectNode item = table.items.get(key);
+                if (item != null && partition.equals(indexPartition(index, item))) candidates.add(item);
+            }
+            Comparator<ObjectNode> order = Comparator
+                    .comparing((ObjectNode item) -> item.get(index.sortKey()), FakeDynamoDb::compareScalars)
+                    .thenComparing(item -> scalar(item.get(table.hashKey)));
+            boolean forward = !request.has("ScanIndexForward") || request.get("ScanIndexForward").asBoolean();
+            candidates.sort(forward ? order : order.reversed());
+        }
+
+        // 2. Resume after ExclusiveStartKey
+        int start = 0;
+        JsonNode startKey = request.get("ExclusiveStartKey");
+        if (startKey != null && startKey.size() > 0) {
+            String startHash = scalar(startKey.get(table.hashKey));
+            while (start < candidates.size() && !scalar(candidates.get(start).get(table.hashKey)).equals(startHash)) {
+                start++;
+            }
+            start++;
+        }
+        List<String> keyAttributes = new ArrayList<>(List.of(table.hashKey));
+        if (index != null) keyAttributes.addAll(List.of(index.partitionKey(), index.sortKey()));
+        return page(request, candidates.subList(Math.min(start, candidates.size()), candidates.size()).iterator(),
+                matches, keyAttributes);
+    }
+
+    private JsonNode scan(JsonNode request) {
+        Table table = table(request);
+        JsonNode startKey = request.get("ExclusiveStartKey");
+        Map<String, ObjectNode> from = startKey == null || startKey.size() == 0 ? table.items
+                : table.items.tailMap(key(table, startKey), false);
+        int segment = request.has("Segment") ? request.get("Segment").asInt() : 0;
+        int segments = request.has("TotalSegments") ? request.get("TotalSegments").asInt() : 1;
+        Iterator<ObjectNode> items = from.entrySet().stream()
+                .filter(entry -> Math.floorMod(entry.getKey().hashCode(), segments) == segment)
+                .map(Map.Entry::getValue)
+                .iterator();
+        return page(request, items, item -> true, List.of(table.hashKey));
+    }
+
+    // Limit counts items read, before FilterExpression, as in DynamoDB
+    private JsonNode page(JsonNode request, Iterator<ObjectNode> items, Condition matches, List<String> keyAttributes) {
+        int limit = request.has("Limit") ? request.get("Limit").asInt() : Integer.MAX_VALUE;
+        Condition filter = condition(request, "FilterExpression");
+        List<Path> projection = projection(request);
+        ArrayNode results = JSON.createArrayNode();
+        int scanned = 0;
+        ObjectNode last = null;
+        while (items.hasNext() && scanned < limit) {
+            ObjectNode item = items.next();
+            if (!matches.test(item)) continue;
+            scanned++;
+            last = item;
+            if (filter.test(item)) results.add(DynamoExpressions.project(item, projection));
+        }
+        ObjectNode response = JSON.createObjectNode();
+        response.set("Items", results);
+        response.put("Count", results.size());
+        response.put("ScannedCount", scanned);
+        if (last != null && scanned == limit && items.hasNext()) {
+            ObjectNode lastKey = response.putObject("LastEvaluatedKey");
+            for (String attribute : keyAttributes) {
+                lastKey.set(attribute, last.get(attribute));
+            }
+        }
+        return response;
+    }
+
+    // --- Batches ---
+
+    private JsonNode batchGetItem(JsonNode request) {
+        ObjectNode response = JSON.createObjectNode();
+        ObjectNode responses = response.putObject("Responses");
+        request.get("RequestItems").fields().forEachRemaining(entry -> {
+            Table table = table(entry.getKey());
+            JsonNode keysAndAttributes = entry.getValue();
+            List<Path> projection = DynamoExpressions.projection(text(keysAndAttributes, "ProjectionExpression"),
+                    keysAndAttributes.get("ExpressionAttributeNames"));
+            ArrayNode found = responses.putArray(entry.getKey());
+            for (JsonNode key : keysAndAttributes.get("Keys")) {
+                ObjectNode item = table.items.get(key(table, key));
+                if (item != null) found.add(DynamoExpressions.project(item, projection));
+            }
+        });
+        response.putObject("UnprocessedKeys");
+        return response;
+    }
+
+    private JsonNode batchWriteItem(JsonNode request) {
+        request.get("RequestItems").fields().forEachRemaining(entry -> {
+            Table table = table(entry.getKey());
+            for (JsonNode write : entry.getValue()) {
+                synchronized (table) {
+                    if (write.has("PutRequest")) {
+                        ObjectNode item = (ObjectNode) write.get("PutRequest").get("Item");
+                        String key = key(table, item);
+                        store(table, key, table.items.get(key), item.deepCopy());
+                    } else {
+                        String key = key(table, write.get("DeleteRequest").get("Key"));
+                        ObjectNode old = table.items.get(key);
+                        if (old != null) store(table, key, old, null);
+                    }
+                }
+            }
+        });
+        ObjectNode response = JSON.createObjectNode();
+        response.putObject("UnprocessedItems");
+        return response;
+    }
+
+    // --- Helpers ---
+
+    private Table table(JsonNode request) {
+        return table(text(request, "TableName"));
+    }
+
+    private Table table(String name) {
+        Table table = name == null ? null : tables.get(name);
+        if (table == null) {
+            throw new DynamoException("ResourceNotFoundException", "Requested resource not found: Table: " + name + " not found");
+        }
+        return table;
+    }
+
+    private static String key(Table table, JsonNode attributes) {
+        JsonNode value = attributes == null ? null : attributes.get(table.hashKey);
+        if (value == null) {
+            throw DynamoException.validation("The provided key element does not match the schema");
+        }
+        return scalar(value);
+    }
+
+    private static Condition condition(JsonNode request, String field) {
+        return DynamoExpressions.condition(text(request, field),
+                request.get("ExpressionAttributeNames"), request.get("ExpressionAttributeValues"));
+    }
+
+    private static List<Path> projection(JsonNode request) {
+        return DynamoExpressions.projection(text(request, "ProjectionExpression"), request.get("ExpressionAttributeNames"));
+    }
+
+    private static String scalar(JsonNode attribute) {
+        if (attribute.has("S")) return attribute.get("S").asText();
+        if (attribute.has("N")) return DynamoExpressions.number(attribute).stripTrailingZeros().toPlainString();
+        if (attribute.has("B")) return attribute.get("B").asText();
+        throw DynamoException.validation("Key attributes must be scalars");
+    }
+
+    private static int compareScalars(JsonNode a, JsonNode b) {
+        if (a.has("N") && b.has("N")) return DynamoExpressions.number(a).compareTo(DynamoExpressions.number(b));
+        return scalar(a).compareTo(scalar(b));
+    }
+
+    private static String text(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+}
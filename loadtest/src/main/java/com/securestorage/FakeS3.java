@@ -0,0 +1,376 @@
+package com.securestorage;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * S3 stand-in for path-style requests ({@code aws.s3.endpoint}), storing objects as files under
+ * a scratch directory so large uploads do not sit on the load generator's heap. Implements the
+ * calls the application makes: Put/Get (with Range)/Head/Delete object, DeleteObjects and the
+ * multipart upload calls. Bodies sent with the SDK's {@code aws-chunked} encoding are decoded and
+ * ETags are the MD5 of the content, which the SDK checks after PutObject and UploadPart. User
+ * metadata ({@code x-amz-meta-*}) is kept in memory next to the ETag.
+ */
+final class FakeS3 implements HttpHandler {
+
+    private static final String NAMESPACE = "http://s3.amazonaws.com/doc/2006-03-01/";
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    private static final Pattern PART_NUMBER = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+    private static final Pattern KEY = Pattern.compile("<Key>(.*?)</Key>", Pattern.DOTALL);
+
+    private final Path root;
+    private final Map<String, String> etags = new ConcurrentHashMap<>();
+    // Object name (or upload id, until completed) -> x-amz-meta-* headers
+    private final Map<String, Map<String, String>> metadata = new ConcurrentHashMap<>();
+
+    FakeS3(Path root) throws IOException {
+        this.root = Files.createDirectories(root);
+        Files.createDirectories(root.resolve("uploads"));
+        Files.createDirectories(root.resolve("tmp"));
+    }
+
+    long objectCount() {
+        return etags.size();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            // Path style: /bucket/key
+            String path = exchange.getRequestURI().getPath();
+            int slash = path.indexOf('/', 1);
+            String bucket = slash < 0 ? path.substring(1) : path.substring(1, slash);
+            String key = slash < 0 ? "" : path.substring(slash + 1);
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            String method = exchange.getRequestMethod();
+
+            if (method.equals("PUT") && query.containsKey("uploadId")) {
+                uploadPart(exchange, query.get("uploadId"), Integer.parseInt(query.get("partNumber")));
+            } else if (method.equals("PUT")) {
+                putObject(exchange, bucket + "/" + key);
+            } else if (method.equals("POST") && query.containsKey("uploads")) {
+                createMultipartUpload(exchange, bucket, key);
+            } else if (method.equals("POST") && query.containsKey("uploadId")) {
+                completeMultipartUpload(exchange, bucket, key, query.get("uploadId"));
+            } else if (method.equals("POST") && query.containsKey("delete")) {
+                deleteObjects(exchange, bucket);
+            } else if (method.equals("GET") || method.equals("HEAD")) {
+                getObject(exchange, bucket + "/" + key, method.equals("HEAD"));
+            } else if (method.equals("DELETE") && query.containsKey("uploadId")) {
+                metadata.remove(query.get("uploadId"));
+                deleteRecursively(uploadDirectory(query.get("uploadId")));
+                empty(exchange, 204);
+            } else if (method.equals("DELETE")) {
+                delete(bucket + "/" + key);
+                empty(exchange, 204);
+            } else {
+                error(exchange, 405, "MethodNotAllowed", method + " is not supported here");
+            }
+        }
+    }
+
+    private void putObject(HttpExchange exchange, String name) throws IOException {
+        Path temp = Files.createTempFile(root.resolve("tmp"), "put", null);
+        String etag = receive(exchange, temp);
+        Files.move(temp, file(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        etags.put(name, etag);
+        metadata.put(name, userMetadata(exchange));
+        exchange.getResponseHeaders().set("ETag", etag);
+        empty(exchange, 200);
+    }
+
+    private void getObject(HttpExchange exchange, String name, boolean headOnly) throws IOException {
+        String etag = etags.get(name);
+        Path file = file(name);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            if (headOnly) {
+                empty(exchange, 404);
+            } else {
+                error(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            }
+            return;
+        }
+        try (channel) {
+            long size = channel.size();
+            long start = 0;
+            long end = size - 1;
+            int status = 200;
+            Headers headers = exchange.getResponseHeaders();
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            Matcher matcher = range == null ? null : RANGE.matcher(range);
+            if (matcher != null && matcher.matches()) {
+                if (matcher.group(1).isEmpty()) {
+                    start = Math.max(0, size - Long.parseLong(matcher.group(2)));
+                } else {
+                    start = Long.parseLong(matcher.group(1));
+                    if (!matcher.group(2).isEmpty()) end = Math.min(end, Long.parseLong(matcher.group(2)));
+                }
+                if (start >= size) {
+                    error(exchange, 416, "InvalidRange", "The requested range is not satisfiable");
+                    return;
+                }
+                status = 206;
+                headers.set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+            }
+            long length = end - start + 1;
+            headers.set("Content-Type", "application/octet-stream");
+            headers.set("Accept-Ranges", "bytes");
+            if (etag != null) headers.set("ETag", etag);
+            headers.set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                    Files.getLastModifiedTime(file).toInstant().atZone(ZoneOffset.UTC)));
+            metadata.getOrDefault(name, Map.of()).forEach(headers::set);
+            if (headOnly) {
+                headers.set("Content-Length", Long.toString(length));
+                empty(exchange, status);
+                return;
+            }
+            // An empty body still needs an explicit length; 0 would mean chunked
+            if (length == 0) {
+                empty(exchange, status);
+                return;
+            }
+            exchange.sendResponseHeaders(status, length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                channel.transferTo(start, length, Channels.newChannel(out));
+            }
+        }
+    }
+
+    private void delete(String name) throws IOException {
+        etags.remove(name);
+        metadata.remove(name);
+        Files.deleteIfExists(file(name));
+    }
+
+    private void deleteObjects(HttpExchange exchange, String bucket) throws IOException {
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        StringBuilder result = new StringBuilder("<DeleteResult xmlns=\"" + NAMESPACE + "\">");
+        Matcher keys = KEY.matcher(body);
+        while (keys.find()) {
+            String key = unescape(keys.group(1));
+            delete(bucket + "/" + key);
+            result.append("<Deleted><Key>").append(escape(key)).append("</Key></Deleted>");
+        }
+        xml(exchange, 200, result.append("</DeleteResult>").toString());
+    }
+
+    // --- Multipart ---
+
+    private void createMultipartUpload(HttpExchange exchange, String bucket, String key) throws IOException {
+        String uploadId = UUID.randomUUID().toString();
+        Files.createDirectories(uploadDirectory(uploadId));
+        metadata.put(uploadId, userMetadata(exchange));
+        xml(exchange, 200, "<InitiateMultipartUploadResult xmlns=\"" + NAMESPACE + "\"><Bucket>" + escape(bucket)
+                + "</Bucket><Key>" + escape(key) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+    }
+
+    private void uploadPart(HttpExchange exchange, String uploadId, int partNumber) throws IOException {
+        Path directory = uploadDirectory(uploadId);
+        if (!Files.isDirectory(directory)) {
+            error(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        Path temp = Files.createTempFile(root.resolve("tmp"), "part", null);
+        String etag = receive(exchange, temp);
+        Files.move(temp, directory.resolve(Integer.toString(partNumber)),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        exchange.getResponseHeaders().set("ETag", etag);
+        empty(exchange, 200);
+    }
+
+    private void completeMultipartUpload(HttpExchange exchange, String bucket, String key, String uploadId)
+            throws IOException {
+        Path directory = uploadDirectory(uploadId);
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        if (!Files.isDirectory(directory)) {
+            error(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        List<Integer> parts = new ArrayList<>();
+        Matcher matcher = PART_NUMBER.matcher(body);
+        while (matcher.find()) parts.add(Integer.parseInt(matcher.group(1)));
+
+        String name = bucket + "/" + key;
+        Path temp = Files.createTempFile(root.resolve("tmp"), "complete", null);
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            for (int part : parts) {
+                Path file = directory.resolve(Integer.toString(part));
+                if (!Files.exists(file)) {
+                    error(exchange, 400, "InvalidPart", "Part " + part + " was not uploaded");
+                    Files.delete(temp);
+                    return;
+                }
+                Files.copy(file, out);
+            }
+        }
+        Files.move(temp, file(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteRecursively(directory);
+        String etag = "\"" + UUID.randomUUID().toString().replace("-", "") + "-" + parts.size() + "\"";
+        etags.put(name, etag);
+        metadata.put(name, metadata.getOrDefault(uploadId, Map.of()));
+        metadata.remove(uploadId);
+        xml(exchange, 200, "<CompleteMultipartUploadResult xmlns=\"" + NAMESPACE + "\"><Bucket>" + escape(bucket)
+                + "</Bucket><Key>" + escape(key) + "</Key><ETag>" + escape(etag) + "</ETag></CompleteMultipartUploadResult>");
+    }
+
+    private Path uploadDirectory(String uploadId) {
+        return root.resolve("uploads").resolve(URLEncoder.encode(uploadId, StandardCharsets.UTF_8));
+    }
+
+    // --- Bodies ---
+
+    // Writes the request body to file and returns its quoted MD5 ETag
+    private static String receive(HttpExchange exchange, Path file) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Headers headers = exchange.getRequestHeaders();
+        String sha256 = headers.getFirst("x-amz-content-sha256");
+        String encoding = headers.getFirst("Content-Encoding");
+        boolean awsChunked = sha256 != null && sha256.startsWith("STREAMING-")
+                || encoding != null && encoding.contains("aws-chunked");
+        try (InputStream in = exchange.getRequestBody();
+             OutputStream out = new DigestOutputStream(Files.newOutputStream(file), md5)) {
+            if (awsChunked) {
+                decodeAwsChunked(in, out);
+            } else {
+                in.transferTo(out);
+            }
+        }
+        return "\"" + HexFormat.of().formatHex(md5.digest()) + "\"";
+    }
+
+    // "<hex size>[;chunk-signature=...]\r\n<data>\r\n" ... "0[;...]\r\n[trailers]\r\n"
+    private static void decodeAwsChunked(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        while (true) {
+            String header = line(in);
+            if (header == null) return;
+            int semicolon = header.indexOf(';');
+            long size = Long.parseLong((semicolon < 0 ? header : header.substring(0, semicolon)).trim(), 16);
+            if (size == 0) {
+                in.transferTo(OutputStream.nullOutputStream());
+                return;
+            }
+            while (size > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, size));
+                if (n < 0) throw new IOException("Truncated aws-chunked body");
+                out.write(buffer, 0, n);
+                size -= n;
+            }
+            line(in);
+        }
+    }
+
+    private static String line(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') break;
+            if (b != '\r') line.write(b);
+        }
+        return b < 0 && line.size() == 0 ? null : line.toString(StandardCharsets.US_ASCII);
+    }
+
+    // --- Helpers ---
+
+    private Path file(String name) {
+        return root.resolve(URLEncoder.encode(name, StandardCharsets.UTF_8));
+    }
+
+    // Request headers to store and send back as they are
+    private static Map<String, String> userMetadata(HttpExchange exchange) {
+        Map<String, String> found = new HashMap<>();
+        exchange.getRequestHeaders().forEach((name, values) -> {
+            if (name.toLowerCase().startsWith("x-amz-meta-")) found.put(name.toLowerCase(), values.get(0));
+        });
+        return found;
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) return query;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            query.put(name, eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    // A response without a body. sendResponseHeaders(-1) completes the exchange on the spot, and HttpServer
+    // keeps the connection only if the request body had been read to the end by then, so it is drained first.
+    // The response body must not be closed afterwards: that would complete the exchange a second time and
+    // hand the connection back while the next request is being read from it
+    private static void empty(HttpExchange exchange, int status) throws IOException {
+        exchange.getRequestBody().close();
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private static void error(HttpExchange exchange, int status, String code, String message) throws IOException {
+        xml(exchange, status, "<Error><Code>" + code + "</Code><Message>" + escape(message) + "</Message></Error>");
+    }
+
+    private static void xml(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String unescape(String text) {
+        return text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        try (var paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.securestorage;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-endpoint latency histograms (microseconds, 3 significant digits), response status counts
+ * and bytes transferred for one phase of a run. Safe to record from all workers at once.
+ */
+final class LoadStats {
+
+    /** Status recorded when the request failed without an HTTP response. */
+    static final String IO_ERROR = "io-error";
+    /** Status recorded when a download ended before the file's size. */
+    static final String SHORT_BODY = "short-body";
+
+    static final class Endpoint {
+        final Histogram latencies = new ConcurrentHistogram(3);
+        final Map<String, LongAdder> statuses = new ConcurrentHashMap<>();
+        final LongAdder bytes = new LongAdder();
+        // Body of the first error response, which usually names the cause
+        volatile String firstError;
+
+        long requests() {
+            return statuses.values().stream().mapToLong(LongAdder::sum).sum();
+        }
+
+        long errors() {
+            return statuses.entrySet().stream()
+                    .filter(entry -> isError(entry.getKey()))
+                    .mapToLong(entry -> entry.getValue().sum())
+                    .sum();
+        }
+
+        Map<String, Long> statusCounts() {
+            Map<String, Long> counts = new TreeMap<>();
+            statuses.forEach((status, count) -> counts.put(status, count.sum()));
+            return counts;
+        }
+    }
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final long startNanos = System.nanoTime();
+    private volatile long endNanos;
+
+    void record(String endpoint, long elapsedNanos, String status, long bytes, String errorBody) {
+        Endpoint stats = endpoints.computeIfAbsent(endpoint, e -> new Endpoint());
+        if (errorBody != null && stats.firstError == null) {
+            stats.firstError = status + " " + (errorBody.length() > 300 ? errorBody.substring(0, 300) + "..." : errorBody);
+        }
+        if (!IO_ERROR.equals(status)) {
+            stats.latencies.recordValue(Math.max(1, TimeUnit.NANOSECONDS.toMicros(elapsedNanos)));
+        }
+        stats.statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+        stats.bytes.add(bytes);
+    }
+
+    void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    double seconds() {
+        long end = endNanos == 0 ? System.nanoTime() : endNanos;
+        return (end - startNanos) / 1e9;
+    }
+
+    Map<String, Endpoint> endpoints() {
+        return new TreeMap<>(endpoints);
+    }
+
+    static boolean isError(String status) {
+        return !(status.startsWith("2") || status.startsWith("3"));
+    }
+}
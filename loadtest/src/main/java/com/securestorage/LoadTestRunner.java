@@ -0,0 +1,394 @@
+package com.securestorage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load test: starts local stand-ins for S3, DynamoDB and Cognito (with a locally
+ * signed JWKS), boots the application against them, seeds users and files, then runs the mixed
+ * workload for a warmup and a measured phase while sampling the application's heap and GC from
+ * {@code /actuator/prometheus}. Run it from the project root after building both jars:
+ *
+ * <pre>
+ * java -jar loadtest/target/loadtest.jar [--app="java -jar target/secure-cloud-storage-1.0.0.jar"] [--app-dir=.]
+ *      [--port=5000] [--management-port=(free)] [--concurrency=16] [--users=64] [--seed-files=5] [--warmup=20] [--duration=60]
+ *      [--mix=upload:15,list:25,...] [--sizes=1KB:40,64KB:30,...] [--props="app.io-mode=async;..."]
+ *      [--label=jvm] [--out=loadtest-report.json] [--baseline=previous-report.json]
+ * </pre>
+ *
+ * The report has, per endpoint, throughput, p50/p99/p99.9/max latency and status counts, plus the
+ * application's heap high-water marks and GC time during the measured phase. It is printed and
+ * written as JSON to {@code --out}; {@code --baseline} prints the change against an earlier report,
+ * e.g. of another build ({@code --app}, {@code --app-dir} as in the startup benchmark) or settings
+ * ({@code --props}, passed to the application as {@code --name=value}). The stand-ins keep
+ * everything in memory or a scratch directory, so the numbers are the application's own cost
+ * plus loopback I/O, not AWS latency.
+ */
+public final class LoadTestRunner {
+
+    private static final ObjectMapper JSON = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    private static final double MB = 1024 * 1024;
+
+    private LoadTestRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        String command = options.getOrDefault("app", "java -jar target/secure-cloud-storage-1.0.0.jar");
+        File appDir = new File(options.getOrDefault("app-dir", "."));
+        int port = Integer.parseInt(options.getOrDefault("port", "5000"));
+        // Where /actuator/prometheus is sampled; the app serves it on its own port
+        int managementPort = options.containsKey("management-port")
+                ? Integer.parseInt(options.get("management-port")) : freePort();
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        int userCount = Integer.parseInt(options.getOrDefault("users", "64"));
+        int seedFiles = Integer.parseInt(options.getOrDefault("seed-files", "5"));
+        Duration warmup = Duration.ofSeconds(Long.parseLong(options.getOrDefault("warmup", "20")));
+        Duration duration = Duration.ofSeconds(Long.parseLong(options.getOrDefault("duration", "60")));
+        Duration requestTimeout = Duration.ofSeconds(Long.parseLong(options.getOrDefault("request-timeout", "120")));
+        Duration startupTimeout = Duration.ofSeconds(Long.parseLong(options.getOrDefault("startup-timeout", "180")));
+        String mixSpec = options.getOrDefault("mix", Workload.DEFAULT_MIX);
+        String sizeSpec = options.getOrDefault("sizes", Workload.DEFAULT_SIZES);
+        Workload.Weighted<Workload.Operation> mix = Workload.Weighted.parse(mixSpec, Workload.Operation::of);
+        Workload.Weighted<Long> sizes = Workload.Weighted.parse(sizeSpec, Workload::parseSize);
+        Path out = Path.of(options.getOrDefault("out", "loadtest-report.json"));
+        Path log = Path.of(options.getOrDefault("log", "loadtest/target/loadtest-app.log"));
+        if (accepts(port)) {
+            throw new IllegalStateException("Port " + port + " is already in use");
+        }
+
+        // 1. Stand-ins, each on its own ephemeral port and threads. HttpServer drops keep-alive connections
+        //    idle for 30 s, before the SDK's pool does (60 s); a PutObject sent on such a connection fails and
+        //    its retry cannot replay the app's upload stream, so keep them open for the whole run
+        System.setProperty("sun.net.httpserver.idleInterval", "3600");
+        Path scratch = Files.createTempDirectory("loadtest-s3-");
+        List<HttpServer> servers = new ArrayList<>();
+        FakeS3 s3 = new FakeS3(scratch);
+        URI s3Uri = serve(servers, s3, 64);
+        FakeDynamoDb dynamoDb = new FakeDynamoDb()
+                .table("loadtest-files", "file_id", "ownerId-uploadedAt-index") // FileEntity.OWNER_INDEX
+                .table("loadtest-usage", "ownerId")
+                .table("loadtest-blobs", "blobId")
+                .table("loadtest-upload-sessions", "sessionId")
+                .table("loadtest-jobs", "jobId");
+        URI dynamoDbUri = serve(servers, dynamoDb, 64);
+        HttpServer cognitoServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        FakeCognito cognito = new FakeCognito("http://localhost:" + cognitoServer.getAddress().getPort());
+        URI cognitoUri = serve(servers, cognitoServer, cognito, 4);
+
+        // 2. The application, pointed at them
+        List<String> commandLine = new ArrayList<>(List.of(command.trim().split(" +")));
+        appProperties(port, managementPort, s3Uri, dynamoDbUri, cognitoUri, cognito, options.getOrDefault("props", ""))
+                .forEach((name, value) -> commandLine.add("--" + name + "=" + value));
+        Files.createDirectories(log.toAbsolutePath().getParent());
+        Process app = new ProcessBuilder(commandLine)
+                .directory(appDir)
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+        HttpClient http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(Executors.newFixedThreadPool(Math.max(4, concurrency)))
+                .build();
+        URI base = URI.create("http://localhost:" + port + "/");
+        try {
+            long started = System.nanoTime();
+            awaitPort(app, port, startupTimeout, log);
+            System.out.printf("Application listening after %d ms (log: %s)%n",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), log);
+
+            // 3. Seed, warm up, measure
+            Workload workload = new Workload(http, base, cognito, mix, sizes, userCount, requestTimeout);
+            LoadStats seeded = workload.seed(concurrency, seedFiles);
+            long seedErrors = seeded.endpoints().values().stream().mapToLong(LoadStats.Endpoint::errors).sum();
+            System.out.printf("Seeded %d users with %d files each in %.1f s (%d errors)%n",
+                    userCount, seedFiles, seeded.seconds(), seedErrors);
+            if (seedErrors > 0 && seedErrors == seeded.endpoints().values().stream().mapToLong(LoadStats.Endpoint::requests).sum()) {
+                throw new IllegalStateException("Every seed request failed " + statuses(seeded) + ", see " + log);
+            }
+            if (!warmup.isZero()) {
+                System.out.printf("Warming up for %d s...%n", warmup.toSeconds());
+                workload.run(concurrency, warmup);
+            }
+            System.out.printf("Measuring for %d s at concurrency %d...%n", duration.toSeconds(), concurrency);
+            AppMetricsSampler sampler = new AppMetricsSampler(http,
+                    URI.create("http://localhost:" + managementPort + "/actuator/prometheus"), Duration.ofMillis(200));
+            LoadStats measured;
+            try (sampler) {
+                sampler.start();
+                measured = workload.run(concurrency, duration);
+            }
+            Map<String, Object> jvm = sampler.summary(measured.seconds());
+            Map<String, Object> report = report(options.getOrDefault("label", command), command, concurrency, userCount,
+                    seedFiles, warmup, mix, sizes, measured, jvm);
+            report.put("standIns", Map.of("s3Objects", s3.objectCount(), "dynamoDbItems", dynamoDb.itemCount(),
+                    "cognitoAdminCalls", cognito.adminCalls()));
+
+            // 4. Report
+            print(report);
+            JSON.writeValue(out.toFile(), report);
+            System.out.println("Report written to " + out);
+            if (options.containsKey("baseline")) {
+                compare(JSON.readTree(Path.of(options.get("baseline")).toFile()), JSON.valueToTree(report));
+            }
+        } finally {
+            app.destroy();
+            if (!app.waitFor(30, TimeUnit.SECONDS)) {
+                app.destroyForcibly().waitFor();
+            }
+            servers.forEach(server -> server.stop(0));
+            FakeS3.deleteRecursively(scratch);
+        }
+        System.exit(0);
+    }
+
+    static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    private static Map<String, String> appProperties(int port, int managementPort, URI s3, URI dynamoDb, URI cognitoUri, FakeCognito cognito,
+                                                     String extra) {
+        byte[] masterKey = new byte[32];
+        new SecureRandom().nextBytes(masterKey);
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("server.port", Integer.toString(port));
+        properties.put("management.server.port", Integer.toString(managementPort));
+        properties.put("aws.region", "us-east-1");
+        properties.put("aws.accessKeyId", "loadtest");
+        properties.put("aws.secretKey", "loadtest");
+        properties.put("aws.s3.bucket", "loadtest-bucket");
+        properties.put("aws.s3.endpoint", s3.toString());
+        properties.put("aws.dynamodb.endpoint", dynamoDb.toString());
+        properties.put("aws.dynamodb.table", "loadtest-files");
+        properties.put("aws.dynamodb.usage-table", "loadtest-usage");
+        properties.put("aws.dynamodb.blob-table", "loadtest-blobs");
+        properties.put("aws.dynamodb.upload-session-table", "loadtest-upload-sessions");
+        properties.put("aws.dynamodb.job-table", "loadtest-jobs");
+        properties.put("aws.cognito.endpoint", cognitoUri.toString());
+        properties.put("aws.cognito.userPoolId", "loadtest");
+        properties.put("spring.security.oauth2.resourceserver.jwt.issuer-uri", cognito.issuer());
+        properties.put("app.master-key", Base64.getEncoder().encodeToString(masterKey));
+        properties.put("app.storage.backend", "s3");
+        // The mix keeps uploading; the quota is not what is being measured
+        properties.put("app.quota.max-bytes", Long.toString(1L << 40));
+        for (String entry : extra.split(";")) {
+            if (entry.isBlank()) continue;
+            int eq = entry.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Expected name=value in --props, got " + entry);
+            properties.put(entry.substring(0, eq).trim(), entry.substring(eq + 1).trim());
+        }
+        return properties;
+    }
+
+    private static URI serve(List<HttpServer> servers, HttpHandler handler, int threads) throws IOException {
+        return serve(servers, HttpServer.create(new InetSocketAddress("localhost", 0), 0), handler, threads);
+    }
+
+    private static URI serve(List<HttpServer> servers, HttpServer server, HttpHandler handler, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/", handler);
+        server.setExecutor(executor);
+        server.start();
+        servers.add(server);
+        return URI.create("http://localhost:" + server.getAddress().getPort());
+    }
+
+    private static void awaitPort(Process app, int port, Duration timeout, Path log) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (!accepts(port)) {
+            if (!app.isAlive()) {
+                throw new IllegalStateException("Application exited with " + app.exitValue() + " before listening, see " + log);
+            }
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Application not listening after " + timeout.toSeconds() + " s, see " + log);
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static boolean accepts(int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("localhost", port), 100);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Map<String, Object> report(String label, String command, int concurrency, int users, int seedFiles,
+                                              Duration warmup, Workload.Weighted<Workload.Operation> mix,
+                                              Workload.Weighted<Long> sizes, LoadStats stats, Map<String, Object> jvm) {
+        double seconds = stats.seconds();
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("label", label);
+        report.put("timestamp", Instant.now().toString());
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("app", command);
+        settings.put("concurrency", concurrency);
+        settings.put("users", users);
+        settings.put("seedFiles", seedFiles);
+        settings.put("warmupSeconds", warmup.toSeconds());
+        settings.put("durationSeconds", round(seconds));
+        settings.put("mix", mix.weights(Workload.Operation::label));
+        settings.put("sizes", sizes.weights(String::valueOf));
+        settings.put("javaVersion", System.getProperty("java.version"));
+        settings.put("cpus", Runtime.getRuntime().availableProcessors());
+        report.put("settings", settings);
+
+        Map<String, Object> endpoints = new LinkedHashMap<>();
+        Histogram all = new Histogram(3);
+        long requests = 0;
+        long errors = 0;
+        long bytes = 0;
+        for (Map.Entry<String, LoadStats.Endpoint> entry : stats.endpoints().entrySet()) {
+            LoadStats.Endpoint endpoint = entry.getValue();
+            endpoints.put(entry.getKey(), summary(endpoint.latencies, endpoint.requests(), endpoint.errors(),
+                    endpoint.bytes.sum(), seconds, endpoint.statusCounts(), endpoint.firstError));
+            all.add(endpoint.latencies);
+            requests += endpoint.requests();
+            errors += endpoint.errors();
+            bytes += endpoint.bytes.sum();
+        }
+        report.put("endpoints", endpoints);
+        report.put("total", summary(all, requests, errors, bytes, seconds, null, null));
+        report.put("jvm", jvm);
+        return report;
+    }
+
+    private static Map<String, Object> summary(Histogram latencies, long requests, long errors, long bytes, double seconds,
+                                               Map<String, Long> statuses, String firstError) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("requests", requests);
+        summary.put("errors", errors);
+        summary.put("throughput", round(requests / seconds));
+        summary.put("mbPerSecond", round(bytes / MB / seconds));
+        summary.put("p50Ms", millis(latencies, 50));
+        summary.put("p99Ms", millis(latencies, 99));
+        summary.put("p999Ms", millis(latencies, 99.9));
+        summary.put("maxMs", latencies.getTotalCount() == 0 ? null : round(latencies.getMaxValue() / 1000.0));
+        if (statuses != null) summary.put("statuses", statuses);
+        if (firstError != null) summary.put("firstError", firstError);
+        return summary;
+    }
+
+    private static Double millis(Histogram latencies, double percentile) {
+        return latencies.getTotalCount() == 0 ? null : round(latencies.getValueAtPercentile(percentile) / 1000.0);
+    }
+
+    private static void print(Map<String, Object> report) {
+        JsonNode node = JSON.valueToTree(report);
+        System.out.printf("%n%-16s %9s %7s %9s %8s %9s %9s %9s %9s%n",
+                "endpoint", "requests", "errors", "req/s", "MB/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        Iterator<Map.Entry<String, JsonNode>> endpoints = node.get("endpoints").fields();
+        while (endpoints.hasNext()) {
+            Map.Entry<String, JsonNode> endpoint = endpoints.next();
+            printRow(endpoint.getKey(), endpoint.getValue());
+        }
+        printRow("total", node.get("total"));
+        JsonNode jvm = node.get("jvm");
+        System.out.printf("%nheap used peak %s MB, committed peak %s MB; GC pauses %s (%s ms, %s%% of the run, longest %s ms), "
+                        + "concurrent GC %s ms%n",
+                text(jvm.get("heapUsedPeakMb")), text(jvm.get("heapCommittedPeakMb")), text(jvm.get("gcPauses")),
+                text(jvm.get("gcPauseMs")), text(jvm.get("gcPausePercent")), text(jvm.get("gcPauseMaxMs")),
+                text(jvm.get("gcConcurrentMs")));
+        node.get("endpoints").fields().forEachRemaining(endpoint -> {
+            if (endpoint.getValue().get("errors").asLong() > 0) {
+                System.out.println("  " + endpoint.getKey() + " statuses: " + endpoint.getValue().get("statuses")
+                        + ", first error: " + endpoint.getValue().path("firstError").asText());
+            }
+        });
+    }
+
+    private static void printRow(String name, JsonNode row) {
+        System.out.printf("%-16s %9d %7d %9s %8s %9s %9s %9s %9s%n", name, row.get("requests").asLong(),
+                row.get("errors").asLong(), text(row.get("throughput")), text(row.get("mbPerSecond")),
+                text(row.get("p50Ms")), text(row.get("p99Ms")), text(row.get("p999Ms")), text(row.get("maxMs")));
+    }
+
+    // Change of each number against the baseline, in percent (negative latency / heap / GC = better)
+    private static void compare(JsonNode baseline, JsonNode current) {
+        System.out.printf("%nAgainst %s (%s):%n", baseline.path("label").asText(), baseline.path("timestamp").asText());
+        System.out.printf("%-16s %10s %10s %10s %10s%n", "endpoint", "req/s", "p50", "p99", "p99.9");
+        List<String> names = new ArrayList<>();
+        current.get("endpoints").fieldNames().forEachRemaining(names::add);
+        names.add("total");
+        for (String name : names) {
+            JsonNode now = name.equals("total") ? current.get("total") : current.get("endpoints").get(name);
+            JsonNode before = name.equals("total") ? baseline.path("total") : baseline.path("endpoints").path(name);
+            if (before.isMissingNode()) continue;
+            System.out.printf("%-16s %10s %10s %10s %10s%n", name, change(before, now, "throughput"),
+                    change(before, now, "p50Ms"), change(before, now, "p99Ms"), change(before, now, "p999Ms"));
+        }
+        for (String metric : List.of("heapUsedPeakMb", "heapCommittedPeakMb", "gcPauseMs", "gcConcurrentMs")) {
+            System.out.printf("%-22s %10s -> %-10s %s%n", metric, text(baseline.path("jvm").path(metric)),
+                    text(current.get("jvm").path(metric)), change(baseline.path("jvm"), current.get("jvm"), metric));
+        }
+    }
+
+    private static String change(JsonNode before, JsonNode now, String field) {
+        if (!before.path(field).isNumber() || !now.path(field).isNumber() || before.path(field).asDouble() == 0) return "n/a";
+        double percent = 100 * (now.path(field).asDouble() - before.path(field).asDouble()) / before.path(field).asDouble();
+        return String.format("%+.1f%%", percent);
+    }
+
+    // Metrics the run or build did not produce are null in the report
+    private static String text(JsonNode value) {
+        return value == null || value.isNull() || value.isMissingNode() ? "n/a" : value.asText();
+    }
+
+    private static String statuses(LoadStats stats) {
+        Map<String, Object> statuses = new LinkedHashMap<>();
+        stats.endpoints().forEach((name, endpoint) -> statuses.put(name, endpoint.statusCounts()));
+        return statuses.toString();
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+}
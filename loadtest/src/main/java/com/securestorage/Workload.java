@@ -0,0 +1,419 @@
+package com.securestorage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * The simulated clients: a fixed set of users, each with a token from {@link FakeCognito}, driven
+ * by worker threads that pick an operation from the weighted mix and a user of their own, so one
+ * user never has two requests in flight (well under the per-user admission limit). Upload sizes
+ * follow the weighted size distribution; upload bodies are streamed from a shared block of random
+ * bytes, so large files cost the generator no memory and do not compress. The upload response
+ * does not carry the file id, so each user's file list is learned from listing: downloads and
+ * deletes pick from it, and fall back to a listing while it is empty.
+ */
+final class Workload {
+
+    enum Operation {
+        UPLOAD, LIST, DOWNLOAD, DELETE, USAGE, PROFILE_PHOTO, PROFILE_UPLOAD, ACCOUNT_DELETE;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT).replace('_', '-');
+        }
+
+        static Operation of(String label) {
+            for (Operation operation : values()) {
+                if (operation.label().equals(label)) return operation;
+            }
+            throw new IllegalArgumentException("Unknown operation " + label);
+        }
+    }
+
+    static final String DEFAULT_MIX = "upload:15,list:25,download:30,delete:12,usage:5,profile-photo:8,profile-upload:2,account-delete:0";
+    static final String DEFAULT_SIZES = "1KB:40,64KB:30,1MB:20,8MB:8,32MB:2";
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final int POOL_BYTES = 4 * 1024 * 1024;
+    private static final int BODY_CHUNK = 64 * 1024;
+    private static final String BOUNDARY = "loadtest-" + UUID.randomUUID();
+    private static final int[] PHOTO_SIZES = {0, 64, 256};
+
+    private record StoredFile(String fileId, long size) {
+    }
+
+    private static final class User {
+        String subject;
+        String token;
+        List<StoredFile> files = new ArrayList<>();
+        boolean hasPhoto;
+    }
+
+    /** Weighted choice from a "value:weight,..." list. */
+    static final class Weighted<T> {
+        private final List<T> values = new ArrayList<>();
+        private final List<Integer> cumulative = new ArrayList<>();
+        private int total;
+
+        T pick() {
+            int point = ThreadLocalRandom.current().nextInt(total);
+            for (int i = 0; i < values.size(); i++) {
+                if (point < cumulative.get(i)) return values.get(i);
+            }
+            throw new IllegalStateException("Unreachable");
+        }
+
+        Map<String, Integer> weights(Function<T, String> name) {
+            Map<String, Integer> weights = new LinkedHashMap<>();
+            for (int i = 0; i < values.size(); i++) {
+                weights.put(name.apply(values.get(i)), cumulative.get(i) - (i == 0 ? 0 : cumulative.get(i - 1)));
+            }
+            return weights;
+        }
+
+        static <T> Weighted<T> parse(String spec, Function<String, T> value) {
+            Weighted<T> weighted = new Weighted<>();
+            for (String entry : spec.split(",")) {
+                int colon = entry.lastIndexOf(':');
+                if (colon < 0) throw new IllegalArgumentException("Expected value:weight, got " + entry);
+                int weight = Integer.parseInt(entry.substring(colon + 1).trim());
+                if (weight < 0) throw new IllegalArgumentException("Negative weight in " + entry);
+                if (weight == 0) continue;
+                weighted.total += weight;
+                weighted.values.add(value.apply(entry.substring(0, colon).trim()));
+                weighted.cumulative.add(weighted.total);
+            }
+            if (weighted.total == 0) throw new IllegalArgumentException("No positive weight in " + spec);
+            return weighted;
+        }
+    }
+
+    private final HttpClient http;
+    private final URI base;
+    private final FakeCognito cognito;
+    private final Weighted<Operation> mix;
+    private final Weighted<Long> sizes;
+    private final Duration requestTimeout;
+    private final List<User> users = new ArrayList<>();
+    private final byte[] pool = new byte[POOL_BYTES];
+    private final byte[] photo;
+    private final AtomicLong uploads = new AtomicLong();
+
+    Workload(HttpClient http, URI base, FakeCognito cognito, Weighted<Operation> mix, Weighted<Long> sizes,
+             int userCount, Duration requestTimeout) {
+        this.http = http;
+        this.base = base;
+        this.cognito = cognito;
+        this.mix = mix;
+        this.sizes = sizes;
+        this.requestTimeout = requestTimeout;
+        new Random(42).nextBytes(pool);
+        this.photo = jpeg(1024, 768);
+        for (int i = 0; i < userCount; i++) {
+            User user = new User();
+            renew(user);
+            users.add(user);
+        }
+    }
+
+    static long parseSize(String size) {
+        String upper = size.toUpperCase(Locale.ROOT);
+        long unit = upper.endsWith("KB") ? 1024 : upper.endsWith("MB") ? 1024 * 1024 : upper.endsWith("GB") ? 1024L * 1024 * 1024 : 1;
+        String digits = unit == 1 ? upper.replace("B", "") : upper.substring(0, upper.length() - 2);
+        return Long.parseLong(digits.trim()) * unit;
+    }
+
+    /**
+     * Gives every user a profile photo and {@code filesPerUser} files, then lists them, using
+     * {@code concurrency} threads. Returns the stats of those requests.
+     */
+    LoadStats seed(int concurrency, int filesPerUser) throws InterruptedException {
+        LoadStats stats = new LoadStats();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (User user : users) {
+                futures.add(executor.submit(() -> {
+                    execute(Operation.PROFILE_UPLOAD, user, stats);
+                    for (int i = 0; i < filesPerUser; i++) execute(Operation.UPLOAD, user, stats);
+                    execute(Operation.LIST, user, stats);
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Seeding failed", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        stats.finish();
+        return stats;
+    }
+
+    /**
+     * Runs the mix for {@code duration} with one thread per worker; worker {@code w} drives the
+     * users whose index is {@code w} modulo the concurrency.
+     */
+    LoadStats run(int concurrency, Duration duration) throws InterruptedException {
+        if (users.size() < concurrency) {
+            throw new IllegalArgumentException("Need at least as many users (" + users.size() + ") as workers (" + concurrency + ")");
+        }
+        LoadStats stats = new LoadStats();
+        long deadline = System.nanoTime() + duration.toNanos();
+        List<Thread> workers = new ArrayList<>();
+        for (int w = 0; w < concurrency; w++) {
+            List<User> own = new ArrayList<>();
+            for (int i = w; i < users.size(); i += concurrency) own.add(users.get(i));
+            Thread worker = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    User user = own.get(ThreadLocalRandom.current().nextInt(own.size()));
+                    execute(mix.pick(), user, stats);
+                }
+            }, "load-worker-" + w);
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+        workers.forEach(Thread::start);
+        for (Thread worker : workers) worker.join();
+        stats.finish();
+        return stats;
+    }
+
+    private void execute(Operation operation, User user, LoadStats stats) {
+        // Operations that need state the user does not have turn into the request that creates it
+        if ((operation == Operation.DOWNLOAD || operation == Operation.DELETE) && user.files.isEmpty()) {
+            operation = Operation.LIST;
+        } else if (operation == Operation.PROFILE_PHOTO && !user.hasPhoto) {
+            operation = Operation.PROFILE_UPLOAD;
+        }
+        long start = System.nanoTime();
+        String status;
+        long bytes = 0;
+        String error = null;
+        try {
+            switch (operation) {
+                case UPLOAD -> {
+                    long size = sizes.pick();
+                    HttpResponse<String> response = send(post(user, "/api/files/upload",
+                            "load-" + uploads.incrementAndGet() + ".bin", "application/octet-stream", size, false));
+                    status = Integer.toString(response.statusCode());
+                    error = response.body();
+                    bytes = size;
+                }
+                case LIST -> {
+                    HttpResponse<byte[]> response = http.send(request(user, "/api/files?limit=1000").GET().build(),
+                            HttpResponse.BodyHandlers.ofByteArray());
+                    status = Integer.toString(response.statusCode());
+                    bytes = response.body().length;
+                    if (response.statusCode() == 200) user.files = files(JSON.readTree(response.body()));
+                    else error = new String(response.body(), StandardCharsets.UTF_8);
+                }
+                case DOWNLOAD -> {
+                    StoredFile file = user.files.get(ThreadLocalRandom.current().nextInt(user.files.size()));
+                    HttpResponse<InputStream> response = http.send(
+                            request(user, "/api/files/" + file.fileId() + "/download").GET().build(),
+                            HttpResponse.BodyHandlers.ofInputStream());
+                    try (InputStream body = response.body()) {
+                        bytes = body.transferTo(OutputStream.nullOutputStream());
+                    }
+                    status = Integer.toString(response.statusCode());
+                    if (response.statusCode() == 200 && bytes != file.size()) {
+                        status = LoadStats.SHORT_BODY;
+                        error = bytes + " of " + file.size() + " bytes";
+                    }
+                    if (response.statusCode() == 404) user.files.remove(file);
+                }
+                case DELETE -> {
+                    StoredFile file = user.files.remove(ThreadLocalRandom.current().nextInt(user.files.size()));
+                    HttpResponse<String> response = send(request(user, "/api/files/" + file.fileId()).DELETE().build());
+                    status = Integer.toString(response.statusCode());
+                    error = response.body();
+                }
+                case USAGE -> {
+                    HttpResponse<String> response = send(request(user, "/api/account/usage").GET().build());
+                    status = Integer.toString(response.statusCode());
+                    error = response.body();
+                }
+                case PROFILE_PHOTO -> {
+                    int size = PHOTO_SIZES[ThreadLocalRandom.current().nextInt(PHOTO_SIZES.length)];
+                    HttpResponse<byte[]> response = http.send(
+                            request(user, "/api/profile/photo" + (size == 0 ? "" : "?size=" + size)).GET().build(),
+                            HttpResponse.BodyHandlers.ofByteArray());
+                    status = Integer.toString(response.statusCode());
+                    bytes = response.body().length;
+                }
+                case PROFILE_UPLOAD -> {
+                    HttpResponse<String> response = send(post(user, "/api/profile/upload", "photo.jpg", "image/jpeg",
+                            photo.length, true));
+                    status = Integer.toString(response.statusCode());
+                    error = response.body();
+                    bytes = photo.length;
+                    if (status.startsWith("2")) user.hasPhoto = true;
+                }
+                case ACCOUNT_DELETE -> {
+                    HttpResponse<String> response = send(request(user, "/api/account").DELETE().build());
+                    status = Integer.toString(response.statusCode());
+                    error = response.body();
+                    // The purge runs in the background; carry on as a new user
+                    if (status.startsWith("2")) renew(user);
+                }
+                default -> throw new IllegalStateException("Unhandled operation " + operation);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (IOException e) {
+            status = LoadStats.IO_ERROR;
+            error = e.toString();
+        }
+        stats.record(operation.label(), System.nanoTime() - start, status, bytes, error);
+    }
+
+    // The body is kept only for error responses (null otherwise)
+    private HttpResponse<String> send(HttpRequest request) throws IOException, InterruptedException {
+        return http.send(request, info -> LoadStats.isError(Integer.toString(info.statusCode()))
+                ? HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8)
+                : HttpResponse.BodySubscribers.replacing(null));
+    }
+
+    private HttpRequest.Builder request(User user, String path) {
+        return HttpRequest.newBuilder(base.resolve(path))
+                .timeout(requestTimeout)
+                .header("Authorization", "Bearer " + user.token);
+    }
+
+    // multipart/form-data with one part named "file"; the photo is sent as is, other files come from the pool
+    private HttpRequest post(User user, String path, String filename, String contentType, long size, boolean photoBody) {
+        byte[] head = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + filename + "\"\r\n"
+                + "Content-Type: " + contentType + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        Iterable<byte[]> parts = () -> new Iterator<>() {
+            private final Iterator<byte[]> content = photoBody ? List.of(photo).iterator() : poolChunks(size);
+            private int stage; // 0 = head next, 1 = content, 2 = done
+
+            @Override
+            public boolean hasNext() {
+                return stage < 2;
+            }
+
+            @Override
+            public byte[] next() {
+                if (stage == 0) {
+                    stage = 1;
+                    return head;
+                }
+                if (stage == 1) {
+                    if (content.hasNext()) return content.next();
+                    stage = 2;
+                    return tail;
+                }
+                throw new NoSuchElementException();
+            }
+        };
+        // A known length keeps the request out of chunked transfer encoding
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.fromPublisher(
+                HttpRequest.BodyPublishers.ofByteArrays(parts), head.length + size + tail.length);
+        return request(user, path)
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(body)
+                .build();
+    }
+
+    // Chunks of the random pool starting at a random offset, size bytes in total
+    private Iterator<byte[]> poolChunks(long size) {
+        int start = ThreadLocalRandom.current().nextInt(POOL_BYTES);
+        return new Iterator<>() {
+            long remaining = size;
+            int offset = start;
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            @Override
+            public byte[] next() {
+                if (remaining == 0) throw new NoSuchElementException();
+                int length = (int) Math.min(Math.min(remaining, BODY_CHUNK), POOL_BYTES - offset);
+                byte[] chunk = Arrays.copyOfRange(pool, offset, offset + length);
+                offset = (offset + length) % POOL_BYTES;
+                remaining -= length;
+                return chunk;
+            }
+        };
+    }
+
+    private void renew(User user) {
+        user.subject = "loadtest-" + UUID.randomUUID();
+        user.token = cognito.token(user.subject, Duration.ofDays(1));
+        user.files = new ArrayList<>();
+        user.hasPhoto = false;
+    }
+
+    private static List<StoredFile> files(JsonNode page) {
+        List<StoredFile> files = new ArrayList<>();
+        for (JsonNode item : page.path("items")) {
+            files.add(new StoredFile(item.path("fileId").asText(), item.path("fileSize").asLong()));
+        }
+        return files;
+    }
+
+    // A photo-like JPEG: gradients and shapes, so the thumbnails cost about what real ones do
+    private static byte[] jpeg(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        Random random = new Random(7);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, ((x * 255 / width) << 16) | ((y * 255 / height) << 8) | random.nextInt(64));
+            }
+        }
+        for (int i = 0; i < 40; i++) {
+            graphics.setColor(new Color(random.nextInt(0xFFFFFF)));
+            graphics.fillOval(random.nextInt(width), random.nextInt(height), 20 + random.nextInt(200), 20 + random.nextInt(200));
+        }
+        graphics.dispose();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, "jpg", out);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not encode the profile photo", e);
+        }
+    }
+}
@@ -4,57 +4,36 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
-import org.springframework.beans.factory.annotation.Value;
-
-import software.amazon.awssdk.services.cognitoidentityprovider.CognitoIdentityProviderClient;
-import software.amazon.awssdk.services.cognitoidentityprovider.model.AdminDeleteUserRequest;
-import software.amazon.awssdk.services.cognitoidentityprovider.model.AdminUserGlobalSignOutRequest;
-import software.amazon.awssdk.services.cognitoidentityprovider.model.CognitoIdentityProviderException;
 
 @RestController
 @RequestMapping("/api")
 public class AccountController {
 
-    private final FileService fileService;
-    private final CognitoIdentityProviderClient cognitoClient;
+    private final StorageQuotaService quotaService;
+    private final AccountPurgeService purgeService;
 
-    @Value("${aws.cognito.userPoolId}")
-    private String userPoolId;
+    public AccountController(StorageQuotaService quotaService, AccountPurgeService purgeService) {
+        this.quotaService = quotaService;
+        this.purgeService = purgeService;
+    }
 
-    public AccountController(FileService fileService, CognitoIdentityProviderClient cognitoClient) {
-        this.fileService = fileService;
-        this.cognitoClient = cognitoClient;
+    @GetMapping("/account/usage")
+    public StorageUsage usage(@AuthenticationPrincipal Jwt principal) {
+        return quotaService.getUsage(principal.getSubject());
     }
 
+    // Purging runs in the background; the UI polls GET /api/account/deletion for progress (any node can answer)
     @DeleteMapping("/account")
-    public ResponseEntity<String> deleteAccount(@AuthenticationPrincipal Jwt principal) {
-        try {
-            String userId = principal.getSubject();
-            // Purge user data (files + profile photo)
-            fileService.deleteAllForUser(userId);
-
-                // Invalidate refresh tokens (global sign-out), then delete the Cognito user
-            try {
-                AdminUserGlobalSignOutRequest signOutReq = AdminUserGlobalSignOutRequest.builder()
-                    .userPoolId(userPoolId)
-                    .username(userId)
-                    .build();
-                cognitoClient.adminUserGlobalSignOut(signOutReq);
+    public ResponseEntity<PurgeStatus> deleteAccount(@AuthenticationPrincipal Jwt principal) {
+        return ResponseEntity.accepted().body(purgeService.start(principal.getSubject()));
+    }
 
-                AdminDeleteUserRequest request = AdminDeleteUserRequest.builder()
-                        .userPoolId(userPoolId)
-                        .username(userId)
-                        .build();
-                cognitoClient.adminDeleteUser(request);
-                return ResponseEntity.accepted().body("Account deletion initiated: data purged and Cognito user removed.");
-            } catch (CognitoIdentityProviderException e) {
-                String msg = e.awsErrorDetails() != null ? e.awsErrorDetails().errorMessage() : e.getMessage();
-                return ResponseEntity.accepted().body("Data purged, but Cognito deletion failed: " + msg);
-            }
-        } catch (Exception e) {
-            return ResponseEntity.status(500).body("Error deleting account: " + e.getMessage());
-        }
+    @GetMapping("/account/deletion")
+    public ResponseEntity<PurgeStatus> deletionStatus(@AuthenticationPrincipal Jwt principal) {
+        PurgeStatus status = purgeService.status(principal.getSubject());
+        return status == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(status);
     }
 }
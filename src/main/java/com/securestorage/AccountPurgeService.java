@@ -0,0 +1,443 @@
+package com.securestorage;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbTable;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+import software.amazon.awssdk.enhanced.dynamodb.model.BatchWriteResult;
+import software.amazon.awssdk.enhanced.dynamodb.model.Page;
+import software.amazon.awssdk.enhanced.dynamodb.model.QueryConditional;
+import software.amazon.awssdk.enhanced.dynamodb.model.QueryEnhancedRequest;
+import software.amazon.awssdk.enhanced.dynamodb.model.WriteBatch;
+import software.amazon.awssdk.services.cognitoidentityprovider.CognitoIdentityProviderClient;
+import software.amazon.awssdk.services.cognitoidentityprovider.model.CognitoIdentityProviderException;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes everything a user owns as a tracked background job.
+ *
+ * The job pages through the owner index and, for each page, deletes the S3 objects with
+ * DeleteObjects (up to 1000 keys per call) and then their metadata rows with BatchWriteItem (25 per
+ * call). Up to {@code parallelism} pages are in flight per job. Keys and items the services report
+ * as unprocessed are retried with backoff. A row is only removed once its object is gone, so a job
+ * that failed half way can simply be started again.
+ *
+ * The job's state lives in the job table ({@code jobId} = account-purge/&lt;owner&gt;), so any node can
+ * report it. The node running a job holds a lease, renewed with the progress after every page; a
+ * RUNNING job whose lease ran out (its node died) is picked up again by the next start, status
+ * request or sweep, on whichever node that happens.
+ */
+@Service
+public class AccountPurgeService {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccountPurgeService.class);
+
+    // Service limits per request (one DeleteObjects call per index page)
+    private static final int S3_BATCH_SIZE = 1000;
+    private static final int DYNAMO_BATCH_SIZE = 25;
+
+    private static final int MAX_ATTEMPTS = 8;
+    private static final String JOB_PREFIX = "account-purge/";
+    private static final String RUNNING = "RUNNING";
+    private static final String COMPLETED = "COMPLETED";
+    private static final String FAILED = "FAILED";
+    // Finished jobs stay visible this long so the UI can read the outcome
+    private static final long FINISHED_RETENTION_MILLIS = 60 * 60 * 1000;
+
+    private final ObjectStore objectStore;
+    private final DynamoDbEnhancedClient dynamoDb;
+    private final DynamoDbClient dynamoDbClient;
+    private final FileMetadataRepository metadataRepository;
+    private final StorageQuotaService quotaService;
+    private final CognitoIdentityProviderClient cognitoClient;
+    private final EncryptedBlobCache blobCache;
+    private final ContentBlobIndex blobIndex;
+    private final FileSearchIndex searchIndex;
+    private final UploadSessionService uploadSessions;
+    private final ProfilePhotoService profilePhotos;
+    private final int parallelism;
+    private final Duration lease;
+    private final ExecutorService jobRunner;
+    private final ExecutorService batchWorkers;
+
+    @Value("${aws.cognito.userPoolId}")
+    private String userPoolId;
+
+    @Value("${aws.dynamodb.job-table}")
+    private String jobTable;
+
+    public AccountPurgeService(ObjectStore objectStore, DynamoDbEnhancedClient dynamoDb, DynamoDbClient dynamoDbClient,
+                               FileMetadataRepository metadataRepository, StorageQuotaService quotaService,
+                               CognitoIdentityProviderClient cognitoClient, EncryptedBlobCache blobCache,
+                               ContentBlobIndex blobIndex, FileSearchIndex searchIndex,
+                               UploadSessionService uploadSessions, ProfilePhotoService profilePhotos,
+                               @Value("${app.purge.parallelism:4}") int parallelism,
+                               @Value("${app.purge.max-concurrent-jobs:2}") int maxConcurrentJobs,
+                               @Value("${app.purge.lease:2m}") Duration lease) {
+        this.objectStore = objectStore;
+        this.dynamoDb = dynamoDb;
+        this.dynamoDbClient = dynamoDbClient;
+        this.metadataRepository = metadataRepository;
+        this.quotaService = quotaService;
+        this.cognitoClient = cognitoClient;
+        this.blobCache = blobCache;
+        this.blobIndex = blobIndex;
+        this.searchIndex = searchIndex;
+        this.uploadSessions = uploadSessions;
+        this.profilePhotos = profilePhotos;
+        this.parallelism = Math.max(parallelism, 1);
+        this.lease = lease;
+        this.jobRunner = Executors.newFixedThreadPool(Math.max(maxConcurrentJobs, 1), daemon("account-purge-"));
+        this.batchWorkers = Executors.newFixedThreadPool(this.parallelism * Math.max(maxConcurrentJobs, 1),
+                daemon("account-purge-batch-"));
+    }
+
+    private static ThreadFactory daemon(String prefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    @PreDestroy
+    void shutdown() {
+        jobRunner.shutdown();
+        batchWorkers.shutdown();
+    }
+
+    // Starts a purge for the user, or returns the one already running
+    public PurgeStatus start(String ownerId) {
+        Map<String, AttributeValue> current = load(ownerId);
+        if (current != null && RUNNING.equals(string(current, "state")) && !leaseExpired(current)) {
+            return status(current);
+        }
+        PurgeJob job = claim(ownerId, current);
+        if (job == null) {
+            // Another node started or took it over meanwhile
+            Map<String, AttributeValue> latest = load(ownerId);
+            return latest == null ? null : status(latest);
+        }
+        logger.info("Account purge {} for ownerId={}", job.resumed ? "resumed" : "started", ownerId);
+        jobRunner.execute(() -> run(job));
+        return job.status();
+    }
+
+    // Null if no purge was started for this user (or its result has expired)
+    public PurgeStatus status(String ownerId) {
+        Map<String, AttributeValue> item = load(ownerId);
+        if (item == null) return null;
+        long finishedAt = number(item, "finishedAt");
+        if (finishedAt != 0 && finishedAt < System.currentTimeMillis() - FINISHED_RETENTION_MILLIS) return null;
+        // The node running it is gone: carry on here
+        if (RUNNING.equals(string(item, "state")) && leaseExpired(item)) return start(ownerId);
+        return status(item);
+    }
+
+    /**
+     * Resumes purges whose node stopped renewing the lease, even if nobody asks for their status,
+     * and drops the records of purges finished more than the retention ago.
+     */
+    @Scheduled(cron = "${app.purge.sweep-cron:0 */5 * * * *}")
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        dynamoDbClient.scanPaginator(req -> req.tableName(jobTable)
+                        .filterExpression("begins_with(jobId, :prefix) AND ((#state = :running AND heartbeatAt < :expired)"
+                                + " OR (#state <> :running AND finishedAt < :cutoff))")
+                        .expressionAttributeNames(Map.of("#state", "state"))
+                        .expressionAttributeValues(Map.of(
+                                ":prefix", s(JOB_PREFIX),
+                                ":running", s(RUNNING),
+                                ":expired", n(now - lease.toMillis()),
+                                ":cutoff", n(now - FINISHED_RETENTION_MILLIS))))
+                .items()
+                .forEach(items::add);
+        for (Map<String, AttributeValue> item : items) {
+            String ownerId = string(item, "ownerId");
+            try {
+                if (RUNNING.equals(string(item, "state"))) {
+                    start(ownerId);
+                } else {
+                    dynamoDbClient.deleteItem(req -> req.tableName(jobTable)
+                            .key(jobKey(ownerId))
+                            .conditionExpression("finishedAt = :seen")
+                            .expressionAttributeValues(Map.of(":seen", item.get("finishedAt"))));
+                }
+            } catch (ConditionalCheckFailedException e) {
+                // Started again meanwhile
+            } catch (Exception e) {
+                logger.warn("Could not sweep account purge of ownerId={}: {}", ownerId, e.getMessage());
+            }
+        }
+    }
+
+    private void run(PurgeJob job) {
+        String ownerId = job.ownerId;
+        try {
+            // May have waited in the queue; renew before touching anything
+            if (!heartbeat(job)) return;
+
+            // 0. Unfinished resumable uploads first, so none of them turns into a file behind the purge
+            uploadSessions.abortAll(ownerId);
+
+            // 1. Files: page through the owner index, each page deleted as one batch in the background
+            Semaphore inFlight = new Semaphore(parallelism);
+            List<CompletableFuture<Void>> batches = new ArrayList<>();
+            Iterable<Page<FileEntity>> pages = metadataRepository.ownerIndex().query(QueryEnhancedRequest.builder()
+                    .queryConditional(QueryConditional.keyEqualTo(k -> k.partitionValue(ownerId)))
+                    .attributesToProject("file_id", "s3Key", "blobId")
+                    .limit(S3_BATCH_SIZE)
+                    .build());
+            for (Page<FileEntity> page : pages) {
+                List<FileEntity> files = page.items();
+                if (files.isEmpty()) continue;
+                job.filesFound.addAndGet(files.size());
+
+                inFlight.acquire();
+                if (batches.stream().anyMatch(CompletableFuture::isCompletedExceptionally) || !heartbeat(job)) {
+                    inFlight.release();
+                    break;
+                }
+                batches.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        deleteBatch(files);
+                        job.filesDeleted.addAndGet(files.size());
+                    } finally {
+                        inFlight.release();
+                    }
+                }, batchWorkers));
+            }
+            CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).join();
+            if (job.lost) {
+                logger.info("Account purge for ownerId={} was taken over by another node", ownerId);
+                return;
+            }
+            searchIndex.forget(ownerId);
+
+            // 2. Profile photo and usage counters
+            deleteProfilePhoto(ownerId);
+            quotaService.forget(ownerId);
+
+            // 3. Finally the login itself
+            finish(job, COMPLETED, deleteCognitoUser(ownerId));
+            logger.info("Account purge finished for ownerId={}: {} files", ownerId, job.filesDeleted.get());
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            logger.error("Account purge failed for ownerId={}: {}", ownerId, cause.getMessage(), cause);
+            finish(job, FAILED, "Purge failed, please try again: " + cause.getMessage());
+        }
+    }
+
+    private void deleteBatch(List<FileEntity> files) {
+        // 0. Dedup records before anything else, so no new upload can start sharing an object that is about to go
+        List<String> blobIds = files.stream().map(FileEntity::getBlobId).filter(Objects::nonNull).toList();
+        if (!blobIds.isEmpty() && blobIndex.isConfigured()) blobIndex.deleteAll(blobIds);
+
+        // 1. Objects before rows, so a metadata row never disappears while its ciphertext is still stored
+        // Deduplicated files share objects, so the same key can come up more than once
+        List<String> keys = files.stream().map(FileEntity::getS3Key).filter(Objects::nonNull).distinct().toList();
+        keys.forEach(blobCache::invalidate);
+        objectStore.deleteAll(keys);
+
+        // 2. Then the rows, 25 per request
+        for (int i = 0; i < files.size(); i += DYNAMO_BATCH_SIZE) {
+            deleteRows(files.subList(i, Math.min(i + DYNAMO_BATCH_SIZE, files.size())));
+        }
+        metadataRepository.invalidateAll(files.stream().map(FileEntity::getFileId).toList());
+    }
+
+    private void deleteRows(List<FileEntity> files) {
+        DynamoDbTable<FileEntity> table = metadataRepository.table();
+        List<Key> pending = files.stream().map(f -> Key.builder().partitionValue(f.getFileId()).build()).toList();
+        for (int attempt = 1; !pending.isEmpty(); attempt++) {
+            Backoff.pause(attempt, MAX_ATTEMPTS, pending.size() + " metadata row deletes");
+            WriteBatch.Builder<FileEntity> batch = WriteBatch.builder(FileEntity.class).mappedTableResource(table);
+            pending.forEach(batch::addDeleteItem);
+            BatchWriteResult result = dynamoDb.batchWriteItem(req -> req.addWriteBatch(batch.build()));
+            pending = result.unprocessedDeleteItemsForTable(table);
+        }
+    }
+
+    private void deleteProfilePhoto(String ownerId) {
+        try {
+            profilePhotos.delete(ownerId);
+        } catch (Exception ignored) {
+            // No profile photo or already deleted
+        }
+    }
+
+    // Invalidate refresh tokens (global sign-out), then delete the Cognito user
+    private String deleteCognitoUser(String ownerId) {
+        try {
+            cognitoClient.adminUserGlobalSignOut(req -> req.userPoolId(userPoolId).username(ownerId));
+            cognitoClient.adminDeleteUser(req -> req.userPoolId(userPoolId).username(ownerId));
+            return "Account deleted: data purged and Cognito user removed.";
+        } catch (CognitoIdentityProviderException e) {
+            String msg = e.awsErrorDetails() != null ? e.awsErrorDetails().errorMessage() : e.getMessage();
+            return "Data purged, but Cognito deletion failed: " + msg;
+        }
+    }
+
+    // --- Job record (partition key jobId in the job table) ---
+
+    private Map<String, AttributeValue> load(String ownerId) {
+        Map<String, AttributeValue> item = dynamoDbClient.getItem(req -> req.tableName(jobTable)
+                .key(jobKey(ownerId))
+                .consistentRead(true)).item();
+        return item == null || item.isEmpty() ? null : item;
+    }
+
+    private boolean leaseExpired(Map<String, AttributeValue> item) {
+        return System.currentTimeMillis() - number(item, "heartbeatAt") >= lease.toMillis();
+    }
+
+    // Takes the lease on a new job, or on a RUNNING one whose node has gone; null if another node was first
+    private PurgeJob claim(String ownerId, Map<String, AttributeValue> current) {
+        long now = System.currentTimeMillis();
+        boolean resume = current != null && RUNNING.equals(string(current, "state"));
+        // Files already deleted are no longer in the index, so they are counted as found up front
+        long deleted = resume ? number(current, "filesDeleted") : 0;
+        PurgeJob job = new PurgeJob(ownerId, UUID.randomUUID().toString(), resume ? number(current, "startedAt") : now,
+                deleted, resume);
+
+        Map<String, AttributeValue> item = new HashMap<>(jobKey(ownerId));
+        item.put("ownerId", s(ownerId));
+        item.put("state", s(RUNNING));
+        item.put("runner", s(job.runner));
+        item.put("heartbeatAt", n(now));
+        item.put("startedAt", n(job.startedAt));
+        item.put("filesFound", n(deleted));
+        item.put("filesDeleted", n(deleted));
+        try {
+            dynamoDbClient.putItem(req -> {
+                req.tableName(jobTable).item(item);
+                if (current == null) {
+                    req.conditionExpression("attribute_not_exists(jobId)");
+                } else {
+                    req.conditionExpression("heartbeatAt = :seen")
+                            .expressionAttributeValues(Map.of(":seen", current.get("heartbeatAt")));
+                }
+            });
+            return job;
+        } catch (ConditionalCheckFailedException e) {
+            return null;
+        }
+    }
+
+    // Renews the lease and records progress; false (and the job marked lost) once another node has taken over
+    private boolean heartbeat(PurgeJob job) {
+        try {
+            dynamoDbClient.updateItem(req -> req.tableName(jobTable)
+                    .key(jobKey(job.ownerId))
+                    .updateExpression("SET heartbeatAt = :now, filesFound = :found, filesDeleted = :deleted")
+                    .conditionExpression("runner = :me")
+                    .expressionAttributeValues(Map.of(
+                            ":now", n(System.currentTimeMillis()),
+                            ":found", n(job.filesFound.get()),
+                            ":deleted", n(job.filesDeleted.get()),
+                            ":me", s(job.runner))));
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            job.lost = true;
+            return false;
+        }
+    }
+
+    private void finish(PurgeJob job, String state, String message) {
+        long now = System.currentTimeMillis();
+        try {
+            dynamoDbClient.updateItem(req -> req.tableName(jobTable)
+                    .key(jobKey(job.ownerId))
+                    .updateExpression("SET #state = :state, message = :message, heartbeatAt = :now, finishedAt = :now,"
+                            + " filesFound = :found, filesDeleted = :deleted")
+                    .conditionExpression("runner = :me")
+                    .expressionAttributeNames(Map.of("#state", "state"))
+                    .expressionAttributeValues(Map.of(
+                            ":state", s(state),
+                            ":message", s(message),
+                            ":now", n(now),
+                            ":found", n(job.filesFound.get()),
+                            ":deleted", n(job.filesDeleted.get()),
+                            ":me", s(job.runner))));
+        } catch (Exception e) {
+            logger.warn("Could not record account purge state {} for ownerId={}: {}", state, job.ownerId, e.getMessage());
+        }
+    }
+
+    private static PurgeStatus status(Map<String, AttributeValue> item) {
+        return new PurgeStatus(string(item, "state"), number(item, "filesFound"), number(item, "filesDeleted"),
+                string(item, "message"), number(item, "startedAt"), number(item, "finishedAt"));
+    }
+
+    private static Map<String, AttributeValue> jobKey(String ownerId) {
+        return Map.of("jobId", s(JOB_PREFIX + ownerId));
+    }
+
+    private static AttributeValue s(String value) {
+        return AttributeValue.builder().s(value).build();
+    }
+
+    private static AttributeValue n(long value) {
+        return AttributeValue.builder().n(Long.toString(value)).build();
+    }
+
+    private static String string(Map<String, AttributeValue> item, String attribute) {
+        AttributeValue value = item.get(attribute);
+        return value == null ? null : value.s();
+    }
+
+    private static long number(Map<String, AttributeValue> item, String attribute) {
+        AttributeValue value = item.get(attribute);
+        return value == null || value.n() == null ? 0 : Long.parseLong(value.n());
+    }
+
+    // One run of a job on this node; runner identifies it in the record's lease
+    private static final class PurgeJob {
+        private final String ownerId;
+        private final String runner;
+        private final long startedAt;
+        private final boolean resumed;
+        private final AtomicLong filesFound;
+        private final AtomicLong filesDeleted;
+        private volatile boolean lost;
+
+        PurgeJob(String ownerId, String runner, long startedAt, long alreadyDeleted, boolean resumed) {
+            this.ownerId = ownerId;
+            this.runner = runner;
+            this.startedAt = startedAt;
+            this.resumed = resumed;
+            this.filesFound = new AtomicLong(alreadyDeleted);
+            this.filesDeleted = new AtomicLong(alreadyDeleted);
+        }
+
+        PurgeStatus status() {
+            return new PurgeStatus(RUNNING, filesFound.get(), filesDeleted.get(), null, startedAt, 0);
+        }
+    }
+}
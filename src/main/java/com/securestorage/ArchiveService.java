@@ -0,0 +1,228 @@
+package com.securestorage;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams a selection of files to the client as one ZIP archive.
+ *
+ * While one entry is being compressed and written, the next {@code prefetchFiles} files are
+ * already being fetched and decrypted by a shared worker pool. Each prefetched file only gets a
+ * bounded buffer ({@code prefetchBufferBytes}); its worker waits once the buffer is full. Memory per
+ * archive is therefore about {@code (prefetchFiles + 1) * prefetchBufferBytes}, whatever the size
+ * of the files.
+ */
+@Service
+public class ArchiveService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ArchiveService.class);
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final FileService fileService;
+    private final FileMetadataRepository metadataRepository;
+    private final int prefetchFiles;
+    private final int bufferedChunks;
+    private final ExecutorService prefetchWorkers;
+
+    public ArchiveService(FileService fileService, FileMetadataRepository metadataRepository,
+                          @Value("${app.archive.prefetch-files:3}") int prefetchFiles,
+                          @Value("${app.archive.prefetch-buffer-bytes:1048576}") int prefetchBufferBytes,
+                          @Value("${app.archive.pool-size:16}") int poolSize) {
+        this.fileService = fileService;
+        this.metadataRepository = metadataRepository;
+        this.prefetchFiles = Math.max(prefetchFiles, 0);
+        this.bufferedChunks = Math.max(prefetchBufferBytes / CHUNK_SIZE, 1);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.prefetchWorkers = Executors.newFixedThreadPool(Math.max(poolSize, 1), r -> {
+            Thread t = new Thread(r, "archive-prefetch-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        prefetchWorkers.shutdownNow();
+    }
+
+    // Heap one archive pins: each prefetch buffer, plus what the files being read hold themselves
+    public long archiveMemory(List<FileEntity> files) {
+        long perFile = files.stream().mapToLong(fileService::downloadMemory).max().orElse(0);
+        return (long) (prefetchFiles + 1) * (bufferedChunks * (long) CHUNK_SIZE + perFile);
+    }
+
+    // The caller's files in request order, or null if any id is unknown or owned by someone else
+    public List<FileEntity> resolve(List<String> fileIds, String ownerId) {
+        Map<String, FileEntity> found = metadataRepository.findAllById(fileIds);
+        List<FileEntity> files = new ArrayList<>(fileIds.size());
+        for (String fileId : fileIds) {
+            FileEntity entity = found.get(fileId);
+            if (entity == null || !entity.getOwnerId().equals(ownerId)) {
+                return null;
+            }
+            files.add(entity);
+        }
+        return files;
+    }
+
+    /**
+     * Writes the files as a ZIP to {@code out} (which is left open). Once bytes have been sent a
+     * failure can no longer change the response status, so it is thrown and the archive is cut off.
+     */
+    public void writeZip(List<FileEntity> files, OutputStream out) throws IOException {
+        Deque<PrefetchedFile> window = new ArrayDeque<>();
+        Set<String> entryNames = new HashSet<>();
+        ZipOutputStream zip = new ZipOutputStream(out);
+        // Favour throughput: a lot of what people store (media, PDFs) is already compressed
+        zip.setLevel(Deflater.BEST_SPEED);
+        int next = 0;
+        try {
+            for (FileEntity file : files) {
+                // 1. Keep the next few files fetching/decrypting in the background
+                while (next < files.size() && window.size() <= prefetchFiles) {
+                    window.add(new PrefetchedFile(files.get(next++)));
+                }
+
+                // 2. Copy the current one into the archive
+                zip.putNextEntry(entryFor(file, entryNames));
+                try (PrefetchedFile current = window.poll()) {
+                    current.transferTo(zip);
+                }
+                zip.closeEntry();
+            }
+            zip.finish();
+            logger.info("Archive written: {} files", files.size());
+        } finally {
+            // Client went away or a file failed: stop the workers still filling buffers
+            window.forEach(PrefetchedFile::close);
+        }
+    }
+
+    // Stored names are user supplied: no directories, and duplicates become "name (2).ext"
+    private static ZipEntry entryFor(FileEntity file, Set<String> entryNames) {
+        String name = file.getFilename() == null || file.getFilename().isBlank()
+                ? file.getFileId() : file.getFilename().replace('/', '_').replace('\\', '_');
+        String unique = name;
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int n = 2; !entryNames.add(unique); n++) {
+            unique = base + " (" + n + ")" + extension;
+        }
+        ZipEntry entry = new ZipEntry(unique);
+        if (file.getUploadedAt() != null) {
+            entry.setLastModifiedTime(FileTime.fromMillis(file.getUploadedAt()));
+        }
+        return entry;
+    }
+
+    /**
+     * Plaintext of one file, decrypted ahead of time on the worker pool into a bounded queue of
+     * chunks. Legacy (single-IV) objects are decrypted whole by {@link FileService#openDownload}.
+     */
+    private final class PrefetchedFile extends InputStream {
+
+        private static final byte[] END = new byte[0];
+
+        private final FileEntity file;
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(bufferedChunks);
+        private final Future<?> worker;
+        private volatile boolean closed;
+        private volatile Throwable failure;
+        private byte[] chunk = new byte[0];
+        private int position;
+
+        PrefetchedFile(FileEntity file) {
+            this.file = file;
+            this.worker = prefetchWorkers.submit(this::fill);
+        }
+
+        private void fill() {
+            try (InputStream plaintext = fileService.openDownload(file)) {
+                byte[] next;
+                while ((next = plaintext.readNBytes(CHUNK_SIZE)).length > 0) {
+                    if (!offer(next)) return;
+                }
+            } catch (Throwable t) {
+                failure = t;
+            }
+            offer(END);
+        }
+
+        // Waits for buffer space; false once the reader has given up on this file
+        private boolean offer(byte[] next) {
+            try {
+                while (!closed) {
+                    if (chunks.offer(next, 100, TimeUnit.MILLISECONDS)) return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (position == chunk.length) {
+                if (chunk == END) return -1;
+                try {
+                    chunk = chunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading " + file.getFileId(), e);
+                }
+                position = 0;
+                if (chunk == END) {
+                    if (failure != null) {
+                        throw new IOException("Could not read file " + file.getFileId() + " for the archive", failure);
+                    }
+                    return -1;
+                }
+            }
+            int n = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            worker.cancel(true);
+            chunks.clear();
+        }
+    }
+}
@@ -1,15 +1,31 @@
 package com.securestorage;
 
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedAsyncClient;
 import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClientBuilder;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClientBuilder;
+import software.amazon.awssdk.services.s3.DelegatingS3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.awssdk.services.cognitoidentityprovider.CognitoIdentityProviderClient;
+import software.amazon.awssdk.services.cognitoidentityprovider.CognitoIdentityProviderClientBuilder;
 
 @Configuration
 public class AwsConfig {
@@ -23,36 +39,127 @@ public class AwsConfig {
     @Value("${aws.secretKey}")
     private String secretKey;
 
+    // Optional: point S3 at a local S3-compatible stand-in (MinIO, LocalStack) for tests
+    @Value("${aws.s3.endpoint:}")
+    private String s3Endpoint;
+
+    // Same for DynamoDB (DynamoDB Local, the load test's stand-in) and Cognito
+    @Value("${aws.dynamodb.endpoint:}")
+    private String dynamoDbEndpoint;
+
+    @Value("${aws.cognito.endpoint:}")
+    private String cognitoEndpoint;
+
+    // Call durations and retry counts of every client go to /actuator/prometheus
+    private final AwsSdkMetrics sdkMetrics;
+
+    public AwsConfig(AwsSdkMetrics sdkMetrics) {
+        this.sdkMetrics = sdkMetrics;
+    }
+
     @Bean
     public S3Client s3Client() {
-        return S3Client.builder()
+        S3ClientBuilder builder = S3Client.builder()
                 .region(Region.of(region))
                 // 👇 FORCE USE OF YOUR KEYS
                 .credentialsProvider(StaticCredentialsProvider.create(
                         AwsBasicCredentials.create(accessKey, secretKey)))
-                .build();
+                .overrideConfiguration(c -> c.addMetricPublisher(sdkMetrics));
+        if (!s3Endpoint.isBlank()) {
+            builder.endpointOverride(URI.create(s3Endpoint)).forcePathStyle(true);
+        }
+        return builder.build();
     }
 
+    // Low-level client, also used directly for atomic counter updates (UpdateItem ADD)
     @Bean
-    public DynamoDbEnhancedClient dynamoDbEnhancedClient() {
-        DynamoDbClient ddb = DynamoDbClient.builder()
+    public DynamoDbClient dynamoDbClient() {
+        DynamoDbClientBuilder builder = DynamoDbClient.builder()
                 .region(Region.of(region))
                 // 👇 FORCE USE OF YOUR KEYS HERE TOO
                 .credentialsProvider(StaticCredentialsProvider.create(
                         AwsBasicCredentials.create(accessKey, secretKey)))
-                .build();
+                .overrideConfiguration(c -> c.addMetricPublisher(sdkMetrics));
+        if (!dynamoDbEndpoint.isBlank()) {
+            builder.endpointOverride(URI.create(dynamoDbEndpoint));
+        }
+        return builder.build();
+    }
 
+    @Bean
+    public DynamoDbEnhancedClient dynamoDbEnhancedClient(DynamoDbClient ddb) {
         return DynamoDbEnhancedClient.builder()
                 .dynamoDbClient(ddb)
                 .build();
     }
 
+    // --- Async clients (Netty, non-blocking), only created with app.io-mode=async ---
+
+    @Bean
+    @ConditionalOnProperty(name = "app.io-mode", havingValue = "async")
+    public S3AsyncClient s3AsyncClient(@Value("${app.s3.multipart.part-size:8388608}") long partSize) {
+        S3AsyncClientBuilder builder = S3AsyncClient.builder()
+                .region(Region.of(region))
+                .credentialsProvider(StaticCredentialsProvider.create(
+                        AwsBasicCredentials.create(accessKey, secretKey)))
+                .overrideConfiguration(c -> c.addMetricPublisher(sdkMetrics));
+        if (!s3Endpoint.isBlank()) {
+            builder.endpointOverride(URI.create(s3Endpoint)).forcePathStyle(true);
+        }
+        S3AsyncClient reads = builder.build();
+        // The SDK splits large bodies into parallel parts itself, using the same part size as S3MultipartUploader
+        S3AsyncClient writes = builder.multipartEnabled(true)
+                .multipartConfiguration(m -> m.thresholdInBytes(partSize).minimumPartSizeInBytes(partSize))
+                .build();
+        // The multipart client rejects every GetObject ("multipart download is not yet supported"), so reads
+        // go through a plain client
+        return new DelegatingS3AsyncClient(writes) {
+            @Override
+            public <ReturnT> CompletableFuture<ReturnT> getObject(GetObjectRequest request,
+                                                                  AsyncResponseTransformer<GetObjectResponse, ReturnT> transformer) {
+                return reads.getObject(request, transformer);
+            }
+
+            @Override
+            public void close() {
+                super.close();
+                reads.close();
+            }
+        };
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "app.io-mode", havingValue = "async")
+    public DynamoDbAsyncClient dynamoDbAsyncClient() {
+        DynamoDbAsyncClientBuilder builder = DynamoDbAsyncClient.builder()
+                .region(Region.of(region))
+                .credentialsProvider(StaticCredentialsProvider.create(
+                        AwsBasicCredentials.create(accessKey, secretKey)))
+                .overrideConfiguration(c -> c.addMetricPublisher(sdkMetrics));
+        if (!dynamoDbEndpoint.isBlank()) {
+            builder.endpointOverride(URI.create(dynamoDbEndpoint));
+        }
+        return builder.build();
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "app.io-mode", havingValue = "async")
+    public DynamoDbEnhancedAsyncClient dynamoDbEnhancedAsyncClient(DynamoDbAsyncClient ddb) {
+        return DynamoDbEnhancedAsyncClient.builder()
+                .dynamoDbClient(ddb)
+                .build();
+    }
+
         @Bean
         public CognitoIdentityProviderClient cognitoClient() {
-                return CognitoIdentityProviderClient.builder()
+                CognitoIdentityProviderClientBuilder builder = CognitoIdentityProviderClient.builder()
                                 .region(Region.of(region))
                                 .credentialsProvider(StaticCredentialsProvider.create(
                                                 AwsBasicCredentials.create(accessKey, secretKey)))
-                                .build();
+                                .overrideConfiguration(c -> c.addMetricPublisher(sdkMetrics));
+                if (!cognitoEndpoint.isBlank()) {
+                        builder.endpointOverride(URI.create(cognitoEndpoint));
+                }
+                return builder.build();
         }
 }
\ No newline at end of file
@@ -0,0 +1,66 @@
+package com.securestorage;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+import software.amazon.awssdk.metrics.SdkMetric;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Publishes the AWS SDK's per-call metrics to Micrometer; attached to every client in {@link AwsConfig}.
+ *
+ * {@code aws.sdk.calls} times each API call including its retries (tags: service, operation,
+ * outcome) and {@code aws.sdk.retries} counts the retries, which is where S3 and DynamoDB
+ * throttling shows up first.
+ */
+@Component
+public class AwsSdkMetrics implements MetricPublisher {
+
+    private final MeterRegistry registry;
+
+    public AwsSdkMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void publish(MetricCollection metrics) {
+        String service = first(metrics, CoreMetric.SERVICE_ID, "unknown");
+        String operation = first(metrics, CoreMetric.OPERATION_NAME, "unknown");
+        boolean successful = first(metrics, CoreMetric.API_CALL_SUCCESSFUL, false);
+
+        Duration duration = first(metrics, CoreMetric.API_CALL_DURATION, null);
+        if (duration != null) {
+            Timer.builder("aws.sdk.calls")
+                    .description("AWS API calls, including retries")
+                    .tags("service", service, "operation", operation, "outcome", successful ? "success" : "failure")
+                    .publishPercentileHistogram()
+                    .register(registry)
+                    .record(duration);
+        }
+
+        int retries = first(metrics, CoreMetric.RETRY_COUNT, 0);
+        if (retries > 0) {
+            Counter.builder("aws.sdk.retries")
+                    .description("Retried AWS API call attempts")
+                    .tags("service", service, "operation", operation)
+                    .register(registry)
+                    .increment(retries);
+        }
+    }
+
+    private static <T> T first(MetricCollection metrics, SdkMetric<T> metric, T fallback) {
+        List<T> values = metrics.metricValues(metric);
+        return values.isEmpty() || values.get(0) == null ? fallback : values.get(0);
+    }
+
+    @Override
+    public void close() {
+        // Meters belong to the registry
+    }
+}
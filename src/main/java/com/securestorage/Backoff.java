@@ -0,0 +1,29 @@
+package com.securestorage;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter for retrying the unprocessed part of a batch call.
+ */
+final class Backoff {
+
+    private static final long BASE_MILLIS = 50;
+
+    private Backoff() {
+    }
+
+    // Sleeps before every retry (attempt > 1); gives up once attempt passes maxAttempts
+    static void pause(int attempt, int maxAttempts, String what) {
+        if (attempt == 1) return;
+        if (attempt > maxAttempts) {
+            throw new RuntimeException("Could not process " + what + " after " + maxAttempts + " attempts");
+        }
+        long delay = BASE_MILLIS << (attempt - 2);
+        try {
+            Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing " + what, e);
+        }
+    }
+}
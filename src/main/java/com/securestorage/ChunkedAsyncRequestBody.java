@@ -0,0 +1,145 @@
+package com.securestorage;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Feeds a blocking {@link InputStream} to the async S3 client without parking a thread on the
+ * network. A chunk is read (and, for an encrypting stream, encrypted) on {@code executor} only once
+ * the SDK has asked for it, so an upload holds a thread while bytes are being produced, not while
+ * they are in flight. The SDK's own {@code fromInputStream(..., executor)} keeps one executor thread
+ * blocked for the whole transfer instead.
+ *
+ * The stream can only be sent once; a second subscription (an SDK retry) fails.
+ */
+final class ChunkedAsyncRequestBody implements AsyncRequestBody {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    private final InputStream source;
+    private final long contentLength;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    ChunkedAsyncRequestBody(InputStream source, long contentLength, Executor executor) {
+        this.source = source;
+        this.contentLength = contentLength;
+        this.executor = executor;
+    }
+
+    @Override
+    public Optional<Long> contentLength() {
+        return Optional.of(contentLength);
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Request body is a one-shot stream and cannot be resent"));
+            return;
+        }
+        subscriber.onSubscribe(new ChunkSubscription(subscriber));
+    }
+
+    private final class ChunkSubscription implements Subscription {
+
+        private final Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        // Serializes signals: only the task that moves this from 0 runs the emit loop
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean done;
+        private volatile boolean invalidRequest;
+        private boolean closed;
+
+        ChunkSubscription(Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = true;
+            } else {
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+            drain();
+        }
+
+        private void drain() {
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this::emit);
+            }
+        }
+
+        private void emit() {
+            int missed = 1;
+            do {
+                try {
+                    if (invalidRequest) {
+                        finish(new IllegalArgumentException("Subscription request must be positive"));
+                    }
+                    while (!done && demand.get() > 0) {
+                        byte[] chunk = source.readNBytes(CHUNK_SIZE);
+                        if (chunk.length > 0) {
+                            // Decrement first: onNext may request more re-entrantly
+                            demand.decrementAndGet();
+                            subscriber.onNext(ByteBuffer.wrap(chunk));
+                        }
+                        if (chunk.length < CHUNK_SIZE) {
+                            finish(null);
+                        }
+                    }
+                } catch (Throwable t) {
+                    finish(t);
+                }
+                if (done) closeSource();
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void finish(Throwable error) {
+            if (done) return;
+            done = true;
+            if (error == null) {
+                subscriber.onComplete();
+            } else {
+                subscriber.onError(error);
+            }
+        }
+
+        private void closeSource() {
+            if (closed) return;
+            closed = true;
+            try {
+                source.close();
+            } catch (IOException ignored) {
+                // Nothing useful to do; the upload outcome is already decided
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.securestorage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Optional compression of uploads before they are encrypted (ciphertext does not compress).
+ *
+ * The level comes from the content type: text-like types get the default deflate level, other
+ * types the fastest one, and formats that are already compressed (images, audio, video, archives)
+ * are stored as they are. A quick deflate of the first {@code SAMPLE_SIZE} bytes weeds out the
+ * rest of the incompressible uploads before the whole file is read. The compressed copy is
+ * spooled to a temp file so its exact length is known before the upload starts.
+ */
+@Component
+public class CompressionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompressionService.class);
+
+    // Value stored in FileEntity.compression (zlib-wrapped deflate)
+    public static final String DEFLATE = "deflate";
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Not worth it unless the sample shrinks below this fraction
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+    private static final int SKIP = Integer.MIN_VALUE;
+
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+            "application/x-xz", "application/x-7z-compressed", "application/x-rar-compressed",
+            "application/vnd.rar", "application/zstd", "application/java-archive",
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+            "application/vnd.openxmlformats-officedocument.presentationml.presentation");
+    private static final Set<String> TEXT_TYPES = Set.of(
+            "application/json", "application/xml", "application/javascript", "application/x-ndjson",
+            "application/yaml", "application/x-yaml", "application/sql", "application/csv", "image/svg+xml");
+
+    private final boolean enabled;
+    private final long minSize;
+
+    public CompressionService(@Value("${app.compression.enabled:false}") boolean enabled,
+                              @Value("${app.compression.min-size:1024}") long minSize) {
+        this.enabled = enabled;
+        this.minSize = minSize;
+    }
+
+    /**
+     * The bytes to encrypt for an upload: a compressed copy when that pays off, otherwise the
+     * upload itself. Close it once stored to delete the copy.
+     */
+    public EncodedContent encode(MultipartFile file) throws IOException {
+        int level = levelFor(file.getContentType());
+        if (!enabled || level == SKIP || file.getSize() < minSize) {
+            return new EncodedContent(file, null, null, file.getSize());
+        }
+
+        // 1. Cheap look at the start of the file before committing to the whole thing
+        byte[] sample;
+        try (InputStream in = file.getInputStream()) {
+            sample = in.readNBytes(SAMPLE_SIZE);
+        }
+        if (deflatedSize(sample) > sample.length * MAX_SAMPLE_RATIO) {
+            return new EncodedContent(file, null, null, file.getSize());
+        }
+
+        // 2. Compress the whole file to a temp copy; keep it only if it is actually smaller
+        Path copy = Files.createTempFile("upload-", ".deflate");
+        try {
+            Deflater deflater = new Deflater(level);
+            try (InputStream in = file.getInputStream();
+                 OutputStream out = new DeflaterOutputStream(Files.newOutputStream(copy), deflater, BUFFER_SIZE)) {
+                in.transferTo(out);
+            } finally {
+                deflater.end();
+            }
+            long compressedSize = Files.size(copy);
+            if (compressedSize >= file.getSize()) {
+                Files.deleteIfExists(copy);
+                return new EncodedContent(file, null, null, file.getSize());
+            }
+            logger.debug("Compressed {} ({}): {} -> {} bytes", file.getOriginalFilename(), file.getContentType(),
+                    file.getSize(), compressedSize);
+            return new EncodedContent(file, copy, DEFLATE, compressedSize);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(copy);
+            throw e;
+        }
+    }
+
+    // Undoes encode() on the decrypted stream; null means the file was stored uncompressed
+    public InputStream decode(InputStream stored, String compression) {
+        if (compression == null) return stored;
+        if (!DEFLATE.equals(compression)) {
+            throw new IllegalStateException("Unknown compression: " + compression);
+        }
+        return new InflaterInputStream(stored, new Inflater(), BUFFER_SIZE) {
+            private boolean ended;
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // A caller-supplied Inflater is not released by close()
+                    if (!ended) {
+                        ended = true;
+                        inf.end();
+                    }
+                }
+            }
+        };
+    }
+
+    // Deflater level for a content type, or SKIP for formats that are compressed already
+    private static int levelFor(String contentType) {
+        if (contentType == null) return Deflater.BEST_SPEED;
+        String type = contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+        if (type.startsWith("text/") || TEXT_TYPES.contains(type) || type.endsWith("+json") || type.endsWith("+xml")) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+        if (type.startsWith("image/") || type.startsWith("audio/") || type.startsWith("video/")
+                || COMPRESSED_TYPES.contains(type)) {
+            return SKIP;
+        }
+        return Deflater.BEST_SPEED;
+    }
+
+    private static long deflatedSize(byte[] sample) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long size = 0;
+            while (!deflater.finished()) {
+                size += deflater.deflate(buffer);
+            }
+            return size;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * What actually gets encrypted for one upload. {@code compression} is null when the upload is
+     * stored as it is, in which case {@code length} is the upload size.
+     */
+    public static final class EncodedContent implements Closeable {
+
+        private final MultipartFile file;
+        private final Path copy;
+        private final String compression;
+        private final long length;
+
+        private EncodedContent(MultipartFile file, Path copy, String compression, long length) {
+            this.file = file;
+            this.copy = copy;
+            this.compression = compression;
+            this.length = length;
+        }
+
+        public InputStream open() throws IOException {
+            return copy == null ? file.getInputStream() : Files.newInputStream(copy);
+        }
+
+        public String compression() {
+            return compression;
+        }
+
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void close() {
+            if (copy == null) return;
+            try {
+                Files.deleteIfExists(copy);
+            } catch (IOException e) {
+                logger.warn("Could not delete compressed upload copy {}: {}", copy, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.securestorage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-owner index of stored objects by content, used to deduplicate uploads. Kept in its own
+ * DynamoDB table (partition key {@code blobId}) when {@code app.dedup.enabled=true}.
+ *
+ * A {@code blobId} is a keyed hash of the owner and the plaintext (see
+ * {@link EncryptionService#contentId}), so equal files of different users never share an object.
+ * Each record holds what is needed to read the object (key, wrapped file key, nonce prefix,
+ * layout) plus {@code refCount}, the number of {@link FileEntity} rows pointing at it. A count of
+ * zero means the record is being removed, so it can no longer be acquired.
+ */
+@Component
+public class ContentBlobIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContentBlobIndex.class);
+
+    private static final int BATCH_WRITE_SIZE = 25;
+    private static final int MAX_BATCH_ATTEMPTS = 8;
+
+    private final DynamoDbClient dynamoDbClient;
+    private final boolean enabled;
+
+    @Value("${aws.dynamodb.blob-table:}")
+    private String blobTable;
+
+    public ContentBlobIndex(DynamoDbClient dynamoDbClient, @Value("${app.dedup.enabled:false}") boolean enabled) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Whether there is a table to count references in; dedup can be switched off while shared objects remain
+    public boolean isConfigured() {
+        return !blobTable.isBlank();
+    }
+
+    /**
+     * Adds a reference to the blob with this content, if there is a live one. Returns an entity
+     * carrying the blob's stored-object fields (s3Key, keys, layout, compression), or null.
+     */
+    public FileEntity acquire(String blobId) {
+        try {
+            UpdateItemResponse response = dynamoDbClient.updateItem(req -> req.tableName(blobTable)
+                    .key(key(blobId))
+                    .updateExpression("ADD refCount :one")
+                    .conditionExpression("refCount > :zero")
+                    .expressionAttributeValues(Map.of(":one", n(1), ":zero", n(0)))
+                    .returnValues(ReturnValue.ALL_NEW));
+            return toEntity(response.attributes());
+        } catch (ConditionalCheckFailedException e) {
+            return null; // Unknown content, or its last reference is going away
+        }
+    }
+
+    /**
+     * Records a freshly stored object as the blob for its content, with one reference. False if
+     * another upload of the same content registered first; the caller's copy then stays private.
+     */
+    public boolean register(String blobId, FileEntity stored) {
+        Map<String, AttributeValue> item = new HashMap<>(key(blobId));
+        item.put("ownerId", s(stored.getOwnerId()));
+        item.put("s3Key", s(stored.getS3Key()));
+        item.put("encryptedAesKey", s(stored.getEncryptedAesKey()));
+        if (stored.getMasterKeyId() != null) item.put("masterKeyId", s(stored.getMasterKeyId()));
+        item.put("iv", s(stored.getIv()));
+        item.put("encryptionFormat", n(stored.getEncryptionFormat()));
+        item.put("segmentSize", n(stored.getSegmentSize()));
+        if (stored.getCompression() != null) {
+            item.put("compression", s(stored.getCompression()));
+            item.put("compressedSize", n(stored.getCompressedSize()));
+        }
+        item.put("refCount", n(1));
+        item.put("createdAt", n(System.currentTimeMillis()));
+        try {
+            dynamoDbClient.putItem(req -> req.tableName(blobTable)
+                    .item(item)
+                    .conditionExpression("attribute_not_exists(blobId)"));
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            return false;
+        }
+    }
+
+    // Takes back a registration whose outcome the caller could not confirm (its object is being dropped)
+    public void unregister(String blobId, String s3Key) {
+        try {
+            dynamoDbClient.deleteItem(req -> req.tableName(blobTable)
+                    .key(key(blobId))
+                    .conditionExpression("s3Key = :key")
+                    .expressionAttributeValues(Map.of(":key", s(s3Key))));
+        } catch (Exception e) {
+            // Not ours, or already gone
+            logger.debug("Blob record {} not unregistered: {}", blobId, e.getMessage());
+        }
+    }
+
+    /**
+     * Drops one reference. True when that was the last one: the record is gone and the caller
+     * should delete the object. A missing record returns false, leaving the object in place.
+     */
+    public boolean release(String blobId) {
+        long remaining;
+        try {
+            UpdateItemResponse response = dynamoDbClient.updateItem(req -> req.tableName(blobTable)
+                    .key(key(blobId))
+                    .updateExpression("ADD refCount :minusOne")
+                    .conditionExpression("attribute_exists(blobId)")
+                    .expressionAttributeValues(Map.of(":minusOne", n(-1)))
+                    .returnValues(ReturnValue.UPDATED_NEW));
+            remaining = Long.parseLong(response.attributes().get("refCount").n());
+        } catch (ConditionalCheckFailedException e) {
+            logger.warn("Blob record {} missing on release; keeping its object", blobId);
+            return false;
+        }
+        if (remaining > 0) return false;
+
+        try {
+            dynamoDbClient.deleteItem(req -> req.tableName(blobTable)
+                    .key(key(blobId))
+                    .conditionExpression("refCount <= :zero")
+                    .expressionAttributeValues(Map.of(":zero", n(0))));
+        } catch (ConditionalCheckFailedException ignored) {
+            // Already removed by a concurrent release
+        }
+        return true;
+    }
+
+    // Removes the records outright (account purge, where every referencing file goes too)
+    public void deleteAll(Collection<String> blobIds) {
+        List<String> ids = blobIds.stream().distinct().toList();
+        for (int i = 0; i < ids.size(); i += BATCH_WRITE_SIZE) {
+            List<WriteRequest> pending = ids.subList(i, Math.min(i + BATCH_WRITE_SIZE, ids.size())).stream()
+                    .map(id -> WriteRequest.builder().deleteRequest(d -> d.key(key(id))).build())
+                    .toList();
+            for (int attempt = 1; !pending.isEmpty(); attempt++) {
+                Backoff.pause(attempt, MAX_BATCH_ATTEMPTS, pending.size() + " blob record deletes");
+                List<WriteRequest> batch = pending;
+                pending = dynamoDbClient.batchWriteItem(req -> req.requestItems(Map.of(blobTable, batch)))
+                        .unprocessedItems().getOrDefault(blobTable, List.of());
+            }
+        }
+    }
+
+    private static FileEntity toEntity(Map<String, AttributeValue> item) {
+        FileEntity blob = new FileEntity();
+        blob.setBlobId(item.get("blobId").s());
+        blob.setS3Key(item.get("s3Key").s());
+        blob.setEncryptedAesKey(item.get("encryptedAesKey").s());
+        if (item.containsKey("masterKeyId")) blob.setMasterKeyId(item.get("masterKeyId").s());
+        blob.setIv(item.get("iv").s());
+        blob.setEncryptionFormat(Integer.valueOf(item.get("encryptionFormat").n()));
+        blob.setSegmentSize(Integer.valueOf(item.get("segmentSize").n()));
+        if (item.containsKey("compression")) {
+            blob.setCompression(item.get("compression").s());
+            blob.setCompressedSize(Long.valueOf(item.get("compressedSize").n()));
+        }
+        return blob;
+    }
+
+    private static Map<String, AttributeValue> key(String blobId) {
+        return Map.of("blobId", s(blobId));
+    }
+
+    private static AttributeValue s(String value) {
+        return AttributeValue.builder().s(value).build();
+    }
+
+    private static AttributeValue n(long value) {
+        return AttributeValue.builder().n(Long.toString(value)).build();
+    }
+}
@@ -0,0 +1,146 @@
+package com.securestorage;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Reverse of {@link EncryptingInputStream}: reads segmented AES-GCM ciphertext and yields the
+ * plaintext one authenticated segment at a time.
+ */
+public class DecryptingInputStream extends InputStream {
+
+    private final InputStream source;
+    private final SecretKey key;
+    private final byte[] header;
+    private final byte[] noncePrefix;
+    private final int segmentSize;
+
+    // When known (range reads) the index of the object's final segment; -1 means "detect at EOF"
+    private final long finalSegment;
+
+    private final byte[] cipherBuffer;
+    private final byte[] plainBuffer;
+    private int position;
+    private int limit;
+
+    private long segmentIndex;
+    private int lookahead = -1;
+    private boolean finished;
+
+    /**
+     * Decrypts a whole object; the header is read from the start of the stream.
+     */
+    public DecryptingInputStream(InputStream source, SecretKey key) throws IOException {
+        this(source, key, readHeader(source), 0, -1);
+    }
+
+    /**
+     * Decrypts a run of segments starting at {@code firstSegment}. The stream must be positioned
+     * at that segment's ciphertext offset.
+     */
+    public DecryptingInputStream(InputStream source, SecretKey key, byte[] header, long firstSegment, long finalSegment) {
+        ByteBuffer parsed = ByteBuffer.wrap(header);
+        int version = parsed.get();
+        if (version != SegmentedGcmFormat.VERSION) {
+            throw new IllegalArgumentException("Unsupported encryption format version: " + version);
+        }
+        this.segmentSize = parsed.getInt();
+        if (segmentSize <= 0 || segmentSize > SegmentedGcmFormat.MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size in header: " + segmentSize);
+        }
+        this.source = source;
+        this.key = key;
+        this.header = header.clone();
+        this.noncePrefix = Arrays.copyOfRange(header, header.length - SegmentedGcmFormat.NONCE_PREFIX_LENGTH, header.length);
+        this.segmentIndex = firstSegment;
+        this.finalSegment = finalSegment;
+        this.cipherBuffer = new byte[segmentSize + SegmentedGcmFormat.TAG_LENGTH];
+        this.plainBuffer = new byte[segmentSize];
+    }
+
+    private static byte[] readHeader(InputStream source) throws IOException {
+        byte[] header = source.readNBytes(SegmentedGcmFormat.HEADER_LENGTH);
+        if (header.length != SegmentedGcmFormat.HEADER_LENGTH) {
+            throw new IOException("Encrypted object is truncated (missing header)");
+        }
+        return header;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int n = read(single, 0, 1);
+        return n < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (position == limit) {
+            if (!nextSegment()) return -1;
+        }
+        int n = Math.min(len, limit - position);
+        System.arraycopy(plainBuffer, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    private boolean nextSegment() throws IOException {
+        if (finished) return false;
+
+        // 1. Read one sealed segment (carrying over the byte we peeked last time)
+        int filled = 0;
+        if (lookahead >= 0) {
+            cipherBuffer[filled++] = (byte) lookahead;
+            lookahead = -1;
+        }
+        filled += source.readNBytes(cipherBuffer, filled, cipherBuffer.length - filled);
+        if (filled == 0 && finalSegment >= 0) {
+            // Range read ended on a segment boundary before the object's final segment
+            finished = true;
+            return false;
+        }
+        if (filled < SegmentedGcmFormat.TAG_LENGTH) {
+            throw new IOException("Encrypted object is truncated at segment " + segmentIndex);
+        }
+
+        // 2. Work out whether this is the final segment of the object
+        boolean last;
+        if (finalSegment >= 0) {
+            last = segmentIndex == finalSegment;
+        } else if (filled < cipherBuffer.length) {
+            last = true;
+        } else {
+            lookahead = source.read();
+            last = lookahead < 0;
+        }
+
+        // 3. Open the segment; a wrong last flag fails authentication, which catches truncation
+        try {
+            byte[] nonce = SegmentedGcmFormat.nonce(noncePrefix, segmentIndex, last);
+            // Per-thread instance, fully re-initialized for every segment
+            Cipher cipher = EncryptionService.gcmCipher();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(SegmentedGcmFormat.TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(header);
+            limit = cipher.doFinal(cipherBuffer, 0, filled, plainBuffer, 0);
+            position = 0;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Segment " + segmentIndex + " failed authentication", e);
+        }
+
+        segmentIndex++;
+        finished = last;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
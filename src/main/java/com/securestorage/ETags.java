@@ -0,0 +1,90 @@
+package com.securestorage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.CacheControl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Strong entity tags for conditional GETs, and the cache policy that goes with them.
+ *
+ * A file's content never changes once stored (a new upload is a new fileId), so its tag is derived
+ * from metadata alone and a revalidation never has to touch the object store or decrypt anything.
+ */
+public final class ETags {
+
+    // Responses are per user: browsers may keep them but must revalidate, shared caches must not store them
+    public static final CacheControl PRIVATE_REVALIDATE = CacheControl.noCache().cachePrivate();
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private ETags() {
+    }
+
+    // Plaintext of a stored file; fixed by its id and where its bytes live
+    public static String forFile(FileEntity file) {
+        return tag("file", file.getFileId(), file.getS3Key(), file.getBlobId(), String.valueOf(file.getFileSize()),
+                String.valueOf(file.getUploadedAt()));
+    }
+
+    /**
+     * One page of a user's listing: a hash of the page as it is returned (items and next-page
+     * token). Not a per-user change counter: pages come from an eventually consistent index, so a
+     * page read just after a change can still predate it, and a counter would tag that stale page
+     * as current for good.
+     */
+    public static String forListing(FilePage page) {
+        try {
+            return quote(sha256().digest(JSON.writeValueAsBytes(page)));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize listing page", e);
+        }
+    }
+
+    // Content-derived, for objects that are overwritten in place (profile photos)
+    public static String forContent(byte[] content) {
+        return quote(sha256().digest(content));
+    }
+
+    /**
+     * Whether an {@code If-None-Match} header matches the tag. It uses the weak comparison the
+     * header calls for, so a {@code W/} prefix added by a proxy still matches.
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || ifNoneMatch.isBlank()) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.equals("*")) return true;
+            if (value.startsWith("W/")) value = value.substring(2);
+            if (value.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    private static String tag(String... parts) {
+        MessageDigest digest = sha256();
+        for (String part : parts) {
+            digest.update((part == null ? "" : part).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return quote(digest.digest());
+    }
+
+    // 128 bits of the digest is plenty to tell versions apart
+    private static String quote(byte[] digest) {
+        return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 16)) + "\"";
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
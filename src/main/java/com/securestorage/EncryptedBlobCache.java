@@ -0,0 +1,408 @@
+package com.securestorage;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local disk tier in front of S3, keyed by S3 key and evicted least-recently-used once the total
+ * size passes {@code app.blob-cache.max-bytes}.
+ *
+ * Only ciphertext is written to disk. File objects are already encrypted, so their S3 bytes are
+ * stored as-is. Plaintext objects (profile photos) are sealed with a key that only lives in this
+ * process and carry the version they were read at, since their keys are reused and another node
+ * may replace the object without this one hearing about it. Entries are filled while an upload or a
+ * cache-miss download streams through, and are only published once the whole object has been seen.
+ * The index is not persisted; leftovers from an earlier run are removed at startup.
+ */
+@Component
+public class EncryptedBlobCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(EncryptedBlobCache.class);
+
+    private static final String ENTRY_SUFFIX = ".blob";
+    private static final String FILL_SUFFIX = ".part";
+    private static final int SEALED_SEGMENT_SIZE = 64 * 1024;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final boolean enabled;
+    private final Path directory;
+    private final long maxBytes;
+    private final long maxObjectBytes;
+
+    // Access-ordered, so iteration starts at the least recently used entry. Guarded by "this".
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Version of each sealed entry (see putSealed). Guarded by "this".
+    private final Map<String, String> versions = new HashMap<>();
+    private long totalBytes;
+
+    // Fills still streaming; invalidate() marks them stale so they can't publish an outdated copy
+    private final Set<Fill> pendingFills = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    // Seals plaintext entries; never leaves memory, which is why the cache starts empty
+    private SecretKey sealingKey;
+
+    public EncryptedBlobCache(@Value("${app.blob-cache.enabled:false}") boolean enabled,
+                              @Value("${app.blob-cache.dir:${java.io.tmpdir}/securestorage-blob-cache}") String directory,
+                              @Value("${app.blob-cache.max-bytes:1073741824}") long maxBytes,
+                              @Value("${app.blob-cache.max-object-bytes:67108864}") long maxObjectBytes) {
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.maxBytes = maxBytes;
+        this.maxObjectBytes = Math.min(maxObjectBytes, maxBytes);
+    }
+
+    @PostConstruct
+    void init() throws IOException, GeneralSecurityException {
+        if (!enabled) return;
+        Files.createDirectories(directory);
+        // Only our own files, in case the directory is shared
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory, "*{" + ENTRY_SUFFIX + "," + FILL_SUFFIX + "}")) {
+            for (Path leftover : leftovers) {
+                Files.deleteIfExists(leftover);
+            }
+        }
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256, RANDOM);
+        sealingKey = keyGen.generateKey();
+        logger.info("Blob cache enabled: dir={}, budget={} bytes", directory, maxBytes);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // The whole cached object, or null on a miss
+    public InputStream open(String key) {
+        return open(key, 0, -1);
+    }
+
+    // Cached bytes [start, end] (inclusive; end -1 = to the end), or null on a miss
+    public InputStream open(String key, long start, long end) {
+        if (!enabled) return null;
+        FileChannel channel;
+        synchronized (this) {
+            channel = openEntry(key, null);
+        }
+        if (channel == null) return null;
+        try {
+            channel.position(start);
+            InputStream in = Channels.newInputStream(channel);
+            return end < 0 ? in : new LimitedInputStream(in, end - start + 1);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            logger.warn("Could not read cached blob for {}: {}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    // The entry's file if it is cached (at version, unless that is null). Called holding "this",
+    // so the file can't be replaced between the lookup and the open.
+    private FileChannel openEntry(String key, String version) {
+        if (entries.get(key) == null || (version != null && !version.equals(versions.get(key)))) {
+            misses.increment();
+            return null;
+        }
+        try {
+            FileChannel channel = FileChannel.open(entryPath(key), StandardOpenOption.READ);
+            hits.increment();
+            return channel;
+        } catch (NoSuchFileException e) {
+            misses.increment();
+            return null;
+        } catch (IOException e) {
+            logger.warn("Could not read cached blob for {}: {}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    // Wraps a full S3 body so it is also cached; published once exactly expectedLength bytes were read
+    public InputStream readThrough(String key, InputStream source, long expectedLength) {
+        Fill fill = beginFill(key, expectedLength);
+        return fill.tee(source, true);
+    }
+
+    /**
+     * Starts caching an object whose bytes are about to stream past (e.g. an upload). Wrap the
+     * stream with {@link Fill#tee}, call {@link Fill#commit()} once the object is safely stored and
+     * close the fill either way.
+     */
+    public Fill beginFill(String key, long expectedLength) {
+        if (!enabled || expectedLength < 0 || expectedLength > maxObjectBytes) {
+            return new Fill(key, expectedLength, null, null);
+        }
+        try {
+            Path temp = Files.createTempFile(directory, "fill-", FILL_SUFFIX);
+            Fill fill = new Fill(key, expectedLength, temp, Files.newOutputStream(temp));
+            pendingFills.add(fill);
+            return fill;
+        } catch (IOException e) {
+            logger.warn("Could not start caching {}: {}", key, e.getMessage());
+            return new Fill(key, expectedLength, null, null);
+        }
+    }
+
+    // --- Plaintext objects, sealed with the in-memory key before they touch the disk ---
+
+    // The cached object if it is held at this version (e.g. the store's current tag), or null
+    public byte[] readSealed(String key, String version) throws IOException {
+        if (!enabled) return null;
+        FileChannel channel;
+        synchronized (this) {
+            channel = openEntry(key, version);
+        }
+        if (channel == null) return null;
+        try (InputStream sealed = Channels.newInputStream(channel);
+             InputStream plaintext = new DecryptingInputStream(sealed, sealingKey)) {
+            return plaintext.readAllBytes();
+        }
+    }
+
+    /**
+     * Caches a plaintext object as the given version, replacing whatever version was there. The
+     * version must describe these bytes (e.g. a hash of them), not be looked up separately, or an
+     * object replaced in between would be cached under the new version with the old content.
+     */
+    public void putSealed(String key, String version, byte[] plaintext) {
+        if (!enabled) return;
+        byte[] noncePrefix = new byte[SegmentedGcmFormat.NONCE_PREFIX_LENGTH];
+        RANDOM.nextBytes(noncePrefix);
+        long sealedLength = SegmentedGcmFormat.ciphertextLength(plaintext.length, SEALED_SEGMENT_SIZE);
+        try (Fill fill = beginFill(key, sealedLength);
+             InputStream sealed = fill.tee(new EncryptingInputStream(new ByteArrayInputStream(plaintext),
+                     sealingKey, noncePrefix, SEALED_SEGMENT_SIZE), false)) {
+            sealed.transferTo(OutputStream.nullOutputStream());
+            fill.version = version;
+            fill.commit();
+        } catch (IOException e) {
+            logger.warn("Could not cache {}: {}", key, e.getMessage());
+        }
+    }
+
+    // Drops the entry and any fill of it still in progress
+    public void invalidate(String key) {
+        if (!enabled) return;
+        synchronized (this) {
+            for (Fill fill : pendingFills) {
+                if (fill.key.equals(key)) fill.stale = true;
+            }
+            versions.remove(key);
+            Long size = entries.remove(key);
+            if (size != null) {
+                totalBytes -= size;
+                deleteQuietly(entryPath(key));
+            }
+        }
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public synchronized long cachedBytes() {
+        return totalBytes;
+    }
+
+    private synchronized void publish(Fill fill) throws IOException {
+        if (fill.stale) {
+            deleteQuietly(fill.temp);
+            return;
+        }
+        Files.move(fill.temp, entryPath(fill.key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Long previous = entries.put(fill.key, fill.written);
+        if (fill.version == null) {
+            versions.remove(fill.key);
+        } else {
+            versions.put(fill.key, fill.version);
+        }
+        totalBytes += fill.written - (previous == null ? 0 : previous);
+
+        // Evict least recently used entries until the budget holds again
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            if (entry.getKey().equals(fill.key)) continue;
+            eldest.remove();
+            versions.remove(entry.getKey());
+            totalBytes -= entry.getValue();
+            // Readers that already opened the file keep their handle
+            deleteQuietly(entryPath(entry.getKey()));
+        }
+    }
+
+    // S3 keys contain '/', so entries are named by a hash of the key
+    private Path entryPath(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(HexFormat.of().formatHex(digest) + ENTRY_SUFFIX);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // Nothing was read from it
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Could not delete cache file {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * One object being written into the cache. Caching is best effort: any problem just means the
+     * entry is not published, the stream being copied is never affected.
+     */
+    public final class Fill implements Closeable {
+
+        private final String key;
+        private final long expectedLength;
+        private final Path temp;
+        private final OutputStream out;
+        private long written;
+        private boolean failed;
+        private boolean done;
+        private volatile boolean stale;
+        private String version;
+
+        private Fill(String key, long expectedLength, Path temp, OutputStream out) {
+            this.key = key;
+            this.expectedLength = expectedLength;
+            this.temp = temp;
+            this.out = out;
+        }
+
+        // Copies everything read from source into the cache file; autoCommit publishes at end of stream
+        public InputStream tee(InputStream source, boolean autoCommit) {
+            if (temp == null) return source;
+            return new FilterInputStream(source) {
+                @Override
+                public int read() throws IOException {
+                    byte[] single = new byte[1];
+                    int n = read(single, 0, 1);
+                    return n < 0 ? -1 : single[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        write(b, off, n);
+                    } else if (n < 0 && autoCommit) {
+                        commit();
+                    }
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    // Skipped bytes would leave a hole in the cached copy
+                    failed = true;
+                    return super.skip(n);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        // A read-through closed before the end is incomplete; explicit fills are
+                        // committed or closed by their owner (the uploader may close the stream first)
+                        if (autoCommit) Fill.this.close();
+                    }
+                }
+            };
+        }
+
+        private void write(byte[] b, int off, int len) {
+            if (failed || done) return;
+            try {
+                out.write(b, off, len);
+                written += len;
+            } catch (IOException e) {
+                logger.warn("Could not write cache file for {}: {}", key, e.getMessage());
+                failed = true;
+            }
+        }
+
+        // Publishes the entry if the whole object was seen
+        public void commit() {
+            if (temp == null || done) return;
+            done = true;
+            try {
+                out.close();
+                if (failed || written != expectedLength) {
+                    deleteQuietly(temp);
+                } else {
+                    publish(this);
+                }
+            } catch (IOException e) {
+                logger.warn("Could not cache {}: {}", key, e.getMessage());
+                deleteQuietly(temp);
+            } finally {
+                // Only now, so an invalidate() racing with publish() still marks this fill stale
+                pendingFills.remove(this);
+            }
+        }
+
+        // Discards the fill unless it was committed
+        @Override
+        public void close() {
+            if (temp == null || done) return;
+            done = true;
+            pendingFills.remove(this);
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // Deleted below anyway
+            }
+            deleteQuietly(temp);
+        }
+    }
+}
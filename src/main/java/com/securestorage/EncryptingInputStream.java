@@ -0,0 +1,139 @@
+package com.securestorage;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+/**
+ * Wraps a plaintext stream and yields the segmented AES-GCM ciphertext described in
+ * {@link SegmentedGcmFormat}. Only one segment is buffered at a time, so memory use is
+ * constant regardless of the file size.
+ *
+ * A stream can also produce just a slice of an object (see {@link #slice}): the segments from a
+ * given index on, with the header only if the slice starts the object and the final-segment
+ * flag only if it ends it. Concatenating the slices in order gives the same layout.
+ */
+public class EncryptingInputStream extends InputStream {
+
+    private final InputStream source;
+    private final SecretKey key;
+    private final byte[] noncePrefix;
+    private final byte[] header;
+    private final int segmentSize;
+
+    private final byte[] plainBuffer;
+    private final byte[] cipherBuffer;
+
+    private byte[] current;
+    private int position;
+    private int limit;
+
+    private long segmentIndex;
+    private final boolean endsObject;
+    // Slices only, see slice()
+    private final Cipher sliceCipher;
+    private int lookahead = -1;
+    private boolean headerSent;
+    private boolean finished;
+
+    public EncryptingInputStream(InputStream source, SecretKey key, byte[] noncePrefix, int segmentSize) {
+        this(source, key, noncePrefix, segmentSize, 0, true, null);
+    }
+
+    private EncryptingInputStream(InputStream source, SecretKey key, byte[] noncePrefix, int segmentSize,
+                                  long firstSegment, boolean endsObject, Cipher sliceCipher) {
+        this.source = source;
+        this.key = key;
+        this.noncePrefix = noncePrefix.clone();
+        this.segmentSize = segmentSize;
+        this.header = SegmentedGcmFormat.header(segmentSize, noncePrefix);
+        this.plainBuffer = new byte[segmentSize];
+        this.cipherBuffer = new byte[segmentSize + SegmentedGcmFormat.TAG_LENGTH];
+        this.segmentIndex = firstSegment;
+        this.endsObject = endsObject;
+        // Only the first slice carries the header
+        this.headerSent = firstSegment > 0;
+        this.sliceCipher = sliceCipher;
+    }
+
+    // Ciphertext for the plaintext starting at segment firstSegment; source must hold whole segments unless endsObject
+    public static EncryptingInputStream slice(InputStream source, SecretKey key, byte[] noncePrefix, int segmentSize,
+                                              long firstSegment, boolean endsObject) {
+        // A resent slice seals the same segments again under the same nonces, which the thread's shared
+        // cipher refuses if it sealed the last of them. Only one copy of a part is ever kept.
+        return new EncryptingInputStream(source, key, noncePrefix, segmentSize, firstSegment, endsObject,
+                EncryptionService.newGcmCipher());
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int n = read(single, 0, 1);
+        return n < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (position == limit && !nextChunk()) return -1;
+        int n = Math.min(len, limit - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (!headerSent) {
+            headerSent = true;
+            setCurrent(header, header.length);
+            return true;
+        }
+        if (finished) return false;
+
+        // 1. Fill one plaintext segment (carrying over the byte we peeked last time)
+        int filled = 0;
+        if (lookahead >= 0) {
+            plainBuffer[filled++] = (byte) lookahead;
+            lookahead = -1;
+        }
+        filled += source.readNBytes(plainBuffer, filled, segmentSize - filled);
+
+        // 2. Peek one byte ahead so the final segment can be flagged as such
+        boolean last = filled < segmentSize;
+        if (!last) {
+            lookahead = source.read();
+            last = lookahead < 0;
+        }
+
+        // 3. Seal the segment
+        try {
+            byte[] nonce = SegmentedGcmFormat.nonce(noncePrefix, segmentIndex, last && endsObject);
+            // Per-thread instance, fully re-initialized for every segment
+            Cipher cipher = sliceCipher != null ? sliceCipher : EncryptionService.gcmCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(SegmentedGcmFormat.TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(header);
+            int sealed = cipher.doFinal(plainBuffer, 0, filled, cipherBuffer, 0);
+            setCurrent(cipherBuffer, sealed);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt segment " + segmentIndex, e);
+        }
+
+        segmentIndex++;
+        finished = last;
+        return true;
+    }
+
+    private void setCurrent(byte[] chunk, int length) {
+        current = chunk;
+        position = 0;
+        limit = length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
@@ -1,43 +1,166 @@
 package com.securestorage;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * File encryption and the master keys that wrap per-file keys.
+ *
+ * Master keys are versioned. {@code app.master-key} is the key from before versioning (id
+ * {@value #LEGACY_KEY_ID}, also assumed for records without a key id), {@code app.master-keys}
+ * lists further keys as {@code id:base64} pairs, and {@code app.master-key-id} picks the one new
+ * file keys are wrapped under. Every record stores the id next to its wrapped key, so a key is
+ * unwrapped with whichever master key wrapped it, and {@link MasterKeyRotationJob} can move
+ * records to the active key while the app is serving.
+ */
 @Service
 public class EncryptionService {
 
-    @Value("${app.master-key}")
+    public static final String LEGACY_KEY_ID = "legacy";
+
+    // One self-seeding CSPRNG for the whole app (SecureRandom is thread-safe)
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Cipher/KeyGenerator are not thread-safe but are expensive to look up, so each thread keeps its own.
+    // Callers must init() before every use, which fully resets the instance.
+    private static final ThreadLocal<Cipher> GCM = ThreadLocal.withInitial(() -> newCipher("AES/GCM/NoPadding"));
+    private static final ThreadLocal<Cipher> KEY_WRAP = ThreadLocal.withInitial(() -> newCipher("AES"));
+    private static final ThreadLocal<KeyGenerator> KEY_GENERATOR = ThreadLocal.withInitial(() -> {
+        try {
+            KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+            keyGen.init(256, RANDOM);
+            return keyGen;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("AES is not available", e);
+        }
+    });
+
+    @Value("${app.master-key:}")
     private String masterKeyString;
 
+    // Further master keys: id:base64,id:base64
+    @Value("${app.master-keys:}")
+    private String masterKeysString;
+
+    // The key that wraps new file keys; every node must know it before any node uses it
+    @Value("${app.master-key-id:" + LEGACY_KEY_ID + "}")
+    private String activeKeyId;
+
+    // Master key the dedup content-id key is derived from; defaults to the legacy key if there is one, else the active key
+    @Value("${app.dedup.content-id-key-id:}")
+    private String contentIdKeyId;
+
+    // Plaintext bytes per authenticated segment for streamed uploads
+    @Value("${app.encryption.segment-size:65536}")
+    private int segmentSize;
+
+    @Value("${app.encryption.key-cache.max-entries:1000}")
+    private long keyCacheMaxEntries;
+
+    @Value("${app.encryption.key-cache.ttl:10m}")
+    private Duration keyCacheTtl;
+
+    private final Map<String, SecretKey> masterKeys = new HashMap<>();
     private SecretKey masterKey;
+    // HMAC key for content ids (dedup), derived from a master key so ids cannot be recomputed without it.
+    // It must stay the same across rotations, or new uploads stop matching blobs already stored.
+    private SecretKey contentIdKey;
+
+    // Unwrapped file keys by key id and wrapped-key string. Raw bytes are zeroed when an entry leaves the cache;
+    // callers get their own SecretKeySpec copy. Reads go through asMap(), so hits/misses are counted here.
+    private Cache<String, byte[]> unwrappedKeys;
+    private final LongAdder keyCacheHits = new LongAdder();
+    private final LongAdder keyCacheMisses = new LongAdder();
 
-    // Helper to load the Master Key lazily
-    private SecretKey getMasterKey() {
-        if (masterKey == null) {
-            byte[] decodedKey = Base64.getDecoder().decode(masterKeyString);
-            masterKey = new SecretKeySpec(decodedKey, "AES");
+    // Load the Master Keys once, before the bean is published to other threads
+    @PostConstruct
+    void init() {
+        Map<String, byte[]> decoded = new HashMap<>();
+        if (!masterKeyString.isBlank()) decoded.put(LEGACY_KEY_ID, Base64.getDecoder().decode(masterKeyString.trim()));
+        for (String entry : masterKeysString.split(",")) {
+            if (entry.isBlank()) continue;
+            int colon = entry.indexOf(':');
+            if (colon <= 0) throw new IllegalStateException("app.master-keys entries must be id:base64-key");
+            String id = entry.substring(0, colon).trim();
+            if (decoded.put(id, Base64.getDecoder().decode(entry.substring(colon + 1).trim())) != null) {
+                throw new IllegalStateException("Master key id " + id + " is configured twice");
+            }
         }
-        return masterKey;
+        decoded.forEach((id, key) -> masterKeys.put(id, new SecretKeySpec(key, "AES")));
+        masterKey = masterKeys.get(activeKeyId);
+        if (masterKey == null) throw new IllegalStateException("No master key configured with id " + activeKeyId);
+
+        String hmacKeyId = !contentIdKeyId.isBlank() ? contentIdKeyId
+                : decoded.containsKey(LEGACY_KEY_ID) ? LEGACY_KEY_ID : activeKeyId;
+        if (!decoded.containsKey(hmacKeyId)) throw new IllegalStateException("No master key configured with id " + hmacKeyId);
+        contentIdKey = new SecretKeySpec(hmac(new SecretKeySpec(decoded.get(hmacKeyId), "HmacSHA256"),
+                "content-id".getBytes(StandardCharsets.UTF_8)), "HmacSHA256");
+        decoded.values().forEach(key -> Arrays.fill(key, (byte) 0));
+
+        unwrappedKeys = Caffeine.newBuilder()
+                .maximumSize(keyCacheMaxEntries)
+                .expireAfterAccess(keyCacheTtl)
+                .executor(Runnable::run)
+                .removalListener((String wrapped, byte[] raw, RemovalCause cause) -> {
+                    if (raw != null) Arrays.fill(raw, (byte) 0);
+                })
+                .recordStats()
+                .build();
+    }
+
+    private static Cipher newCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(transformation + " is not available", e);
+        }
+    }
+
+    // Per-thread AES/GCM instance, shared with the segment streams
+    static Cipher gcmCipher() {
+        return GCM.get();
+    }
+
+    static Cipher newGcmCipher() {
+        return newCipher("AES/GCM/NoPadding");
     }
 
     // 1. Generate a new AES Key for a specific file
     public SecretKey generateAesKey() throws Exception {
-        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-        keyGen.init(256);
-        return keyGen.generateKey();
+        return KEY_GENERATOR.get().generateKey();
     }
 
     // 2. Encrypt Data (File Content)
     public byte[] encryptData(byte[] data, SecretKey key, byte[] iv) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        Cipher cipher = GCM.get();
         GCMParameterSpec spec = new GCMParameterSpec(128, iv);
         cipher.init(Cipher.ENCRYPT_MODE, key, spec);
         return cipher.doFinal(data);
@@ -45,31 +168,150 @@ public class EncryptionService {
 
     // 3. Decrypt Data (File Content)
     public byte[] decryptData(byte[] encryptedData, SecretKey key, byte[] iv) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        Cipher cipher = GCM.get();
         GCMParameterSpec spec = new GCMParameterSpec(128, iv);
         cipher.init(Cipher.DECRYPT_MODE, key, spec);
         return cipher.doFinal(encryptedData);
     }
 
-    // 4. Encrypt the File Key using the Master Key (Replaces KMS)
+    // Id of the master key encryptKeyLocally() wraps under; store it next to every wrapped key
+    public String activeKeyId() {
+        return activeKeyId;
+    }
+
+    // 4. Encrypt the File Key using the active Master Key (Replaces KMS)
     public String encryptKeyLocally(SecretKey fileKey) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES"); // Standard AES Wrapping
-        cipher.init(Cipher.WRAP_MODE, getMasterKey());
+        Cipher cipher = KEY_WRAP.get(); // Standard AES Wrapping
+        cipher.init(Cipher.WRAP_MODE, masterKey);
         byte[] wrappedKey = cipher.wrap(fileKey);
         return Base64.getEncoder().encodeToString(wrappedKey);
     }
 
-    // 5. Decrypt the File Key using the Master Key (Replaces KMS)
-    public SecretKey decryptKeyLocally(String encryptedKeyBase64) throws Exception {
-        byte[] wrappedKey = Base64.getDecoder().decode(encryptedKeyBase64);
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.UNWRAP_MODE, getMasterKey());
-        return (SecretKey) cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+    // 5. Decrypt the File Key using the Master Key it was wrapped under (null id = legacy), cached by wrapped key
+    public SecretKey decryptKeyLocally(String keyId, String encryptedKeyBase64) throws Exception {
+        String id = keyId == null ? LEGACY_KEY_ID : keyId;
+        SecretKey wrappingKey = masterKey(id);
+        // The copy is taken inside compute(), which is atomic with eviction of the same entry,
+        // so a key can never be copied while its bytes are being wiped
+        SecretKey[] copy = new SecretKey[1];
+        try {
+            unwrappedKeys.asMap().compute(id + ":" + encryptedKeyBase64, (cacheKey, raw) -> {
+                if (raw == null) {
+                    keyCacheMisses.increment();
+                    raw = unwrap(wrappingKey, encryptedKeyBase64);
+                } else {
+                    keyCacheHits.increment();
+                }
+                copy[0] = new SecretKeySpec(raw, "AES");
+                return raw;
+            });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof GeneralSecurityException cause) throw cause;
+            throw e;
+        }
+        return copy[0];
+    }
+
+    /**
+     * Re-wraps a file key under the active master key, for key rotation. The file key itself (and
+     * so the ciphertext) does not change. Bypasses the key cache.
+     */
+    public String rewrapKey(String keyId, String encryptedKeyBase64) throws Exception {
+        byte[] raw;
+        try {
+            raw = unwrap(masterKey(keyId), encryptedKeyBase64);
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof GeneralSecurityException cause) throw cause;
+            throw e;
+        }
+        try {
+            return encryptKeyLocally(new SecretKeySpec(raw, "AES"));
+        } finally {
+            Arrays.fill(raw, (byte) 0);
+        }
+    }
+
+    // Whether a record with this key id still needs rotating to the active key
+    public boolean isActiveKey(String keyId) {
+        return activeKeyId.equals(keyId == null ? LEGACY_KEY_ID : keyId);
+    }
+
+    private SecretKey masterKey(String keyId) {
+        SecretKey key = masterKeys.get(keyId == null ? LEGACY_KEY_ID : keyId);
+        if (key == null) throw new IllegalStateException("No master key configured with id " + keyId);
+        return key;
+    }
+
+    private static byte[] unwrap(SecretKey wrappingKey, String encryptedKeyBase64) {
+        try {
+            byte[] wrappedKey = Base64.getDecoder().decode(encryptedKeyBase64);
+            Cipher cipher = KEY_WRAP.get();
+            cipher.init(Cipher.UNWRAP_MODE, wrappingKey);
+            return cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not unwrap file key", e);
+        }
+    }
+
+    public CacheStats keyCacheStats() {
+        CacheStats evictions = unwrappedKeys.stats();
+        return CacheStats.of(keyCacheHits.sum(), keyCacheMisses.sum(), keyCacheMisses.sum(), 0, 0,
+                evictions.evictionCount(), evictions.evictionWeight());
     }
 
     public byte[] generateIv() {
         byte[] iv = new byte[12];
-        new SecureRandom().nextBytes(iv);
+        RANDOM.nextBytes(iv);
         return iv;
     }
-}
\ No newline at end of file
+
+    // 6. Streaming encryption (segmented AES-GCM, see SegmentedGcmFormat)
+    public byte[] generateNoncePrefix() {
+        byte[] prefix = new byte[SegmentedGcmFormat.NONCE_PREFIX_LENGTH];
+        RANDOM.nextBytes(prefix);
+        return prefix;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public long encryptedLength(long plaintextLength) {
+        return SegmentedGcmFormat.ciphertextLength(plaintextLength, segmentSize);
+    }
+
+    public InputStream encryptStream(InputStream plaintext, SecretKey key, byte[] noncePrefix) {
+        return new EncryptingInputStream(plaintext, key, noncePrefix, segmentSize);
+    }
+
+    public InputStream decryptStream(InputStream ciphertext, SecretKey key) throws IOException {
+        return new DecryptingInputStream(ciphertext, key);
+    }
+
+    // 7. Content id for deduplication: keyed hash of the owner and the plaintext's SHA-256
+    public String contentId(String ownerId, InputStream plaintext) throws IOException {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        try (DigestInputStream in = new DigestInputStream(plaintext, sha256)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        byte[] owner = ownerId.getBytes(StandardCharsets.UTF_8);
+        byte[] message = ByteBuffer.allocate(owner.length + 1 + sha256.getDigestLength())
+                .put(owner).put((byte) 0).put(sha256.digest()).array();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(hmac(contentIdKey, message));
+    }
+
+    private static byte[] hmac(SecretKey key, byte[] message) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal(message);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+}
@@ -1,71 +1,366 @@
 package com.securestorage;
 
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.UnaryOperator;
 
 @RestController
 @RequestMapping("/api/files")
 public class FileController {
 
     private final FileService fileService;
+    private final ArchiveService archiveService;
+    private final FileMetrics metrics;
+    private final TransferAdmission admission;
 
-    public FileController(FileService fileService) {
+    public FileController(FileService fileService, ArchiveService archiveService, FileMetrics metrics,
+                          TransferAdmission admission) {
         this.fileService = fileService;
+        this.archiveService = archiveService;
+        this.metrics = metrics;
+        this.admission = admission;
     }
 
     @PostMapping("/upload")
-    public ResponseEntity<String> upload(@RequestParam("file") MultipartFile file, @AuthenticationPrincipal Jwt principal) {
-        try {
-            fileService.uploadFile(file, principal.getSubject());
-            return ResponseEntity.ok("Upload successful!");
-        } catch (IllegalStateException | IllegalArgumentException e) {
+    public CompletableFuture<ResponseEntity<String>> upload(@RequestParam("file") MultipartFile file, @AuthenticationPrincipal Jwt principal) {
+        FileMetrics.Operation operation = metrics.begin(FileMetrics.UPLOAD);
+        String ownerId = principal.getSubject();
+        return admit(ownerId, fileService.uploadMemory(file.getSize()))
+                .thenCompose(permit -> fileService.uploadFileAsync(file, ownerId)
+                        .whenComplete((done, failure) -> permit.close()))
+                .whenComplete((done, failure) -> operation.end(failure == null))
+                .thenApply(done -> ResponseEntity.ok("Upload successful!"))
+                .exceptionally(FileController::uploadFailed);
+    }
+
+    private static ResponseEntity<String> uploadFailed(Throwable failure) {
+        Throwable e = unwrap(failure);
+        if (e instanceof TransferRejectedException rejected) {
+            return tooBusy(rejected).body(rejected.getMessage());
+        }
+        if (e instanceof IllegalStateException || e instanceof IllegalArgumentException) {
             // Validation errors - return 400
             return ResponseEntity.badRequest().body("Validation error: " + e.getMessage());
-        } catch (RuntimeException e) {
+        }
+        if (e instanceof RuntimeException) {
             // Business logic errors (e.g., storage limit, AWS errors)
-            if (e.getMessage().contains("Storage Limit Exceeded")) {
+            if (e.getMessage() != null && e.getMessage().contains("Storage Limit Exceeded")) {
+                return ResponseEntity.status(413).body(e.getMessage());
+            }
+            return ResponseEntity.status(500).body("Upload failed: " + e.getMessage());
+        }
+        // Unexpected errors
+        return ResponseEntity.status(500).body("Unexpected error during upload: " + e.getMessage());
+    }
+
+    // Many files in one request; each file gets its own result
+    @PostMapping("/upload-batch")
+    public ResponseEntity<?> uploadBatch(@RequestParam("files") List<MultipartFile> files, @AuthenticationPrincipal Jwt principal) {
+        if (files.isEmpty() || files.size() > MAX_BATCH_FILES) {
+            return ResponseEntity.badRequest().body("Validation error: send between 1 and " + MAX_BATCH_FILES + " files");
+        }
+        FileMetrics.Operation operation = metrics.begin(FileMetrics.BATCH_UPLOAD);
+        TransferAdmission.Permit permit;
+        try {
+            permit = admission.admitNow(principal.getSubject(), fileService.uploadMemory(files));
+        } catch (TransferRejectedException e) {
+            operation.end(false);
+            return tooBusy(e).body(e.getMessage());
+        }
+        try (permit) {
+            ResponseEntity<?> response = ResponseEntity.ok(fileService.uploadFiles(files, principal.getSubject()));
+            operation.end(true);
+            return response;
+        } catch (RuntimeException e) {
+            operation.end(false);
+            // The quota is checked once for the whole batch
+            if (e.getMessage() != null && e.getMessage().contains("Storage Limit Exceeded")) {
                 return ResponseEntity.status(413).body(e.getMessage());
             }
             return ResponseEntity.status(500).body("Upload failed: " + e.getMessage());
-        } catch (Exception e) {
-            // Unexpected errors
-            return ResponseEntity.status(500).body("Unexpected error during upload: " + e.getMessage());
         }
     }
 
+    private static final int MAX_BATCH_FILES = 1000;
+    private static final int MAX_ARCHIVE_FILES = 1000;
+    private static final int MAX_PAGE_SIZE = 1000;
+
     @GetMapping
-    public List<FileEntity> list(@AuthenticationPrincipal Jwt principal) {
+    public CompletableFuture<ResponseEntity<FilePage>> list(@RequestParam(defaultValue = "100") int limit,
+                                                            @RequestParam(required = false) String pageToken,
+                                                            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                                                            @AuthenticationPrincipal Jwt principal) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
         // Pass the logged-in user's ID to the service
-        return fileService.listFiles(principal.getSubject());
+        FileMetrics.Operation operation = metrics.begin(FileMetrics.LIST);
+        String ownerId = principal.getSubject();
+        // The tag comes from the page as read, so a 304 only saves sending it, never hides a change
+        return fileService.listFilesAsync(ownerId, limit, pageToken)
+                .thenApply(page -> {
+                    String etag = ETags.forListing(page);
+                    if (ETags.matches(ifNoneMatch, etag)) {
+                        return notModified(etag).<FilePage>build();
+                    }
+                    return ResponseEntity.ok().eTag(etag).cacheControl(ETags.PRIVATE_REVALIDATE).body(page);
+                })
+                .whenComplete((page, failure) -> operation.end(failure == null))
+                .exceptionally(failure -> {
+                    if (unwrap(failure) instanceof IllegalArgumentException) {
+                        // Tampered or foreign page token
+                        return ResponseEntity.badRequest().build();
+                    }
+                    throw failure instanceof CompletionException ce ? ce : new CompletionException(failure);
+                });
+    }
+
+    /**
+     * Filename search with type and size filters over the caller's files, in any of the indexed
+     * orders. {@code limit=0} returns just the total and the per-type counts.
+     */
+    @GetMapping("/search")
+    public ResponseEntity<FileSearchPage> search(@RequestParam(required = false) String q,
+                                                 @RequestParam(defaultValue = "contains") String match,
+                                                 @RequestParam(required = false) List<String> type,
+                                                 @RequestParam(required = false) List<String> notType,
+                                                 @RequestParam(required = false) Long minSize,
+                                                 @RequestParam(required = false) Long maxSize,
+                                                 @RequestParam(defaultValue = "uploadedAt") String sort,
+                                                 @RequestParam(defaultValue = "desc") String order,
+                                                 @RequestParam(defaultValue = "0") int offset,
+                                                 @RequestParam(defaultValue = "100") int limit,
+                                                 @AuthenticationPrincipal Jwt principal) {
+        FileSearchIndex.Sort by = switch (sort) {
+            case "uploadedAt" -> FileSearchIndex.Sort.UPLOADED_AT;
+            case "name" -> FileSearchIndex.Sort.NAME;
+            case "size" -> FileSearchIndex.Sort.SIZE;
+            default -> null;
+        };
+        if (by == null || !(match.equals("prefix") || match.equals("contains"))
+                || !(order.equals("asc") || order.equals("desc"))
+                || offset < 0 || limit < 0 || limit > MAX_PAGE_SIZE
+                || (minSize != null && maxSize != null && minSize > maxSize)) {
+            return ResponseEntity.badRequest().build();
+        }
+        FileMetrics.Operation operation = metrics.begin(FileMetrics.SEARCH);
+        boolean ok = false;
+        try {
+            FileSearchPage page = fileService.searchFiles(principal.getSubject(), new FileSearchIndex.Query(
+                    q, match.equals("prefix"), type, notType, minSize, maxSize, by, order.equals("desc"), offset, limit));
+            ok = true;
+            return ResponseEntity.ok(page);
+        } finally {
+            operation.end(ok);
+        }
     }
 
     @GetMapping("/{id}/download")
-    public ResponseEntity<byte[]> download(@PathVariable String id) throws Exception {
-        // 1. Get the decrypted data
-        byte[] data = fileService.downloadFile(id);
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> download(@PathVariable String id,
+                                                                             @RequestHeader(value = HttpHeaders.RANGE, required = false) String rangeHeader,
+                                                                             @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                                                                             @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+                                                                             @AuthenticationPrincipal Jwt principal) {
+        // 1. Get the file details (name, size, encryption layout) and check ownership
+        FileMetrics.Operation operation = metrics.begin(FileMetrics.DOWNLOAD);
+        long started = System.nanoTime();
+        return fileService.getFileMetadataAsync(id).thenCompose(entity -> {
+            metrics.stage(FileMetrics.DOWNLOAD, "metadata_lookup", started);
+            if (entity == null || !entity.getOwnerId().equals(principal.getSubject())) {
+                return CompletableFuture.completedFuture(ResponseEntity.notFound().<StreamingResponseBody>build());
+            }
+            // The browser already has this content: answered from metadata, nothing is read or decrypted
+            String etag = ETags.forFile(entity);
+            if (ETags.matches(ifNoneMatch, etag)) {
+                return CompletableFuture.completedFuture(notModified(etag).<StreamingResponseBody>build());
+            }
+            // A range is only valid against the version the client already holds part of
+            String range = ifRange == null || ifRange.equals(etag) ? rangeHeader : null;
+            // 2. Wait for memory to stream it; released once the body has been written
+            return admit(principal.getSubject(), fileService.downloadMemory(entity)).thenCompose(permit -> {
+                CompletableFuture<ResponseEntity<StreamingResponseBody>> response;
+                try {
+                    response = download(entity, range, plaintext -> permit.releaseOnClose(operation.endOnClose(plaintext)));
+                } catch (RuntimeException e) {
+                    // Thrown before a future existed; the permit must not outlive the request
+                    response = CompletableFuture.failedFuture(e);
+                }
+                return response.whenComplete((done, failure) -> {
+                    if (failure != null || done.getBody() == null) permit.close();
+                });
+            });
+        }).exceptionally(failure -> {
+            if (unwrap(failure) instanceof TransferRejectedException rejected) {
+                return tooBusy(rejected).build();
+            }
+            throw failure instanceof CompletionException ce ? ce : new CompletionException(failure);
+        }).whenComplete((response, failure) -> {
+            // A streamed body ends the operation once it has been written out
+            if (failure != null || response.getBody() == null) {
+                operation.end(failure == null && !response.getStatusCode().isError());
+            }
+        });
+    }
 
-        // 2. Get the file details (so we know the name)
-        FileEntity entity = fileService.getFileMetadata(id);
+    public record ArchiveRequest(List<String> fileIds) {
+    }
+
+    // Several files as one ZIP, built while it streams out
+    @PostMapping("/archive")
+    public ResponseEntity<StreamingResponseBody> archive(@RequestBody ArchiveRequest request, @AuthenticationPrincipal Jwt principal) {
+        List<String> fileIds = request.fileIds();
+        if (fileIds == null || fileIds.isEmpty() || fileIds.size() > MAX_ARCHIVE_FILES) {
+            return ResponseEntity.badRequest().build();
+        }
+        // 1. All ownership checks happen before the first byte is sent
+        List<FileEntity> files = archiveService.resolve(fileIds, principal.getSubject());
+        if (files == null) {
+            return ResponseEntity.notFound().build();
+        }
 
-        // 3. Return the file with the correct name
+        TransferAdmission.Permit permit;
+        try {
+            permit = admission.admitNow(principal.getSubject(), archiveService.archiveMemory(files));
+        } catch (TransferRejectedException e) {
+            return tooBusy(e).build();
+        }
+
+        // 2. Stream the archive; its size is not known up front
         return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + entity.getFilename() + "\"")
-                .body(data);
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename("files.zip").build().toString())
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .body(out -> {
+                    try (permit) {
+                        archiveService.writeZip(files, out);
+                    }
+                });
     }
 
-    @DeleteMapping("/{id}")
-    public ResponseEntity<String> delete(@PathVariable String id, @AuthenticationPrincipal Jwt principal) {
+    // track wraps the plaintext stream that is sent, so its close can end the metrics and free the memory
+    private CompletableFuture<ResponseEntity<StreamingResponseBody>> download(FileEntity entity, String rangeHeader,
+                                                                              UnaryOperator<InputStream> track) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentDisposition(ContentDisposition.attachment()
+                .filename(entity.getFilename(), StandardCharsets.UTF_8).build());
+        headers.setContentType(mediaTypeOf(entity));
+        headers.setETag(ETags.forFile(entity));
+        headers.setCacheControl(ETags.PRIVATE_REVALIDATE);
+        if (entity.getUploadedAt() != null) headers.setLastModified(entity.getUploadedAt());
+
+        // 2. Ranges need the plaintext size; very old records without one are always sent whole
+        Long size = entity.getFileSize();
+        if (size == null) {
+            return fileService.openDownloadAsync(entity)
+                    .thenApply(plaintext -> ResponseEntity.ok().headers(headers)
+                            .body(out -> copyAndClose(track.apply(plaintext), out)));
+        }
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        // 3. Single byte range -> 206 with only the covering segments fetched from S3.
+        //    Multi-range requests are answered with the full body, which HTTP allows.
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            ranges = List.of();
+        }
+        if (ranges.size() == 1) {
+            HttpRange range = ranges.get(0);
+            long start;
+            long end;
+            try {
+                start = range.getRangeStart(size);
+                end = range.getRangeEnd(size);
+            } catch (IllegalArgumentException e) {
+                start = size;
+                end = -1;
+            }
+            if (size == 0 || start >= size || end < start) {
+                return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + size)
+                        .<StreamingResponseBody>build());
+            }
+            headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + size);
+            headers.setContentLength(end - start + 1);
+            return fileService.openDownloadAsync(entity, start, end)
+                    .thenApply(plaintext -> ResponseEntity.status(HttpStatus.PARTIAL_CONTENT).headers(headers)
+                            .body(out -> copyAndClose(track.apply(plaintext), out)));
+        }
+
+        // 4. Whole file, decrypted while it streams out
+        headers.setContentLength(size);
+        return fileService.openDownloadAsync(entity)
+                .thenApply(plaintext -> ResponseEntity.ok().headers(headers)
+                        .body(out -> copyAndClose(track.apply(plaintext), out)));
+    }
+
+    private static MediaType mediaTypeOf(FileEntity entity) {
         try {
-            fileService.deleteFile(id, principal.getSubject());
-            return ResponseEntity.ok("File deleted successfully");
+            return MediaType.parseMediaType(entity.getContentType());
         } catch (Exception e) {
-            return ResponseEntity.status(500).body("Error deleting file: " + e.getMessage());
+            return MediaType.APPLICATION_OCTET_STREAM;
+        }
+    }
+
+    private static void copyAndClose(InputStream in, OutputStream out) throws IOException {
+        try (in) {
+            in.transferTo(out);
+        }
+    }
+
+    /**
+     * Admission for a transfer. In blocking mode the request thread waits, so the transfer never
+     * ends up running on whichever thread freed the memory; async mode waits without a thread.
+     */
+    private CompletableFuture<TransferAdmission.Permit> admit(String ownerId, long memoryBytes) {
+        if (fileService.isAsync()) {
+            return admission.admit(ownerId, memoryBytes);
+        }
+        try {
+            return CompletableFuture.completedFuture(admission.admitNow(ownerId, memoryBytes));
+        } catch (TransferRejectedException e) {
+            return CompletableFuture.failedFuture(e);
         }
     }
+
+    private static ResponseEntity.HeadersBuilder<?> notModified(String etag) {
+        return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).cacheControl(ETags.PRIVATE_REVALIDATE);
+    }
+
+    // Over the memory budget or the user's transfer limit
+    private static ResponseEntity.BodyBuilder tooBusy(TransferRejectedException e) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds()));
+    }
+
+    // Futures wrap failures from dependent stages in CompletionException
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    @DeleteMapping("/{id}")
+    public CompletableFuture<ResponseEntity<String>> delete(@PathVariable String id, @AuthenticationPrincipal Jwt principal) {
+        FileMetrics.Operation operation = metrics.begin(FileMetrics.DELETE);
+        return fileService.deleteFileAsync(id, principal.getSubject())
+                .whenComplete((done, failure) -> operation.end(failure == null))
+                .thenApply(done -> ResponseEntity.ok("File deleted successfully"))
+                .exceptionally(failure -> ResponseEntity.status(500).body("Error deleting file: " + unwrap(failure).getMessage()));
+    }
 }
\ No newline at end of file
@@ -1,17 +1,22 @@
 package com.securestorage;
 
-import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
-import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbPartitionKey;
-import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbAttribute;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.StaticTableSchema;
 import lombok.Setter;
 import lombok.NoArgsConstructor;
 import lombok.AllArgsConstructor;
 
-@DynamoDbBean
+import static software.amazon.awssdk.enhanced.dynamodb.mapper.StaticAttributeTags.primaryPartitionKey;
+import static software.amazon.awssdk.enhanced.dynamodb.mapper.StaticAttributeTags.secondaryPartitionKey;
+import static software.amazon.awssdk.enhanced.dynamodb.mapper.StaticAttributeTags.secondarySortKey;
+
 @Setter
 @NoArgsConstructor
 @AllArgsConstructor
 public class FileEntity {
+    // GSI used to list a user's files newest-first without scanning the table
+    public static final String OWNER_INDEX = "ownerId-uploadedAt-index";
+
     private String fileId;
     private String ownerId;
     private String filename;
@@ -20,11 +25,51 @@ public class FileEntity {
     private String iv;
     private String contentType;
     private Long fileSize; // <--- NEW FIELD
+    // null = legacy single-shot AES-GCM (iv holds the 12-byte IV)
+    // 1    = segmented AES-GCM (iv holds the 7-byte nonce prefix), see SegmentedGcmFormat
+    private Integer encryptionFormat;
+    private Integer segmentSize;
+    private Long uploadedAt; // epoch millis, sort key of OWNER_INDEX
+    // null = stored as uploaded; otherwise the codec applied before encryption (see CompressionService)
+    private String compression;
+    private Long compressedSize; // bytes that were encrypted, set only when compressed
+    // Set when the object is shared with identical uploads of the same owner (see ContentBlobIndex)
+    private String blobId;
+    // Master key encryptedAesKey is wrapped under; null = EncryptionService.LEGACY_KEY_ID
+    private String masterKeyId;
 
-    @DynamoDbPartitionKey
-    @DynamoDbAttribute("file_id")
-    public String getFileId() { return fileId; }
+    // Mapping declared up front rather than introspected from the getters: the bean mapper builds its
+    // accessors with LambdaMetafactory at startup, which costs JVM startup time and does not work in a native image
+    public static final TableSchema<FileEntity> SCHEMA = StaticTableSchema.builder(FileEntity.class)
+            .newItemSupplier(FileEntity::new)
+            .addAttribute(String.class, a -> a.name("file_id").getter(FileEntity::getFileId).setter(FileEntity::setFileId)
+                    .tags(primaryPartitionKey()))
+            .addAttribute(String.class, a -> a.name("ownerId").getter(FileEntity::getOwnerId).setter(FileEntity::setOwnerId)
+                    .tags(secondaryPartitionKey(OWNER_INDEX)))
+            .addAttribute(String.class, a -> a.name("filename").getter(FileEntity::getFilename).setter(FileEntity::setFilename))
+            .addAttribute(String.class, a -> a.name("s3Key").getter(FileEntity::getS3Key).setter(FileEntity::setS3Key))
+            .addAttribute(String.class, a -> a.name("encryptedAesKey").getter(FileEntity::getEncryptedAesKey)
+                    .setter(FileEntity::setEncryptedAesKey))
+            .addAttribute(String.class, a -> a.name("iv").getter(FileEntity::getIv).setter(FileEntity::setIv))
+            .addAttribute(String.class, a -> a.name("contentType").getter(FileEntity::getContentType)
+                    .setter(FileEntity::setContentType))
+            .addAttribute(Long.class, a -> a.name("fileSize").getter(FileEntity::getFileSize).setter(FileEntity::setFileSize))
+            .addAttribute(Integer.class, a -> a.name("encryptionFormat").getter(FileEntity::getEncryptionFormat)
+                    .setter(FileEntity::setEncryptionFormat))
+            .addAttribute(Integer.class, a -> a.name("segmentSize").getter(FileEntity::getSegmentSize)
+                    .setter(FileEntity::setSegmentSize))
+            .addAttribute(Long.class, a -> a.name("uploadedAt").getter(FileEntity::getUploadedAt)
+                    .setter(FileEntity::setUploadedAt).tags(secondarySortKey(OWNER_INDEX)))
+            .addAttribute(String.class, a -> a.name("compression").getter(FileEntity::getCompression)
+                    .setter(FileEntity::setCompression))
+            .addAttribute(Long.class, a -> a.name("compressedSize").getter(FileEntity::getCompressedSize)
+                    .setter(FileEntity::setCompressedSize))
+            .addAttribute(String.class, a -> a.name("blobId").getter(FileEntity::getBlobId).setter(FileEntity::setBlobId))
+            .addAttribute(String.class, a -> a.name("masterKeyId").getter(FileEntity::getMasterKeyId)
+                    .setter(FileEntity::setMasterKeyId))
+            .build();
 
+    public String getFileId() { return fileId; }
     public String getOwnerId() { return ownerId; }
     public String getFilename() { return filename; }
     public String getS3Key() { return s3Key; }
@@ -32,4 +77,11 @@ public class FileEntity {
     public String getIv() { return iv; }
     public String getContentType() { return contentType; }
     public Long getFileSize() { return fileSize; } // <--- Getter
+    public Integer getEncryptionFormat() { return encryptionFormat; }
+    public Integer getSegmentSize() { return segmentSize; }
+    public Long getUploadedAt() { return uploadedAt; }
+    public String getCompression() { return compression; }
+    public Long getCompressedSize() { return compressedSize; }
+    public String getBlobId() { return blobId; }
+    public String getMasterKeyId() { return masterKeyId; }
 }
\ No newline at end of file
@@ -0,0 +1,204 @@
+package com.securestorage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbAsyncIndex;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbAsyncTable;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedAsyncClient;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbIndex;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbTable;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+import software.amazon.awssdk.enhanced.dynamodb.model.ReadBatch;
+import software.amazon.awssdk.enhanced.dynamodb.model.WriteBatch;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Single access point for {@link FileEntity} rows.
+ *
+ * The table handle is shared and maps rows with the static {@link FileEntity#SCHEMA}, so nothing is
+ * introspected at runtime. Lookups by id go through a bounded in-process cache (size + TTL
+ * eviction) so repeated downloads of a hot file do not hit DynamoDB at all. Deletes through here
+ * drop the cached row. Code that updates rows in place without going through this class (master
+ * key rotation re-wrapping keys, the owner index backfill) must call {@link #invalidate} for each
+ * row it changes. The TTL bounds staleness for changes made by other nodes.
+ *
+ * With {@code app.io-mode=async} the {@code *Async} methods go through the non-blocking client and
+ * share the same cache.
+ */
+@Component
+public class FileMetadataRepository {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileMetadataRepository.class);
+
+    // BatchWriteItem / BatchGetItem limits per request
+    private static final int BATCH_WRITE_SIZE = 25;
+    private static final int BATCH_GET_SIZE = 100;
+    private static final int MAX_BATCH_ATTEMPTS = 8;
+
+    private final DynamoDbEnhancedClient dynamoDb;
+    private final DynamoDbTable<FileEntity> table;
+    private final DynamoDbAsyncTable<FileEntity> asyncTable; // null unless app.io-mode=async
+    private final Cache<String, FileEntity> cache;
+
+    public FileMetadataRepository(DynamoDbEnhancedClient dynamoDb,
+                                  ObjectProvider<DynamoDbEnhancedAsyncClient> asyncDynamoDb,
+                                  @Value("${aws.dynamodb.table}") String tableName,
+                                  @Value("${app.metadata-cache.max-entries:10000}") long maxEntries,
+                                  @Value("${app.metadata-cache.ttl:10m}") Duration ttl) {
+        this.dynamoDb = dynamoDb;
+        this.table = dynamoDb.table(tableName, FileEntity.SCHEMA);
+        DynamoDbEnhancedAsyncClient asyncClient = asyncDynamoDb.getIfAvailable();
+        this.asyncTable = asyncClient == null ? null : asyncClient.table(tableName, FileEntity.SCHEMA);
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+    }
+
+    public DynamoDbTable<FileEntity> table() {
+        return table;
+    }
+
+    public DynamoDbIndex<FileEntity> ownerIndex() {
+        return table.index(FileEntity.OWNER_INDEX);
+    }
+
+    // Read-through; misses for unknown ids are not cached
+    public FileEntity findById(String fileId) {
+        return cache.get(fileId, id -> table.getItem(key(id)));
+    }
+
+    /**
+     * Looks up many ids at once: cache hits first, the rest with BatchGetItem (100 keys per
+     * request; the SDK re-requests unprocessed keys). Unknown ids are absent from the result.
+     */
+    public Map<String, FileEntity> findAllById(Collection<String> fileIds) {
+        Map<String, FileEntity> found = new HashMap<>(cache.getAllPresent(fileIds));
+        List<String> missing = fileIds.stream().distinct().filter(id -> !found.containsKey(id)).toList();
+        for (int i = 0; i < missing.size(); i += BATCH_GET_SIZE) {
+            ReadBatch.Builder<FileEntity> batch = ReadBatch.builder(FileEntity.class).mappedTableResource(table);
+            missing.subList(i, Math.min(i + BATCH_GET_SIZE, missing.size())).forEach(id -> batch.addGetItem(key(id)));
+            dynamoDb.batchGetItem(req -> req.addReadBatch(batch.build())).resultsForTable(table).forEach(entity -> {
+                found.put(entity.getFileId(), entity);
+                cache.put(entity.getFileId(), entity);
+            });
+        }
+        return found;
+    }
+
+    public void save(FileEntity entity) {
+        table.putItem(entity);
+        cache.put(entity.getFileId(), entity);
+    }
+
+    /**
+     * Writes many rows with BatchWriteItem (25 per request), retrying unprocessed items with
+     * backoff. Returns the rows that could not be written; all others are saved and cached.
+     */
+    public List<FileEntity> saveAll(List<FileEntity> entities) {
+        List<FileEntity> failed = new ArrayList<>();
+        for (int i = 0; i < entities.size(); i += BATCH_WRITE_SIZE) {
+            List<FileEntity> chunk = entities.subList(i, Math.min(i + BATCH_WRITE_SIZE, entities.size()));
+            List<FileEntity> unwritten = writeBatch(chunk);
+            failed.addAll(unwritten);
+            chunk.stream().filter(e -> !unwritten.contains(e)).forEach(e -> cache.put(e.getFileId(), e));
+        }
+        return failed;
+    }
+
+    private List<FileEntity> writeBatch(List<FileEntity> chunk) {
+        List<FileEntity> pending = chunk;
+        try {
+            for (int attempt = 1; !pending.isEmpty(); attempt++) {
+                Backoff.pause(attempt, MAX_BATCH_ATTEMPTS, pending.size() + " metadata writes");
+                WriteBatch.Builder<FileEntity> batch = WriteBatch.builder(FileEntity.class).mappedTableResource(table);
+                pending.forEach(batch::addPutItem);
+                pending = dynamoDb.batchWriteItem(req -> req.addWriteBatch(batch.build()))
+                        .unprocessedPutItemsForTable(table);
+            }
+            return List.of();
+        } catch (RuntimeException e) {
+            // Unprocessed items come back as fresh objects, so match them up by id
+            Set<String> unwritten = pending.stream().map(FileEntity::getFileId).collect(Collectors.toSet());
+            logger.error("Batch metadata write failed for {} rows: {}", unwritten.size(), e.getMessage());
+            return chunk.stream().filter(f -> unwritten.contains(f.getFileId())).toList();
+        }
+    }
+
+    // Returns the removed row, or null if it was already gone
+    public FileEntity delete(String fileId) {
+        cache.invalidate(fileId);
+        return table.deleteItem(key(fileId));
+    }
+
+    // --- Non-blocking variants (app.io-mode=async) ---
+
+    public DynamoDbAsyncIndex<FileEntity> ownerIndexAsync() {
+        return asyncTable().index(FileEntity.OWNER_INDEX);
+    }
+
+    // Cache hits complete immediately; only misses go to DynamoDB
+    public CompletableFuture<FileEntity> findByIdAsync(String fileId) {
+        FileEntity cached = cache.getIfPresent(fileId);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return asyncTable().getItem(key(fileId)).thenApply(entity -> {
+            if (entity != null) cache.put(fileId, entity);
+            return entity;
+        });
+    }
+
+    public CompletableFuture<Void> saveAsync(FileEntity entity) {
+        return asyncTable().putItem(entity).thenRun(() -> cache.put(entity.getFileId(), entity));
+    }
+
+    public CompletableFuture<FileEntity> deleteAsync(String fileId) {
+        cache.invalidate(fileId);
+        return asyncTable().deleteItem(key(fileId));
+    }
+
+    private DynamoDbAsyncTable<FileEntity> asyncTable() {
+        if (asyncTable == null) {
+            throw new IllegalStateException("Async DynamoDB access requires app.io-mode=async");
+        }
+        return asyncTable;
+    }
+
+    public void invalidate(String fileId) {
+        cache.invalidate(fileId);
+    }
+
+    public void invalidateAll(Collection<String> fileIds) {
+        cache.invalidateAll(fileIds);
+    }
+
+    public CacheStats cacheStats() {
+        return cache.stats();
+    }
+
+    public long cacheSize() {
+        return cache.estimatedSize();
+    }
+
+    private static Key key(String fileId) {
+        return Key.builder().partitionValue(fileId).build();
+    }
+}
@@ -0,0 +1,195 @@
+package com.securestorage;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latency and throughput of the file pipeline, published on {@code /actuator/prometheus}.
+ *
+ * {@code storage.operation} times a whole request (tags: operation, outcome); a download lasts
+ * until its last byte has been written. {@code storage.stage} times one step of it (tags:
+ * operation, stage), e.g. the quota reservation or the metadata write. Both publish histogram
+ * buckets, so percentiles can be aggregated across nodes with {@code histogram_quantile}.
+ * {@code storage.bytes} counts plaintext and ciphertext bytes moved (tags: operation, kind) and
+ * {@code storage.inflight} is the number of requests currently running per operation.
+ */
+@Component
+public class FileMetrics {
+
+    public static final String UPLOAD = "upload";
+    public static final String BATCH_UPLOAD = "batch_upload";
+    public static final String UPLOAD_CHUNK = "upload_chunk";
+    public static final String DOWNLOAD = "download";
+    public static final String LIST = "list";
+    public static final String SEARCH = "search";
+    public static final String DELETE = "delete";
+
+    public static final String PLAINTEXT = "plaintext";
+    public static final String CIPHERTEXT = "ciphertext";
+
+    private final MeterRegistry registry;
+    private final Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+    // Looked up on every stage, so keep the meters rather than going through the registry each time
+    private final Map<String, Timer> stageTimers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> byteCounters = new ConcurrentHashMap<>();
+
+    public FileMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        for (String operation : List.of(UPLOAD, BATCH_UPLOAD, UPLOAD_CHUNK, DOWNLOAD, LIST, SEARCH, DELETE)) {
+            AtomicInteger running = new AtomicInteger();
+            inFlight.put(operation, running);
+            Gauge.builder("storage.inflight", running, AtomicInteger::get)
+                    .description("File requests currently in progress")
+                    .tag("operation", operation)
+                    .register(registry);
+        }
+    }
+
+    // Starts timing a request and counts it as in flight until Operation.end()
+    public Operation begin(String operation) {
+        inFlight.get(operation).incrementAndGet();
+        return new Operation(operation, System.nanoTime());
+    }
+
+    /**
+     * Records a stage that started at {@code startNanos} (from {@link System#nanoTime()}) and
+     * returns the current time, which is where the next stage starts.
+     */
+    public long stage(String operation, String stage, long startNanos) {
+        long now = System.nanoTime();
+        stageTimers.computeIfAbsent(operation + '/' + stage, id -> Timer.builder("storage.stage")
+                        .description("Time spent in one stage of a file request")
+                        .tags("operation", operation, "stage", stage)
+                        .publishPercentileHistogram()
+                        .register(registry))
+                .record(now - startNanos, TimeUnit.NANOSECONDS);
+        return now;
+    }
+
+    public void bytes(String operation, String kind, long count) {
+        if (count <= 0) return;
+        byteCounters.computeIfAbsent(operation + '/' + kind, id -> Counter.builder("storage.bytes")
+                        .description("Bytes moved through the file pipeline")
+                        .baseUnit("bytes")
+                        .tags("operation", operation, "kind", kind)
+                        .register(registry))
+                .increment(count);
+    }
+
+    /**
+     * Meters a stream that is read over time. When closed, the time spent inside its reads is
+     * recorded as {@code stage} (that is the time spent producing the data: decrypting, or waiting
+     * on the network) and the bytes read are counted as {@code kind}. Either may be null.
+     */
+    public InputStream metered(InputStream in, String operation, String stage, String kind) {
+        return new MeteredInputStream(in, operation, stage, kind, null);
+    }
+
+    /** One request being timed. Ending it twice has no effect. */
+    public final class Operation {
+
+        private final String name;
+        private final long startNanos;
+        private final AtomicBoolean ended = new AtomicBoolean();
+
+        private Operation(String name, long startNanos) {
+            this.name = name;
+            this.startNanos = startNanos;
+        }
+
+        public void end(boolean success) {
+            if (!ended.compareAndSet(false, true)) return;
+            inFlight.get(name).decrementAndGet();
+            Timer.builder("storage.operation")
+                    .description("Time taken by a whole file request")
+                    .tags("operation", name, "outcome", success ? "success" : "failure")
+                    .publishPercentileHistogram()
+                    .register(registry)
+                    .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+
+        // For streamed responses: ends when the stream is closed, successfully if it was read to the end
+        public InputStream endOnClose(InputStream in) {
+            return new MeteredInputStream(in, name, null, null, this);
+        }
+    }
+
+    private final class MeteredInputStream extends FilterInputStream {
+
+        private final String operation;
+        private final String stage;
+        private final String kind;
+        private final Operation owner;
+        private long readNanos;
+        private long count;
+        private boolean exhausted;
+        private boolean closed;
+
+        MeteredInputStream(InputStream in, String operation, String stage, String kind, Operation owner) {
+            super(in);
+            this.operation = operation;
+            this.stage = stage;
+            this.kind = kind;
+            this.owner = owner;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = in.read();
+            readNanos += System.nanoTime() - start;
+            if (b >= 0) count++;
+            else exhausted = true;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int n = in.read(b, off, len);
+            readNanos += System.nanoTime() - start;
+            if (n > 0) count += n;
+            else if (n < 0) exhausted = true;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long start = System.nanoTime();
+            long skipped = in.skip(n);
+            readNanos += System.nanoTime() - start;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                if (stage != null) stage(operation, stage, System.nanoTime() - readNanos);
+                if (kind != null) bytes(operation, kind, count);
+                if (owner != null) owner.end(exhausted);
+            }
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.securestorage;
+
+import java.util.List;
+
+/**
+ * One page of a user's files. {@code nextPageToken} is null on the last page.
+ */
+public record FilePage(List<FileEntity> items, String nextPageToken) {
+}
@@ -0,0 +1,243 @@
+package com.securestorage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.enhanced.dynamodb.model.QueryConditional;
+import software.amazon.awssdk.enhanced.dynamodb.model.QueryEnhancedRequest;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-user in-memory index of file metadata behind {@code GET /api/files/search}.
+ *
+ * A user's index is loaded from the owner index on their first search and then kept up to date
+ * by {@link FileService} as files are added and removed on this node. It is dropped after
+ * {@code idleTtl} without searches, and reloaded once older than {@code maxAge} so that changes
+ * made through other nodes show up. Entries keep only what the listing shows (no key material),
+ * and are held in three orders (upload time, name, size), so a query just walks the requested
+ * order and filters; nothing is sorted per request.
+ */
+@Component
+public class FileSearchIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileSearchIndex.class);
+
+    public enum Sort { UPLOADED_AT, NAME, SIZE }
+
+    /**
+     * What to look for. {@code text} matches filenames case-insensitively (as a prefix when
+     * {@code prefix} is set). A type is either a full content type ({@code application/pdf}) or
+     * just its major part ({@code image}). Null or empty fields do not filter.
+     */
+    public record Query(String text, boolean prefix, List<String> types, List<String> excludedTypes,
+                        Long minSize, Long maxSize, Sort sort, boolean descending, int offset, int limit) {
+    }
+
+    private static final Comparator<Entry> BY_UPLOADED_AT = Comparator.comparingLong(Entry::uploadedAt)
+            .thenComparing(Entry::fileId);
+    private static final Comparator<Entry> BY_NAME = Comparator.comparing(Entry::name).thenComparing(Entry::fileId);
+    private static final Comparator<Entry> BY_SIZE = Comparator.comparingLong(Entry::size).thenComparing(Entry::fileId);
+
+    private final FileMetadataRepository metadataRepository;
+    private final Duration maxAge;
+    // ownerId -> snapshot; updates swap in a new snapshot, so searches never lock
+    private final Cache<String, UserFiles> users;
+
+    public FileSearchIndex(FileMetadataRepository metadataRepository,
+                           @Value("${app.search-index.max-files:200000}") long maxFiles,
+                           @Value("${app.search-index.idle-ttl:15m}") Duration idleTtl,
+                           @Value("${app.search-index.max-age:5m}") Duration maxAge) {
+        this.metadataRepository = metadataRepository;
+        this.maxAge = maxAge;
+        this.users = Caffeine.newBuilder()
+                .maximumWeight(maxFiles)
+                .weigher((String ownerId, UserFiles files) -> files.size() + 1)
+                .expireAfterAccess(idleTtl)
+                .build();
+    }
+
+    public FileSearchPage search(String ownerId, Query query) {
+        UserFiles files = users.get(ownerId, this::load);
+        long loadedAt = files.loadedAt;
+        if (System.currentTimeMillis() - loadedAt > maxAge.toMillis()) {
+            // Only the first caller to find the stale copy reloads it
+            files = users.asMap().compute(ownerId, (id, current) -> current == null || current.loadedAt == loadedAt
+                    ? load(id) : current);
+        }
+        return files.search(query);
+    }
+
+    // --- Kept current by FileService; users without a loaded index are skipped ---
+
+    public void added(FileEntity file) {
+        addedAll(file.getOwnerId(), List.of(file));
+    }
+
+    public void addedAll(String ownerId, Collection<FileEntity> files) {
+        if (files.isEmpty()) return;
+        List<Entry> entries = files.stream().map(Entry::of).toList();
+        users.asMap().computeIfPresent(ownerId, (id, current) -> current.with(entries, Set.of()));
+    }
+
+    public void removed(String ownerId, String fileId) {
+        users.asMap().computeIfPresent(ownerId, (id, current) -> current.with(List.of(), Set.of(fileId)));
+    }
+
+    public void forget(String ownerId) {
+        users.invalidate(ownerId);
+    }
+
+    private UserFiles load(String ownerId) {
+        long started = System.currentTimeMillis();
+        List<Entry> entries = new ArrayList<>();
+        metadataRepository.ownerIndex().query(QueryEnhancedRequest.builder()
+                        .queryConditional(QueryConditional.keyEqualTo(k -> k.partitionValue(ownerId)))
+                        .attributesToProject("file_id", "ownerId", "filename", "contentType", "fileSize", "uploadedAt")
+                        .build())
+                .stream()
+                .forEach(page -> page.items().forEach(file -> entries.add(Entry.of(file))));
+        UserFiles files = UserFiles.of(entries, started);
+        logger.debug("Search index loaded for ownerId={}: {} files in {} ms", ownerId, files.size(),
+                System.currentTimeMillis() - started);
+        return files;
+    }
+
+    // One file as the index sees it; name is lower-cased once here rather than on every search
+    private record Entry(String fileId, String name, String contentType, long size, long uploadedAt, FileEntity file) {
+
+        static Entry of(FileEntity source) {
+            // A listing-only copy: keys and storage details stay out of memory and out of responses
+            FileEntity file = new FileEntity();
+            file.setFileId(source.getFileId());
+            file.setOwnerId(source.getOwnerId());
+            file.setFilename(source.getFilename());
+            file.setContentType(source.getContentType());
+            file.setFileSize(source.getFileSize());
+            file.setUploadedAt(source.getUploadedAt());
+            String name = source.getFilename() == null ? "" : source.getFilename().toLowerCase(Locale.ROOT);
+            String type = source.getContentType() == null ? "" : source.getContentType().toLowerCase(Locale.ROOT);
+            return new Entry(source.getFileId(), name, type,
+                    source.getFileSize() == null ? 0 : source.getFileSize(),
+                    source.getUploadedAt() == null ? 0 : source.getUploadedAt(), file);
+        }
+    }
+
+    private static final class UserFiles {
+
+        private final List<Entry> byUploadedAt;
+        private final List<Entry> byName;
+        private final List<Entry> bySize;
+        private final Map<String, Integer> typeCounts;
+        private final long loadedAt;
+
+        private UserFiles(List<Entry> byUploadedAt, List<Entry> byName, List<Entry> bySize,
+                          Map<String, Integer> typeCounts, long loadedAt) {
+            this.byUploadedAt = byUploadedAt;
+            this.byName = byName;
+            this.bySize = bySize;
+            this.typeCounts = typeCounts;
+            this.loadedAt = loadedAt;
+        }
+
+        static UserFiles of(List<Entry> entries, long loadedAt) {
+            Map<String, Integer> typeCounts = new HashMap<>();
+            entries.forEach(e -> typeCounts.merge(typeOf(e), 1, Integer::sum));
+            return new UserFiles(sorted(entries, BY_UPLOADED_AT), sorted(entries, BY_NAME), sorted(entries, BY_SIZE),
+                    Map.copyOf(typeCounts), loadedAt);
+        }
+
+        private static List<Entry> sorted(List<Entry> entries, Comparator<Entry> order) {
+            List<Entry> copy = new ArrayList<>(entries);
+            copy.sort(order);
+            return Collections.unmodifiableList(copy);
+        }
+
+        int size() {
+            return byUploadedAt.size();
+        }
+
+        // A new snapshot with these entries added (replacing any with the same id) and these ids removed
+        UserFiles with(List<Entry> added, Set<String> removedIds) {
+            Set<String> replaced = new HashSet<>(removedIds);
+            added.forEach(e -> replaced.add(e.fileId()));
+            Map<String, Integer> typeCounts = new HashMap<>(this.typeCounts);
+            byUploadedAt.stream().filter(e -> replaced.contains(e.fileId()))
+                    .forEach(e -> typeCounts.computeIfPresent(typeOf(e), (type, n) -> n <= 1 ? null : n - 1));
+            added.forEach(e -> typeCounts.merge(typeOf(e), 1, Integer::sum));
+            return new UserFiles(update(byUploadedAt, added, replaced, BY_UPLOADED_AT),
+                    update(byName, added, replaced, BY_NAME), update(bySize, added, replaced, BY_SIZE),
+                    Map.copyOf(typeCounts), loadedAt);
+        }
+
+        private static String typeOf(Entry e) {
+            return e.file().getContentType() == null ? "" : e.file().getContentType();
+        }
+
+        // Copy without the replaced ids, then binary-insert each new entry
+        private static List<Entry> update(List<Entry> current, List<Entry> added, Set<String> replaced,
+                                          Comparator<Entry> order) {
+            List<Entry> next = new ArrayList<>(current.size() + added.size());
+            for (Entry e : current) {
+                if (!replaced.contains(e.fileId())) next.add(e);
+            }
+            for (Entry e : added) {
+                int at = Collections.binarySearch(next, e, order);
+                next.add(at < 0 ? -at - 1 : at, e);
+            }
+            return Collections.unmodifiableList(next);
+        }
+
+        FileSearchPage search(Query query) {
+            List<Entry> order = switch (query.sort()) {
+                case NAME -> byName;
+                case SIZE -> bySize;
+                case UPLOADED_AT -> byUploadedAt;
+            };
+            String text = query.text() == null || query.text().isBlank() ? null : query.text().toLowerCase(Locale.ROOT);
+            List<String> types = lowerCase(query.types());
+            List<String> excludedTypes = lowerCase(query.excludedTypes());
+
+            List<FileEntity> items = new ArrayList<>(Math.min(query.limit(), 1000));
+            int total = 0;
+            int n = order.size();
+            for (int i = 0; i < n; i++) {
+                Entry e = order.get(query.descending() ? n - 1 - i : i);
+                if (text != null && !(query.prefix() ? e.name().startsWith(text) : e.name().contains(text))) continue;
+                if (query.minSize() != null && e.size() < query.minSize()) continue;
+                if (query.maxSize() != null && e.size() > query.maxSize()) continue;
+                if (!types.isEmpty() && types.stream().noneMatch(t -> typeMatches(e.contentType(), t))) continue;
+                if (excludedTypes.stream().anyMatch(t -> typeMatches(e.contentType(), t))) continue;
+                if (total >= query.offset() && items.size() < query.limit()) items.add(e.file());
+                total++;
+            }
+            return new FileSearchPage(items, total, typeCounts);
+        }
+
+        private static List<String> lowerCase(List<String> values) {
+            if (values == null) return List.of();
+            return values.stream().filter(v -> v != null && !v.isBlank()).map(v -> v.trim().toLowerCase(Locale.ROOT)).toList();
+        }
+
+        // "image" matches any image/*; "application/pdf" only itself (parameters such as charset are ignored)
+        private static boolean typeMatches(String contentType, String type) {
+            if (type.indexOf('/') < 0) {
+                return contentType.startsWith(type + "/");
+            }
+            return contentType.equals(type) || contentType.startsWith(type + ";");
+        }
+    }
+}
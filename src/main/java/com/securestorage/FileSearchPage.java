@@ -0,0 +1,11 @@
+package com.securestorage;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of search results. {@code total} counts every match, and {@code typeCounts} is the
+ * number of files per content type across all of the user's files (for category counters).
+ */
+public record FileSearchPage(List<FileEntity> items, int total, Map<String, Integer> typeCounts) {
+}
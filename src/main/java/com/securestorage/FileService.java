@@ -1,87 +1,361 @@
 package com.securestorage;
 
-import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
-import software.amazon.awssdk.enhanced.dynamodb.Key;
-import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.enhanced.dynamodb.model.Page;
+import software.amazon.awssdk.enhanced.dynamodb.model.QueryConditional;
+import software.amazon.awssdk.enhanced.dynamodb.model.QueryEnhancedRequest;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.crypto.SecretKey;
 import java.util.Base64;
+import java.util.Comparator;
 import java.util.UUID;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
+import static com.securestorage.FileMetrics.BATCH_UPLOAD;
+import static com.securestorage.FileMetrics.CIPHERTEXT;
+import static com.securestorage.FileMetrics.DELETE;
+import static com.securestorage.FileMetrics.DOWNLOAD;
+import static com.securestorage.FileMetrics.LIST;
+import static com.securestorage.FileMetrics.PLAINTEXT;
+import static com.securestorage.FileMetrics.UPLOAD;
+
 @Service
 public class FileService {
 
     private static final Logger logger = LoggerFactory.getLogger(FileService.class);
 
-    private final S3Client s3Client;
-    private final DynamoDbEnhancedClient dynamoDb;
-    private final EncryptionService encryptionService;
+    // Copy, inflate/deflate and cache-tee buffers around a streamed transfer
+    private static final int STREAM_BUFFER = 256 * 1024;
 
+    private final FileMetadataRepository metadataRepository;
+    private final EncryptionService encryptionService;
+    private final StorageQuotaService quotaService;
+    private final ObjectStore objectStore;
+    private final EncryptedBlobCache blobCache;
+    private final CompressionService compressionService;
+    private final ContentBlobIndex blobIndex;
+    private final FileMetrics metrics;
+    private final FileSearchIndex searchIndex;
+
+    // Only present with app.io-mode=async
+    private final S3AsyncClient s3AsyncClient;
+    // Runs the blocking bits of async requests (reading/encrypting the spooled upload, quota counters)
+    private final ExecutorService asyncWorkers;
+    // Encrypts and stores the files of batch uploads (shared by all requests, so the total is bounded)
+    private final ExecutorService batchUploadWorkers;
+    private final int batchParallelism;
+
+    // Async mode talks to the bucket directly (S3 backend only)
     @Value("${aws.s3.bucket}")
     private String bucketName;
 
-    @Value("${aws.dynamodb.table}")
-    private String tableName;
-
-    public FileService(S3Client s3Client, DynamoDbEnhancedClient dynamoDb, EncryptionService encryptionService) {
-        this.s3Client = s3Client;
-        this.dynamoDb = dynamoDb;
+    public FileService(FileMetadataRepository metadataRepository, EncryptionService encryptionService,
+                       StorageQuotaService quotaService, ObjectStore objectStore, EncryptedBlobCache blobCache,
+                       CompressionService compressionService, ContentBlobIndex blobIndex, FileMetrics metrics,
+                       FileSearchIndex searchIndex, ObjectProvider<S3AsyncClient> s3AsyncClient,
+                       @Value("${app.async.worker-threads:0}") int asyncWorkerThreads,
+                       @Value("${app.upload.batch.parallelism:8}") int batchParallelism) {
+        this.metadataRepository = metadataRepository;
         this.encryptionService = encryptionService;
+        this.quotaService = quotaService;
+        this.objectStore = objectStore;
+        this.blobCache = blobCache;
+        this.compressionService = compressionService;
+        this.blobIndex = blobIndex;
+        this.metrics = metrics;
+        this.searchIndex = searchIndex;
+        this.s3AsyncClient = s3AsyncClient.getIfAvailable();
+        this.asyncWorkers = this.s3AsyncClient == null ? null : newWorkerPool(
+                asyncWorkerThreads > 0 ? asyncWorkerThreads : Runtime.getRuntime().availableProcessors() * 2,
+                "file-async-worker-");
+        this.batchParallelism = Math.max(batchParallelism, 1);
+        this.batchUploadWorkers = newWorkerPool(this.batchParallelism, "batch-upload-");
+        if (this.s3AsyncClient != null && !(objectStore instanceof S3ObjectStore)) {
+            throw new IllegalStateException("app.io-mode=async needs app.storage.backend=s3");
+        }
+    }
+
+    private static ExecutorService newWorkerPool(int threads, String namePrefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, namePrefix + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (asyncWorkers != null) asyncWorkers.shutdown();
+        batchUploadWorkers.shutdown();
     }
 
-    // 1. Define the limit (200 MB in bytes)
-    private static final long MAX_STORAGE_LIMIT = 200 * 1024 * 1024; // 200MB
+    // True when the *Async methods use the non-blocking AWS clients (app.io-mode=async)
+    public boolean isAsync() {
+        return s3AsyncClient != null;
+    }
 
     public void uploadFile(MultipartFile file, String ownerId) throws Exception {
-        // --- CHECK STORAGE LIMIT START ---
+        // --- RESERVE STORAGE (atomic, throws "Storage Limit Exceeded") ---
         long newFileSize = file.getSize();
-        long currentUsedStorage = getUsedStorage(ownerId);
+        long started = System.nanoTime();
+        quotaService.reserve(ownerId, newFileSize);
+        metrics.stage(UPLOAD, "quota_reserve", started);
 
-        if (currentUsedStorage + newFileSize > MAX_STORAGE_LIMIT) {
-            throw new RuntimeException("Storage Limit Exceeded! You have used "
-                    + (currentUsedStorage / 1024 / 1024) + "MB of your 200MB limit.");
+        String fileId = UUID.randomUUID().toString();
+        String s3Key = ObjectKeys.file(ownerId, fileId);
+        boolean stored = false;
+        try {
+            storeFile(file, ownerId, fileId, s3Key);
+            stored = true;
+        } finally {
+            if (!stored) {
+                // Hand the reservation back (storeFile has already cleaned up the object)
+                quotaService.release(ownerId, newFileSize);
+            }
         }
-        // --- CHECK STORAGE LIMIT END ---
 
-        // 1. Prepare Metadata
-        String fileId = UUID.randomUUID().toString();
-        String s3Key = ownerId + "/" + fileId;
+        // --- COMMIT STORAGE (the file is saved either way; reconciliation repairs a missed commit) ---
+        started = System.nanoTime();
+        try {
+            quotaService.commit(ownerId, newFileSize);
+        } catch (Exception e) {
+            logger.warn("Could not commit usage for ownerId={}, file_id={}: {}", ownerId, fileId, e.getMessage());
+        }
+        metrics.stage(UPLOAD, "quota_commit", started);
+    }
+
+    private void storeFile(MultipartFile file, String ownerId, String fileId, String s3Key) throws Exception {
+        FileEntity entity = storeObject(file, ownerId, fileId, s3Key);
+
+        // 4. Save Metadata to DynamoDB (WITH SIZE)
+        long started = System.nanoTime();
+        try {
+            saveMetadata(entity);
+            metrics.stage(UPLOAD, "metadata_save", started);
+        } catch (RuntimeException e) {
+            discardObject(entity);
+            throw e;
+        }
+        searchIndex.added(entity);
+    }
 
-        // 2. Encryption Logic
+    /**
+     * Last step of a resumable upload (see {@link UploadSessionService}): the object is already
+     * stored and the quota reserved, so only the metadata is saved and the reservation committed.
+     * On failure the object is dropped and the caller still holds the reservation.
+     */
+    public void completeStoredUpload(FileEntity entity) {
+        long started = System.nanoTime();
+        try {
+            saveMetadata(entity);
+            metrics.stage(UPLOAD, "metadata_save", started);
+        } catch (RuntimeException e) {
+            discardObject(entity);
+            throw e;
+        }
+        searchIndex.added(entity);
+
+        started = System.nanoTime();
+        try {
+            quotaService.commit(entity.getOwnerId(), entity.getFileSize());
+        } catch (Exception e) {
+            logger.warn("Could not commit usage for ownerId={}, file_id={}: {}", entity.getOwnerId(), entity.getFileId(), e.getMessage());
+        }
+        metrics.stage(UPLOAD, "quota_commit", started);
+    }
+
+    /**
+     * Encrypts and stores the content, or with dedup on, points at an identical file the owner
+     * already has. Returns the metadata row to save; on failure nothing is left behind.
+     */
+    private FileEntity storeObject(MultipartFile file, String ownerId, String fileId, String s3Key) throws Exception {
+        // 1. Same content already stored for this owner? Reference it instead of storing another copy
+        long started = System.nanoTime();
+        String blobId = null;
+        if (blobIndex.isEnabled()) {
+            blobId = encryptionService.contentId(ownerId, file.getInputStream());
+            started = metrics.stage(UPLOAD, "content_hash", started);
+            FileEntity blob = blobIndex.acquire(blobId);
+            started = metrics.stage(UPLOAD, "dedup_lookup", started);
+            if (blob != null) {
+                logger.info("Deduplicated upload file_id={} onto blob {}", fileId, blobId);
+                metrics.bytes(UPLOAD, PLAINTEXT, file.getSize());
+                return sharedEntity(file, ownerId, fileId, blob);
+            }
+        }
+
+        // 2. Encryption Logic (streamed in fixed-size authenticated segments)
         SecretKey aesKey = encryptionService.generateAesKey();
-        byte[] iv = encryptionService.generateIv();
-        byte[] encryptedContent = encryptionService.encryptData(file.getBytes(), aesKey, iv);
+        byte[] noncePrefix = encryptionService.generateNoncePrefix();
         String encryptedAesKey = encryptionService.encryptKeyLocally(aesKey);
+        started = metrics.stage(UPLOAD, "key_generation", started);
+
+        // 3. Stream Encrypted File to S3 (parallel multipart for large files; parts encrypt while others send)
+        //    Compressible content is deflated first; the ciphertext is copied into the local blob cache
+        //    on the way, published once S3 has it
+        //    ("encrypt" is the time the store spent pulling from the encrypting stream, so it is part of "object_put")
+        try (CompressionService.EncodedContent content = compressionService.encode(file)) {
+            if (content.compression() != null) started = metrics.stage(UPLOAD, "compress", started);
+            long encryptedLength = encryptionService.encryptedLength(content.length());
+            try (EncryptedBlobCache.Fill cacheFill = blobCache.beginFill(s3Key, encryptedLength);
+                 InputStream encrypted = cacheFill.tee(metrics.metered(
+                         encryptionService.encryptStream(content.open(), aesKey, noncePrefix), UPLOAD, "encrypt", null), false)) {
+                objectStore.put(s3Key, encrypted, encryptedLength);
+                cacheFill.commit();
+            }
+            started = metrics.stage(UPLOAD, "object_put", started);
+            metrics.bytes(UPLOAD, PLAINTEXT, file.getSize());
+            metrics.bytes(UPLOAD, CIPHERTEXT, encryptedLength);
+            FileEntity entity = newEntity(file, ownerId, fileId, s3Key, encryptedAesKey, noncePrefix, content);
+            if (blobId != null) {
+                registerBlob(entity, blobId);
+                metrics.stage(UPLOAD, "dedup_register", started);
+            }
+            return entity;
+        } catch (Exception e) {
+            // Drop any half-written object (and a registration that may have landed despite the error)
+            if (blobId != null) blobIndex.unregister(blobId, s3Key);
+            deleteObjectQuietly(s3Key);
+            throw e;
+        }
+    }
 
-        // 3. Upload Encrypted File to S3
-        s3Client.putObject(PutObjectRequest.builder().bucket(bucketName).key(s3Key).build(),
-                RequestBody.fromBytes(encryptedContent));
+    // Makes a newly stored object the shared copy for its content (unless another upload of it won)
+    private void registerBlob(FileEntity entity, String blobId) {
+        if (blobId != null && blobIndex.register(blobId, entity)) {
+            entity.setBlobId(blobId);
+        }
+    }
 
-        // 4. Save Metadata to DynamoDB (WITH SIZE)
+    // Undoes storeObject() for a file whose metadata could not be saved
+    private void discardObject(FileEntity entity) {
+        try {
+            if (entity.getBlobId() == null || blobIndex.release(entity.getBlobId())) {
+                deleteObjectQuietly(entity.getS3Key());
+                blobCache.invalidate(entity.getS3Key());
+            }
+        } catch (Exception e) {
+            logger.warn("Could not release blob {} of file_id={}: {}", entity.getBlobId(), entity.getFileId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Stores many files in one request: a single quota reservation for the total, objects
+     * encrypted and stored concurrently on a bounded pool, and metadata written with
+     * BatchWriteItem. Every file gets its own result, so one failure does not sink the rest.
+     */
+    public List<UploadResult> uploadFiles(List<MultipartFile> files, String ownerId) {
+        // 1. Reserve storage for the whole batch (throws "Storage Limit Exceeded")
+        long totalSize = files.stream().mapToLong(MultipartFile::getSize).sum();
+        long started = System.nanoTime();
+        quotaService.reserve(ownerId, totalSize);
+        started = metrics.stage(BATCH_UPLOAD, "quota_reserve", started);
+
+        long savedBytes = 0;
+        try {
+            // 2. Encrypt + store every object in parallel
+            List<CompletableFuture<FileEntity>> stores = files.stream()
+                    .map(file -> CompletableFuture.supplyAsync(() -> unchecked(() -> storeBatchObject(file, ownerId)),
+                            batchUploadWorkers))
+                    .toList();
+
+            UploadResult[] results = new UploadResult[files.size()];
+            List<FileEntity> stored = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    stored.add(stores.get(i).join());
+                } catch (CompletionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    results[i] = UploadResult.failed(files.get(i).getOriginalFilename(), cause.getMessage());
+                }
+            }
+
+            started = metrics.stage(BATCH_UPLOAD, "store_objects", started);
+
+            // 3. Metadata for everything that was stored, 25 rows per request
+            List<FileEntity> unsaved = metadataRepository.saveAll(stored);
+            started = metrics.stage(BATCH_UPLOAD, "metadata_save", started);
+            Iterator<FileEntity> next = stored.iterator();
+            List<FileEntity> saved = new ArrayList<>();
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] != null) continue;
+                FileEntity entity = next.next();
+                if (unsaved.contains(entity)) {
+                    discardObject(entity);
+                    results[i] = UploadResult.failed(entity.getFilename(), "Failed to save file metadata");
+                } else {
+                    savedBytes += entity.getFileSize();
+                    saved.add(entity);
+                    results[i] = UploadResult.stored(entity);
+                }
+            }
+            searchIndex.addedAll(ownerId, saved);
+            logger.info("Batch upload for ownerId={}: {} of {} files stored", ownerId,
+                    results.length - Arrays.stream(results).filter(r -> !r.success()).count(), results.length);
+            return List.of(results);
+        } finally {
+            // 4. Settle the reservation: saved bytes become used, the rest is handed back
+            started = System.nanoTime();
+            try {
+                if (savedBytes > 0) quotaService.commit(ownerId, savedBytes);
+                if (totalSize > savedBytes) quotaService.release(ownerId, totalSize - savedBytes);
+            } catch (Exception e) {
+                logger.warn("Could not settle batch usage for ownerId={}: {}", ownerId, e.getMessage());
+            }
+            metrics.stage(BATCH_UPLOAD, "quota_settle", started);
+        }
+    }
+
+    private FileEntity storeBatchObject(MultipartFile file, String ownerId) throws Exception {
+        String fileId = UUID.randomUUID().toString();
+        return storeObject(file, ownerId, fileId, ObjectKeys.file(ownerId, fileId));
+    }
+
+    private FileEntity newEntity(MultipartFile file, String ownerId, String fileId, String s3Key,
+                                 String encryptedAesKey, byte[] noncePrefix, CompressionService.EncodedContent content) {
         FileEntity entity = new FileEntity(
                 fileId,
                 ownerId,
                 file.getOriginalFilename(),
                 s3Key,
                 encryptedAesKey,
-                Base64.getEncoder().encodeToString(iv),
+                Base64.getEncoder().encodeToString(noncePrefix),
                 file.getContentType(),
-                newFileSize // <--- Saving the size now
+                file.getSize(), // <--- Saving the size now
+                SegmentedGcmFormat.VERSION,
+                encryptionService.getSegmentSize(),
+                System.currentTimeMillis(),
+                content.compression(),
+                content.compression() == null ? null : content.length(),
+                null,
+                encryptionService.activeKeyId()
         );
         
         // Explicitly set the partition key to ensure it's not null
@@ -93,12 +367,36 @@ public class FileService {
                     ownerId, file.getOriginalFilename());
             throw new IllegalStateException("file_id cannot be null or empty");
         }
-        
+        return entity;
+    }
+
+    // A new file row that reads an existing blob's object (same content, so the same size)
+    private FileEntity sharedEntity(MultipartFile file, String ownerId, String fileId, FileEntity blob) {
+        return new FileEntity(
+                fileId,
+                ownerId,
+                file.getOriginalFilename(),
+                blob.getS3Key(),
+                blob.getEncryptedAesKey(),
+                blob.getIv(),
+                file.getContentType(),
+                file.getSize(),
+                blob.getEncryptionFormat(),
+                blob.getSegmentSize(),
+                System.currentTimeMillis(),
+                blob.getCompression(),
+                blob.getCompressedSize(),
+                blob.getBlobId(),
+                blob.getMasterKeyId()
+        );
+    }
+
+    private void saveMetadata(FileEntity entity) {
         logger.info("Saving file metadata to DynamoDB: file_id={}, ownerId={}, filename={}", 
                 entity.getFileId(), entity.getOwnerId(), entity.getFilename());
         
         try {
-            dynamoDb.table(tableName, TableSchema.fromBean(FileEntity.class)).putItem(entity);
+            metadataRepository.save(entity);
             logger.info("Successfully saved file metadata for file_id={}", entity.getFileId());
         } catch (DynamoDbException e) {
             logger.error("DynamoDB error saving file metadata: file_id={}, error={}", 
@@ -111,105 +409,531 @@ public class FileService {
         }
     }
 
-    // Helper method to calculate total storage used by a user
-    public long getUsedStorage(String ownerId) {
-        // Get all files belonging to this user
-        List<FileEntity> userFiles = listFiles(ownerId);
+    // ---------------------------------------------------------------------------------------------
+    // Heap each kind of transfer pins while it runs, for TransferAdmission. Bodies are streamed, so
+    // this is buffers rather than file sizes, except for legacy objects which are decrypted whole.
+    // ---------------------------------------------------------------------------------------------
+
+    // One plaintext and one ciphertext segment, plus whatever the store buffers for the put
+    public long uploadMemory(long fileSize) {
+        return 2L * encryptionService.getSegmentSize() + STREAM_BUFFER
+                + objectStore.putMemory(encryptionService.encryptedLength(fileSize));
+    }
 
-        // Sum up their file sizes
-        return userFiles.stream()
-                .mapToLong(file -> file.getFileSize() == null ? 0 : file.getFileSize())
+    // Batch files are stored batchParallelism at a time, so only the largest few count
+    public long uploadMemory(List<MultipartFile> files) {
+        return files.stream()
+                .map(file -> uploadMemory(file.getSize()))
+                .sorted(Comparator.reverseOrder())
+                .limit(batchParallelism)
+                .mapToLong(Long::longValue)
                 .sum();
     }
 
-    public byte[] downloadFile(String fileId) throws Exception {
-        // 1. Create Key Object (FIXED THIS PART)
-        // CORRECTED LINE: Use .partitionValue() instead of .partitionKey()
-        Key key = Key.builder()
-                .partitionValue(AttributeValue.builder().s(fileId).build())
-                .build();
+    public long downloadMemory(FileEntity entity) {
+        if (entity.getEncryptionFormat() == null) {
+            // Ciphertext read whole, then the plaintext
+            return 2 * Math.max(storedLength(entity), 0) + STREAM_BUFFER;
+        }
+        return 2L * entity.getSegmentSize() + STREAM_BUFFER;
+    }
+
+    // Total storage used by a user (O(1) read of the usage counters)
+    public long getUsedStorage(String ownerId) {
+        return quotaService.getUsage(ownerId).usedBytes();
+    }
+
+    private void deleteObjectQuietly(String s3Key) {
+        try {
+            objectStore.delete(s3Key);
+        } catch (Exception e) {
+            logger.warn("Could not clean up stored object {}: {}", s3Key, e.getMessage());
+        }
+    }
+
+    // Opens the whole decrypted file as a stream; nothing is buffered beyond one segment
+    public InputStream openDownload(FileEntity entity) throws Exception {
+        // 1. Decrypt Key via KMS
+        long started = System.nanoTime();
+        SecretKey aesKey = encryptionService.decryptKeyLocally(entity.getMasterKeyId(), entity.getEncryptedAesKey());
+        started = metrics.stage(DOWNLOAD, "key_unwrap", started);
+
+        // 2. Legacy objects were sealed in one shot with a single IV and must be read whole
+        if (entity.getEncryptionFormat() == null) {
+            byte[] plaintext = decryptLegacy(entity, aesKey);
+            metrics.stage(DOWNLOAD, "decrypt", started);
+            return meteredPlaintext(new ByteArrayInputStream(plaintext), null);
+        }
+
+        // 3. Decrypt (and inflate) while reading from the local cache or the object store
+        InputStream encrypted = openObject(entity);
+        metrics.stage(DOWNLOAD, "object_open", started);
+        return meteredPlaintext(compressionService.decode(encryptionService.decryptStream(encrypted, aesKey),
+                entity.getCompression()), "decrypt");
+    }
+
+    // Opens plaintext bytes [start, end] (inclusive), fetching only the ciphertext segments that cover them
+    public InputStream openDownload(FileEntity entity, long start, long end) throws Exception {
+        long length = end - start + 1;
+        if (entity.getEncryptionFormat() != null && entity.getCompression() != null) {
+            // Compressed offsets do not map onto plaintext ones: inflate from the start and skip ahead
+            InputStream plaintext = openDownload(entity);
+            plaintext.skipNBytes(start);
+            return new LimitedInputStream(plaintext, length);
+        }
+
+        long started = System.nanoTime();
+        SecretKey aesKey = encryptionService.decryptKeyLocally(entity.getMasterKeyId(), entity.getEncryptedAesKey());
+        started = metrics.stage(DOWNLOAD, "key_unwrap", started);
+
+        if (entity.getEncryptionFormat() == null) {
+            byte[] plaintext = decryptLegacy(entity, aesKey);
+            metrics.stage(DOWNLOAD, "decrypt", started);
+            return meteredPlaintext(new ByteArrayInputStream(plaintext, (int) start, (int) length), null);
+        }
+
+        // 1. Map the plaintext range onto whole segments
+        SegmentRange segments = SegmentRange.of(entity, start, end);
+
+        // 2. Fetch just those segments; the header is rebuilt from metadata instead of being downloaded.
+        //    A partial read is never cached, but a cached copy serves any range.
+        InputStream encrypted = blobCache.open(entity.getS3Key(), segments.cipherStart(), segments.cipherEnd());
+        if (encrypted == null) {
+            encrypted = objectStore.get(entity.getS3Key(), segments.cipherStart(), segments.cipherEnd());
+        }
+        metrics.stage(DOWNLOAD, "object_open", started);
+
+        // 3. Decrypt and trim to the requested bytes
+        return meteredPlaintext(segments.decrypt(meteredCiphertext(encrypted), aesKey, entity, start, length), "decrypt");
+    }
 
-        // 2. Get Metadata
-        FileEntity entity = dynamoDb.table(tableName, TableSchema.fromBean(FileEntity.class))
-                .getItem(key);
+    // The ciphertext segments covering a plaintext byte range of a format-1 object
+    private record SegmentRange(int segmentSize, long firstSegment, long finalSegment, long cipherStart, long cipherEnd) {
+
+        static SegmentRange of(FileEntity entity, long start, long end) {
+            int segmentSize = entity.getSegmentSize();
+            long firstSegment = start / segmentSize;
+            long lastSegment = end / segmentSize;
+            long finalSegment = SegmentedGcmFormat.segmentCount(entity.getFileSize(), segmentSize) - 1;
+            long cipherStart = SegmentedGcmFormat.segmentOffset(firstSegment, segmentSize);
+            long cipherEnd = Math.min(SegmentedGcmFormat.segmentOffset(lastSegment + 1, segmentSize),
+                    SegmentedGcmFormat.ciphertextLength(entity.getFileSize(), segmentSize)) - 1;
+            return new SegmentRange(segmentSize, firstSegment, finalSegment, cipherStart, cipherEnd);
+        }
+
+        String httpRange() {
+            return "bytes=" + cipherStart + "-" + cipherEnd;
+        }
 
-        if(entity == null) throw new RuntimeException("File not found");
+        InputStream decrypt(InputStream encrypted, SecretKey aesKey, FileEntity entity, long start, long length)
+                throws IOException {
+            byte[] header = SegmentedGcmFormat.header(segmentSize, Base64.getDecoder().decode(entity.getIv()));
+            InputStream plaintext = new DecryptingInputStream(encrypted, aesKey, header, firstSegment, finalSegment);
+            plaintext.skipNBytes(start - firstSegment * segmentSize);
+            return new LimitedInputStream(plaintext, length);
+        }
+    }
 
-        // 3. Download Encrypted Content from S3
-        byte[] encryptedContent = s3Client.getObject(req -> req.bucket(bucketName).key(entity.getS3Key()))
-                .readAllBytes();
+    // Whole ciphertext object: local cache first, otherwise the object store (cached as it is read)
+    private InputStream openObject(FileEntity entity) throws IOException {
+        InputStream cached = blobCache.open(entity.getS3Key());
+        if (cached != null) return meteredCiphertext(cached);
+        return meteredCiphertext(
+                blobCache.readThrough(entity.getS3Key(), objectStore.get(entity.getS3Key()), storedLength(entity)));
+    }
 
-        // 4. Decrypt Key via KMS
-        SecretKey aesKey = encryptionService.decryptKeyLocally(entity.getEncryptedAesKey());
-        byte[] iv = Base64.getDecoder().decode(entity.getIv());
+    // "object_read" is the time spent waiting for ciphertext; "decrypt" includes it, as decryption pulls the ciphertext
+    private InputStream meteredCiphertext(InputStream encrypted) {
+        return metrics.metered(encrypted, DOWNLOAD, "object_read", CIPHERTEXT);
+    }
 
-        // 5. Decrypt Content
-        return encryptionService.decryptData(encryptedContent, aesKey, iv);
+    private InputStream meteredPlaintext(InputStream plaintext, String stage) {
+        return metrics.metered(plaintext, DOWNLOAD, stage, PLAINTEXT);
     }
 
-    // Update this method to accept ownerId
+    // Ciphertext size of the stored object, or -1 for old records without a plaintext size
+    private static long storedLength(FileEntity entity) {
+        if (entity.getFileSize() == null) return -1;
+        if (entity.getEncryptionFormat() == null) {
+            return entity.getFileSize() + SegmentedGcmFormat.TAG_LENGTH; // single-shot GCM
+        }
+        long encrypted = entity.getCompression() != null ? entity.getCompressedSize() : entity.getFileSize();
+        return SegmentedGcmFormat.ciphertextLength(encrypted, entity.getSegmentSize());
+    }
+
+    private byte[] decryptLegacy(FileEntity entity, SecretKey aesKey) throws Exception {
+        try (InputStream encrypted = openObject(entity)) {
+            byte[] iv = Base64.getDecoder().decode(entity.getIv());
+            return encryptionService.decryptData(encrypted.readAllBytes(), aesKey, iv);
+        }
+    }
+
+    // All of a user's files, newest first (follows every page of the owner index)
     public List<FileEntity> listFiles(String ownerId) {
-        // We scan the table and filter by the Owner ID in Java (Simple and effective for this scale)
-        return dynamoDb.table(tableName, TableSchema.fromBean(FileEntity.class))
-                .scan()
-                .items()
+        return metadataRepository.ownerIndex()
+                .query(QueryEnhancedRequest.builder()
+                        .queryConditional(QueryConditional.keyEqualTo(k -> k.partitionValue(ownerId)))
+                        .scanIndexForward(false)
+                        .build())
                 .stream()
-                .filter(file -> file.getOwnerId().equals(ownerId)) // <--- The Security Fix
+                .flatMap(page -> page.items().stream())
                 .collect(Collectors.toList());
     }
 
+    // Served from the node's in-memory index of the user's files, see FileSearchIndex
+    public FileSearchPage searchFiles(String ownerId, FileSearchIndex.Query query) {
+        return searchIndex.search(ownerId, query);
+    }
+
+    // One page of a user's files, newest first; pageToken comes from the previous page
+    public FilePage listFiles(String ownerId, int limit, String pageToken) {
+        long started = System.nanoTime();
+        Page<FileEntity> page = metadataRepository.ownerIndex()
+                .query(pageQuery(ownerId, limit, pageToken))
+                .iterator()
+                .next();
+        metrics.stage(LIST, "index_query", started);
 
-    // Add these imports at the top if missing:
-    // import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+        return new FilePage(page.items(), PageTokens.encode(page.lastEvaluatedKey()));
+    }
+
+    private static QueryEnhancedRequest pageQuery(String ownerId, int limit, String pageToken) {
+        Map<String, AttributeValue> startKey = PageTokens.decode(pageToken);
+        if (startKey != null && !ownerId.equals(startKey.get("ownerId") == null ? null : startKey.get("ownerId").s())) {
+            throw new IllegalArgumentException("Page token does not belong to this user");
+        }
+        return QueryEnhancedRequest.builder()
+                .queryConditional(QueryConditional.keyEqualTo(k -> k.partitionValue(ownerId)))
+                .scanIndexForward(false)
+                .limit(limit)
+                .exclusiveStartKey(startKey)
+                .build();
+    }
 
     public void deleteFile(String fileId, String ownerId) {
         // 1. Get Metadata to find the S3 Key
+        long started = System.nanoTime();
         FileEntity entity = getFileMetadata(fileId);
+        started = metrics.stage(DELETE, "metadata_lookup", started);
 
         // Security check: Ensure the user owns this file
         if (!entity.getOwnerId().equals(ownerId)) {
             throw new RuntimeException("Unauthorized access");
         }
 
-        // 2. Delete from S3
-        s3Client.deleteObject(software.amazon.awssdk.services.s3.model.DeleteObjectRequest.builder()
-                .bucket(bucketName)
-                .key(entity.getS3Key())
-                .build());
+        FileEntity deleted;
+        if (entity.getBlobId() == null) {
+            // 2. Delete the stored object
+            objectStore.delete(entity.getS3Key());
+
+            blobCache.invalidate(entity.getS3Key());
+            started = metrics.stage(DELETE, "object_delete", started);
+
+            // 3. Delete from DynamoDB (also evicts the cached copy)
+            deleted = metadataRepository.delete(fileId);
+            started = metrics.stage(DELETE, "metadata_delete", started);
+        } else {
+            // 2-3. Shared object: drop the row, then the reference; the object goes with the last one
+            deleted = metadataRepository.delete(fileId);
+            started = metrics.stage(DELETE, "metadata_delete", started);
+            if (deleted != null) releaseBlob(deleted);
+            started = metrics.stage(DELETE, "blob_release", started);
+        }
 
-        // 3. Delete from DynamoDB
-        Key key = Key.builder()
-                .partitionValue(software.amazon.awssdk.services.dynamodb.model.AttributeValue.builder().s(fileId).build())
-                .build();
-        dynamoDb.table(tableName, TableSchema.fromBean(FileEntity.class)).deleteItem(key);
+        if (deleted != null) searchIndex.removed(ownerId, fileId);
+
+        // 4. Give the space back (only if this call actually removed the row); also moves the listing version
+        if (deleted != null) {
+            quotaService.recordDeletion(ownerId, deleted.getFileSize() == null ? 0 : deleted.getFileSize());
+            metrics.stage(DELETE, "quota_update", started);
+        }
     }
 
-    // Add this new method so the Controller can get the filename
+    private void releaseBlob(FileEntity deleted) {
+        boolean lastReference = blobIndex.isConfigured()
+                ? blobIndex.release(deleted.getBlobId())
+                // No blob table any more (dedup switched off): the owner's other rows are the only references left
+                : !sharedWithOtherFiles(deleted);
+        if (lastReference) {
+            objectStore.delete(deleted.getS3Key());
+            blobCache.invalidate(deleted.getS3Key());
+        }
+    }
+
+    // Deduplicated objects are only ever shared between files of the same owner
+    private boolean sharedWithOtherFiles(FileEntity deleted) {
+        return metadataRepository.ownerIndex()
+                .query(QueryEnhancedRequest.builder()
+                        .queryConditional(QueryConditional.keyEqualTo(k -> k.partitionValue(deleted.getOwnerId())))
+                        .attributesToProject("fileId", "s3Key")
+                        .build())
+                .stream()
+                .flatMap(page -> page.items().stream())
+                .anyMatch(f -> deleted.getS3Key().equals(f.getS3Key()) && !deleted.getFileId().equals(f.getFileId()));
+    }
+
+    // Add this new method so the Controller can get the filename (served from the metadata cache)
     public FileEntity getFileMetadata(String fileId) {
-        Key key = Key.builder()
-                .partitionValue(software.amazon.awssdk.services.dynamodb.model.AttributeValue.builder().s(fileId).build())
-                .build();
-        return dynamoDb.table(tableName, TableSchema.fromBean(FileEntity.class)).getItem(key);
+        return metadataRepository.findById(fileId);
     }
 
-        public void deleteAllForUser(String ownerId) {
-                // Delete all files from S3 and DynamoDB for this user
-                List<FileEntity> files = listFiles(ownerId);
-                for (FileEntity f : files) {
-                        deleteFile(f.getFileId(), ownerId);
-                }
+    // ---------------------------------------------------------------------------------------------
+    // Async variants used by the controllers. With app.io-mode=async all S3/DynamoDB calls go through
+    // the non-blocking clients; in the default blocking mode they run the methods above on the calling
+    // thread and return an already-completed future, so both modes share one controller code path.
+    // ---------------------------------------------------------------------------------------------
+
+    public CompletableFuture<Void> uploadFileAsync(MultipartFile file, String ownerId) {
+        if (!isAsync()) {
+            return completed(() -> {
+                uploadFile(file, ownerId);
+                return null;
+            });
+        }
 
-                // Delete profile photo if exists
-                String profileKey = "profiles/" + ownerId;
-                try {
-                        s3Client.deleteObject(DeleteObjectRequest.builder()
-                                        .bucket(bucketName)
-                                        .key(profileKey)
-                                        .build());
-                } catch (Exception ignored) {
-                        // No profile photo or already deleted
+        long newFileSize = file.getSize();
+        String fileId = UUID.randomUUID().toString();
+        String s3Key = ObjectKeys.file(ownerId, fileId);
+
+        // Same reserve -> store -> commit/release flow as uploadFile(); the quota counters stay on the
+        // blocking client, so they run on the worker pool rather than on an SDK completion thread
+        return CompletableFuture.runAsync(() -> quotaService.reserve(ownerId, newFileSize), asyncWorkers)
+                .thenCompose(reserved -> storeFileAsync(file, ownerId, fileId, s3Key)
+                        .handleAsync((stored, failure) -> {
+                            if (failure != null) {
+                                // storeFileAsync has already cleaned up the object
+                                quotaService.release(ownerId, newFileSize);
+                                throw failure instanceof CompletionException ce ? ce : new CompletionException(failure);
+                            }
+                            try {
+                                quotaService.commit(ownerId, newFileSize);
+                            } catch (Exception e) {
+                                logger.warn("Could not commit usage for ownerId={}, file_id={}: {}", ownerId, fileId, e.getMessage());
+                            }
+                            return null;
+                        }, asyncWorkers));
+    }
+
+    private CompletableFuture<Void> storeFileAsync(MultipartFile file, String ownerId, String fileId, String s3Key) {
+        CompressionService.EncodedContent content = null;
+        String blobId = null;
+        try {
+            // Dedup lookups use the blocking index; this already runs on a worker thread
+            if (blobIndex.isEnabled()) {
+                blobId = encryptionService.contentId(ownerId, file.getInputStream());
+                FileEntity blob = blobIndex.acquire(blobId);
+                if (blob != null) {
+                    logger.info("Deduplicated upload file_id={} onto blob {}", fileId, blobId);
+                    metrics.bytes(UPLOAD, PLAINTEXT, file.getSize());
+                    return saveMetadataAsync(sharedEntity(file, ownerId, fileId, blob));
                 }
+            }
+
+            SecretKey aesKey = encryptionService.generateAesKey();
+            byte[] noncePrefix = encryptionService.generateNoncePrefix();
+            String encryptedAesKey = encryptionService.encryptKeyLocally(aesKey);
+            // Runs on a worker thread (after the quota reservation), so compressing here blocks nothing
+            content = compressionService.encode(file);
+            FileEntity entity = newEntity(file, ownerId, fileId, s3Key, encryptedAesKey, noncePrefix, content);
+
+            // The SDK pulls encrypted chunks on demand; large bodies are split into parallel parts by the client
+            long encryptedLength = encryptionService.encryptedLength(content.length());
+            EncryptedBlobCache.Fill cacheFill = blobCache.beginFill(s3Key, encryptedLength);
+            InputStream encrypted = cacheFill.tee(
+                    encryptionService.encryptStream(content.open(), aesKey, noncePrefix), false);
+            CompressionService.EncodedContent stored = content;
+            String contentBlobId = blobId;
+            long started = System.nanoTime();
+            return s3AsyncClient.putObject(req -> req.bucket(bucketName).key(s3Key),
+                            new ChunkedAsyncRequestBody(encrypted, encryptedLength, asyncWorkers))
+                    .whenComplete((response, failure) -> {
+                        if (failure == null) {
+                            cacheFill.commit();
+                            metrics.stage(UPLOAD, "object_put", started);
+                            metrics.bytes(UPLOAD, PLAINTEXT, file.getSize());
+                            metrics.bytes(UPLOAD, CIPHERTEXT, encryptedLength);
+                        }
+                        cacheFill.close();
+                        stored.close();
+                    })
+                    .thenRunAsync(() -> registerBlob(entity, contentBlobId), asyncWorkers)
+                    .whenCompleteAsync((registered, failure) -> {
+                        if (failure != null) {
+                            // Drop any half-written object (and a registration that may have landed)
+                            if (contentBlobId != null) blobIndex.unregister(contentBlobId, s3Key);
+                            deleteObjectAsync(s3Key);
+                        }
+                    }, asyncWorkers)
+                    .thenCompose(registered -> saveMetadataAsync(entity));
+        } catch (Exception e) {
+            if (content != null) content.close();
+            if (blobId != null) blobIndex.unregister(blobId, s3Key);
+            return CompletableFuture.failedFuture(e);
         }
+    }
 
+    private CompletableFuture<Void> saveMetadataAsync(FileEntity entity) {
+        return metadataRepository.saveAsync(entity)
+                .whenCompleteAsync((saved, failure) -> {
+                    if (failure != null) {
+                        logger.error("Async upload failed: file_id={}, error={}", entity.getFileId(), failure.getMessage());
+                        discardObject(entity);
+                    } else {
+                        searchIndex.added(entity);
+                    }
+                }, asyncWorkers);
+    }
+
+    private void deleteObjectAsync(String s3Key) {
+        s3AsyncClient.deleteObject(req -> req.bucket(bucketName).key(s3Key))
+                .exceptionally(e -> {
+                    logger.warn("Could not clean up stored object {}: {}", s3Key, e.getMessage());
+                    return null;
+                });
+    }
+
+    public CompletableFuture<FileEntity> getFileMetadataAsync(String fileId) {
+        if (!isAsync()) {
+            return completed(() -> getFileMetadata(fileId));
+        }
+        return metadataRepository.findByIdAsync(fileId);
+    }
+
+    public CompletableFuture<InputStream> openDownloadAsync(FileEntity entity) {
+        if (!isAsync()) {
+            return completed(() -> openDownload(entity));
+        }
+        if (entity.getEncryptionFormat() == null) {
+            // Legacy objects are read whole anyway; keep them off the request thread
+            return supplyOnWorkers(() -> openDownload(entity));
+        }
+
+        SecretKey aesKey;
+        try {
+            aesKey = encryptionService.decryptKeyLocally(entity.getMasterKeyId(), entity.getEncryptedAesKey());
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        InputStream cached = blobCache.open(entity.getS3Key());
+        if (cached != null) {
+            return supplyOnWorkers(() -> meteredPlaintext(compressionService.decode(
+                    encryptionService.decryptStream(meteredCiphertext(cached), aesKey), entity.getCompression()), "decrypt"));
+        }
+        // Resolves once S3 has answered; the body is pulled through the decrypting stream as it is written out
+        long started = System.nanoTime();
+        return s3AsyncClient.getObject(req -> req.bucket(bucketName).key(entity.getS3Key()),
+                        AsyncResponseTransformer.<GetObjectResponse>toBlockingInputStream())
+                .thenApplyAsync(encrypted -> unchecked(() -> {
+                    metrics.stage(DOWNLOAD, "object_open", started);
+                    InputStream ciphertext = meteredCiphertext(
+                            blobCache.readThrough(entity.getS3Key(), encrypted, encrypted.response().contentLength()));
+                    return meteredPlaintext(compressionService.decode(encryptionService.decryptStream(ciphertext, aesKey),
+                            entity.getCompression()), "decrypt");
+                }), asyncWorkers);
+    }
+
+    public CompletableFuture<InputStream> openDownloadAsync(FileEntity entity, long start, long end) {
+        if (!isAsync()) {
+            return completed(() -> openDownload(entity, start, end));
+        }
+        if (entity.getEncryptionFormat() == null || entity.getCompression() != null) {
+            return supplyOnWorkers(() -> openDownload(entity, start, end));
+        }
+
+        SecretKey aesKey;
+        try {
+            aesKey = encryptionService.decryptKeyLocally(entity.getMasterKeyId(), entity.getEncryptedAesKey());
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        SegmentRange segments = SegmentRange.of(entity, start, end);
+        InputStream cached = blobCache.open(entity.getS3Key(), segments.cipherStart(), segments.cipherEnd());
+        if (cached != null) {
+            return supplyOnWorkers(() -> meteredPlaintext(
+                    segments.decrypt(meteredCiphertext(cached), aesKey, entity, start, end - start + 1), "decrypt"));
+        }
+        long started = System.nanoTime();
+        return s3AsyncClient.getObject(req -> req.bucket(bucketName).key(entity.getS3Key()).range(segments.httpRange()),
+                        AsyncResponseTransformer.<GetObjectResponse>toBlockingInputStream())
+                .thenApplyAsync(encrypted -> unchecked(() -> {
+                    metrics.stage(DOWNLOAD, "object_open", started);
+                    return meteredPlaintext(segments.decrypt(meteredCiphertext(encrypted), aesKey, entity, start,
+                            end - start + 1), "decrypt");
+                }), asyncWorkers);
+    }
+
+    public CompletableFuture<FilePage> listFilesAsync(String ownerId, int limit, String pageToken) {
+        if (!isAsync()) {
+            return completed(() -> listFiles(ownerId, limit, pageToken));
+        }
+        QueryEnhancedRequest query;
+        try {
+            query = pageQuery(ownerId, limit, pageToken);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        // Only the first page is wanted; limit(1) cancels the publisher after it
+        AtomicReference<Page<FileEntity>> first = new AtomicReference<>();
+        long started = System.nanoTime();
+        return metadataRepository.ownerIndexAsync().query(query).limit(1).subscribe(first::set)
+                .whenComplete((done, failure) -> metrics.stage(LIST, "index_query", started))
+                .thenApply(done -> new FilePage(first.get().items(), PageTokens.encode(first.get().lastEvaluatedKey())));
+    }
+
+    public CompletableFuture<Void> deleteFileAsync(String fileId, String ownerId) {
+        if (!isAsync()) {
+            return completed(() -> {
+                deleteFile(fileId, ownerId);
+                return null;
+            });
+        }
+        return metadataRepository.findByIdAsync(fileId)
+                .thenCompose(entity -> {
+                    // Security check: Ensure the user owns this file
+                    if (entity == null || !entity.getOwnerId().equals(ownerId)) {
+                        throw new RuntimeException("Unauthorized access");
+                    }
+                    if (entity.getBlobId() != null) {
+                        // Shared object: drop the row, then the reference (blocking index, so on a worker)
+                        return metadataRepository.deleteAsync(fileId).thenApplyAsync(deleted -> {
+                            if (deleted != null) releaseBlob(deleted);
+                            return deleted;
+                        }, asyncWorkers);
+                    }
+                    blobCache.invalidate(entity.getS3Key());
+                    return s3AsyncClient.deleteObject(req -> req.bucket(bucketName).key(entity.getS3Key()))
+                            .thenCompose(response -> metadataRepository.deleteAsync(fileId));
+                })
+                .thenAcceptAsync(deleted -> {
+                    if (deleted != null) searchIndex.removed(ownerId, fileId);
+                    if (deleted != null) {
+                        quotaService.recordDeletion(ownerId, deleted.getFileSize() == null ? 0 : deleted.getFileSize());
+                    }
+                }, asyncWorkers);
+    }
+
+    // Blocking mode: run on the calling thread and report the outcome as a completed future
+    private static <T> CompletableFuture<T> completed(Callable<T> operation) {
+        try {
+            return CompletableFuture.completedFuture(operation.call());
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private <T> CompletableFuture<T> supplyOnWorkers(Callable<T> operation) {
+        return CompletableFuture.supplyAsync(() -> unchecked(operation), asyncWorkers);
+    }
+
+    private static <T> T unchecked(Callable<T> operation) {
+        try {
+            return operation.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
 
 }
\ No newline at end of file
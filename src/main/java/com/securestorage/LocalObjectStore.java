@@ -0,0 +1,286 @@
+package com.securestorage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * {@link ObjectStore} on the local filesystem under {@code app.storage.local.root}, for on-prem
+ * deployments and network-free test/benchmark runs.
+ *
+ * Writes go to a temp file in the target directory and are renamed into place, so readers never
+ * see a partial object. Reads are served from a {@link FileChannel}; copying a whole stream out
+ * ({@code transferTo}) uses {@link FileChannel#transferTo}, which lets the kernel move the bytes.
+ * Object metadata is kept in a properties file per key under {@code .meta}.
+ */
+@Component
+@ConditionalOnProperty(name = "app.storage.backend", havingValue = "local")
+public class LocalObjectStore implements ObjectStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalObjectStore.class);
+
+    private final Path root;
+    // Unfinished part assemblies, one directory each; outside the key space (keys never start with a dot)
+    private final Path parts;
+    // Metadata of each object, at the object's key under here
+    private final Path meta;
+
+    public LocalObjectStore(@Value("${app.storage.local.root:./data/objects}") String root) throws IOException {
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+        this.parts = this.root.resolve(".parts");
+        this.meta = this.root.resolve(".meta");
+        Files.createDirectories(this.parts);
+        Files.createDirectories(this.meta);
+        logger.info("Storing objects on local disk under {}", this.root);
+    }
+
+    @Override
+    public void put(String key, InputStream content, long contentLength, Map<String, String> metadata)
+            throws IOException {
+        // Metadata first: until the object is replaced, a reader may see new metadata with the old object, never the reverse
+        writeMetadata(key, metadata);
+        Path target = resolve(key);
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), ".upload-", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                content.transferTo(out);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public InputStream get(String key) throws IOException {
+        FileChannel channel = open(key);
+        return new ChannelInputStream(channel, channel.size());
+    }
+
+    @Override
+    public Map<String, String> metadata(String key) throws IOException {
+        if (!Files.isRegularFile(resolve(key))) throw new ObjectNotFoundException(key);
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(metaPath(key))) {
+            properties.load(in);
+        } catch (NoSuchFileException e) {
+            return Map.of();
+        }
+        Map<String, String> metadata = new HashMap<>();
+        properties.stringPropertyNames().forEach(name -> metadata.put(name, properties.getProperty(name)));
+        return metadata;
+    }
+
+    @Override
+    public long lastModified(String key) throws IOException {
+        try {
+            return Files.getLastModifiedTime(resolve(key)).toMillis();
+        } catch (NoSuchFileException e) {
+            throw new ObjectNotFoundException(key);
+        }
+    }
+
+    @Override
+    public InputStream get(String key, long start, long end) throws IOException {
+        FileChannel channel = open(key);
+        channel.position(start);
+        return new ChannelInputStream(channel, Math.min(end + 1, channel.size()));
+    }
+
+    @Override
+    public String startParts(String key) throws IOException {
+        resolve(key);
+        String uploadId = UUID.randomUUID().toString();
+        Files.createDirectory(parts.resolve(uploadId));
+        return uploadId;
+    }
+
+    @Override
+    public String putPart(String key, String uploadId, int partNumber, InputStream content, long contentLength)
+            throws IOException {
+        Path dir = partsDir(uploadId);
+        Path temp = Files.createTempFile(dir, ".part-", ".tmp");
+        try {
+            long written;
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                written = content.transferTo(out);
+            }
+            if (written != contentLength) {
+                throw new IOException("Part " + partNumber + " of " + key + " is " + written + " bytes, expected " + contentLength);
+            }
+            Files.move(temp, dir.resolve(Integer.toString(partNumber)), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return Integer.toString(partNumber);
+    }
+
+    @Override
+    public void completeParts(String key, String uploadId, List<String> partTags) throws IOException {
+        Path dir = partsDir(uploadId);
+        Path target = resolve(key);
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), ".upload-", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                for (int i = 1; i <= partTags.size(); i++) {
+                    Files.copy(dir.resolve(Integer.toString(i)), out);
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            throw new IOException("Missing part for " + key + ": " + e.getFile(), e);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        abortParts(key, uploadId);
+    }
+
+    @Override
+    public void abortParts(String key, String uploadId) {
+        Path dir = parts.resolve(uploadId).normalize();
+        if (!dir.getParent().equals(parts) || !Files.isDirectory(dir)) return;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            logger.warn("Could not remove parts of {}: {}", key, e.getMessage());
+        }
+    }
+
+    private Path partsDir(String uploadId) throws IOException {
+        Path dir = parts.resolve(uploadId).normalize();
+        if (!dir.getParent().equals(parts) || !Files.isDirectory(dir)) {
+            throw new IOException("Unknown upload " + uploadId);
+        }
+        return dir;
+    }
+
+    @Override
+    public void delete(String key) {
+        try {
+            Files.deleteIfExists(resolve(key));
+            Files.deleteIfExists(metaPath(key));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not delete " + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<String> keys) {
+        keys.forEach(this::delete);
+    }
+
+    private FileChannel open(String key) throws IOException {
+        try {
+            return FileChannel.open(resolve(key), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new ObjectNotFoundException(key);
+        }
+    }
+
+    private void writeMetadata(String key, Map<String, String> metadata) throws IOException {
+        Path target = metaPath(key);
+        if (metadata.isEmpty()) {
+            Files.deleteIfExists(target);
+            return;
+        }
+        Properties properties = new Properties();
+        properties.putAll(metadata);
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), ".meta-", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                properties.store(out, null);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Path metaPath(String key) {
+        return meta.resolve(root.relativize(resolve(key)));
+    }
+
+    // Keys are relative paths; anything escaping the root is rejected
+    private Path resolve(String key) {
+        Path path = root.resolve(key).normalize();
+        if (!path.startsWith(root) || path.equals(root)) {
+            throw new IllegalArgumentException("Invalid object key: " + key);
+        }
+        return path;
+    }
+
+    // Reads a channel from its current position up to limit
+    private static final class ChannelInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final long limit;
+
+        ChannelInputStream(FileChannel channel, long limit) {
+            this.channel = channel;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int n = read(single, 0, 1);
+            return n < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long remaining = limit - channel.position();
+            if (remaining <= 0) return -1;
+            return channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)));
+        }
+
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            long position = channel.position();
+            long copied = 0;
+            WritableByteChannel target = Channels.newChannel(out);
+            while (position + copied < limit) {
+                long n = channel.transferTo(position + copied, limit - position - copied, target);
+                if (n <= 0) break; // file shrank underneath us
+                copied += n;
+            }
+            channel.position(position + copied);
+            return copied;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
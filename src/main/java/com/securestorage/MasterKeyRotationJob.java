@@ -0,0 +1,439 @@
+package com.securestorage;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.ConsumedCapacity;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ReturnConsumedCapacity;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Online master-key rotation: re-wraps every stored file key under the active master key
+ * ({@code app.master-key-id}). Only the wrapped keys in DynamoDB change; the file keys themselves,
+ * and so all ciphertext in S3, stay as they are.
+ *
+ * Enable with {@code app.key-rotation.enabled=true} on one node, once every node runs with the new
+ * active key. File rows, dedup blob records and upload sessions are each read with a parallel
+ * Scan ({@code segments} segments, one thread each) that only returns records under another key.
+ * Every record is updated on its own, on condition that its wrapped key is still the one read, so
+ * a row deleted or re-uploaded meanwhile is left alone (BatchWriteItem can only put whole items
+ * and would bring deleted rows back). Reads and writes draw from capacity budgets in units per
+ * second ({@code read-capacity}, {@code write-capacity}), charged with the capacity DynamoDB
+ * reports, so foreground traffic keeps the rest of the table's throughput.
+ *
+ * The last key of every segment is checkpointed in the job table after each page, under a lease,
+ * so a restarted node carries on where the last one stopped.
+ */
+@Component
+@ConditionalOnProperty(name = "app.key-rotation.enabled", havingValue = "true")
+public class MasterKeyRotationJob implements ApplicationRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(MasterKeyRotationJob.class);
+
+    private static final String JOB_ID = "master-key-rotation";
+    private static final String RUNNING = "RUNNING";
+    private static final String STOPPED = "STOPPED";
+    private static final String COMPLETED = "COMPLETED";
+    private static final String FAILED = "FAILED";
+
+    // A table holding wrapped keys; files rows are also cached by FileMetadataRepository
+    private record Target(String name, String table, String keyAttribute, boolean files) {
+    }
+
+    private enum Outcome { REWRAPPED, SKIPPED, FAILED }
+
+    private final DynamoDbClient dynamoDbClient;
+    private final EncryptionService encryptionService;
+    private final FileMetadataRepository metadataRepository;
+    private final List<Target> targets = new ArrayList<>();
+    private final int segments;
+    private final int pageSize;
+    private final Duration lease;
+    private final CapacityBudget reads;
+    private final CapacityBudget writes;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final ExecutorService segmentWorkers;
+
+    private final AtomicLong rotated = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // Set on shutdown, or by the coordinator once a segment has failed
+    private volatile boolean stopping;
+    private volatile boolean aborted;
+    private Thread coordinator;
+
+    @Value("${aws.dynamodb.job-table}")
+    private String jobTable;
+
+    public MasterKeyRotationJob(DynamoDbClient dynamoDbClient, EncryptionService encryptionService,
+                                FileMetadataRepository metadataRepository,
+                                ContentBlobIndex blobIndex,
+                                @Value("${aws.dynamodb.table}") String fileTable,
+                                @Value("${aws.dynamodb.blob-table:}") String blobTable,
+                                @Value("${aws.dynamodb.upload-session-table:}") String sessionTable,
+                                @Value("${app.key-rotation.segments:16}") int segments,
+                                @Value("${app.key-rotation.page-size:100}") int pageSize,
+                                @Value("${app.key-rotation.read-capacity:500}") double readCapacity,
+                                @Value("${app.key-rotation.write-capacity:500}") double writeCapacity,
+                                @Value("${app.key-rotation.lease:2m}") Duration lease) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.encryptionService = encryptionService;
+        this.metadataRepository = metadataRepository;
+        targets.add(new Target("files", fileTable, "file_id", true));
+        if (blobIndex.isEnabled() && !blobTable.isBlank()) targets.add(new Target("blobs", blobTable, "blobId", false));
+        if (!sessionTable.isBlank()) targets.add(new Target("sessions", sessionTable, "sessionId", false));
+        this.segments = Math.max(segments, 1);
+        this.pageSize = Math.max(pageSize, 1);
+        this.lease = lease;
+        this.reads = new CapacityBudget(readCapacity);
+        this.writes = new CapacityBudget(writeCapacity);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.segmentWorkers = Executors.newFixedThreadPool(this.segments, r -> {
+            Thread t = new Thread(r, "key-rotation-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Runs in the background; the node serves traffic meanwhile
+    @Override
+    public void run(ApplicationArguments args) {
+        coordinator = new Thread(this::rotate, "key-rotation");
+        coordinator.setDaemon(true);
+        coordinator.start();
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        stopping = true;
+        if (coordinator != null) coordinator.join(TimeUnit.SECONDS.toMillis(30));
+        segmentWorkers.shutdownNow();
+    }
+
+    private void rotate() {
+        String target = encryptionService.activeKeyId();
+        Map<String, AttributeValue> job = claim(target);
+        if (job == null) return;
+
+        Map<String, String> cursors = new HashMap<>();
+        AttributeValue savedCursors = job.get("cursors");
+        if (savedCursors != null && savedCursors.hasM()) savedCursors.m().forEach((k, v) -> cursors.put(k, v.s()));
+        AttributeValue savedFinished = job.get("finished");
+        Set<String> finished = savedFinished != null && savedFinished.hasSs() ? Set.copyOf(savedFinished.ss()) : Set.of();
+        logger.info("Master key rotation to key {} {}: {} segments per table, {} RCU/s, {} WCU/s",
+                target, cursors.isEmpty() && finished.isEmpty() ? "started" : "resumed", segments,
+                reads.unitsPerSecond, writes.unitsPerSecond);
+
+        long started = System.currentTimeMillis();
+        try {
+            for (Target t : targets) {
+                List<Future<?>> running = new ArrayList<>();
+                for (int segment = 0; segment < segments; segment++) {
+                    String id = t.name() + "/" + segment;
+                    if (finished.contains(id)) continue;
+                    int s = segment;
+                    running.add(segmentWorkers.submit(() -> rotateSegment(t, s, target, cursors.get(id))));
+                }
+                for (Future<?> f : running) {
+                    awaitLogging(f, t);
+                }
+                if (stopping) break;
+            }
+            String state = stopping ? STOPPED : failed.get() == 0 ? COMPLETED : FAILED;
+            finish(state);
+            logger.info("Master key rotation to key {} {} in {} s: {} re-wrapped, {} skipped (changed meanwhile), {} failed",
+                    target, state.toLowerCase(), (System.currentTimeMillis() - started) / 1000,
+                    rotated.get(), skipped.get(), failed.get());
+        } catch (Exception e) {
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            aborted = true;
+            finish(stopping ? STOPPED : FAILED);
+            logger.error("Master key rotation to key {} stopped: {}", target, cause.getMessage(), cause);
+        }
+    }
+
+    private void awaitLogging(Future<?> segment, Target t) throws Exception {
+        while (true) {
+            try {
+                segment.get(30, TimeUnit.SECONDS);
+                return;
+            } catch (TimeoutException e) {
+                logger.info("Master key rotation ({}): {} re-wrapped, {} skipped, {} failed so far",
+                        t.name(), rotated.get(), skipped.get(), failed.get());
+            }
+        }
+    }
+
+    // One scan segment, page by page from the checkpointed key
+    private void rotateSegment(Target t, int segment, String target, String cursor) {
+        String id = t.name() + "/" + segment;
+        Map<String, AttributeValue> startKey = cursor == null ? null : Map.of(t.keyAttribute(), s(cursor));
+        do {
+            if (stopping || aborted) return;
+
+            // 1. Next page of records under another key (the filter is applied after the read, which is still charged)
+            Map<String, AttributeValue> from = startKey;
+            ScanResponse page = dynamoDbClient.scan(req -> req.tableName(t.table())
+                    .segment(segment)
+                    .totalSegments(segments)
+                    .limit(pageSize)
+                    .exclusiveStartKey(from)
+                    .filterExpression(EncryptionService.LEGACY_KEY_ID.equals(target)
+                            ? "masterKeyId <> :target"
+                            : "attribute_not_exists(masterKeyId) OR masterKeyId <> :target")
+                    .projectionExpression("#pk, encryptedAesKey, masterKeyId")
+                    .expressionAttributeNames(Map.of("#pk", t.keyAttribute()))
+                    .expressionAttributeValues(Map.of(":target", s(target)))
+                    .returnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+            reads.spend(units(page.consumedCapacity(), 1));
+
+            // 2. Re-wrap each one
+            long pageRotated = 0, pageSkipped = 0, pageFailed = 0;
+            for (Map<String, AttributeValue> item : page.items()) {
+                switch (rewrap(t, item, target)) {
+                    case REWRAPPED -> {
+                        pageRotated++;
+                        if (t.files()) metadataRepository.invalidate(item.get("file_id").s());
+                    }
+                    case FAILED -> pageFailed++;
+                    case SKIPPED -> pageSkipped++;
+                }
+            }
+            rotated.addAndGet(pageRotated);
+            skipped.addAndGet(pageSkipped);
+            failed.addAndGet(pageFailed);
+
+            // 3. Checkpoint
+            startKey = page.hasLastEvaluatedKey() && !page.lastEvaluatedKey().isEmpty() ? page.lastEvaluatedKey() : null;
+            checkpoint(id, startKey == null ? null : startKey.get(t.keyAttribute()).s(), pageRotated, pageSkipped, pageFailed);
+        } while (startKey != null);
+        logger.debug("Master key rotation segment {} done", id);
+    }
+
+    // SKIPPED if the record is already under the target key or changed since it was read
+    private Outcome rewrap(Target t, Map<String, AttributeValue> item, String target) {
+        String keyId = item.containsKey("masterKeyId") ? item.get("masterKeyId").s() : null;
+        if (encryptionService.isActiveKey(keyId)) return Outcome.SKIPPED;
+        AttributeValue wrapped = item.get("encryptedAesKey");
+        if (wrapped == null) return Outcome.SKIPPED;
+
+        String rewrapped;
+        try {
+            rewrapped = encryptionService.rewrapKey(keyId, wrapped.s());
+        } catch (Exception e) {
+            logger.warn("Could not re-wrap the key of {} {}={} (master key {}): {}", t.name(), t.keyAttribute(),
+                    item.get(t.keyAttribute()).s(), keyId, e.getMessage());
+            return Outcome.FAILED;
+        }
+
+        writes.spend(1);
+        try {
+            UpdateItemResponse response = dynamoDbClient.updateItem(req -> req.tableName(t.table())
+                    .key(Map.of(t.keyAttribute(), item.get(t.keyAttribute())))
+                    .updateExpression("SET encryptedAesKey = :new, masterKeyId = :target")
+                    .conditionExpression("encryptedAesKey = :old")
+                    .expressionAttributeValues(Map.of(":new", s(rewrapped), ":target", s(target), ":old", wrapped))
+                    .returnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+            writes.adjust(units(response.consumedCapacity(), 1) - 1);
+            return Outcome.REWRAPPED;
+        } catch (ConditionalCheckFailedException e) {
+            return Outcome.SKIPPED; // Deleted or re-uploaded since the scan
+        }
+    }
+
+    // --- Job record (partition key jobId in the job table) ---
+
+    // Takes the lease on the job, starting it over or resuming it; null if there is nothing to do here
+    private Map<String, AttributeValue> claim(String target) {
+        GetItemResponse response = dynamoDbClient.getItem(req -> req.tableName(jobTable).key(jobKey()).consistentRead(true));
+        Map<String, AttributeValue> current = response.hasItem() ? response.item() : null;
+        long now = System.currentTimeMillis();
+        boolean sameJob = current != null && target.equals(string(current, "targetKeyId"))
+                && number(current, "segments") == segments;
+        String state = current == null ? null : string(current, "state");
+
+        if (sameJob && COMPLETED.equals(state)) {
+            logger.info("Master key rotation to key {} already completed; set app.key-rotation.enabled=false", target);
+            return null;
+        }
+        if (RUNNING.equals(state) && now - number(current, "heartbeatAt") < lease.toMillis()) {
+            logger.info("Master key rotation is running on another node");
+            return null;
+        }
+
+        try {
+            if (sameJob && (RUNNING.equals(state) || STOPPED.equals(state))) {
+                // Resume from the checkpoints, unless another node took over since the read
+                dynamoDbClient.updateItem(req -> req.tableName(jobTable)
+                        .key(jobKey())
+                        .updateExpression("SET #owner = :me, heartbeatAt = :now, #state = :running")
+                        .conditionExpression("heartbeatAt = :seen")
+                        .expressionAttributeNames(Map.of("#owner", "owner", "#state", "state"))
+                        .expressionAttributeValues(Map.of(":me", s(nodeId), ":now", n(now), ":running", s(RUNNING),
+                                ":seen", current.get("heartbeatAt"))));
+                return current;
+            }
+
+            // A new rotation, or a failed one run again from the start
+            Map<String, AttributeValue> item = new HashMap<>(jobKey());
+            item.put("targetKeyId", s(target));
+            item.put("segments", n(segments));
+            item.put("state", s(RUNNING));
+            item.put("owner", s(nodeId));
+            item.put("heartbeatAt", n(now));
+            item.put("startedAt", n(now));
+            item.put("cursors", AttributeValue.builder().m(Map.of()).build());
+            item.put("rotated", n(0));
+            item.put("skipped", n(0));
+            item.put("failed", n(0));
+            dynamoDbClient.putItem(req -> {
+                req.tableName(jobTable).item(item);
+                if (current == null) {
+                    req.conditionExpression("attribute_not_exists(jobId)");
+                } else {
+                    req.conditionExpression("heartbeatAt = :seen")
+                            .expressionAttributeValues(Map.of(":seen", current.get("heartbeatAt")));
+                }
+            });
+            return item;
+        } catch (ConditionalCheckFailedException e) {
+            logger.info("Master key rotation was claimed by another node");
+            return null;
+        }
+    }
+
+    // Records a page: the segment's next start key (null = segment done) and the counts
+    private void checkpoint(String segment, String nextKey, long pageRotated, long pageSkipped, long pageFailed) {
+        writes.spend(1);
+        Map<String, AttributeValue> values = new HashMap<>(Map.of(
+                ":me", s(nodeId),
+                ":now", n(System.currentTimeMillis()),
+                ":rotated", n(pageRotated),
+                ":skipped", n(pageSkipped),
+                ":failed", n(pageFailed)));
+        String update;
+        if (nextKey == null) {
+            update = "SET heartbeatAt = :now ADD finished :segment, rotated :rotated, skipped :skipped, failed :failed";
+            values.put(":segment", AttributeValue.builder().ss(segment).build());
+        } else {
+            update = "SET cursors.#segment = :next, heartbeatAt = :now ADD rotated :rotated, skipped :skipped, failed :failed";
+            values.put(":next", s(nextKey));
+        }
+        try {
+            dynamoDbClient.updateItem(req -> {
+                req.tableName(jobTable)
+                        .key(jobKey())
+                        .updateExpression(update)
+                        .conditionExpression("#owner = :me")
+                        .expressionAttributeValues(values);
+                req.expressionAttributeNames(nextKey == null ? Map.of("#owner", "owner")
+                        : Map.of("#owner", "owner", "#segment", segment));
+            });
+        } catch (ConditionalCheckFailedException e) {
+            throw new IllegalStateException("Lost the rotation lease to another node");
+        }
+    }
+
+    private void finish(String state) {
+        try {
+            dynamoDbClient.updateItem(req -> req.tableName(jobTable)
+                    .key(jobKey())
+                    .updateExpression("SET #state = :state, heartbeatAt = :now, finishedAt = :now")
+                    .conditionExpression("#owner = :me")
+                    .expressionAttributeNames(Map.of("#owner", "owner", "#state", "state"))
+                    .expressionAttributeValues(Map.of(":state", s(state), ":now", n(System.currentTimeMillis()),
+                            ":me", s(nodeId))));
+        } catch (Exception e) {
+            logger.warn("Could not record master key rotation state {}: {}", state, e.getMessage());
+        }
+    }
+
+    private static Map<String, AttributeValue> jobKey() {
+        return Map.of("jobId", s(JOB_ID));
+    }
+
+    private static double units(ConsumedCapacity capacity, double fallback) {
+        return capacity == null || capacity.capacityUnits() == null ? fallback : capacity.capacityUnits();
+    }
+
+    private static AttributeValue s(String value) {
+        return AttributeValue.builder().s(value).build();
+    }
+
+    private static AttributeValue n(long value) {
+        return AttributeValue.builder().n(Long.toString(value)).build();
+    }
+
+    private static String string(Map<String, AttributeValue> item, String attribute) {
+        AttributeValue value = item.get(attribute);
+        return value == null ? null : value.s();
+    }
+
+    private static long number(Map<String, AttributeValue> item, String attribute) {
+        AttributeValue value = item.get(attribute);
+        return value == null || value.n() == null ? 0 : Long.parseLong(value.n());
+    }
+
+    /**
+     * Capacity units per second shared by all segment threads. Spending books the units into the
+     * future and sleeps until they are due; adjusting corrects a booking once the real cost is
+     * known, so an expensive request is paid for by the ones after it.
+     */
+    private static final class CapacityBudget {
+
+        private final double unitsPerSecond;
+        private long nextFreeNanos = System.nanoTime();
+
+        CapacityBudget(double unitsPerSecond) {
+            if (unitsPerSecond <= 0) throw new IllegalArgumentException("Capacity budget must be positive");
+            this.unitsPerSecond = unitsPerSecond;
+        }
+
+        void spend(double units) {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long start = Math.max(nextFreeNanos, now);
+                nextFreeNanos = start + (long) (units / unitsPerSecond * 1e9);
+                wait = start - now;
+            }
+            if (wait <= 0) return;
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for capacity", e);
+            }
+        }
+
+        synchronized void adjust(double units) {
+            nextFreeNanos += (long) (units / unitsPerSecond * 1e9);
+        }
+    }
+}
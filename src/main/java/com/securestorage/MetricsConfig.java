@@ -0,0 +1,48 @@
+package com.securestorage;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.function.Function;
+
+/**
+ * Cache statistics under Micrometer's usual {@code cache.*} names, so hit rates can be read next
+ * to the stage timings of {@link FileMetrics}.
+ */
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public MeterBinder cacheMetrics(FileMetadataRepository metadataRepository, EncryptionService encryptionService,
+                                    EncryptedBlobCache blobCache) {
+        return registry -> {
+            bindStats(registry, "file-metadata", metadataRepository, FileMetadataRepository::cacheStats);
+            Gauge.builder("cache.size", metadataRepository, FileMetadataRepository::cacheSize)
+                    .tag("cache", "file-metadata").register(registry);
+            bindStats(registry, "file-keys", encryptionService, EncryptionService::keyCacheStats);
+
+            // On-disk ciphertext cache: sized in bytes rather than entries
+            FunctionCounter.builder("cache.gets", blobCache, EncryptedBlobCache::hitCount)
+                    .tags("cache", "blobs", "result", "hit").register(registry);
+            FunctionCounter.builder("cache.gets", blobCache, EncryptedBlobCache::missCount)
+                    .tags("cache", "blobs", "result", "miss").register(registry);
+            Gauge.builder("cache.bytes", blobCache, EncryptedBlobCache::cachedBytes)
+                    .tag("cache", "blobs").baseUnit("bytes").register(registry);
+        };
+    }
+
+    // Meters only hold their source weakly, so they are built on the (singleton) owner of the cache
+    private static <T> void bindStats(MeterRegistry registry, String cache, T owner, Function<T, CacheStats> stats) {
+        FunctionCounter.builder("cache.gets", owner, o -> stats.apply(o).hitCount())
+                .tags("cache", cache, "result", "hit").register(registry);
+        FunctionCounter.builder("cache.gets", owner, o -> stats.apply(o).missCount())
+                .tags("cache", cache, "result", "miss").register(registry);
+        FunctionCounter.builder("cache.evictions", owner, o -> stats.apply(o).evictionCount())
+                .tag("cache", cache).register(registry);
+    }
+}
@@ -0,0 +1,70 @@
+package com.securestorage;
+
+import org.springframework.aot.hint.BindingReflectionHintsRegistrar;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+import org.springframework.aot.hint.TypeReference;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+/**
+ * Reflection and resource hints for the native image build ({@code mvn -Pnative native:compile}).
+ * Spring's AOT processing covers the beans, configuration properties and the JWT resource server
+ * filter chain, and the AWS SDK and Tomcat jars ship their own native-image metadata; this adds
+ * what neither can see:
+ * <ul>
+ *   <li>JSON bodies that leave the controllers behind {@code ResponseEntity<?>} or a
+ *       {@code CompletableFuture}, so Jackson can still find their accessors</li>
+ *   <li>SDK execution interceptors, which each service module lists in a resource file and the
+ *       client builders instantiate by name</li>
+ *   <li>Caffeine's generated cache and entry classes, picked by name from the builder settings</li>
+ * </ul>
+ * {@link FileEntity} needs no hint: its DynamoDB mapping is {@link FileEntity#SCHEMA}, built without reflection.
+ * Registrars only run at build time, so scanning the classpath here costs nothing at startup.
+ */
+public class NativeRuntimeHints implements RuntimeHintsRegistrar {
+
+    private static final String INTERCEPTOR_FILES = "classpath*:software/amazon/awssdk/services/*/execution.interceptors";
+    private static final String CAFFEINE_PACKAGE = "com.github.benmanes.caffeine.cache.";
+    // Generated classes are named by their features only (e.g. SSMSA, PSAMW)
+    private static final Pattern CAFFEINE_GENERATED = Pattern.compile("[A-Z]+\\.class");
+
+    @Override
+    public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+        new BindingReflectionHintsRegistrar().registerReflectionHints(hints.reflection(),
+                FileEntity.class, FilePage.class, FileSearchPage.class, UploadResult.class, UploadSession.class,
+                StorageUsage.class, PurgeStatus.class);
+
+        PathMatchingResourcePatternResolver resolver = new PathMatchingResourcePatternResolver(classLoader);
+        try {
+            for (Resource file : resolver.getResources(INTERCEPTOR_FILES)) {
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(file.getInputStream(), StandardCharsets.UTF_8))) {
+                    reader.lines().map(String::trim).filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                            .forEach(type -> hints.reflection().registerType(TypeReference.of(type),
+                                    MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS));
+                }
+            }
+            hints.resources().registerPattern("software/amazon/awssdk/services/*/execution.interceptors");
+
+            for (Resource type : resolver.getResources("classpath*:" + CAFFEINE_PACKAGE.replace('.', '/') + "*.class")) {
+                String name = type.getFilename();
+                if (name != null && CAFFEINE_GENERATED.matcher(name).matches()) {
+                    hints.reflection().registerType(
+                            TypeReference.of(CAFFEINE_PACKAGE + name.substring(0, name.length() - ".class".length())),
+                            MemberCategory.INVOKE_DECLARED_CONSTRUCTORS, MemberCategory.DECLARED_FIELDS);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not scan the classpath for native image hints", e);
+        }
+    }
+}
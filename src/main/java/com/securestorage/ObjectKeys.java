@@ -0,0 +1,25 @@
+package com.securestorage;
+
+/**
+ * Object key conventions shared by every {@link ObjectStore} backend.
+ */
+public final class ObjectKeys {
+
+    private ObjectKeys() {
+    }
+
+    // Encrypted file content: <ownerId>/<fileId>
+    public static String file(String ownerId, String fileId) {
+        return ownerId + "/" + fileId;
+    }
+
+    // Profile photo: profiles/<ownerId> (one per user, overwritten on change)
+    public static String profilePhoto(String ownerId) {
+        return "profiles/" + ownerId;
+    }
+
+    // Resized profile photo: profile-thumbnails/<ownerId>/<size> (longest side in pixels)
+    public static String profileThumbnail(String ownerId, int size) {
+        return "profile-thumbnails/" + ownerId + "/" + size;
+    }
+}
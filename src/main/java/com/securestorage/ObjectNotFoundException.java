@@ -0,0 +1,11 @@
+package com.securestorage;
+
+// Thrown by ObjectStore reads when no object exists under the key
+public class ObjectNotFoundException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ObjectNotFoundException(String key) {
+        super("No object stored under " + key);
+    }
+}
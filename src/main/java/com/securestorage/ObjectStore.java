@@ -0,0 +1,59 @@
+package com.securestorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where encrypted file objects and profile photos are stored. Selected with
+ * {@code app.storage.backend}: {@code s3} (default, {@link S3ObjectStore}) or {@code local}
+ * ({@link LocalObjectStore}, no network needed). Key layout lives in {@link ObjectKeys}.
+ */
+public interface ObjectStore {
+
+    // Stores content under key, replacing any existing object; contentLength may be -1 when unknown
+    default void put(String key, InputStream content, long contentLength) throws IOException {
+        put(key, content, contentLength, Map.of());
+    }
+
+    // As above, with metadata (a few short ASCII values, lower-case names) kept with the object and replaced with it
+    void put(String key, InputStream content, long contentLength, Map<String, String> metadata) throws IOException;
+
+    // Whole object; throws ObjectNotFoundException if there is none
+    InputStream get(String key) throws IOException;
+
+    // Metadata stored with the object by put, without reading it; throws ObjectNotFoundException if there is none
+    Map<String, String> metadata(String key) throws IOException;
+
+    // When the object was last stored (epoch millis), without reading it; throws ObjectNotFoundException if there is none
+    long lastModified(String key) throws IOException;
+
+    // Bytes [start, end] (inclusive) of the object
+    InputStream get(String key, long start, long end) throws IOException;
+
+    // No-op if the object does not exist
+    void delete(String key);
+
+    void deleteAll(Collection<String> keys);
+
+    // --- Objects assembled from parts sent separately, in any order (resumable uploads) ---
+
+    // Starts an assembly for key; returns its id
+    String startParts(String key) throws IOException;
+
+    // Stores part partNumber (from 1; all but the last at least 5 MiB on S3), replacing an earlier copy; returns its tag
+    String putPart(String key, String uploadId, int partNumber, InputStream content, long contentLength) throws IOException;
+
+    // Publishes the object from parts 1..n, given their tags in order
+    void completeParts(String key, String uploadId, List<String> partTags) throws IOException;
+
+    // Drops an unfinished assembly and its parts; no-op if it is already gone
+    void abortParts(String key, String uploadId);
+
+    // Heap a put() of this many bytes holds while it runs (for admission control); streaming stores need next to none
+    default long putMemory(long contentLength) {
+        return 0;
+    }
+}
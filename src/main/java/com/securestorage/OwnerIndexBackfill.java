@@ -0,0 +1,91 @@
+package com.securestorage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbTable;
+import software.amazon.awssdk.enhanced.dynamodb.Expression;
+import software.amazon.awssdk.enhanced.dynamodb.model.ScanEnhancedRequest;
+import software.amazon.awssdk.enhanced.dynamodb.model.UpdateItemEnhancedRequest;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+
+import java.io.IOException;
+
+/**
+ * One-off migration: rows written before the owner index existed have no {@code uploadedAt},
+ * so DynamoDB leaves them out of {@link FileEntity#OWNER_INDEX}. This fills the attribute in
+ * from the stored object's last-modified time (or 0 if the object is gone), with either storage
+ * backend. Rows whose object could not be looked up are left for the next run.
+ *
+ * Run once with {@code --app.migration.backfill-owner-index=true}; it is idempotent.
+ */
+@Component
+@ConditionalOnProperty(name = "app.migration.backfill-owner-index", havingValue = "true")
+public class OwnerIndexBackfill implements ApplicationRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(OwnerIndexBackfill.class);
+
+    private final FileMetadataRepository metadataRepository;
+    private final ObjectStore objectStore;
+
+    public OwnerIndexBackfill(FileMetadataRepository metadataRepository, ObjectStore objectStore) {
+        this.metadataRepository = metadataRepository;
+        this.objectStore = objectStore;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        DynamoDbTable<FileEntity> table = metadataRepository.table();
+
+        // Only rows that are missing the sort key need touching
+        ScanEnhancedRequest scan = ScanEnhancedRequest.builder()
+                .filterExpression(Expression.builder().expression("attribute_not_exists(uploadedAt)").build())
+                .build();
+
+        // Never resurrect a row that was deleted while the migration was running
+        Expression stillExists = Expression.builder().expression("attribute_exists(file_id)").build();
+
+        int updated = 0;
+        int failed = 0;
+        for (FileEntity entity : table.scan(scan).items()) {
+            try {
+                entity.setUploadedAt(lastModified(entity));
+            } catch (Exception e) {
+                logger.warn("Could not look up the object of file_id={}, skipping: {}", entity.getFileId(), e.getMessage());
+                failed++;
+                continue;
+            }
+            try {
+                table.updateItem(UpdateItemEnhancedRequest.builder(FileEntity.class)
+                        .item(entity)
+                        .ignoreNulls(true)
+                        .conditionExpression(stillExists)
+                        .build());
+                metadataRepository.invalidate(entity.getFileId());
+                updated++;
+            } catch (ConditionalCheckFailedException e) {
+                logger.info("Skipping file_id={} (deleted during backfill)", entity.getFileId());
+            }
+        }
+        if (failed == 0) {
+            logger.info("Owner index backfill finished: {} rows updated", updated);
+        } else {
+            logger.warn("Owner index backfill finished: {} rows updated, {} skipped; run it again for those", updated, failed);
+        }
+    }
+
+    private long lastModified(FileEntity entity) throws IOException {
+        if (entity.getS3Key() != null) {
+            try {
+                return objectStore.lastModified(entity.getS3Key());
+            } catch (ObjectNotFoundException e) {
+                // Falls through
+            }
+        }
+        logger.warn("No stored object for file_id={}, using uploadedAt=0", entity.getFileId());
+        return 0L;
+    }
+}
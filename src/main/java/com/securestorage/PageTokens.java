@@ -0,0 +1,56 @@
+package com.securestorage;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns DynamoDB's lastEvaluatedKey into an opaque, URL-safe continuation token and back.
+ * Only string and number key attributes are supported, which covers every key we define.
+ */
+public final class PageTokens {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<String, Map<String, String>>> TOKEN_TYPE = new TypeReference<>() {};
+
+    private PageTokens() {
+    }
+
+    public static String encode(Map<String, AttributeValue> lastEvaluatedKey) {
+        if (lastEvaluatedKey == null || lastEvaluatedKey.isEmpty()) return null;
+        Map<String, Map<String, String>> plain = new HashMap<>();
+        lastEvaluatedKey.forEach((name, value) -> plain.put(name,
+                value.n() != null ? Map.of("N", value.n()) : Map.of("S", value.s())));
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(MAPPER.writeValueAsBytes(plain));
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not encode page token", e);
+        }
+    }
+
+    public static Map<String, AttributeValue> decode(String token) {
+        if (token == null || token.isBlank()) return null;
+        try {
+            Map<String, Map<String, String>> plain = MAPPER.readValue(Base64.getUrlDecoder().decode(token), TOKEN_TYPE);
+            Map<String, AttributeValue> key = new HashMap<>();
+            plain.forEach((name, value) -> {
+                if (value.containsKey("N")) {
+                    key.put(name, AttributeValue.builder().n(value.get("N")).build());
+                } else if (value.containsKey("S")) {
+                    key.put(name, AttributeValue.builder().s(value.get("S")).build());
+                } else {
+                    throw new IllegalArgumentException("Unsupported key type in page token");
+                }
+            });
+            return key;
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Malformed page token", e);
+        }
+    }
+}
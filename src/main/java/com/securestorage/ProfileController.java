@@ -1,6 +1,5 @@
 package com.securestorage;
 
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -9,24 +8,15 @@ import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
-import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 
 @RestController
 @RequestMapping("/api/profile")
 public class ProfileController {
 
-    private final S3Client s3Client;
+    private final ProfilePhotoService profilePhotos;
 
-    @Value("${aws.s3.bucket}")
-    private String bucketName;
-
-    public ProfileController(S3Client s3Client) {
-        this.s3Client = s3Client;
+    public ProfileController(ProfilePhotoService profilePhotos) {
+        this.profilePhotos = profilePhotos;
     }
 
     // Upload Profile Photo
@@ -34,40 +24,49 @@ public class ProfileController {
     public ResponseEntity<String> uploadProfilePhoto(@RequestParam("file") MultipartFile file, @AuthenticationPrincipal Jwt principal) {
         try {
             String userId = principal.getSubject();
-            String s3Key = "profiles/" + userId; // e.g., profiles/user-123
 
-            // Upload to S3 (Standard Storage)
-            s3Client.putObject(PutObjectRequest.builder()
-                            .bucket(bucketName)
-                            .key(s3Key)
-                            .contentType(file.getContentType())
-                            .build(),
-                    RequestBody.fromBytes(file.getBytes()));
+            // Stored as sent (profiles/<userId>) plus one resized copy per thumbnail size
+            profilePhotos.upload(userId, file.getBytes());
 
             return ResponseEntity.ok("Profile photo updated");
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
         } catch (Exception e) {
             return ResponseEntity.status(500).body("Error uploading photo: " + e.getMessage());
         }
     }
 
-    // Get Profile Photo
+    // Get Profile Photo; size (pixels) picks the smallest thumbnail at least that big, none means the original
     @GetMapping("/photo")
-    public ResponseEntity<byte[]> getProfilePhoto(@AuthenticationPrincipal Jwt principal) {
+    public ResponseEntity<byte[]> getProfilePhoto(@RequestParam(value = "size", required = false) Integer size,
+                                                  @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                                                  @AuthenticationPrincipal Jwt principal) {
         try {
             String userId = principal.getSubject();
-            String s3Key = "profiles/" + userId;
+            if (size != null && size <= 0) return ResponseEntity.badRequest().build();
+
+            // A revalidation is answered from the tag stored with the photo, without reading it
+            if (ifNoneMatch != null) {
+                String current = profilePhotos.etag(userId, size);
+                if (current != null && ETags.matches(ifNoneMatch, current)) {
+                    return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(current).cacheControl(ETags.PRIVATE_REVALIDATE).build();
+                }
+            }
 
-            // Fetch from S3
-            byte[] imageBytes = s3Client.getObject(GetObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(s3Key)
-                    .build()).readAllBytes();
+            // Thumbnails come from memory, originals from the local blob cache, then the object store
+            ProfilePhotoService.Photo photo = profilePhotos.get(userId, size);
+            String etag = photo.etag();
+            if (ETags.matches(ifNoneMatch, etag)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).cacheControl(ETags.PRIVATE_REVALIDATE).build();
+            }
 
             return ResponseEntity.ok()
-                    .contentType(MediaType.IMAGE_JPEG) // Default to JPEG/PNG
-                    .body(imageBytes);
+                    .eTag(etag)
+                    .cacheControl(ETags.PRIVATE_REVALIDATE)
+                    .contentType(MediaType.parseMediaType(photo.contentType()))
+                    .body(photo.content());
 
-        } catch (NoSuchKeyException e) {
+        } catch (ObjectNotFoundException e) {
             // User hasn't uploaded a photo yet
             return ResponseEntity.notFound().build();
         } catch (Exception e) {
@@ -80,13 +79,9 @@ public class ProfileController {
     public ResponseEntity<String> removeProfilePhoto(@AuthenticationPrincipal Jwt principal) {
         try {
             String userId = principal.getSubject();
-            String s3Key = "profiles/" + userId;
-            s3Client.deleteObject(DeleteObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(s3Key)
-                    .build());
+            profilePhotos.delete(userId);
             return ResponseEntity.ok("Profile photo removed");
-        } catch (NoSuchKeyException e) {
+        } catch (ObjectNotFoundException e) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No profile photo to remove");
         } catch (Exception e) {
             return ResponseEntity.status(500).body("Error removing photo: " + e.getMessage());
@@ -0,0 +1,423 @@
+package com.securestorage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Profile photos and their thumbnails.
+ *
+ * An upload is stored as sent under {@link ObjectKeys#profilePhoto} and, next to it, resized to
+ * each of {@code app.profile-photo.sizes} (longest side in pixels) under
+ * {@link ObjectKeys#profileThumbnail}. Readers ask for the size they display and get the smallest
+ * thumbnail that is at least that big, or the original if none is. Thumbnails are kept in memory;
+ * originals go through the local blob cache as before. Photos stored before thumbnails existed get
+ * theirs made on first request.
+ *
+ * Every object is stored with its entity tag in its metadata, so a revalidation ({@link #etag})
+ * costs at most a HEAD request, never a read of the photo.
+ */
+@Service
+public class ProfilePhotoService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProfilePhotoService.class);
+
+    private static final float JPEG_QUALITY = 0.85f;
+    // Object metadata holding ETags.forContent of the object
+    private static final String ETAG_METADATA = "etag";
+
+    /** Bytes to serve, their sniffed content type and their entity tag. */
+    public record Photo(byte[] content, String contentType, String etag) {
+    }
+
+    private final ObjectStore objectStore;
+    private final EncryptedBlobCache blobCache;
+    private final int[] sizes;
+    private final long maxBytes;
+    private final long maxPixels;
+    // Thumbnail key -> photo. Photos are replaced in place, so copies on other nodes expire after a while.
+    private final Cache<String, Photo> thumbnails;
+    // Bumped by every upload and removal, so a read that raced one does not cache what it read
+    private final AtomicLong changes = new AtomicLong();
+
+    public ProfilePhotoService(ObjectStore objectStore, EncryptedBlobCache blobCache,
+                               @Value("${app.profile-photo.sizes:64,256}") int[] sizes,
+                               @Value("${app.profile-photo.max-bytes:10485760}") long maxBytes,
+                               @Value("${app.profile-photo.max-pixels:50000000}") long maxPixels,
+                               @Value("${app.profile-photo.cache-max-bytes:33554432}") long cacheMaxBytes,
+                               @Value("${app.profile-photo.cache-ttl:10m}") Duration cacheTtl) {
+        this.objectStore = objectStore;
+        this.blobCache = blobCache;
+        this.sizes = Arrays.stream(sizes).filter(s -> s > 0).sorted().distinct().toArray();
+        this.maxBytes = maxBytes;
+        this.maxPixels = maxPixels;
+        this.thumbnails = Caffeine.newBuilder()
+                .maximumWeight(cacheMaxBytes)
+                .weigher((String key, Photo photo) -> photo.content().length)
+                .expireAfterWrite(cacheTtl)
+                .build();
+    }
+
+    // Smallest thumbnail covering the requested size; 0 (the original) when none does or no size is asked for
+    public int variantFor(Integer requestedSize) {
+        if (requestedSize == null) return 0;
+        for (int size : sizes) {
+            if (size >= requestedSize) return size;
+        }
+        return 0;
+    }
+
+    /**
+     * The tag {@link #get} would return, from memory or the object's metadata. Null when that
+     * does not have it (stored before tags were, or a thumbnail still to be made); {@link #get}
+     * then works it out from the bytes.
+     *
+     * @throws ObjectNotFoundException if the user has no profile photo
+     */
+    public String etag(String ownerId, Integer requestedSize) throws IOException {
+        int size = variantFor(requestedSize);
+        if (size == 0) return objectStore.metadata(ObjectKeys.profilePhoto(ownerId)).get(ETAG_METADATA);
+
+        String key = ObjectKeys.profileThumbnail(ownerId, size);
+        Photo cached = thumbnails.getIfPresent(key);
+        if (cached != null) return cached.etag();
+        try {
+            return objectStore.metadata(key).get(ETAG_METADATA);
+        } catch (ObjectNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The photo at {@link #variantFor} the requested size.
+     *
+     * @throws ObjectNotFoundException if the user has no profile photo
+     */
+    public Photo get(String ownerId, Integer requestedSize) throws IOException {
+        int size = variantFor(requestedSize);
+        if (size == 0) {
+            byte[] original = readOriginal(ownerId);
+            return photo(original);
+        }
+
+        String key = ObjectKeys.profileThumbnail(ownerId, size);
+        Photo cached = thumbnails.getIfPresent(key);
+        if (cached != null) return cached;
+
+        long mark = changes.get();
+        byte[] content;
+        try (InputStream in = objectStore.get(key)) {
+            content = in.readAllBytes();
+        } catch (ObjectNotFoundException e) {
+            // Uploaded before thumbnails existed (or the sizes changed): make it now
+            byte[] original = readOriginal(ownerId);
+            try {
+                content = thumbnail(decode(original), size);
+            } catch (IllegalArgumentException unreadable) {
+                // Stored before uploads were checked; all we can do is serve it as it is
+                return photo(original);
+            }
+            if (changes.get() == mark) {
+                put(key, content);
+                logger.debug("Profile thumbnail {}px made on demand for ownerId={}", size, ownerId);
+            }
+        }
+        Photo photo = photo(content);
+        if (changes.get() == mark) thumbnails.put(key, photo);
+        return photo;
+    }
+
+    /**
+     * Stores a new photo and its thumbnails, replacing the current ones.
+     *
+     * @throws IllegalArgumentException if it is too big or not an image this JVM can read
+     */
+    public void upload(String ownerId, byte[] content) throws IOException {
+        if (content.length == 0) throw new IllegalArgumentException("The photo is empty");
+        if (content.length > maxBytes) {
+            throw new IllegalArgumentException("The photo is larger than " + maxBytes + " bytes");
+        }
+
+        // 1. Decode once (already shrunk while decoding) and make every thumbnail before storing anything
+        Decoded image = decode(content);
+        String contentType = contentTypeOf(content);
+        boolean servable = contentType.equals("image/jpeg") || contentType.equals("image/png");
+        byte[][] resized = new byte[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) {
+            // A small enough photo in a format every browser shows is kept as sent
+            resized[i] = servable && Math.max(image.width(), image.height()) <= sizes[i]
+                    ? content : thumbnail(image, sizes[i]);
+        }
+
+        // 2. Thumbnails, then the original
+        for (int i = 0; i < sizes.length; i++) {
+            put(ObjectKeys.profileThumbnail(ownerId, sizes[i]), resized[i]);
+        }
+        put(ObjectKeys.profilePhoto(ownerId), content);
+
+        // 3. Drop local copies
+        invalidate(ownerId);
+    }
+
+    /**
+     * Deletes the photo and its thumbnails.
+     *
+     * @throws ObjectNotFoundException if the store reports there was no photo
+     */
+    public void delete(String ownerId) {
+        try {
+            objectStore.delete(ObjectKeys.profilePhoto(ownerId));
+        } finally {
+            objectStore.deleteAll(Arrays.stream(sizes).mapToObj(size -> ObjectKeys.profileThumbnail(ownerId, size)).toList());
+            invalidate(ownerId);
+        }
+    }
+
+    private void put(String key, byte[] content) throws IOException {
+        objectStore.put(key, new ByteArrayInputStream(content), content.length,
+                Map.of(ETAG_METADATA, ETags.forContent(content)));
+    }
+
+    private void invalidate(String ownerId) {
+        changes.incrementAndGet();
+        blobCache.invalidate(ObjectKeys.profilePhoto(ownerId));
+        thumbnails.invalidateAll(Arrays.stream(sizes).mapToObj(size -> ObjectKeys.profileThumbnail(ownerId, size)).toList());
+    }
+
+    private byte[] readOriginal(String ownerId) throws IOException {
+        String key = ObjectKeys.profilePhoto(ownerId);
+        // The key is reused and other nodes may replace or remove the photo, so a cached copy is
+        // only served while it matches the stored tag (a HEAD, which also notices a removal)
+        String etag = objectStore.metadata(key).get(ETAG_METADATA);
+        byte[] content = etag == null ? null : blobCache.readSealed(key, etag);
+        if (content == null) {
+            try (InputStream in = objectStore.get(key)) {
+                content = in.readAllBytes();
+            }
+            // Tagged from the bytes read, in case the photo changed since the HEAD. Photos stored
+            // without a tag could never be matched, so they are not cached.
+            if (etag != null) blobCache.putSealed(key, ETags.forContent(content), content);
+        }
+        return content;
+    }
+
+    // The photo is replaced in place, so its tag comes from the bytes
+    private static Photo photo(byte[] content) {
+        return new Photo(content, contentTypeOf(content), ETags.forContent(content));
+    }
+
+    // --- Imaging ---
+
+    // Decoded pixels, plus the dimensions of the full-size image
+    private record Decoded(BufferedImage image, int width, int height) {
+    }
+
+    private Decoded decode(byte[] content) throws IOException {
+        try (ImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(content))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) throw new IllegalArgumentException("Unsupported image format");
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                // Checked from the header, before any pixel memory is allocated
+                if ((long) width * height > maxPixels) {
+                    throw new IllegalArgumentException("The photo is too large (" + width + "x" + height + ")");
+                }
+                // Skip source pixels while decoding, keeping at least twice the largest thumbnail for filtering
+                int largest = sizes.length == 0 ? Math.max(width, height) : sizes[sizes.length - 1];
+                int step = Math.max(1, Math.max(width, height) / (2 * largest));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                // Cameras store pixels as the sensor saw them and say how to turn them; thumbnails carry no EXIF
+                int orientation = orientationOf(content);
+                BufferedImage image = orient(reader.read(0, param), orientation);
+                return orientation >= 5 ? new Decoded(image, height, width) : new Decoded(image, width, height);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IIOException e) {
+            throw new IllegalArgumentException("Could not read the image: " + e.getMessage(), e);
+        }
+    }
+
+    // Turns the pixels upright for an EXIF orientation (1-8, 1 meaning as stored)
+    private static BufferedImage orient(BufferedImage source, int orientation) {
+        if (orientation <= 1 || orientation > 8) return source;
+        int w = source.getWidth();
+        int h = source.getHeight();
+        AffineTransform transform = switch (orientation) {
+            case 2 -> new AffineTransform(-1, 0, 0, 1, w, 0);  // mirrored
+            case 3 -> new AffineTransform(-1, 0, 0, -1, w, h); // upside down
+            case 4 -> new AffineTransform(1, 0, 0, -1, 0, h);  // mirrored and upside down
+            case 5 -> new AffineTransform(0, 1, 1, 0, 0, 0);   // mirrored, on its side
+            case 6 -> new AffineTransform(0, 1, -1, 0, h, 0);  // a quarter turn clockwise
+            case 7 -> new AffineTransform(0, -1, -1, 0, h, w); // mirrored, on its other side
+            default -> new AffineTransform(0, -1, 1, 0, 0, w); // a quarter turn counter-clockwise
+        };
+        boolean sideways = orientation >= 5;
+        boolean alpha = source.getColorModel().hasAlpha();
+        BufferedImage target = new BufferedImage(sideways ? h : w, sideways ? w : h,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = target.createGraphics();
+        try {
+            g.drawImage(source, transform, null);
+        } finally {
+            g.dispose();
+        }
+        return target;
+    }
+
+    /**
+     * The Orientation tag (0x0112) of a JPEG's EXIF block, or 1 if there is none. Only the
+     * segments before the image data are looked at, and a malformed block counts as none.
+     */
+    static int orientationOf(byte[] content) {
+        if (!startsWith(content, 0, 0xFF, 0xD8)) return 1;
+        int pos = 2;
+        while (pos + 4 <= content.length && (content[pos] & 0xFF) == 0xFF) {
+            int marker = content[pos + 1] & 0xFF;
+            if (marker == 0xD9 || marker == 0xDA) break; // end of image, start of scan
+            int length = u16(content, pos + 2, false);
+            int data = pos + 4;
+            if (marker == 0xE1 && startsWith(content, data, 'E', 'x', 'i', 'f', 0, 0)) {
+                return orientationInTiff(content, data + 6, Math.min(content.length, pos + 2 + length));
+            }
+            pos += 2 + length;
+        }
+        return 1;
+    }
+
+    // EXIF data is a TIFF file: byte order, 42, offset of the first directory, then 12-byte entries
+    private static int orientationInTiff(byte[] content, int tiff, int end) {
+        if (tiff + 8 > end) return 1;
+        boolean little;
+        if (startsWith(content, tiff, 'I', 'I')) {
+            little = true;
+        } else if (startsWith(content, tiff, 'M', 'M')) {
+            little = false;
+        } else {
+            return 1;
+        }
+        long directory = tiff + u32(content, tiff + 4, little);
+        if (directory + 2 > end) return 1;
+        int entries = u16(content, (int) directory, little);
+        for (int i = 0; i < entries; i++) {
+            int entry = (int) directory + 2 + i * 12;
+            if (entry + 12 > end) break;
+            if (u16(content, entry, little) == 0x0112) {
+                int orientation = u16(content, entry + 8, little);
+                return orientation >= 1 && orientation <= 8 ? orientation : 1;
+            }
+        }
+        return 1;
+    }
+
+    private static int u16(byte[] b, int at, boolean little) {
+        int first = b[at] & 0xFF;
+        int second = b[at + 1] & 0xFF;
+        return little ? second << 8 | first : first << 8 | second;
+    }
+
+    private static long u32(byte[] b, int at, boolean little) {
+        long high = u16(b, little ? at + 2 : at, little);
+        long low = u16(b, little ? at : at + 2, little);
+        return high << 16 | low;
+    }
+
+    // Longest side scaled down to size (never up); PNG if the image has transparency, JPEG otherwise
+    private static byte[] thumbnail(Decoded decoded, int size) throws IOException {
+        BufferedImage source = decoded.image();
+        int width = source.getWidth();
+        int height = source.getHeight();
+        double ratio = Math.min(1.0, (double) size / Math.max(width, height));
+        int targetWidth = Math.max(1, (int) Math.round(width * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(height * ratio));
+        boolean alpha = source.getColorModel().hasAlpha();
+
+        // Halve until the target: one bilinear step from far above it skips pixels and aliases
+        BufferedImage current = source;
+        do {
+            width = Math.max(width / 2, targetWidth);
+            height = Math.max(height / 2, targetHeight);
+            current = scale(current, width, height, alpha);
+        } while (width != targetWidth || height != targetHeight);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (alpha) {
+            ImageIO.write(current, "png", out);
+        } else {
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+            try (ImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(JPEG_QUALITY);
+                writer.setOutput(stream);
+                writer.write(null, new IIOImage(current, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static BufferedImage scale(BufferedImage source, int width, int height, boolean alpha) {
+        BufferedImage target = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return target;
+    }
+
+    // From the leading magic bytes; the store keeps no content type
+    static String contentTypeOf(byte[] content) {
+        if (startsWith(content, 0, 0xFF, 0xD8, 0xFF)) return "image/jpeg";
+        if (startsWith(content, 0, 0x89, 'P', 'N', 'G')) return "image/png";
+        if (startsWith(content, 0, 'G', 'I', 'F', '8')) return "image/gif";
+        if (startsWith(content, 0, 'R', 'I', 'F', 'F') && startsWith(content, 8, 'W', 'E', 'B', 'P')) return "image/webp";
+        if (startsWith(content, 0, 'B', 'M')) return "image/bmp";
+        return "application/octet-stream";
+    }
+
+    private static boolean startsWith(byte[] content, int offset, int... magic) {
+        if (content.length < offset + magic.length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if ((content[offset + i] & 0xFF) != magic[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,9 @@
+package com.securestorage;
+
+/**
+ * Progress of an account purge as shown to the UI. {@code state} is RUNNING, COMPLETED or FAILED;
+ * {@code finishedAt} is 0 while the job is still running.
+ */
+public record PurgeStatus(String state, long filesFound, long filesDeleted, String message,
+                          long startedAt, long finishedAt) {
+}
@@ -0,0 +1,195 @@
+package com.securestorage;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads a stream to S3, switching to a parallel multipart upload for large objects.
+ *
+ * The caller's thread reads (and therefore encrypts) the next part while up to
+ * {@code parallelism} earlier parts are being sent by a shared worker pool, so memory per upload
+ * is bounded by {@code partSize * (parallelism + 1)}. Any failure aborts the multipart upload so
+ * no orphaned parts are left in the bucket.
+ */
+@Component
+public class S3MultipartUploader {
+
+    private static final Logger logger = LoggerFactory.getLogger(S3MultipartUploader.class);
+
+    // S3 rejects non-final parts smaller than 5 MiB
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    // What the SDK keeps of a streamed single PUT so it can retry it
+    private static final int SINGLE_PUT_BUFFER = 128 * 1024;
+
+    private final S3Client s3Client;
+    private final int partSize;
+    private final int parallelism;
+    private final ExecutorService workers;
+
+    @Value("${aws.s3.bucket}")
+    private String bucketName;
+
+    public S3MultipartUploader(S3Client s3Client,
+                               @Value("${app.s3.multipart.part-size:8388608}") int partSize,
+                               @Value("${app.s3.multipart.parallelism:4}") int parallelism,
+                               @Value("${app.s3.multipart.pool-size:16}") int poolSize) {
+        this.s3Client = s3Client;
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        this.parallelism = Math.max(parallelism, 1);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "s3-part-upload-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        workers.shutdown();
+    }
+
+    // Heap pinned by one upload() of this length: a retry buffer for a single PUT, otherwise the parts in flight
+    public long memoryFor(long contentLength) {
+        if (contentLength >= 0 && contentLength <= partSize) {
+            return Math.min(contentLength, SINGLE_PUT_BUFFER);
+        }
+        return (long) partSize * (parallelism + 1);
+    }
+
+    /**
+     * Stores {@code content} under {@code key}, with {@code metadata} as its user metadata.
+     * {@code contentLength} may be -1 when unknown; small objects of known length are streamed
+     * with a single PUT.
+     */
+    public void upload(String key, InputStream content, long contentLength, Map<String, String> metadata)
+            throws IOException {
+        if (contentLength >= 0 && contentLength <= partSize) {
+            s3Client.putObject(PutObjectRequest.builder().bucket(bucketName).key(key).metadata(metadata).build(),
+                    RequestBody.fromInputStream(content, contentLength));
+            return;
+        }
+
+        // Unknown length: only go multipart once we know there is more than one part
+        byte[] first = content.readNBytes(partSize);
+        if (first.length < partSize) {
+            s3Client.putObject(PutObjectRequest.builder().bucket(bucketName).key(key).metadata(metadata).build(),
+                    RequestBody.fromInputStream(new ByteArrayInputStream(first), first.length));
+            return;
+        }
+        uploadMultipart(key, metadata, first, content);
+    }
+
+    private void uploadMultipart(String key, Map<String, String> metadata, byte[] firstPart, InputStream content)
+            throws IOException {
+        String uploadId = s3Client.createMultipartUpload(req -> req.bucket(bucketName).key(key).metadata(metadata))
+                .uploadId();
+        Semaphore inFlight = new Semaphore(parallelism);
+        List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+        // Every part task is a party until it has returned; this thread is the first one
+        Phaser running = new Phaser(1);
+        AtomicBoolean cancelled = new AtomicBoolean();
+
+        try {
+            byte[] part = firstPart;
+            int partNumber = 1;
+            while (part.length > 0) {
+                // 1. Wait for a free slot (bounds memory), then hand the part to the pool
+                inFlight.acquire();
+                failFast(parts);
+                parts.add(submitPart(key, uploadId, partNumber++, part, inFlight, running, cancelled));
+
+                // 2. Meanwhile read/encrypt the next part on this thread
+                part = content.readNBytes(partSize);
+            }
+
+            // 3. Wait for the stragglers and stitch the object together
+            List<CompletedPart> completed = new ArrayList<>();
+            for (CompletableFuture<CompletedPart> f : parts) {
+                completed.add(f.get());
+            }
+            completed.sort(Comparator.comparing(CompletedPart::partNumber));
+            s3Client.completeMultipartUpload(req -> req.bucket(bucketName).key(key).uploadId(uploadId)
+                    .multipartUpload(m -> m.parts(completed)));
+            logger.info("Multipart upload finished: key={}, parts={}", key, completed.size());
+        } catch (Exception e) {
+            // Queued parts skip their upload, and running ones are waited for, so nothing lands after the abort.
+            // Cancelling the futures would not do: they complete at once, while their uploads keep going
+            cancelled.set(true);
+            running.arriveAndAwaitAdvance();
+            abort(key, uploadId);
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            if (cause instanceof IOException io) throw io;
+            if (cause instanceof RuntimeException re) throw re;
+            throw new IOException("Multipart upload failed for " + key, cause);
+        }
+    }
+
+    private CompletableFuture<CompletedPart> submitPart(String key, String uploadId, int partNumber, byte[] data,
+                                                        Semaphore inFlight, Phaser running, AtomicBoolean cancelled) {
+        running.register();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    if (cancelled.get()) throw new CancellationException("Multipart upload aborted");
+                    String eTag = s3Client.uploadPart(req -> req.bucket(bucketName).key(key).uploadId(uploadId)
+                                    .partNumber(partNumber).contentLength((long) data.length),
+                            // fromBytes() would copy the part; wrapping it in a stream does not
+                            RequestBody.fromInputStream(new ByteArrayInputStream(data), data.length)).eTag();
+                    return CompletedPart.builder().partNumber(partNumber).eTag(eTag).build();
+                } finally {
+                    inFlight.release();
+                    running.arriveAndDeregister();
+                }
+            }, workers);
+        } catch (RuntimeException e) {
+            // Never scheduled (pool shut down)
+            inFlight.release();
+            running.arriveAndDeregister();
+            throw e;
+        }
+    }
+
+    // Stop reading the source as soon as any part has failed
+    private static void failFast(List<CompletableFuture<CompletedPart>> parts) throws ExecutionException, InterruptedException {
+        for (CompletableFuture<CompletedPart> f : parts) {
+            if (f.isCompletedExceptionally()) f.get();
+        }
+    }
+
+    private void abort(String key, String uploadId) {
+        try {
+            s3Client.abortMultipartUpload(req -> req.bucket(bucketName).key(key).uploadId(uploadId));
+            logger.warn("Aborted multipart upload: key={}", key);
+        } catch (Exception e) {
+            logger.error("Could not abort multipart upload key={}, uploadId={}: {}", key, uploadId, e.getMessage());
+        }
+    }
+}
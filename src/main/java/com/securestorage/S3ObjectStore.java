@@ -0,0 +1,152 @@
+package com.securestorage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.NoSuchUploadException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * {@link ObjectStore} backed by the configured S3 bucket. Large puts go through
+ * {@link S3MultipartUploader}; batch deletes use DeleteObjects, 1000 keys per call.
+ */
+@Component
+@ConditionalOnProperty(name = "app.storage.backend", havingValue = "s3", matchIfMissing = true)
+public class S3ObjectStore implements ObjectStore {
+
+    // DeleteObjects limit per request
+    private static final int DELETE_BATCH_SIZE = 1000;
+    private static final int MAX_ATTEMPTS = 8;
+
+    private final S3Client s3Client;
+    private final S3MultipartUploader uploader;
+
+    @Value("${aws.s3.bucket}")
+    private String bucketName;
+
+    public S3ObjectStore(S3Client s3Client, S3MultipartUploader uploader) {
+        this.s3Client = s3Client;
+        this.uploader = uploader;
+    }
+
+    @Override
+    public void put(String key, InputStream content, long contentLength, Map<String, String> metadata)
+            throws IOException {
+        uploader.upload(key, content, contentLength, metadata);
+    }
+
+    @Override
+    public long putMemory(long contentLength) {
+        return uploader.memoryFor(contentLength);
+    }
+
+    @Override
+    public InputStream get(String key) {
+        try {
+            return s3Client.getObject(req -> req.bucket(bucketName).key(key));
+        } catch (NoSuchKeyException e) {
+            throw new ObjectNotFoundException(key);
+        }
+    }
+
+    // User metadata (x-amz-meta-*) from a HEAD request
+    @Override
+    public Map<String, String> metadata(String key) {
+        try {
+            return s3Client.headObject(req -> req.bucket(bucketName).key(key)).metadata();
+        } catch (NoSuchKeyException e) {
+            throw new ObjectNotFoundException(key);
+        }
+    }
+
+    @Override
+    public long lastModified(String key) {
+        try {
+            return s3Client.headObject(req -> req.bucket(bucketName).key(key)).lastModified().toEpochMilli();
+        } catch (NoSuchKeyException e) {
+            throw new ObjectNotFoundException(key);
+        }
+    }
+
+    @Override
+    public InputStream get(String key, long start, long end) {
+        try {
+            return s3Client.getObject(req -> req.bucket(bucketName).key(key).range("bytes=" + start + "-" + end));
+        } catch (NoSuchKeyException e) {
+            throw new ObjectNotFoundException(key);
+        }
+    }
+
+    @Override
+    public String startParts(String key) {
+        return s3Client.createMultipartUpload(req -> req.bucket(bucketName).key(key)).uploadId();
+    }
+
+    @Override
+    public String putPart(String key, String uploadId, int partNumber, InputStream content, long contentLength) {
+        return s3Client.uploadPart(req -> req.bucket(bucketName).key(key).uploadId(uploadId)
+                        .partNumber(partNumber).contentLength(contentLength),
+                RequestBody.fromInputStream(content, contentLength)).eTag();
+    }
+
+    @Override
+    public void completeParts(String key, String uploadId, List<String> partTags) {
+        List<CompletedPart> parts = new ArrayList<>();
+        for (int i = 0; i < partTags.size(); i++) {
+            parts.add(CompletedPart.builder().partNumber(i + 1).eTag(partTags.get(i)).build());
+        }
+        s3Client.completeMultipartUpload(req -> req.bucket(bucketName).key(key).uploadId(uploadId)
+                .multipartUpload(m -> m.parts(parts)));
+    }
+
+    @Override
+    public void abortParts(String key, String uploadId) {
+        try {
+            s3Client.abortMultipartUpload(req -> req.bucket(bucketName).key(key).uploadId(uploadId));
+        } catch (NoSuchUploadException e) {
+            // Already completed or aborted
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        s3Client.deleteObject(req -> req.bucket(bucketName).key(key));
+    }
+
+    @Override
+    public void deleteAll(Collection<String> keys) {
+        List<String> all = new ArrayList<>(keys);
+        for (int i = 0; i < all.size(); i += DELETE_BATCH_SIZE) {
+            deleteBatch(all.subList(i, Math.min(i + DELETE_BATCH_SIZE, all.size())));
+        }
+    }
+
+    // One DeleteObjects call, retrying only the keys S3 reports as failed
+    private void deleteBatch(List<String> keys) {
+        List<ObjectIdentifier> pending = keys.stream().map(k -> ObjectIdentifier.builder().key(k).build()).toList();
+        for (int attempt = 1; !pending.isEmpty(); attempt++) {
+            Backoff.pause(attempt, MAX_ATTEMPTS, pending.size() + " S3 deletes");
+            List<ObjectIdentifier> batch = pending;
+            // Quiet mode: the response only lists the keys that could not be deleted
+            DeleteObjectsResponse response = s3Client.deleteObjects(req -> req.bucket(bucketName)
+                    .delete(d -> d.objects(batch).quiet(true)));
+            Set<String> failed = response.errors().stream().map(S3Error::key).collect(Collectors.toSet());
+            pending = batch.stream().filter(o -> failed.contains(o.key())).toList();
+        }
+    }
+}
@@ -2,8 +2,12 @@ package com.securestorage;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.ImportRuntimeHints;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
+@ImportRuntimeHints(NativeRuntimeHints.class)
 public class SecureStorageApplication {
     public static void main(String[] args) {
         SpringApplication.run(SecureStorageApplication.class, args);
@@ -1,5 +1,6 @@
 package com.securestorage;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
@@ -13,6 +14,12 @@ import java.util.List;
 @Configuration
 public class SecurityConfig {
 
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    @Value("${management.server.port:-1}")
+    private int managementPort;
+
     @Bean
     public SecurityFilterChain filterChain(HttpSecurity http) throws Exception {
         http
@@ -20,6 +27,10 @@ public class SecurityConfig {
                 .cors(cors -> cors.configurationSource(corsConfigurationSource())) // Link the CORS config below
                 .authorizeHttpRequests(auth -> auth
                         .requestMatchers("/", "/index.html", "/js/**", "/css/**", "/error").permitAll()
+                        // Load balancer probes carry no token
+                        .requestMatchers("/livez", "/readyz").permitAll()
+                        // Nor do Prometheus scrapes, so /actuator is open only on its own (local) port
+                        .requestMatchers(request -> onManagementPort(request.getLocalPort())).permitAll()
                         .anyRequest().authenticated()
                 )
                 .oauth2ResourceServer(oauth2 -> oauth2.jwt(jwt -> {}));
@@ -27,6 +38,10 @@ public class SecurityConfig {
         return http.build();
     }
 
+    private boolean onManagementPort(int port) {
+        return managementPort > 0 && managementPort != serverPort && port == managementPort;
+    }
+
     // This method must be INSIDE the class (before the final '}')
     @Bean
     public CorsConfigurationSource corsConfigurationSource() {
@@ -0,0 +1,58 @@
+package com.securestorage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of the segmented AES-GCM object format (version 1).
+ *
+ * <pre>
+ * header  : version (1 byte) | segment size (4 bytes) | nonce prefix (7 bytes)
+ * segment : AES-GCM(plaintext segment) | 16-byte tag
+ * </pre>
+ *
+ * Every segment is sealed on its own with the nonce {@code prefix | segment index | last flag}
+ * and the header as associated data, so segments can be decrypted independently (range reads)
+ * while reordering, truncation and header tampering are still detected.
+ */
+public final class SegmentedGcmFormat {
+
+    public static final int VERSION = 1;
+    public static final int NONCE_PREFIX_LENGTH = 7;
+    public static final int HEADER_LENGTH = 1 + 4 + NONCE_PREFIX_LENGTH;
+    public static final int TAG_LENGTH = 16;
+    public static final int NONCE_LENGTH = 12;
+    public static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private SegmentedGcmFormat() {
+    }
+
+    public static byte[] header(int segmentSize, byte[] noncePrefix) {
+        return ByteBuffer.allocate(HEADER_LENGTH)
+                .put((byte) VERSION)
+                .putInt(segmentSize)
+                .put(noncePrefix)
+                .array();
+    }
+
+    public static byte[] nonce(byte[] noncePrefix, long segmentIndex, boolean lastSegment) {
+        return ByteBuffer.allocate(NONCE_LENGTH)
+                .put(noncePrefix)
+                .putInt((int) segmentIndex)
+                .put((byte) (lastSegment ? 1 : 0))
+                .array();
+    }
+
+    // An empty file still produces one (empty) final segment so truncation is detectable
+    public static long segmentCount(long plaintextLength, int segmentSize) {
+        return Math.max(1, (plaintextLength + segmentSize - 1) / segmentSize);
+    }
+
+    public static long ciphertextLength(long plaintextLength, int segmentSize) {
+        return HEADER_LENGTH + plaintextLength + segmentCount(plaintextLength, segmentSize) * TAG_LENGTH;
+    }
+
+    // Offset of the first ciphertext byte of the given segment inside the stored object
+    public static long segmentOffset(long segmentIndex, int segmentSize) {
+        return HEADER_LENGTH + segmentIndex * (segmentSize + (long) TAG_LENGTH);
+    }
+}
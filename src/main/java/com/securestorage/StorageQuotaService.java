@@ -0,0 +1,278 @@
+package com.securestorage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.enhanced.dynamodb.model.QueryConditional;
+import software.amazon.awssdk.enhanced.dynamodb.model.QueryEnhancedRequest;
+import software.amazon.awssdk.enhanced.dynamodb.model.ScanEnhancedRequest;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-user storage counters kept in their own DynamoDB table (partition key {@code ownerId}).
+ *
+ * Uploads follow reserve-then-commit:
+ * <ul>
+ *   <li>{@code allocatedBytes} = committed + in-flight bytes. Reserving is a conditional ADD, so
+ *       two parallel uploads can never both squeeze under the limit.</li>
+ *   <li>{@code usedBytes} = committed bytes, bumped once the file's metadata is saved.</li>
+ * </ul>
+ * DynamoDB conditions cannot add two attributes together, which is why the sum is kept as its own
+ * counter instead of a separate "reserved" field.
+ */
+@Service
+public class StorageQuotaService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StorageQuotaService.class);
+
+    // Reservations untouched for this long are treated as leaked by a crashed upload
+    private static final long STALE_RESERVATION_MILLIS = 60 * 60 * 1000;
+    // The owner index is eventually consistent; counters changed more recently than this may be ahead of it
+    private static final long INDEX_SETTLE_MILLIS = 30 * 1000;
+
+    private final DynamoDbClient dynamoDbClient;
+    private final FileMetadataRepository metadataRepository;
+
+    @Value("${aws.dynamodb.usage-table}")
+    private String usageTable;
+
+    @Value("${app.quota.max-bytes:209715200}")
+    private long maxStorageBytes;
+
+    public StorageQuotaService(DynamoDbClient dynamoDbClient, FileMetadataRepository metadataRepository) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.metadataRepository = metadataRepository;
+    }
+
+    public long getMaxStorageBytes() {
+        return maxStorageBytes;
+    }
+
+    // O(1) read of the counters (strongly consistent)
+    public StorageUsage getUsage(String ownerId) {
+        Map<String, AttributeValue> item = readCounters(ownerId);
+        if (item == null) {
+            initialize(ownerId);
+            item = readCounters(ownerId);
+        }
+        long used = number(item, "usedBytes");
+        long allocated = number(item, "allocatedBytes");
+        return new StorageUsage(used, Math.max(0, allocated - used), maxStorageBytes);
+    }
+
+    // 1. Reserve space before any bytes are stored; throws if the quota would be exceeded
+    public void reserve(String ownerId, long bytes) {
+        long threshold = maxStorageBytes - bytes;
+        if (threshold < 0) {
+            throw new RuntimeException("Storage Limit Exceeded! The file is larger than your "
+                    + (maxStorageBytes / 1024 / 1024) + "MB limit.");
+        }
+        try {
+            tryReserve(ownerId, bytes, threshold);
+        } catch (ConditionalCheckFailedException e) {
+            // Either over the limit, or the user has no counters yet (first upload since this shipped)
+            if (readCounters(ownerId) != null) {
+                throw limitExceeded(ownerId);
+            }
+            initialize(ownerId);
+            try {
+                tryReserve(ownerId, bytes, threshold);
+            } catch (ConditionalCheckFailedException again) {
+                throw limitExceeded(ownerId);
+            }
+        }
+    }
+
+    private RuntimeException limitExceeded(String ownerId) {
+        StorageUsage usage = getUsage(ownerId);
+        return new RuntimeException("Storage Limit Exceeded! You have used "
+                + (usage.usedBytes() / 1024 / 1024) + "MB of your "
+                + (maxStorageBytes / 1024 / 1024) + "MB limit.");
+    }
+
+    private void tryReserve(String ownerId, long bytes, long threshold) {
+        // A missing item fails the condition too, so no half-initialized record is ever created
+        dynamoDbClient.updateItem(req -> req.tableName(usageTable)
+                .key(key(ownerId))
+                .updateExpression("ADD allocatedBytes :bytes SET updatedAt = :now")
+                .conditionExpression("allocatedBytes <= :threshold")
+                .expressionAttributeValues(Map.of(
+                        ":bytes", n(bytes),
+                        ":threshold", n(threshold),
+                        ":now", n(System.currentTimeMillis()))));
+    }
+
+    // 2a. The upload finished: the reserved bytes become used bytes
+    public void commit(String ownerId, long bytes) {
+        add(ownerId, Map.of("usedBytes", bytes));
+    }
+
+    // 2b. The upload failed: give the reservation back
+    public void release(String ownerId, long bytes) {
+        add(ownerId, Map.of("allocatedBytes", -bytes));
+    }
+
+    // 3. A stored file was deleted
+    public void recordDeletion(String ownerId, long bytes) {
+        add(ownerId, Map.of("usedBytes", -bytes, "allocatedBytes", -bytes));
+    }
+
+    // Drop the counters entirely (account deletion)
+    public void forget(String ownerId) {
+        dynamoDbClient.deleteItem(req -> req.tableName(usageTable).key(key(ownerId)));
+    }
+
+    /**
+     * Rebuilds one user's counters from their file metadata, summed just before the write, which
+     * only applies if the counters have not moved since they were read. Users with a reservation
+     * open (younger than STALE_RESERVATION_MILLIS) are skipped: a file it covers may already be
+     * saved but not yet committed, and would be counted twice. So are users whose counters
+     * changed too recently for the owner index to show it. Both are picked up on a later run.
+     */
+    public void reconcile(String ownerId) {
+        Map<String, AttributeValue> item = readCounters(ownerId);
+        if (item == null) {
+            initialize(ownerId);
+            return;
+        }
+        long used = number(item, "usedBytes");
+        long allocated = number(item, "allocatedBytes");
+        long updatedAt = number(item, "updatedAt");
+        long idleFor = System.currentTimeMillis() - updatedAt;
+        if (allocated > used && idleFor <= STALE_RESERVATION_MILLIS) {
+            logger.debug("Not reconciling ownerId={}: an upload is in progress", ownerId);
+            return;
+        }
+        if (idleFor < INDEX_SETTLE_MILLIS) {
+            logger.debug("Not reconciling ownerId={}: usage changed {} ms ago", ownerId, idleFor);
+            return;
+        }
+
+        // Leaked reservations (idle past STALE_RESERVATION_MILLIS) are dropped along the way
+        long actualUsed = sumFileSizes(ownerId);
+        try {
+            dynamoDbClient.updateItem(req -> req.tableName(usageTable)
+                    .key(key(ownerId))
+                    .updateExpression("SET usedBytes = :used, allocatedBytes = :used, updatedAt = :now")
+                    .conditionExpression("updatedAt = :oldUpdatedAt AND usedBytes = :oldUsed AND allocatedBytes = :oldAllocated")
+                    .expressionAttributeValues(Map.of(
+                            ":used", n(actualUsed),
+                            ":now", n(System.currentTimeMillis()),
+                            ":oldUpdatedAt", n(updatedAt),
+                            ":oldUsed", n(used),
+                            ":oldAllocated", n(allocated))));
+        } catch (ConditionalCheckFailedException e) {
+            // An upload or delete landed while summing; the sum may predate it
+            logger.debug("Not reconciling ownerId={}: usage changed while summing", ownerId);
+            return;
+        }
+        if (used != actualUsed || allocated != actualUsed) {
+            logger.info("Reconciled usage for ownerId={}: used {} -> {}, allocated {} -> {} bytes",
+                    ownerId, used, actualUsed, allocated, actualUsed);
+        }
+    }
+
+    /**
+     * Nightly (or on demand) rebuild of every user's counters. A scan of the metadata and usage
+     * tables finds the users; each one is then re-summed on its own (see {@link #reconcile}).
+     * Disabled unless {@code app.quota.reconcile-cron} is set.
+     */
+    @Scheduled(cron = "${app.quota.reconcile-cron:-}")
+    public void reconcileAll() {
+        // Users without files only show up in the usage table; their drift would stay forever otherwise
+        Set<String> owners = new HashSet<>();
+        metadataRepository.table()
+                .scan(ScanEnhancedRequest.builder().attributesToProject("ownerId").build())
+                .items()
+                .forEach(f -> owners.add(f.getOwnerId()));
+        dynamoDbClient.scanPaginator(req -> req.tableName(usageTable).projectionExpression("ownerId"))
+                .items()
+                .forEach(item -> owners.add(item.get("ownerId").s()));
+
+        owners.forEach(this::reconcile);
+        logger.info("Storage usage reconciled for {} users", owners.size());
+    }
+
+    // First touch for a user: seed the counters from their existing files
+    private void initialize(String ownerId) {
+        initialize(ownerId, sumFileSizes(ownerId));
+    }
+
+    private void initialize(String ownerId, long used) {
+        Map<String, AttributeValue> item = new HashMap<>(key(ownerId));
+        item.put("usedBytes", n(used));
+        item.put("allocatedBytes", n(used));
+        item.put("updatedAt", n(System.currentTimeMillis()));
+        try {
+            dynamoDbClient.putItem(req -> req.tableName(usageTable)
+                    .item(item)
+                    .conditionExpression("attribute_not_exists(ownerId)"));
+        } catch (ConditionalCheckFailedException ignored) {
+            // Another request initialized it first
+        }
+    }
+
+    private long sumFileSizes(String ownerId) {
+        return metadataRepository.ownerIndex()
+                .query(QueryEnhancedRequest.builder()
+                        .queryConditional(QueryConditional.keyEqualTo(k -> k.partitionValue(ownerId)))
+                        .attributesToProject("fileSize")
+                        .build())
+                .stream()
+                .flatMap(page -> page.items().stream())
+                .mapToLong(f -> f.getFileSize() == null ? 0 : f.getFileSize())
+                .sum();
+    }
+
+    private void add(String ownerId, Map<String, Long> deltas) {
+        StringBuilder expression = new StringBuilder("ADD ");
+        Map<String, AttributeValue> values = new HashMap<>();
+        deltas.forEach((attribute, delta) -> {
+            if (values.size() > 0) expression.append(", ");
+            expression.append(attribute).append(" :").append(attribute);
+            values.put(":" + attribute, n(delta));
+        });
+        expression.append(" SET updatedAt = :now");
+        values.put(":now", n(System.currentTimeMillis()));
+
+        try {
+            dynamoDbClient.updateItem(req -> req.tableName(usageTable)
+                    .key(key(ownerId))
+                    .updateExpression(expression.toString())
+                    .conditionExpression("attribute_exists(ownerId)")
+                    .expressionAttributeValues(values));
+        } catch (ConditionalCheckFailedException ignored) {
+            // No counters yet; they will be seeded from the (already updated) metadata on first use
+        }
+    }
+
+    private Map<String, AttributeValue> readCounters(String ownerId) {
+        GetItemResponse response = dynamoDbClient.getItem(req -> req.tableName(usageTable)
+                .key(key(ownerId))
+                .consistentRead(true));
+        return response.hasItem() ? response.item() : null;
+    }
+
+    private static Map<String, AttributeValue> key(String ownerId) {
+        return Map.of("ownerId", AttributeValue.builder().s(ownerId).build());
+    }
+
+    private static AttributeValue n(long value) {
+        return AttributeValue.builder().n(Long.toString(value)).build();
+    }
+
+    private static long number(Map<String, AttributeValue> item, String attribute) {
+        AttributeValue value = item.get(attribute);
+        return value == null || value.n() == null ? 0 : Long.parseLong(value.n());
+    }
+}
@@ -0,0 +1,7 @@
+package com.securestorage;
+
+/**
+ * A user's storage counters. {@code reservedBytes} is space held by uploads still in flight.
+ */
+public record StorageUsage(long usedBytes, long reservedBytes, long limitBytes) {
+}
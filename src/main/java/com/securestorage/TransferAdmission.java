@@ -0,0 +1,280 @@
+package com.securestorage;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Admission control for file transfers, so a burst of large uploads and downloads queues up
+ * instead of running the JVM out of heap.
+ *
+ * Each transfer declares how much heap it will pin while it runs (see
+ * {@link FileService#uploadMemory} and friends) and is admitted against a global
+ * {@code memoryBudget}. When the budget is used up it waits in a FIFO queue for up to
+ * {@code queueTimeout}; after that, or when {@code maxQueued} transfers are already waiting, it is
+ * rejected with a {@link TransferRejectedException}. Each user may also have at most
+ * {@code perUserMax} transfers admitted or waiting; more are rejected straight away.
+ *
+ * Waiting does not hold a thread: {@link #admit} returns a future completed when memory frees up.
+ */
+@Component
+public class TransferAdmission {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransferAdmission.class);
+
+    private final boolean enabled;
+    private final long memoryBudget;
+    private final int perUserMax;
+    private final int maxQueued;
+    private final Duration queueTimeout;
+    private final long retryAfterSeconds;
+
+    // Guarded by this
+    private long available;
+    private final Deque<Waiter> queue = new ArrayDeque<>();
+
+    // Admitted plus waiting transfers per user; users without any are removed
+    private final Map<String, Integer> perUser = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timeouts;
+
+    private final Timer admittedWait;
+    private final Timer timedOutWait;
+    private final Counter rejectedUserLimit;
+    private final Counter rejectedQueueFull;
+    private final Counter rejectedTimeout;
+
+    public TransferAdmission(MeterRegistry registry,
+                             @Value("${app.admission.enabled:true}") boolean enabled,
+                             @Value("${app.admission.memory-budget:0}") long memoryBudget,
+                             @Value("${app.admission.per-user-max:4}") int perUserMax,
+                             @Value("${app.admission.max-queued:200}") int maxQueued,
+                             @Value("${app.admission.queue-timeout:5s}") Duration queueTimeout,
+                             @Value("${app.admission.retry-after:2s}") Duration retryAfter) {
+        this.enabled = enabled;
+        // 0 = a quarter of the heap, leaving the rest for everything else the node does
+        this.memoryBudget = memoryBudget > 0 ? memoryBudget : Runtime.getRuntime().maxMemory() / 4;
+        this.perUserMax = Math.max(perUserMax, 1);
+        this.maxQueued = Math.max(maxQueued, 0);
+        this.queueTimeout = queueTimeout;
+        this.retryAfterSeconds = Math.max(retryAfter.toSeconds(), 1);
+        this.available = this.memoryBudget;
+        this.timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "transfer-admission-timeout");
+            t.setDaemon(true);
+            return t;
+        });
+
+        Gauge.builder("transfer.admission.queued", this, TransferAdmission::queued)
+                .description("Transfers waiting for memory")
+                .register(registry);
+        Gauge.builder("transfer.admission.reserved", this, TransferAdmission::reserved)
+                .description("Heap reserved by admitted transfers")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("transfer.admission.budget", this, a -> a.memoryBudget)
+                .baseUnit("bytes")
+                .register(registry);
+        admittedWait = waitTimer(registry, "admitted");
+        timedOutWait = waitTimer(registry, "timed_out");
+        rejectedUserLimit = rejected(registry, "user_limit");
+        rejectedQueueFull = rejected(registry, "queue_full");
+        rejectedTimeout = rejected(registry, "timeout");
+        logger.info("Transfer admission {}: budget={} bytes, per-user max={}", enabled ? "on" : "off",
+                this.memoryBudget, this.perUserMax);
+    }
+
+    private static Timer waitTimer(MeterRegistry registry, String outcome) {
+        return Timer.builder("transfer.admission.wait")
+                .description("Time transfers spent queued for memory")
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private static Counter rejected(MeterRegistry registry, String reason) {
+        return Counter.builder("transfer.admission.rejected")
+                .description("Transfers turned away with 429")
+                .tag("reason", reason)
+                .register(registry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        timeouts.shutdownNow();
+    }
+
+    /**
+     * Reserves {@code memoryBytes} of the budget for a transfer of this user. The future fails
+     * with {@link TransferRejectedException} if it cannot be admitted. A transfer larger than the
+     * whole budget is admitted once nothing else is running.
+     */
+    public CompletableFuture<Permit> admit(String ownerId, long memoryBytes) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(new Permit(null, 0));
+        }
+
+        // 1. Per-user cap: turned away at once, queueing would just let one user fill the queue
+        boolean[] allowed = new boolean[1];
+        perUser.compute(ownerId, (id, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= perUserMax) return count;
+            allowed[0] = true;
+            return current + 1;
+        });
+        if (!allowed[0]) {
+            rejectedUserLimit.increment();
+            return CompletableFuture.failedFuture(reject("Too many transfers in progress for this user"));
+        }
+
+        // 2. Global budget: admit now if nobody is queued ahead and it fits, otherwise wait in line
+        long bytes = Math.min(Math.max(memoryBytes, 0), memoryBudget);
+        Waiter waiter;
+        synchronized (this) {
+            if (queue.isEmpty() && available >= bytes) {
+                available -= bytes;
+                admittedWait.record(0, TimeUnit.NANOSECONDS);
+                return CompletableFuture.completedFuture(new Permit(ownerId, bytes));
+            }
+            if (queue.size() >= maxQueued) {
+                waiter = null;
+            } else {
+                waiter = new Waiter(ownerId, bytes);
+                queue.add(waiter);
+            }
+        }
+        if (waiter == null) {
+            releaseUser(ownerId);
+            rejectedQueueFull.increment();
+            return CompletableFuture.failedFuture(reject("Server is busy, too many transfers waiting"));
+        }
+        waiter.timeout = timeouts.schedule(() -> expire(waiter), queueTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        return waiter.future;
+    }
+
+    // admit() for synchronous endpoints: waits on the calling thread, throws TransferRejectedException
+    public Permit admitNow(String ownerId, long memoryBytes) {
+        try {
+            return admit(ownerId, memoryBytes).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw e;
+        }
+    }
+
+    private void expire(Waiter waiter) {
+        synchronized (this) {
+            // Already admitted by a release that got here first
+            if (!queue.remove(waiter)) return;
+        }
+        timedOutWait.record(System.nanoTime() - waiter.queuedAt, TimeUnit.NANOSECONDS);
+        releaseUser(waiter.ownerId);
+        rejectedTimeout.increment();
+        waiter.future.completeExceptionally(reject("Server is busy, try again shortly"));
+    }
+
+    private void release(Permit permit) {
+        if (permit.ownerId == null) return;
+        List<Waiter> admitted = new ArrayList<>();
+        synchronized (this) {
+            available += permit.bytes;
+            // Strictly in order, so a large transfer is not starved by a stream of small ones
+            while (!queue.isEmpty() && queue.peek().bytes <= available) {
+                Waiter next = queue.poll();
+                available -= next.bytes;
+                admitted.add(next);
+            }
+        }
+        releaseUser(permit.ownerId);
+        // Completed outside the lock: dependent stages of the admitted transfers may run right here
+        for (Waiter waiter : admitted) {
+            if (waiter.timeout != null) waiter.timeout.cancel(false);
+            admittedWait.record(System.nanoTime() - waiter.queuedAt, TimeUnit.NANOSECONDS);
+            waiter.future.complete(new Permit(waiter.ownerId, waiter.bytes));
+        }
+    }
+
+    private void releaseUser(String ownerId) {
+        perUser.computeIfPresent(ownerId, (id, count) -> count <= 1 ? null : count - 1);
+    }
+
+    private TransferRejectedException reject(String message) {
+        return new TransferRejectedException(message, retryAfterSeconds);
+    }
+
+    private synchronized int queued() {
+        return queue.size();
+    }
+
+    private synchronized long reserved() {
+        return memoryBudget - available;
+    }
+
+    private static final class Waiter {
+        private final String ownerId;
+        private final long bytes;
+        private final long queuedAt = System.nanoTime();
+        private final CompletableFuture<Permit> future = new CompletableFuture<>();
+        private volatile ScheduledFuture<?> timeout;
+
+        Waiter(String ownerId, long bytes) {
+            this.ownerId = ownerId;
+            this.bytes = bytes;
+        }
+    }
+
+    /** An admitted transfer's share of the budget. Closing it more than once has no effect. */
+    public final class Permit implements AutoCloseable {
+
+        private final String ownerId;
+        private final long bytes;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(String ownerId, long bytes) {
+            this.ownerId = ownerId;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) release(this);
+        }
+
+        // For streamed responses: the memory stays reserved until the stream is closed
+        public InputStream releaseOnClose(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        Permit.this.close();
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.securestorage;
+
+// Thrown by TransferAdmission when a transfer cannot start now; answered with 429 and Retry-After
+public class TransferRejectedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterSeconds;
+
+    public TransferRejectedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
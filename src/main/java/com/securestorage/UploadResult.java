@@ -0,0 +1,13 @@
+package com.securestorage;
+
+// Outcome for one file of a batch upload; fileId is null and error set when it failed
+public record UploadResult(String filename, String fileId, boolean success, String error) {
+
+    static UploadResult stored(FileEntity entity) {
+        return new UploadResult(entity.getFilename(), entity.getFileId(), true, null);
+    }
+
+    static UploadResult failed(String filename, String error) {
+        return new UploadResult(filename, null, false, error);
+    }
+}
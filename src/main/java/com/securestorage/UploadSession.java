@@ -0,0 +1,12 @@
+package com.securestorage;
+
+import java.util.List;
+
+/**
+ * A resumable upload as shown to the client. Chunk {@code i} covers plaintext bytes
+ * {@code [i * chunkSize, min((i + 1) * chunkSize, fileSize))}; {@code missingChunks} are the ones
+ * still to send. {@code expiresAt} (epoch millis) moves forward with every chunk received.
+ */
+public record UploadSession(String sessionId, String filename, String contentType, long fileSize, int chunkSize,
+                            int chunkCount, List<Integer> missingChunks, long expiresAt) {
+}
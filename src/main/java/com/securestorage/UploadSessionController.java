@@ -0,0 +1,117 @@
+package com.securestorage;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.InputStream;
+
+/**
+ * Resumable uploads (see {@link UploadSessionService}):
+ * <ol>
+ *   <li>{@code POST /api/files/uploads} with {@code {"filename", "contentType", "size"}} starts a session</li>
+ *   <li>{@code PUT /api/files/uploads/{id}/chunks/{index}} sends one chunk as the raw request body</li>
+ *   <li>{@code GET /api/files/uploads/{id}} lists the chunks still missing</li>
+ *   <li>{@code POST /api/files/uploads/{id}/complete} saves the file; {@code DELETE} cancels</li>
+ * </ol>
+ */
+@RestController
+@RequestMapping("/api/files/uploads")
+public class UploadSessionController {
+
+    private final UploadSessionService sessions;
+    private final FileMetrics metrics;
+    private final TransferAdmission admission;
+
+    public UploadSessionController(UploadSessionService sessions, FileMetrics metrics, TransferAdmission admission) {
+        this.sessions = sessions;
+        this.metrics = metrics;
+        this.admission = admission;
+    }
+
+    public record CreateRequest(String filename, String contentType, Long size) {
+    }
+
+    @PostMapping
+    public ResponseEntity<?> create(@RequestBody CreateRequest request, @AuthenticationPrincipal Jwt principal) {
+        if (request.size() == null) {
+            return ResponseEntity.badRequest().body("Validation error: size is required");
+        }
+        try {
+            UploadSession session = sessions.create(principal.getSubject(), request.filename(), request.contentType(),
+                    request.size());
+            return ResponseEntity.status(HttpStatus.CREATED).body(session);
+        } catch (Exception e) {
+            return failed(e);
+        }
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<UploadSession> status(@PathVariable String id, @AuthenticationPrincipal Jwt principal) {
+        UploadSession session = sessions.status(id, principal.getSubject());
+        return session == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(session);
+    }
+
+    @PutMapping("/{id}/chunks/{index}")
+    public ResponseEntity<?> putChunk(@PathVariable String id, @PathVariable int index, HttpServletRequest request,
+                                      @AuthenticationPrincipal Jwt principal) {
+        long length = request.getContentLengthLong();
+        if (length < 0) {
+            return ResponseEntity.status(HttpStatus.LENGTH_REQUIRED).body("Content-Length is required");
+        }
+        FileMetrics.Operation operation = metrics.begin(FileMetrics.UPLOAD_CHUNK);
+        boolean ok = false;
+        TransferAdmission.Permit permit;
+        try {
+            permit = admission.admitNow(principal.getSubject(), sessions.chunkMemory(length));
+        } catch (TransferRejectedException e) {
+            operation.end(false);
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds()))
+                    .body(e.getMessage());
+        }
+        try (permit; InputStream body = request.getInputStream()) {
+            UploadSession session = sessions.putChunk(id, principal.getSubject(), index, body, length);
+            ok = session != null;
+            return session == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(session);
+        } catch (Exception e) {
+            return failed(e);
+        } finally {
+            operation.end(ok);
+        }
+    }
+
+    @PostMapping("/{id}/complete")
+    public ResponseEntity<?> complete(@PathVariable String id, @AuthenticationPrincipal Jwt principal) {
+        try {
+            FileEntity file = sessions.complete(id, principal.getSubject());
+            return file == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(UploadResult.stored(file));
+        } catch (Exception e) {
+            return failed(e);
+        }
+    }
+
+    @DeleteMapping("/{id}")
+    public ResponseEntity<Void> abort(@PathVariable String id, @AuthenticationPrincipal Jwt principal) {
+        return sessions.abort(id, principal.getSubject()) ? ResponseEntity.noContent().build()
+                : ResponseEntity.notFound().build();
+    }
+
+    private static ResponseEntity<String> failed(Exception e) {
+        if (e instanceof IllegalArgumentException) {
+            return ResponseEntity.badRequest().body("Validation error: " + e.getMessage());
+        }
+        if (e instanceof IllegalStateException) {
+            // Missing chunks, a chunk already in flight, or a session that is no longer open
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+        }
+        if (e.getMessage() != null && e.getMessage().contains("Storage Limit Exceeded")) {
+            return ResponseEntity.status(413).body(e.getMessage());
+        }
+        return ResponseEntity.status(500).body("Upload failed: " + e.getMessage());
+    }
+}
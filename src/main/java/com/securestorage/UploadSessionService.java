@@ -0,0 +1,580 @@
+package com.securestorage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static com.securestorage.FileMetrics.CIPHERTEXT;
+import static com.securestorage.FileMetrics.PLAINTEXT;
+import static com.securestorage.FileMetrics.UPLOAD_CHUNK;
+
+/**
+ * Resumable uploads: create a session, send numbered chunks in any order (in parallel if
+ * wanted), then complete it. Meant for large files over links that drop.
+ *
+ * Chunk sizes are a multiple of the encryption segment size, so every chunk is encrypted on its
+ * own as a slice of the segmented format (see {@link EncryptingInputStream#slice}) and sent on as
+ * one part of a multipart object. A chunk is read whole before any of it is encrypted (see
+ * {@link #chunkMemory}).
+ * Compression and deduplication need the whole file up front, so they do not apply here.
+ *
+ * Sessions live in their own DynamoDB table (partition key {@code sessionId}), so a client can
+ * ask what is still missing after a restart of any node. The table holds the wrapped file key
+ * and the received chunks with their part tags and plaintext hashes. The quota is reserved when
+ * the session is created. Sessions without a chunk for {@code ttl} are aborted by a background sweep, which
+ * drops their parts and gives the reservation back.
+ *
+ * A chunk is encrypted with nonces fixed by its position, so a position must never be sealed over
+ * two different plaintexts: AES-GCM would give away their XOR and its authentication key. The
+ * first claim on a chunk records the hash of its content, and every later attempt must have the
+ * same hash (same bytes, same key and nonces: the same ciphertext). Whether an earlier attempt
+ * got any ciphertext out before it failed does not matter then. Only one upload of a chunk runs
+ * at a time: it renews its claim while it sends, and the claim can only be taken over once it has
+ * not been renewed for {@code claim-timeout}.
+ */
+@Service
+public class UploadSessionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadSessionService.class);
+
+    // S3 limits: parts (other than the last) of at least 5 MiB, at most 10000 parts per object
+    private static final int MIN_CHUNK_SIZE = 5 * 1024 * 1024;
+    private static final int MAX_CHUNKS = 10_000;
+
+    private static final String OPEN = "OPEN";
+    private static final String COMPLETING = "COMPLETING";
+
+    private final DynamoDbClient dynamoDbClient;
+    private final ObjectStore objectStore;
+    private final EncryptionService encryptionService;
+    private final StorageQuotaService quotaService;
+    private final FileService fileService;
+    private final FileMetadataRepository metadataRepository;
+    private final FileMetrics metrics;
+    private final int chunkSize;
+    private final Duration ttl;
+    private final Duration claimTimeout;
+
+    @Value("${aws.dynamodb.upload-session-table:}")
+    private String sessionTable;
+
+    public UploadSessionService(DynamoDbClient dynamoDbClient, ObjectStore objectStore,
+                                EncryptionService encryptionService, StorageQuotaService quotaService,
+                                FileService fileService, FileMetadataRepository metadataRepository, FileMetrics metrics,
+                                @Value("${app.upload-session.chunk-size:8388608}") int chunkSize,
+                                @Value("${app.upload-session.ttl:24h}") Duration ttl,
+                                @Value("${app.upload-session.claim-timeout:5m}") Duration claimTimeout) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.objectStore = objectStore;
+        this.encryptionService = encryptionService;
+        this.quotaService = quotaService;
+        this.fileService = fileService;
+        this.metadataRepository = metadataRepository;
+        this.metrics = metrics;
+        // Whole segments per chunk, so chunks encrypt independently
+        int segmentSize = encryptionService.getSegmentSize();
+        int size = Math.max(chunkSize, MIN_CHUNK_SIZE);
+        this.chunkSize = (size + segmentSize - 1) / segmentSize * segmentSize;
+        this.ttl = ttl;
+        this.claimTimeout = claimTimeout;
+    }
+
+    // 1. Reserve the quota, start the multipart object and record the session
+    public UploadSession create(String ownerId, String filename, String contentType, long fileSize) throws Exception {
+        if (filename == null || filename.isBlank()) {
+            throw new IllegalArgumentException("filename is required");
+        }
+        if (fileSize < 0) {
+            throw new IllegalArgumentException("size must not be negative");
+        }
+        long chunkCount = SegmentedGcmFormat.segmentCount(fileSize, chunkSize);
+        if (chunkCount > MAX_CHUNKS) {
+            throw new IllegalArgumentException("File is too large for a resumable upload");
+        }
+
+        quotaService.reserve(ownerId, fileSize);
+        String fileId = UUID.randomUUID().toString();
+        String s3Key = ObjectKeys.file(ownerId, fileId);
+        String uploadId = null;
+        try {
+            SecretKey aesKey = encryptionService.generateAesKey();
+            byte[] noncePrefix = encryptionService.generateNoncePrefix();
+            uploadId = objectStore.startParts(s3Key);
+
+            long now = System.currentTimeMillis();
+            Map<String, AttributeValue> item = new HashMap<>();
+            item.put("sessionId", s(UUID.randomUUID().toString()));
+            item.put("ownerId", s(ownerId));
+            item.put("fileId", s(fileId));
+            item.put("s3Key", s(s3Key));
+            item.put("uploadId", s(uploadId));
+            item.put("filename", s(filename));
+            item.put("contentType", s(contentType == null || contentType.isBlank() ? "application/octet-stream" : contentType));
+            item.put("fileSize", n(fileSize));
+            item.put("chunkSize", n(chunkSize));
+            item.put("chunkCount", n(chunkCount));
+            item.put("segmentSize", n(encryptionService.getSegmentSize()));
+            item.put("encryptedAesKey", s(encryptionService.encryptKeyLocally(aesKey)));
+            item.put("masterKeyId", s(encryptionService.activeKeyId()));
+            item.put("iv", s(Base64.getEncoder().encodeToString(noncePrefix)));
+            item.put("state", s(OPEN));
+            item.put("partTags", AttributeValue.builder().m(Map.of()).build());
+            item.put("chunkHashes", AttributeValue.builder().m(Map.of()).build());
+            item.put("claims", AttributeValue.builder().m(Map.of()).build());
+            item.put("createdAt", n(now));
+            item.put("expiresAt", n(now + ttl.toMillis()));
+            dynamoDbClient.putItem(req -> req.tableName(sessionTable).item(item));
+            logger.info("Upload session started: session={}, ownerId={}, file_id={}, chunks={}",
+                    item.get("sessionId").s(), ownerId, fileId, chunkCount);
+            return view(item);
+        } catch (Exception e) {
+            if (uploadId != null) objectStore.abortParts(s3Key, uploadId);
+            quotaService.release(ownerId, fileSize);
+            throw e;
+        }
+    }
+
+    // Null if there is no such session for this user
+    public UploadSession status(String sessionId, String ownerId) {
+        Map<String, AttributeValue> item = load(sessionId, ownerId);
+        return item == null ? null : view(item);
+    }
+
+    // Heap a chunk upload pins: the whole chunk plus the encrypting stream's segments
+    public long chunkMemory(long length) {
+        return length + 2L * encryptionService.getSegmentSize();
+    }
+
+    /**
+     * 2. Encrypts one chunk and stores it as its part. A chunk's content is fixed by the first
+     * attempt at it: the same bytes are accepted again (without being stored if already
+     * received), so a retry after a failure or a lost response is harmless; different bytes are
+     * rejected. Returns null if there is no such session for this user.
+     */
+    public UploadSession putChunk(String sessionId, String ownerId, int index, InputStream body, long contentLength)
+            throws Exception {
+        Map<String, AttributeValue> item = load(sessionId, ownerId);
+        if (item == null) return null;
+        long fileSize = number(item, "fileSize");
+        int chunkSize = (int) number(item, "chunkSize");
+        int chunkCount = (int) number(item, "chunkCount");
+        if (index < 0 || index >= chunkCount) {
+            throw new IllegalArgumentException("Chunk index must be between 0 and " + (chunkCount - 1));
+        }
+        long start = (long) index * chunkSize;
+        long length = Math.min(chunkSize, fileSize - start);
+        if (contentLength != length) {
+            throw new IllegalArgumentException("Chunk " + index + " must be exactly " + length + " bytes");
+        }
+        // Read whole first: a body cut short must not get as far as the cipher
+        byte[] content = body.readNBytes((int) length);
+        if (content.length != length) {
+            throw new IllegalArgumentException("Chunk " + index + " ended after " + content.length + " of " + length + " bytes");
+        }
+        String hash = hash(content);
+        // Reading may have taken a while; another attempt could have finished meanwhile
+        item = load(sessionId, ownerId);
+        if (item == null) return null;
+        AttributeValue hashes = item.get("chunkHashes");
+        AttributeValue fixed = hashes == null ? null : hashes.m().get(Integer.toString(index));
+        if (fixed != null && !fixed.s().equals(hash)) {
+            throw new IllegalStateException("Chunk " + index + " was already sent with different content");
+        }
+        if (received(item).contains(index)) return view(item);
+
+        long claimedAt = claim(sessionId, index, hash, hashes == null);
+        ClaimedInputStream plaintext = new ClaimedInputStream(new ByteArrayInputStream(content), sessionId, index,
+                claimedAt);
+        long started = System.nanoTime();
+        String tag;
+        try {
+            int segmentSize = (int) number(item, "segmentSize");
+            long firstSegment = start / segmentSize;
+            boolean last = index == chunkCount - 1;
+            long segments = last ? SegmentedGcmFormat.segmentCount(length, segmentSize) : length / segmentSize;
+            long encryptedLength = (index == 0 ? SegmentedGcmFormat.HEADER_LENGTH : 0)
+                    + length + segments * SegmentedGcmFormat.TAG_LENGTH;
+
+            SecretKey aesKey = encryptionService.decryptKeyLocally(string(item, "masterKeyId"), item.get("encryptedAesKey").s());
+            byte[] noncePrefix = Base64.getDecoder().decode(item.get("iv").s());
+            try (InputStream encrypted = EncryptingInputStream.slice(plaintext, aesKey, noncePrefix, segmentSize,
+                    firstSegment, last)) {
+                tag = objectStore.putPart(item.get("s3Key").s(), item.get("uploadId").s(), index + 1, encrypted,
+                        encryptedLength);
+            }
+            metrics.stage(UPLOAD_CHUNK, "object_put", started);
+            metrics.bytes(UPLOAD_CHUNK, PLAINTEXT, length);
+            metrics.bytes(UPLOAD_CHUNK, CIPHERTEXT, encryptedLength);
+        } catch (Exception e) {
+            unclaim(sessionId, index, plaintext.claimedAt);
+            throw e;
+        }
+
+        // 3. Record it and push the expiry out, only while the claim is still ours
+        Map<String, AttributeValue> updated;
+        try {
+            updated = dynamoDbClient.updateItem(req -> req.tableName(sessionTable)
+                    .key(key(sessionId))
+                    .updateExpression("SET partTags.#i = :tag, expiresAt = :expires REMOVE claims.#i ADD chunks :index")
+                    .conditionExpression("claims.#i = :claimed")
+                    .expressionAttributeNames(Map.of("#i", Integer.toString(index)))
+                    .expressionAttributeValues(Map.of(
+                            ":tag", s(tag),
+                            ":claimed", n(plaintext.claimedAt),
+                            ":expires", n(System.currentTimeMillis() + ttl.toMillis()),
+                            ":index", AttributeValue.builder().ns(Integer.toString(index)).build()))
+                    .returnValues(ReturnValue.ALL_NEW)).attributes();
+        } catch (ConditionalCheckFailedException e) {
+            throw new IllegalStateException("Upload session has expired, or chunk " + index + " was taken over");
+        }
+        return view(updated);
+    }
+
+    /**
+     * 4. Publishes the object once every chunk is in and saves the file. Returns null if there is
+     * no such session for this user.
+     */
+    public FileEntity complete(String sessionId, String ownerId) throws Exception {
+        Map<String, AttributeValue> item = load(sessionId, ownerId);
+        if (item == null) return null;
+        int chunkCount = (int) number(item, "chunkCount");
+        int missing = chunkCount - received(item).size();
+        if (missing > 0) {
+            throw new IllegalStateException(missing + " of " + chunkCount + " chunks are still missing");
+        }
+        try {
+            dynamoDbClient.updateItem(req -> req.tableName(sessionTable)
+                    .key(key(sessionId))
+                    .updateExpression("SET #state = :completing")
+                    .conditionExpression("#state = :open")
+                    .expressionAttributeNames(Map.of("#state", "state"))
+                    .expressionAttributeValues(Map.of(":completing", s(COMPLETING), ":open", s(OPEN))));
+        } catch (ConditionalCheckFailedException e) {
+            throw new IllegalStateException("Upload session is already being completed");
+        }
+
+        String s3Key = item.get("s3Key").s();
+        Map<String, AttributeValue> partTags = item.get("partTags").m();
+        List<String> tags = new ArrayList<>();
+        for (int i = 0; i < chunkCount; i++) {
+            tags.add(partTags.get(Integer.toString(i)).s());
+        }
+        try {
+            objectStore.completeParts(s3Key, item.get("uploadId").s(), tags);
+        } catch (Exception e) {
+            // Parts are still there; the client may try again
+            setState(sessionId, OPEN);
+            throw e;
+        }
+
+        FileEntity entity = new FileEntity(
+                item.get("fileId").s(),
+                ownerId,
+                item.get("filename").s(),
+                s3Key,
+                item.get("encryptedAesKey").s(),
+                item.get("iv").s(),
+                item.get("contentType").s(),
+                number(item, "fileSize"),
+                SegmentedGcmFormat.VERSION,
+                (int) number(item, "segmentSize"),
+                System.currentTimeMillis(),
+                null,
+                null,
+                null,
+                string(item, "masterKeyId"));
+        try {
+            fileService.completeStoredUpload(entity);
+        } catch (RuntimeException e) {
+            // The object is gone again; so is the session
+            quotaService.release(ownerId, entity.getFileSize());
+            deleteRecord(sessionId);
+            throw e;
+        }
+        deleteRecord(sessionId);
+        logger.info("Upload session completed: session={}, file_id={}", sessionId, entity.getFileId());
+        return entity;
+    }
+
+    // Cancelled by the client: false if there is no such open session for this user
+    public boolean abort(String sessionId, String ownerId) {
+        Map<String, AttributeValue> item = load(sessionId, ownerId);
+        if (item == null || !OPEN.equals(item.get("state").s())) return false;
+        discard(item, OPEN);
+        return true;
+    }
+
+    // Account purge: drop every session of the user (the usage counters go with the account)
+    public void abortAll(String ownerId) {
+        if (sessionTable == null || sessionTable.isBlank()) return;
+        scan("ownerId = :owner", Map.of(":owner", s(ownerId))).forEach(item -> discard(item, null));
+    }
+
+    /**
+     * Background sweep of sessions past their expiry. A session caught half-way through
+     * completing is only dropped if its file was never saved.
+     */
+    @Scheduled(cron = "${app.upload-session.sweep-cron:0 */15 * * * *}")
+    public void sweepExpired() {
+        if (sessionTable == null || sessionTable.isBlank()) return;
+        List<Map<String, AttributeValue>> expired = scan("expiresAt < :now",
+                Map.of(":now", n(System.currentTimeMillis())));
+        int discarded = 0;
+        for (Map<String, AttributeValue> item : expired) {
+            try {
+                if (COMPLETING.equals(item.get("state").s()) && metadataRepository.findById(item.get("fileId").s()) != null) {
+                    deleteRecord(item.get("sessionId").s());
+                    continue;
+                }
+                if (discard(item, item.get("state").s())) discarded++;
+            } catch (Exception e) {
+                logger.warn("Could not clean up upload session {}: {}", item.get("sessionId").s(), e.getMessage());
+            }
+        }
+        if (discarded > 0) logger.info("Expired upload sessions cleaned up: {}", discarded);
+    }
+
+    // Removes the record first (only if still in the expected state), then its parts and reservation
+    private boolean discard(Map<String, AttributeValue> item, String expectedState) {
+        String sessionId = item.get("sessionId").s();
+        try {
+            if (expectedState == null) {
+                deleteRecord(sessionId);
+            } else {
+                dynamoDbClient.deleteItem(req -> req.tableName(sessionTable)
+                        .key(key(sessionId))
+                        .conditionExpression("#state = :state")
+                        .expressionAttributeNames(Map.of("#state", "state"))
+                        .expressionAttributeValues(Map.of(":state", s(expectedState))));
+            }
+        } catch (ConditionalCheckFailedException e) {
+            return false; // Completed or discarded meanwhile
+        }
+        String s3Key = item.get("s3Key").s();
+        objectStore.abortParts(s3Key, item.get("uploadId").s());
+        if (COMPLETING.equals(item.get("state").s())) {
+            // The parts may already have been published as the object
+            objectStore.delete(s3Key);
+        }
+        quotaService.release(item.get("ownerId").s(), number(item, "fileSize"));
+        return true;
+    }
+
+    /**
+     * Claims a chunk that is neither received nor claimed by a live upload, and fixes its content
+     * hash if no attempt has yet. A claim is known by the time it was made or last renewed: it is
+     * only taken over once that is claimTimeout old, so a new claim never has the value of the one
+     * it replaced.
+     */
+    private long claim(String sessionId, int index, String hash, boolean noHashes) {
+        if (noHashes) {
+            // Sessions started before hashes were kept; the map has to exist before entries can go in
+            dynamoDbClient.updateItem(req -> req.tableName(sessionTable)
+                    .key(key(sessionId))
+                    .updateExpression("SET chunkHashes = if_not_exists(chunkHashes, :empty)")
+                    .conditionExpression("attribute_exists(sessionId)")
+                    .expressionAttributeValues(Map.of(":empty", AttributeValue.builder().m(Map.of()).build())));
+        }
+        long now = System.currentTimeMillis();
+        try {
+            dynamoDbClient.updateItem(req -> req.tableName(sessionTable)
+                    .key(key(sessionId))
+                    .updateExpression("SET claims.#i = :now, chunkHashes.#i = :hash")
+                    .conditionExpression("#state = :open AND expiresAt > :now AND NOT contains(chunks, :index)"
+                            + " AND (attribute_not_exists(claims.#i) OR claims.#i < :stale)"
+                            + " AND (attribute_not_exists(chunkHashes.#i) OR chunkHashes.#i = :hash)")
+                    .expressionAttributeNames(Map.of("#i", Integer.toString(index), "#state", "state"))
+                    .expressionAttributeValues(Map.of(
+                            ":now", n(now),
+                            ":stale", n(now - claimTimeout.toMillis()),
+                            ":open", s(OPEN),
+                            ":index", n(index),
+                            ":hash", s(hash))));
+        } catch (ConditionalCheckFailedException e) {
+            throw new IllegalStateException("Chunk " + index + " is being uploaded, already received or sent with"
+                    + " different content, or the session is no longer open");
+        }
+        return now;
+    }
+
+    // Pushes a claim out; false if it is no longer ours
+    private boolean renew(String sessionId, int index, long claimedAt, long now) {
+        try {
+            dynamoDbClient.updateItem(req -> req.tableName(sessionTable)
+                    .key(key(sessionId))
+                    .updateExpression("SET claims.#i = :now")
+                    .conditionExpression("claims.#i = :claimed")
+                    .expressionAttributeNames(Map.of("#i", Integer.toString(index)))
+                    .expressionAttributeValues(Map.of(":now", n(now), ":claimed", n(claimedAt))));
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            return false;
+        }
+    }
+
+    private void unclaim(String sessionId, int index, long claimedAt) {
+        try {
+            dynamoDbClient.updateItem(req -> req.tableName(sessionTable)
+                    .key(key(sessionId))
+                    .updateExpression("REMOVE claims.#i")
+                    .conditionExpression("claims.#i = :claimed")
+                    .expressionAttributeNames(Map.of("#i", Integer.toString(index)))
+                    .expressionAttributeValues(Map.of(":claimed", n(claimedAt))));
+        } catch (Exception e) {
+            // Expires after claimTimeout anyway
+            logger.debug("Could not release claim on chunk {} of session {}: {}", index, sessionId, e.getMessage());
+        }
+    }
+
+    private void setState(String sessionId, String state) {
+        try {
+            dynamoDbClient.updateItem(req -> req.tableName(sessionTable)
+                    .key(key(sessionId))
+                    .updateExpression("SET #state = :state")
+                    .conditionExpression("attribute_exists(sessionId)")
+                    .expressionAttributeNames(Map.of("#state", "state"))
+                    .expressionAttributeValues(Map.of(":state", s(state))));
+        } catch (Exception e) {
+            logger.warn("Could not reset upload session {}: {}", sessionId, e.getMessage());
+        }
+    }
+
+    private void deleteRecord(String sessionId) {
+        dynamoDbClient.deleteItem(req -> req.tableName(sessionTable).key(key(sessionId)));
+    }
+
+    private Map<String, AttributeValue> load(String sessionId, String ownerId) {
+        GetItemResponse response = dynamoDbClient.getItem(req -> req.tableName(sessionTable)
+                .key(key(sessionId))
+                .consistentRead(true));
+        if (!response.hasItem() || !ownerId.equals(response.item().get("ownerId").s())) return null;
+        return response.item();
+    }
+
+    private List<Map<String, AttributeValue>> scan(String filter, Map<String, AttributeValue> values) {
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        dynamoDbClient.scanPaginator(req -> req.tableName(sessionTable)
+                        .filterExpression(filter)
+                        .expressionAttributeValues(values)
+                        .projectionExpression("sessionId, ownerId, fileId, s3Key, uploadId, fileSize, #state")
+                        .expressionAttributeNames(Map.of("#state", "state")))
+                .items()
+                .forEach(items::add);
+        return items;
+    }
+
+    // 128 bits of SHA-256, as in ETags; the record holds one per chunk
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 16));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * The plaintext of a chunk as it is encrypted, renewing the upload's claim every third of
+     * claimTimeout. Reading fails once the claim is found taken over, so the chunk is not sent
+     * twice at once (the ciphertext would be the same, but the part tags would race).
+     */
+    private final class ClaimedInputStream extends FilterInputStream {
+
+        private final String sessionId;
+        private final int index;
+        private long claimedAt;
+
+        ClaimedInputStream(InputStream in, String sessionId, int index, long claimedAt) {
+            super(in);
+            this.sessionId = sessionId;
+            this.index = index;
+            this.claimedAt = claimedAt;
+        }
+
+        @Override
+        public int read() throws IOException {
+            keepClaim();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            keepClaim();
+            return super.read(b, off, len);
+        }
+
+        private void keepClaim() throws IOException {
+            long now = System.currentTimeMillis();
+            if (now - claimedAt < claimTimeout.toMillis() / 3) return;
+            if (!renew(sessionId, index, claimedAt, now)) {
+                throw new IOException("Chunk " + index + " of session " + sessionId + " was taken over");
+            }
+            claimedAt = now;
+        }
+    }
+
+    private static Set<Integer> received(Map<String, AttributeValue> item) {
+        AttributeValue chunks = item.get("chunks");
+        if (chunks == null || !chunks.hasNs()) return Set.of();
+        return chunks.ns().stream().map(Integer::valueOf).collect(Collectors.toSet());
+    }
+
+    private static UploadSession view(Map<String, AttributeValue> item) {
+        int chunkCount = (int) number(item, "chunkCount");
+        Set<Integer> received = received(item);
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < chunkCount; i++) {
+            if (!received.contains(i)) missing.add(i);
+        }
+        return new UploadSession(item.get("sessionId").s(), item.get("filename").s(), item.get("contentType").s(),
+                number(item, "fileSize"), (int) number(item, "chunkSize"), chunkCount, missing,
+                number(item, "expiresAt"));
+    }
+
+    private static Map<String, AttributeValue> key(String sessionId) {
+        return Map.of("sessionId", s(sessionId));
+    }
+
+    private static AttributeValue s(String value) {
+        return AttributeValue.builder().s(value).build();
+    }
+
+    private static AttributeValue n(long value) {
+        return AttributeValue.builder().n(Long.toString(value)).build();
+    }
+
+    private static long number(Map<String, AttributeValue> item, String attribute) {
+        AttributeValue value = item.get(attribute);
+        return value == null || value.n() == null ? 0 : Long.parseLong(value.n());
+    }
+
+    private static String string(Map<String, AttributeValue> item, String attribute) {
+        AttributeValue value = item.get(attribute);
+        return value == null ? null : value.s();
+    }
+}